@@ -0,0 +1,70 @@
+package org.subethamail.smtp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+
+/**
+ * The asynchronous counterpart of {@link MessageHandler}. Instead of doing
+ * their work before they return, the callbacks return a
+ * {@link CompletionStage}, and the SMTP reply to the corresponding command is
+ * sent when that stage completes. This allows an implementation to call a
+ * database or remote store with a non-blocking client, without dedicating a
+ * thread of its own to each call.
+ * <p>
+ * This is an API for the handler only. The server still runs a thread per
+ * connection, which blocks until the stage completes, so it does not serve
+ * more sessions with fewer threads.
+ * <p>
+ * A stage which completes normally results in a positive reply. To reject
+ * the command, complete the stage exceptionally with a
+ * {@link RejectException}, or a {@link DropConnectionException} to close the
+ * connection as well.
+ * <p>
+ * The methods are called in the same order as those of
+ * {@link MessageHandler}, and the next one is not called before the stage of
+ * the previous one completed.
+ *
+ * @see org.subethamail.smtp.helper.AsyncMessageHandlerAdapter
+ */
+public interface AsyncMessageHandler
+{
+	/**
+	 * Called first, after the MAIL FROM during a SMTP exchange.
+	 *
+	 * @param from is the sender as specified by the client, already
+	 *  validated by the server.
+	 * @return a stage which completes when the sender is accepted
+	 */
+	public CompletionStage<Void> from(String from);
+
+	/**
+	 * Called once for every RCPT TO during a SMTP exchange.
+	 *
+	 * @param recipient is a rfc822-compliant email address, validated by the
+	 *  server.
+	 * @return a stage which completes when the recipient is accepted
+	 */
+	public CompletionStage<Void> recipient(String recipient);
+
+	/**
+	 * Called when the DATA part of the SMTP exchange begins. The message
+	 * content, stripped of any extra '.' chars, is published in chunks to the
+	 * single subscriber of the publisher, as fast as the subscriber requests
+	 * them. The chunks are read-only and belong to the subscriber.
+	 * <p>
+	 * Data which is not requested by the time the returned stage completes is
+	 * discarded.
+	 *
+	 * @return a stage which completes when the message is accepted. Complete
+	 *         it exceptionally with a {@link TooMuchDataException} if the
+	 *         message is too large.
+	 */
+	public CompletionStage<Void> data(Flow.Publisher<ByteBuffer> data);
+
+	/**
+	 * Called after all other methods are completed, even if the mail
+	 * transaction is aborted at some point after the initial from() call.
+	 */
+	public void done();
+}
@@ -0,0 +1,18 @@
+package org.subethamail.smtp;
+
+/**
+ * Creates an {@link AsyncMessageHandler} for every message to be exchanged in
+ * an SMTP conversation, just as {@link MessageHandlerFactory} does for
+ * synchronous handlers.
+ *
+ * @see org.subethamail.smtp.helper.AsyncMessageHandlerAdapter
+ */
+public interface AsyncMessageHandlerFactory
+{
+	/**
+	 * Called for the exchange of a single message during an SMTP conversation.
+	 *
+	 * @param ctx provides information about the client.
+	 */
+	public AsyncMessageHandler create(MessageContext ctx);
+}
@@ -0,0 +1,45 @@
+package org.subethamail.smtp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * An optional capability of a {@link MessageHandler}: a handler which
+ * implements this interface receives the message data as a sequence of
+ * ByteBuffer chunks instead of through {@link MessageHandler#data}, which is
+ * not called at all. The chunks are read-only views of the buffer which the
+ * server decodes the DATA stream into, so handlers which write to a channel
+ * can do it without copying and without a method call per byte.
+ * <p>
+ * The chunks arrive in order, stripped of any extra '.' chars, beginning with
+ * the Received header unless that is disabled. After the last chunk,
+ * {@link #dataEnd()} is called.
+ */
+public interface ChunkedMessageHandler extends MessageHandler
+{
+	/**
+	 * Called for each chunk of the message data.
+	 *
+	 * @param chunk
+	 *            a read-only buffer with at least one remaining byte. It is
+	 *            only valid for the duration of the call; the server reuses
+	 *            the underlying memory for the next chunk.
+	 * @throws RejectException
+	 *             if at any point the data should be rejected. The rest of
+	 *             the data is discarded, and dataEnd() is not called.
+	 * @throws DropConnectionException if the connection should be dropped
+	 * @throws TooMuchDataException if the handler can't handle that much data.
+	 * @throws IOException if storing the data fails.
+	 */
+	public void dataChunk(ByteBuffer chunk) throws RejectException, TooMuchDataException, IOException;
+
+	/**
+	 * Called after the last chunk, when the terminating dot line has been
+	 * received.
+	 *
+	 * @throws RejectException if the data should be rejected.
+	 * @throws DropConnectionException if the connection should be dropped
+	 * @throws IOException if storing the data fails.
+	 */
+	public void dataEnd() throws RejectException, TooMuchDataException, IOException;
+}
@@ -0,0 +1,30 @@
+package org.subethamail.smtp;
+
+/**
+ * An optional capability of a {@link MessageHandler}: a handler which
+ * implements this interface is given a DKIM-Signature header field for the
+ * message, if a {@link org.subethamail.smtp.dkim.DkimSigner} is configured by
+ * {@link org.subethamail.smtp.server.SMTPServer#setDkimSigner} and has a key
+ * for the domain of the From address. The body hash is computed while the
+ * data is received and the header fields are signed at its end, so a relay
+ * needs neither to buffer the message nor to read it a second time to sign
+ * it. The field goes in front of the message when it is passed on, for
+ * example with
+ * {@link org.subethamail.smtp.io.ReceivedHeaderStream#ReceivedHeaderStream(java.io.InputStream, byte[])}.
+ * <p>
+ * The call happens at the same point as
+ * {@link MessageDigestHandler#digest(String, byte[])}: on the thread which
+ * reads the data, once its end has been read. A handler which does not read
+ * the data to its end, or whose message cannot be signed, is not called.
+ */
+public interface DkimSignatureHandler extends MessageHandler
+{
+	/**
+	 * Called when the whole data has been received and signed.
+	 *
+	 * @param field
+	 *            the DKIM-Signature header field, including the terminating
+	 *            CRLF
+	 */
+	public void dkimSignature(byte[] field);
+}
@@ -22,7 +22,9 @@ public interface MessageContext
 	public SMTPServer getSMTPServer();
 
 	/**
-	 * @return the IP address of the remote server.
+	 * @return the IP address of the remote server. If the server is
+	 *         configured to receive PROXY protocol headers, then this is the
+	 *         client address reported by the proxy.
 	 */
 	public SocketAddress getRemoteAddress();
 
@@ -53,4 +55,29 @@ public interface MessageContext
 	 */
 	Certificate[] getTlsPeerCertificates();
 
+	/**
+	 * Returns the user and group of the process which connected through a Unix
+	 * domain socket, as reported by the operating system.
+	 *
+	 * @return the credentials of the peer process, or null if the client is
+	 *         not connected through a Unix domain socket or the platform does
+	 *         not support this information
+	 * @see SMTPServer#setUnixDomainSocketPath(java.nio.file.Path)
+	 */
+	default PeerCredentials getPeerCredentials()
+	{
+		return null;
+	}
+
+	/**
+	 * @return true if the message was submitted in-process by calling
+	 *         {@link SMTPServer#submit(String, java.util.Collection, java.io.InputStream)}
+	 *         or one of its variants, false if it is received over an SMTP
+	 *         connection
+	 */
+	default boolean isLocal()
+	{
+		return false;
+	}
+
 }
@@ -0,0 +1,88 @@
+package org.subethamail.smtp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The complete data of a message, as received by the server, which can be
+ * read any number of times. It is kept in memory, or in a temporary file if
+ * it is large, see {@link org.subethamail.smtp.server.SMTPServer#setDataDeferredSize(int)}.
+ * <p>
+ * The data is released by the server after {@link MessageHandler#done()}
+ * returns, it must not be used after that. All methods may be called
+ * concurrently.
+ *
+ * @see MessageDataHandler
+ */
+public interface MessageData
+{
+	/**
+	 * @return the exact number of bytes, including the Received header
+	 */
+	public long getSize();
+
+	/**
+	 * Returns a new stream which reads the data from the beginning,
+	 * independently of any other view.
+	 */
+	public InputStream getInputStream() throws IOException;
+
+	/**
+	 * Returns a new channel which reads the data from the beginning,
+	 * independently of any other view.
+	 */
+	public ReadableByteChannel getChannel() throws IOException;
+
+	/**
+	 * Writes the whole data to the channel. Spooled data is copied by the
+	 * operating system where possible, without passing through the heap.
+	 *
+	 * @return the number of bytes written
+	 */
+	public long transferTo(WritableByteChannel target) throws IOException;
+
+	/**
+	 * Writes the data, starting at the given position, to the channel, like
+	 * {@link #transferTo(WritableByteChannel)}.
+	 *
+	 * @return the number of bytes written
+	 */
+	public long transferTo(long position, WritableByteChannel target) throws IOException;
+
+	/**
+	 * Reads a sequence of bytes starting at the given position into the
+	 * buffer, like FileChannel.read(ByteBuffer, long).
+	 *
+	 * @return the number of bytes read, possibly zero, or -1 if the position
+	 *         is at or beyond the end of the data
+	 */
+	public int read(long position, ByteBuffer dst) throws IOException;
+
+	/**
+	 * Returns a digest of the body of the message, the data after the header
+	 * section, see {@link MessageHeaders#getSectionSize()}. Messages with the
+	 * same body have the same digest, whatever their header fields, including
+	 * the Received header of this server. It is computed on the first call for
+	 * an algorithm and then cached.
+	 *
+	 * The digest for the algorithm configured by
+	 * {@link org.subethamail.smtp.server.SMTPServer#setDigestAlgorithm(String)}
+	 * is computed while the data is received.
+	 *
+	 * @param algorithm
+	 *            the name of a MessageDigest algorithm, for example
+	 *            "SHA-256", or "CRC32C" for a fast non-cryptographic hash
+	 * @throws NoSuchAlgorithmException if the algorithm is not available
+	 */
+	public byte[] getDigest(String algorithm) throws IOException, NoSuchAlgorithmException;
+
+	/**
+	 * Returns the header fields of the message, which the server parsed while
+	 * the data was received.
+	 */
+	public MessageHeaders getHeaders() throws IOException;
+}
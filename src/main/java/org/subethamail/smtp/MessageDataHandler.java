@@ -0,0 +1,59 @@
+package org.subethamail.smtp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.subethamail.smtp.io.DeferredMessageData;
+import org.subethamail.smtp.server.SMTPServer;
+
+/**
+ * An optional capability of a {@link MessageHandler}: a handler which
+ * implements this interface receives the complete message data as a
+ * {@link MessageData} after the terminating dot line, instead of a stream
+ * through {@link MessageHandler#data}, which is not called at all. Handlers
+ * which need several passes over a message, for example to scan it and then
+ * store it, need not buffer it themselves.
+ */
+public interface MessageDataHandler extends MessageHandler
+{
+	/**
+	 * Called when the whole message data has been received.
+	 *
+	 * @param data
+	 *            the data, which remains valid until {@link #done()}
+	 *            returns.
+	 * @throws RejectException if the data should be rejected.
+	 * @throws DropConnectionException if the connection should be dropped
+	 * @throws TooMuchDataException if the handler can't handle that much data.
+	 * @throws IOException if reading or storing the data fails.
+	 */
+	public void data(MessageData data) throws RejectException, TooMuchDataException, IOException;
+
+	/**
+	 * Not called by the server, which calls {@link #data(MessageData)}
+	 * instead, but by code which passes a stream on to any MessageHandler,
+	 * for example a delegating handler. Buffers the stream, in memory or in
+	 * a temporary file beyond the default of
+	 * {@link SMTPServer#setDataDeferredSize(int)}, calls
+	 * {@link #data(MessageData)}, and releases the buffer when it returns.
+	 */
+	@Override
+	default void data(InputStream data) throws RejectException, TooMuchDataException, IOException
+	{
+		DeferredMessageData buffered = new DeferredMessageData(SMTPServer.DEFAULT_DATA_DEFERRED_SIZE);
+		try
+		{
+			byte[] buf = new byte[8192];
+			int count;
+			while ((count = data.read(buf)) != -1)
+				buffered.append(ByteBuffer.wrap(buf, 0, count));
+
+			this.data(buffered);
+		}
+		finally
+		{
+			buffered.release();
+		}
+	}
+}
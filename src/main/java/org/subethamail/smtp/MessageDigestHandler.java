@@ -0,0 +1,36 @@
+package org.subethamail.smtp;
+
+/**
+ * An optional capability of a {@link MessageHandler}: a handler which
+ * implements this interface is told the digest of the message data, which
+ * the server computes while the data is received, if a digest algorithm is
+ * configured by
+ * {@link org.subethamail.smtp.server.SMTPServer#setDigestAlgorithm(String)}.
+ * Deduplication or auditing by digest then needs no second pass over the
+ * data.
+ * <p>
+ * The call happens on the thread which reads the data, once its end has been
+ * read: for a plain MessageHandler from within the read of the data stream
+ * which reports the end of the stream, for a {@link ChunkedMessageHandler}
+ * before {@link ChunkedMessageHandler#dataEnd()}, and for a
+ * {@link MessageDataHandler} before
+ * {@link MessageDataHandler#data(MessageData)}. A handler which does not read
+ * the data to its end is not called. A MessageDataHandler can also get the
+ * digest from {@link MessageData#getDigest(String)}, without it being
+ * computed again.
+ */
+public interface MessageDigestHandler extends MessageHandler
+{
+	/**
+	 * Called when the whole data has been received.
+	 *
+	 * @param algorithm
+	 *            the name of the digest algorithm
+	 * @param digest
+	 *            the digest of the body, the data after the header section,
+	 *            see {@link MessageData#getDigest(String)}
+	 * @throws RejectException if the message should be rejected
+	 * @throws DropConnectionException if the connection should be dropped
+	 */
+	public void digest(String algorithm, byte[] digest) throws RejectException;
+}
@@ -0,0 +1,269 @@
+package org.subethamail.smtp;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.mail.internet.MimeUtility;
+
+/**
+ * The header fields of a message, as parsed by the server while the data was
+ * received, see {@link MessageHeadersHandler} and
+ * {@link MessageData#getHeaders()}. The fields are in the order of the
+ * message, including the Received header added by this server.
+ * <p>
+ * Only the positions of the fields are recorded while parsing. Names are
+ * indexed on the first lookup, and values are unfolded and decoded when they
+ * are first asked for. Field bodies are decoded as UTF-8, which also covers
+ * plain ASCII; {@link #getDecoded(String)} additionally decodes RFC 2047
+ * encoded words.
+ * <p>
+ * Instances may be used by several threads.
+ */
+public class MessageHeaders
+{
+	/** The header section, including the terminating blank line if complete */
+	private final byte[] section;
+
+	/** The start of each field within the section */
+	private final int[] starts;
+
+	/** The end of each field, after its line terminator */
+	private final int[] ends;
+
+	private final boolean complete;
+
+	/** The name of each field, null until indexed */
+	@GuardedBy("this")
+	private String[] names;
+
+	/** The positions of the fields for each lower case name */
+	@GuardedBy("this")
+	private Map<String, List<Integer>> index;
+
+	/** Unfolded values, computed on demand */
+	@GuardedBy("this")
+	private String[] values;
+
+	/**
+	 * @param section
+	 *            the header section of a message, owned by this object
+	 *            afterwards
+	 * @param starts
+	 *            the start of each field within the section
+	 * @param ends
+	 *            the end of each field, after its line terminator
+	 * @param complete
+	 *            true if the section ended with a blank line, false if the
+	 *            data ended before, or the section was too large to be kept
+	 */
+	public MessageHeaders(byte[] section, int[] starts, int[] ends, boolean complete)
+	{
+		this.section = section;
+		this.starts = starts;
+		this.ends = ends;
+		this.complete = complete;
+	}
+
+	/**
+	 * @return the number of fields
+	 */
+	public int size()
+	{
+		return this.starts.length;
+	}
+
+	/**
+	 * @return the name of the field at the index, as it appears in the
+	 *         message, or an empty string if the line has no colon
+	 */
+	public synchronized String getName(int index)
+	{
+		this.buildIndex();
+		return this.names[index];
+	}
+
+	/**
+	 * @return the unfolded body of the field at the index, without the
+	 *         leading white space
+	 */
+	public synchronized String getValue(int index)
+	{
+		if (this.values == null)
+			this.values = new String[this.starts.length];
+
+		if (this.values[index] == null)
+			this.values[index] = this.unfold(index);
+		return this.values[index];
+	}
+
+	/**
+	 * @return the position of the field at the index within the message data
+	 */
+	public int getOffset(int index)
+	{
+		return this.starts[index];
+	}
+
+	/**
+	 * @return the length of the field at the index in bytes, including any
+	 *         continuation lines and the terminating line break
+	 */
+	public int getLength(int index)
+	{
+		return this.ends[index] - this.starts[index];
+	}
+
+	/**
+	 * @return the bytes of the field at the index as received, including any
+	 *         continuation lines and the terminating line break
+	 */
+	public byte[] getField(int index)
+	{
+		return Arrays.copyOfRange(this.section, this.starts[index], this.ends[index]);
+	}
+
+	/**
+	 * @return the body of the first field with the name, compared
+	 *         ignoring case, or null if there is no such field
+	 */
+	public String get(String name)
+	{
+		List<Integer> positions = this.positions(name);
+		return positions.isEmpty() ? null : this.getValue(positions.get(0));
+	}
+
+	/**
+	 * @return the bodies of all fields with the name, compared ignoring case,
+	 *         in the order of the message
+	 */
+	public List<String> getAll(String name)
+	{
+		List<Integer> positions = this.positions(name);
+		List<String> result = new ArrayList<String>(positions.size());
+		for (int position: positions)
+			result.add(this.getValue(position));
+		return result;
+	}
+
+	/**
+	 * @return the number of fields with the name, compared ignoring case.
+	 *         This does not decode any value.
+	 */
+	public int count(String name)
+	{
+		return this.positions(name).size();
+	}
+
+	/**
+	 * @return the body of the first field with the name, with RFC 2047
+	 *         encoded words decoded, or null if there is no such field
+	 */
+	public String getDecoded(String name)
+	{
+		String value = this.get(name);
+		if (value == null)
+			return null;
+
+		try
+		{
+			return MimeUtility.decodeText(value);
+		}
+		catch (UnsupportedEncodingException ex)
+		{
+			return value;
+		}
+	}
+
+	/**
+	 * @return the size of the header section in bytes, including the blank
+	 *         line which terminates it
+	 */
+	public int getSectionSize()
+	{
+		return this.section.length;
+	}
+
+	/**
+	 * @return false if the data ended before the blank line which terminates
+	 *         the header section, or the header section was larger than the
+	 *         server keeps. The fields are the ones received up to that
+	 *         point.
+	 */
+	public boolean isComplete()
+	{
+		return this.complete;
+	}
+
+	/** */
+	@Override
+	public String toString()
+	{
+		return new String(this.section, StandardCharsets.UTF_8);
+	}
+
+	/** */
+	private synchronized List<Integer> positions(String name)
+	{
+		this.buildIndex();
+		List<Integer> positions = this.index.get(name.toLowerCase(Locale.ENGLISH));
+		return positions == null ? Collections.<Integer>emptyList() : positions;
+	}
+
+	/** */
+	@GuardedBy("this")
+	private void buildIndex()
+	{
+		if (this.index != null)
+			return;
+
+		this.names = new String[this.starts.length];
+		this.index = new HashMap<String, List<Integer>>();
+		for (int i = 0; i < this.starts.length; i++)
+		{
+			int colon = this.starts[i];
+			while (colon < this.ends[i] && this.section[colon] != ':')
+				colon++;
+
+			String name = colon < this.ends[i]
+				? new String(this.section, this.starts[i], colon - this.starts[i], StandardCharsets.US_ASCII).trim()
+				: "";
+			this.names[i] = name;
+			this.index.computeIfAbsent(name.toLowerCase(Locale.ENGLISH), key -> new ArrayList<Integer>(1)).add(i);
+		}
+	}
+
+	/**
+	 * Returns the body of the field with the line breaks of folded lines
+	 * removed.
+	 */
+	private String unfold(int index)
+	{
+		int start = this.starts[index];
+		int end = this.ends[index];
+		while (start < end && this.section[start] != ':')
+			start++;
+		if (start == end)
+			start = this.starts[index];
+		else
+			start++;
+
+		byte[] value = new byte[end - start];
+		int length = 0;
+		for (int i = start; i < end; i++)
+		{
+			byte b = this.section[i];
+			if (b != '\r' && b != '\n')
+				value[length++] = b;
+		}
+
+		return new String(value, 0, length, StandardCharsets.UTF_8).trim();
+	}
+}
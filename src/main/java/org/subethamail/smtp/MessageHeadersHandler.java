@@ -0,0 +1,30 @@
+package org.subethamail.smtp;
+
+/**
+ * An optional capability of a {@link MessageHandler}: a handler which
+ * implements this interface is told the header fields of the message as
+ * soon as the header section has been received, while the rest of the data
+ * is still to come. The server parses the header section on the fly, so
+ * routing and filtering on headers does not need another pass over the data.
+ * <p>
+ * The call happens on the thread which reads the data: for a plain
+ * MessageHandler from within a read of the data stream, for a
+ * {@link ChunkedMessageHandler} before the chunk which ends the header
+ * section, and for a {@link MessageDataHandler} before
+ * {@link MessageDataHandler#data(MessageData)}. If the data ends before a
+ * blank line, the call happens at its end, with
+ * {@link MessageHeaders#isComplete()} false.
+ */
+public interface MessageHeadersHandler extends MessageHandler
+{
+	/**
+	 * Called when the header section of the message has been received.
+	 *
+	 * @param headers
+	 *            the header fields, including the Received header of this
+	 *            server
+	 * @throws RejectException if the message should be rejected
+	 * @throws DropConnectionException if the connection should be dropped
+	 */
+	public void headers(MessageHeaders headers) throws RejectException;
+}
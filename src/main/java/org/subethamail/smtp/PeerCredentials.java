@@ -0,0 +1,43 @@
+package org.subethamail.smtp;
+
+/**
+ * The user and group of the process at the other end of a Unix domain socket,
+ * as reported by the operating system, see
+ * {@link MessageContext#getPeerCredentials()}.
+ */
+public class PeerCredentials
+{
+	private final String userName;
+
+	private final String groupName;
+
+	/** */
+	public PeerCredentials(String userName, String groupName)
+	{
+		this.userName = userName;
+		this.groupName = groupName;
+	}
+
+	/**
+	 * @return the name of the user, or its numeric id if it has no name
+	 */
+	public String getUserName()
+	{
+		return this.userName;
+	}
+
+	/**
+	 * @return the name of the group, or its numeric id if it has no name
+	 */
+	public String getGroupName()
+	{
+		return this.groupName;
+	}
+
+	/** */
+	@Override
+	public String toString()
+	{
+		return this.userName + ":" + this.groupName;
+	}
+}
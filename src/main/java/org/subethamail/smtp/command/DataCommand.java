@@ -1,14 +1,10 @@
 package org.subethamail.smtp.command;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 
 import org.subethamail.smtp.DropConnectionException;
 import org.subethamail.smtp.RejectException;
-import org.subethamail.smtp.io.DotTerminatedInputStream;
-import org.subethamail.smtp.io.DotUnstuffingInputStream;
-import org.subethamail.smtp.io.ReceivedHeaderStream;
+import org.subethamail.smtp.io.DataDecoder;
 import org.subethamail.smtp.server.BaseCommand;
 import org.subethamail.smtp.server.Session;
 
@@ -44,31 +40,27 @@ public class DataCommand extends BaseCommand
 			sess.sendResponse("503 Error: need RCPT command");
 			return;
 		}
+		else if (sess.getServer().getMemoryBudget().isExhausted())
+		{
+			sess.sendResponse("452 4.3.1 Insufficient system storage");
+			return;
+		}
 
 		sess.sendResponse("354 End data with <CR><LF>.<CR><LF>");
 
-		InputStream stream = sess.getRawInput();
-		stream = new BufferedInputStream(stream, BUFFER_SIZE);
-		stream = new DotTerminatedInputStream(stream);
-		stream = new DotUnstuffingInputStream(stream);
+		DataDecoder decoder = new DataDecoder(sess.getRawInput(), BUFFER_SIZE);
+		byte[] receivedHeader = null;
 		if (!sess.getServer().getDisableReceivedHeaders())
 		{
-			stream = new ReceivedHeaderStream(stream, sess.getHelo(), sess
-					.getRemoteAddress().getAddress(), sess.getServer()
-					.getHostName(), sess.getServer().getSoftwareName(),
-					sess.getSessionId(), sess.getSingleRecipient());
+			receivedHeader = sess.getReceivedHeaderTemplate().createHeader(sess.getSessionId(),
+					sess.getSingleRecipient());
 		}
 
 		try
 		{
-			sess.getMessageHandler().data(stream);
-
-			// Just in case the handler didn't consume all the data, we might as well
-			// suck it up so it doesn't pollute further exchanges.  This code used to
-			// throw an exception, but this seems an arbitrary part of the contract that
-			// we might as well relax.
-			while (stream.read() != -1)
-				;
+			// Data not consumed by the handler is skipped, so it doesn't pollute
+			// further exchanges.
+			sess.startDataDelivery().deliver(receivedHeader, decoder);
 
 			sess.sendResponse("250 Ok");
 		}
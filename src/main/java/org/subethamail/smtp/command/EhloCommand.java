@@ -62,7 +62,7 @@ public class EhloCommand extends BaseCommand
 		}
 
 		// Enabling / Hiding TLS is a server setting
-		if (sess.getServer().getEnableTLS() && !sess.getServer().getHideTLS())
+		if (sess.getServer().getEnableTLS() && !sess.getServer().getHideTLS() && !sess.isUnixDomainSocket())
 		{
 			response.append("\r\n" + "250-STARTTLS");
 		}
@@ -74,7 +74,8 @@ public class MailCommand extends BaseCommand
 				}
 				// Reject the message if the size supplied by the client
 				// is larger than what we advertised in EHLO answer.
-				if (size > sess.getServer().getMaxMessageSize())
+				if (sess.getServer().getMaxMessageSize() > 0
+						&& size > sess.getServer().getMaxMessageSize())
 				{
 					sess.sendResponse("552 5.3.4 Message size exceeds fixed limit");
 					return;
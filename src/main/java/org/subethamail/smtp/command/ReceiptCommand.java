@@ -40,6 +40,11 @@ public class ReceiptCommand extends BaseCommand
 			sess.sendResponse("452 Error: too many recipients");
 			return;
 		}
+		else if (!sess.reserveDeclaredMessageSize())
+		{
+			sess.sendResponse("452 4.3.1 Insufficient system storage");
+			return;
+		}
 
 		String args = this.getArgPredicate(commandString);
 		if (!args.toUpperCase(Locale.ENGLISH).startsWith("TO:"))
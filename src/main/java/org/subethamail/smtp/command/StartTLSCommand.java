@@ -47,6 +47,11 @@ public class StartTLSCommand extends BaseCommand
 		try
 		{
 			Socket socket = sess.getSocket();
+			if (socket == null)
+			{
+				sess.sendResponse("454 TLS not available on a Unix domain socket");
+				return;
+			}
 			if (socket instanceof SSLSocket)
 			{
 				sess.sendResponse("454 TLS not available due to temporary reason: TLS already active");
@@ -0,0 +1,176 @@
+package org.subethamail.smtp.dkim;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes the SHA-256 body hash of DKIM (RFC 6376 section 3.7) of a message
+ * body which is fed to it a chunk at a time. The body is canonicalized on the
+ * way, so neither the body nor its canonical form is ever kept. Only the
+ * empty lines at the current end of the data, and in relaxed
+ * canonicalization white space, are held back until it is known whether
+ * content follows them.
+ */
+public class DkimBodyHasher
+{
+	private final boolean relaxed;
+
+	private final MessageDigest digest;
+
+	/** The canonical bytes not yet passed to the digest */
+	private final byte[] buf = new byte[4096];
+
+	private int length;
+
+	/** The number of canonical bytes so far */
+	private long count;
+
+	/** The empty lines held back, they are dropped at the end of the body */
+	private int emptyLines;
+
+	/** True if the current line has content */
+	private boolean lineContent;
+
+	/** True if a CR was read which may start a line break */
+	private boolean pendingCR;
+
+	/** True if white space was read, in relaxed canonicalization */
+	private boolean pendingSpace;
+
+	/** */
+	public DkimBodyHasher(DkimSigner.Canonicalization canonicalization)
+	{
+		this.relaxed = canonicalization == DkimSigner.Canonicalization.RELAXED;
+		try
+		{
+			this.digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException ex)
+		{
+			throw new IllegalStateException(ex); // required of every Java platform
+		}
+	}
+
+	/**
+	 * Hashes the remaining bytes of the chunk, without changing its position.
+	 */
+	public void update(ByteBuffer chunk)
+	{
+		if (chunk.hasArray())
+		{
+			this.update(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+		}
+		else
+		{
+			int limit = chunk.limit();
+			for (int i = chunk.position(); i < limit; i++)
+				this.update(chunk.get(i));
+		}
+	}
+
+	/**
+	 * Hashes the bytes.
+	 */
+	public void update(byte[] b, int off, int len)
+	{
+		int end = off + len;
+		for (int i = off; i < end; i++)
+			this.update(b[i]);
+	}
+
+	/**
+	 * Called at the end of the body.
+	 *
+	 * @return the body hash
+	 */
+	public byte[] finish()
+	{
+		if (this.pendingCR)
+		{
+			this.pendingCR = false;
+			this.content((byte) '\r');
+		}
+		// both canonicalizations end a non-empty body with a line break
+		if (this.lineContent)
+			this.lineBreak();
+		// an empty body is a single line break in simple canonicalization
+		if (!this.relaxed && this.count == 0)
+			this.lineBreak();
+
+		this.digest.update(this.buf, 0, this.length);
+		this.length = 0;
+		return this.digest.digest();
+	}
+
+	/** */
+	private void update(byte b)
+	{
+		if (this.pendingCR)
+		{
+			this.pendingCR = false;
+			if (b == '\n')
+			{
+				this.endLine();
+				return;
+			}
+			this.content((byte) '\r');
+		}
+
+		if (b == '\r')
+			this.pendingCR = true;
+		else if (this.relaxed && (b == ' ' || b == '\t'))
+			this.pendingSpace = true;
+		else
+			this.content(b);
+	}
+
+	/** Writes a byte of a line, after what was held back */
+	private void content(byte b)
+	{
+		for (; this.emptyLines > 0; this.emptyLines--)
+			this.lineBreak();
+		if (this.pendingSpace)
+		{
+			this.pendingSpace = false;
+			this.put((byte) ' ');
+		}
+		this.put(b);
+		this.lineContent = true;
+	}
+
+	/** */
+	private void endLine()
+	{
+		// white space at the end of a line is dropped in relaxed canonicalization
+		this.pendingSpace = false;
+		if (this.lineContent)
+		{
+			this.lineBreak();
+			this.lineContent = false;
+		}
+		else
+		{
+			this.emptyLines++;
+		}
+	}
+
+	/** */
+	private void lineBreak()
+	{
+		this.put((byte) '\r');
+		this.put((byte) '\n');
+	}
+
+	/** */
+	private void put(byte b)
+	{
+		if (this.length == this.buf.length)
+		{
+			this.digest.update(this.buf, 0, this.length);
+			this.length = 0;
+		}
+		this.buf[this.length++] = b;
+		this.count++;
+	}
+}
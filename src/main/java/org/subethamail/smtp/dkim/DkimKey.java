@@ -0,0 +1,50 @@
+package org.subethamail.smtp.dkim;
+
+import java.security.PrivateKey;
+
+/**
+ * A private key which signs the messages of a domain, and the selector under
+ * which its public key is published in DNS.
+ */
+public class DkimKey
+{
+	private final String domain;
+
+	private final String selector;
+
+	private final PrivateKey privateKey;
+
+	/**
+	 * @param domain
+	 *            the signing domain, the d= tag
+	 * @param selector
+	 *            the s= tag, the public key is found at
+	 *            selector._domainkey.domain
+	 * @param privateKey
+	 *            an RSA private key
+	 */
+	public DkimKey(String domain, String selector, PrivateKey privateKey)
+	{
+		this.domain = domain;
+		this.selector = selector;
+		this.privateKey = privateKey;
+	}
+
+	/** */
+	public String getDomain()
+	{
+		return this.domain;
+	}
+
+	/** */
+	public String getSelector()
+	{
+		return this.selector;
+	}
+
+	/** */
+	public PrivateKey getPrivateKey()
+	{
+		return this.privateKey;
+	}
+}
@@ -0,0 +1,21 @@
+package org.subethamail.smtp.dkim;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+/**
+ * Looks up the signing key of a domain for a {@link DkimSigner}. It is called
+ * once for every message signed, possibly by several threads at once, so
+ * implementations should cache what they load.
+ *
+ * @see FileDkimKeyStore
+ */
+public interface DkimKeyStore
+{
+	/**
+	 * @param domain
+	 *            the domain of the From address of a message, in lower case
+	 * @return the key, or null if messages from the domain are not signed
+	 */
+	public DkimKey getKey(String domain) throws IOException, GeneralSecurityException;
+}
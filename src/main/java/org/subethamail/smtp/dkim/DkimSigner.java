@@ -0,0 +1,282 @@
+package org.subethamail.smtp.dkim;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+import org.subethamail.smtp.MessageHeaders;
+import org.subethamail.smtp.util.Base64;
+import org.subethamail.smtp.util.TextUtils;
+
+/**
+ * Signs messages with DKIM (RFC 6376), using rsa-sha256 and the key which
+ * the {@link DkimKeyStore} has for the domain of the From address. The body
+ * hash is computed by a {@link DkimBodyHasher} while the data is received,
+ * and the header fields are signed at the end; the result is a
+ * DKIM-Signature header field to put in front of the message.
+ * <p>
+ * Configure a signer with
+ * {@link org.subethamail.smtp.server.SMTPServer#setDkimSigner(DkimSigner)},
+ * handlers receive the signature through
+ * {@link org.subethamail.smtp.DkimSignatureHandler}. A signer may be used by
+ * several threads once it is configured.
+ */
+public class DkimSigner
+{
+	/**
+	 * The canonicalization algorithms of RFC 6376 section 3.4.
+	 */
+	public enum Canonicalization
+	{
+		/** Tolerates almost no modification */
+		SIMPLE,
+
+		/** Tolerates changes of white space and header folding */
+		RELAXED;
+
+		/** The name in the c= tag */
+		String tag()
+		{
+			return this.name().toLowerCase(Locale.ENGLISH);
+		}
+	}
+
+	/** The header fields signed by default, the ones RFC 6376 recommends */
+	public static final List<String> DEFAULT_SIGNED_HEADERS = Collections.unmodifiableList(Arrays.asList(
+			"From", "Reply-To", "Subject", "Date", "To", "Cc", "Message-ID", "In-Reply-To", "References",
+			"MIME-Version", "Content-Type", "Content-Transfer-Encoding"));
+
+	/** The length of the lines of the b= tag */
+	private static final int SIGNATURE_LINE_LENGTH = 72;
+
+	private final DkimKeyStore keyStore;
+
+	private Canonicalization headerCanonicalization = Canonicalization.RELAXED;
+
+	private Canonicalization bodyCanonicalization = Canonicalization.RELAXED;
+
+	private List<String> signedHeaders = DEFAULT_SIGNED_HEADERS;
+
+	/** */
+	public DkimSigner(DkimKeyStore keyStore)
+	{
+		this.keyStore = keyStore;
+	}
+
+	/** */
+	public DkimKeyStore getKeyStore()
+	{
+		return this.keyStore;
+	}
+
+	/** */
+	public Canonicalization getHeaderCanonicalization()
+	{
+		return this.headerCanonicalization;
+	}
+
+	/**
+	 * @param headerCanonicalization
+	 *            relaxed by default
+	 */
+	public void setHeaderCanonicalization(Canonicalization headerCanonicalization)
+	{
+		this.headerCanonicalization = headerCanonicalization;
+	}
+
+	/** */
+	public Canonicalization getBodyCanonicalization()
+	{
+		return this.bodyCanonicalization;
+	}
+
+	/**
+	 * @param bodyCanonicalization
+	 *            relaxed by default
+	 */
+	public void setBodyCanonicalization(Canonicalization bodyCanonicalization)
+	{
+		this.bodyCanonicalization = bodyCanonicalization;
+	}
+
+	/** */
+	public List<String> getSignedHeaders()
+	{
+		return this.signedHeaders;
+	}
+
+	/**
+	 * @param signedHeaders
+	 *            the names of the header fields to sign, if the message has
+	 *            them. All fields of a name are signed.
+	 */
+	public void setSignedHeaders(List<String> signedHeaders)
+	{
+		this.signedHeaders = Collections.unmodifiableList(new ArrayList<String>(signedHeaders));
+	}
+
+	/**
+	 * @return a hasher for the body of a message, with the configured
+	 *         canonicalization
+	 */
+	public DkimBodyHasher createBodyHasher()
+	{
+		return new DkimBodyHasher(this.bodyCanonicalization);
+	}
+
+	/**
+	 * Signs a message.
+	 *
+	 * @param headers
+	 *            the header section of the message
+	 * @param bodyHash
+	 *            the result of a hasher from {@link #createBodyHasher()}
+	 * @return the DKIM-Signature header field including the terminating
+	 *         CRLF, or null if the message has no From address or the key
+	 *         store has no key for its domain
+	 */
+	public byte[] sign(MessageHeaders headers, byte[] bodyHash) throws IOException, GeneralSecurityException
+	{
+		String domain = fromDomain(headers);
+		if (domain == null)
+			return null;
+		DkimKey key = this.keyStore.getKey(domain);
+		if (key == null)
+			return null;
+
+		Signature signature = Signature.getInstance("SHA256withRSA");
+		signature.initSign(key.getPrivateKey());
+
+		// several fields of a name are signed from the bottom up, which is
+		// the order in which a verifier picks them
+		StringBuilder names = new StringBuilder();
+		for (String name: this.signedHeaders)
+		{
+			for (int i = headers.size() - 1; i >= 0; i--)
+			{
+				if (headers.getName(i).equalsIgnoreCase(name))
+				{
+					if (names.length() > 0)
+						names.append(':');
+					names.append(name);
+					signature.update(this.canonicalize(headers.getField(i), true));
+				}
+			}
+		}
+
+		String field = "DKIM-Signature: v=1; a=rsa-sha256; c=" + this.headerCanonicalization.tag() + "/"
+				+ this.bodyCanonicalization.tag() + "; d=" + key.getDomain() + "; s=" + key.getSelector()
+				+ ";\r\n\tt=" + (System.currentTimeMillis() / 1000) + "; h=" + names
+				+ ";\r\n\tbh=" + Base64.encodeToString(bodyHash, false)
+				+ ";\r\n\tb=";
+		signature.update(this.canonicalize(TextUtils.getAsciiBytes(field), false));
+
+		String value = Base64.encodeToString(signature.sign(), false);
+		StringBuilder result = new StringBuilder(field);
+		for (int i = 0; i < value.length(); i += SIGNATURE_LINE_LENGTH)
+		{
+			if (i > 0)
+				result.append("\r\n\t ");
+			result.append(value, i, Math.min(value.length(), i + SIGNATURE_LINE_LENGTH));
+		}
+		result.append("\r\n");
+		return TextUtils.getAsciiBytes(result.toString());
+	}
+
+	/**
+	 * Canonicalizes a header field as RFC 6376 section 3.4.1 and 3.4.2
+	 * describe.
+	 *
+	 * @param terminated
+	 *            true if the field ends with a line break, false for the
+	 *            DKIM-Signature field itself, which is signed without it
+	 */
+	private byte[] canonicalize(byte[] field, boolean terminated)
+	{
+		if (this.headerCanonicalization == Canonicalization.SIMPLE)
+			return field;
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(field.length);
+		int colon = 0;
+		while (colon < field.length && field[colon] != ':')
+			colon++;
+
+		// the name in lower case, without white space before the colon
+		int nameEnd = colon;
+		while (nameEnd > 0 && isWhiteSpace(field[nameEnd - 1]))
+			nameEnd--;
+		for (int i = 0; i < nameEnd; i++)
+		{
+			byte b = field[i];
+			out.write(b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b);
+		}
+		out.write(':');
+
+		// the value unfolded, with runs of white space reduced to a single
+		// space, and none at the start and the end
+		boolean space = false;
+		for (int i = colon + 1; i < field.length; i++)
+		{
+			byte b = field[i];
+			if (b == '\r' || b == '\n')
+				continue;
+			if (isWhiteSpace(b))
+			{
+				space = true;
+				continue;
+			}
+			if (space && out.size() > nameEnd + 1)
+				out.write(' ');
+			space = false;
+			out.write(b);
+		}
+
+		if (terminated)
+		{
+			out.write('\r');
+			out.write('\n');
+		}
+		return out.toByteArray();
+	}
+
+	/** */
+	private static boolean isWhiteSpace(byte b)
+	{
+		return b == ' ' || b == '\t';
+	}
+
+	/**
+	 * @return the domain of the first From address in lower case, or null
+	 */
+	private static String fromDomain(MessageHeaders headers)
+	{
+		String from = headers.get("From");
+		if (from == null)
+			return null;
+
+		try
+		{
+			InternetAddress[] addresses = InternetAddress.parseHeader(from, false);
+			if (addresses.length == 0)
+				return null;
+			String address = addresses[0].getAddress();
+			int at = address == null ? -1 : address.lastIndexOf('@');
+			if (at < 0)
+				return null;
+			return address.substring(at + 1).toLowerCase(Locale.ENGLISH);
+		}
+		catch (AddressException ex)
+		{
+			return null;
+		}
+	}
+}
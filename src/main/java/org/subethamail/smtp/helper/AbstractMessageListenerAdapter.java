@@ -0,0 +1,117 @@
+package org.subethamail.smtp.helper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.subethamail.smtp.MessageContext;
+import org.subethamail.smtp.io.ChunkPool;
+import org.subethamail.smtp.io.DeferredFileOutputStream;
+
+/**
+ * The settings shared by {@link SimpleMessageListenerAdapter} and
+ * {@link SmarterMessageListenerAdapter} for delivering a message to several
+ * listeners, and the delivery itself.
+ */
+abstract class AbstractMessageListenerAdapter
+{
+	private Executor deliveryExecutor;
+	private DeliveryFailurePolicy failurePolicy = DeliveryFailurePolicy.REJECT_ON_ANY_FAILURE;
+	private int streamingBufferSize;
+
+	/** */
+	public Executor getDeliveryExecutor()
+	{
+		return this.deliveryExecutor;
+	}
+
+	/**
+	 * Sets the executor which delivers a message to several listeners at the
+	 * same time. By default, or if it is null, the session thread delivers to
+	 * one listener after another. The executor is shared by all sessions, a
+	 * ThreadPoolExecutor with a bounded queue limits the threads used for
+	 * deliveries; the session thread makes the deliveries it rejects itself.
+	 */
+	public void setDeliveryExecutor(Executor deliveryExecutor)
+	{
+		this.deliveryExecutor = deliveryExecutor;
+	}
+
+	/** */
+	public DeliveryFailurePolicy getFailurePolicy()
+	{
+		return this.failurePolicy;
+	}
+
+	/**
+	 * Sets how a message is answered if the delivery to some of the listeners
+	 * fails, {@link DeliveryFailurePolicy#REJECT_ON_ANY_FAILURE} by default.
+	 */
+	public void setFailurePolicy(DeliveryFailurePolicy failurePolicy)
+	{
+		this.failurePolicy = failurePolicy;
+	}
+
+	/** */
+	public int getStreamingBufferSize()
+	{
+		return this.streamingBufferSize;
+	}
+
+	/**
+	 * Makes deliveries to several listeners start while the data is still
+	 * arriving, if a delivery executor is set. Each listener may lag behind
+	 * the client by up to the given number of bytes; a listener which falls
+	 * further behind reads the rest of the message from a spool after it
+	 * has arrived. If all listeners keep up, the message is not spooled at
+	 * all. 0, the default, spools every message before delivering it.
+	 */
+	public void setStreamingBufferSize(int streamingBufferSize)
+	{
+		this.streamingBufferSize = streamingBufferSize;
+	}
+
+	/**
+	 * Delivers the data to the receivers: directly to a single one, otherwise
+	 * through a {@link StreamingTee} or a spool, as configured.
+	 *
+	 * @param dataDeferredSize
+	 *            the size up to which a spool is kept in memory
+	 */
+	void deliver(MessageContext ctx, int dataDeferredSize, List<FanOut.Receiver> receivers, InputStream data)
+			throws IOException
+	{
+		if (receivers.size() == 1)
+		{
+			receivers.get(0).deliver(data);
+		}
+		else if (this.deliveryExecutor != null && this.streamingBufferSize > 0)
+		{
+			StreamingTee tee = new StreamingTee(this.streamingBufferSize, ChunkPool.getDefault(),
+					() -> createSpool(ctx, dataDeferredSize));
+			tee.deliver(receivers, data, this.deliveryExecutor, this.failurePolicy);
+		}
+		else
+		{
+			DeferredFileOutputStream dfos = createSpool(ctx, dataDeferredSize);
+			try
+			{
+				data.transferTo(dfos);
+
+				FanOut.deliver(receivers, dfos, this.deliveryExecutor, this.failurePolicy);
+			}
+			finally
+			{
+				dfos.close();
+			}
+		}
+	}
+
+	/** */
+	private static DeferredFileOutputStream createSpool(MessageContext ctx, int dataDeferredSize)
+	{
+		return new DeferredFileOutputStream(dataDeferredSize, ChunkPool.getDefault(),
+				ctx.getSMTPServer().getMemoryBudget(), ctx.getSMTPServer().getSpoolManager());
+	}
+}
@@ -0,0 +1,172 @@
+package org.subethamail.smtp.helper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.subethamail.smtp.AsyncMessageHandler;
+import org.subethamail.smtp.AsyncMessageHandlerFactory;
+import org.subethamail.smtp.MessageContext;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.MessageHandlerFactory;
+import org.subethamail.smtp.RejectException;
+import org.subethamail.smtp.TooMuchDataException;
+
+/**
+ * MessageHandlerFactory implementation which adapts to an
+ * {@link AsyncMessageHandlerFactory}, so asynchronous handlers can be plugged
+ * into an {@link org.subethamail.smtp.server.SMTPServer}.
+ * <p>
+ * The session sends the reply to each command when the stage returned by the
+ * handler completes. Until then the session thread blocks on the stage: the
+ * server uses a thread per connection, so this adapter does not let more
+ * sessions share a thread, it only lets the handler use non-blocking clients
+ * without a thread of its own for each call. The message data is read from
+ * the client only as fast as the subscriber of the data publisher requests
+ * it.
+ * <p>
+ * The session waits at most the connection timeout of the server for each
+ * stage, and for each request of the data subscriber. If it runs out, or the
+ * session thread is interrupted, the client receives a 451 reply.
+ */
+public class AsyncMessageHandlerAdapter implements MessageHandlerFactory
+{
+	private AsyncMessageHandlerFactory factory;
+
+	/** */
+	public AsyncMessageHandlerAdapter(AsyncMessageHandlerFactory factory)
+	{
+		this.factory = factory;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.subethamail.smtp.MessageHandlerFactory#create(org.subethamail.smtp.MessageContext)
+	 */
+	public MessageHandler create(MessageContext ctx)
+	{
+		return new Handler(this.factory.create(ctx), ctx.getSMTPServer().getConnectionTimeout());
+	}
+
+	/**
+	 * Class which implements the actual handler interface.
+	 */
+	static class Handler implements MessageHandler
+	{
+		AsyncMessageHandler handler;
+
+		/** Milliseconds to wait for the handler, 0 waits indefinitely */
+		long timeout;
+
+		/** */
+		public Handler(AsyncMessageHandler handler, long timeout)
+		{
+			this.handler = handler;
+			this.timeout = timeout;
+		}
+
+		/** */
+		public void from(String from) throws RejectException
+		{
+			this.awaitReply(this.handler.from(from));
+		}
+
+		/** */
+		public void recipient(String recipient) throws RejectException
+		{
+			this.awaitReply(this.handler.recipient(recipient));
+		}
+
+		/** */
+		public void data(InputStream data) throws RejectException, TooMuchDataException, IOException
+		{
+			final InputStreamPublisher publisher = new InputStreamPublisher(data);
+			CompletableFuture<Void> result = this.handler.data(publisher).toCompletableFuture();
+			result.whenComplete((ignored, failure) -> publisher.stop());
+
+			try
+			{
+				publisher.pump(this.timeout);
+				this.await(result);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new RejectException(451, "4.3.0 Interrupted while waiting for the message handler");
+			}
+			catch (TimeoutException e)
+			{
+				throw new RejectException(451, "4.3.0 Timed out waiting for the message handler");
+			}
+			catch (ExecutionException e)
+			{
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException)
+					throw (IOException) cause;
+				throw unchecked(cause);
+			}
+			finally
+			{
+				publisher.stop();
+			}
+		}
+
+		/** */
+		public void done()
+		{
+			this.handler.done();
+		}
+
+		/**
+		 * Waits until the stage completes, and rethrows its failure.
+		 */
+		private void awaitReply(CompletionStage<Void> stage) throws RejectException
+		{
+			try
+			{
+				this.await(stage.toCompletableFuture());
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new RejectException(451, "4.3.0 Interrupted while waiting for the message handler");
+			}
+			catch (TimeoutException e)
+			{
+				throw new RejectException(451, "4.3.0 Timed out waiting for the message handler");
+			}
+			catch (ExecutionException e)
+			{
+				throw unchecked(e.getCause());
+			}
+		}
+
+		/**
+		 * Waits for the future at most the timeout.
+		 */
+		private void await(CompletableFuture<Void> future)
+				throws InterruptedException, ExecutionException, TimeoutException
+		{
+			if (this.timeout > 0)
+				future.get(this.timeout, TimeUnit.MILLISECONDS);
+			else
+				future.get();
+		}
+
+		/**
+		 * Returns a failure of a stage as an unchecked exception, so that
+		 * RejectException and DropConnectionException propagate unchanged.
+		 */
+		private static RuntimeException unchecked(Throwable cause)
+		{
+			if (cause instanceof RuntimeException)
+				return (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			return new RuntimeException("Message handler failed", cause);
+		}
+	}
+}
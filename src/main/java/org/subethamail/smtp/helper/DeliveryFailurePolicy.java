@@ -0,0 +1,27 @@
+package org.subethamail.smtp.helper;
+
+/**
+ * Decides the reply to DATA when the message adapters deliver a message to
+ * several listeners, and only some of the deliveries fail. As SMTP has a
+ * single reply for all recipients, a rejected message is sent again to
+ * every recipient by the client, including the ones which already
+ * received it.
+ *
+ * @see SimpleMessageListenerAdapter#setFailurePolicy(DeliveryFailurePolicy)
+ * @see SmarterMessageListenerAdapter#setFailurePolicy(DeliveryFailurePolicy)
+ */
+public enum DeliveryFailurePolicy
+{
+	/**
+	 * The message is rejected with the failure of the first delivery which
+	 * failed. When the deliveries are made one after another, the remaining
+	 * ones are not attempted. This is the default.
+	 */
+	REJECT_ON_ANY_FAILURE,
+
+	/**
+	 * The message is accepted if at least one delivery succeeded, the other
+	 * failures are only logged. It is rejected if all deliveries failed.
+	 */
+	REJECT_ON_ALL_FAILURES
+}
@@ -0,0 +1,164 @@
+package org.subethamail.smtp.helper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.io.DeferredFileOutputStream;
+
+/**
+ * Delivers buffered message data to a number of receivers, one after
+ * another on the calling thread, or concurrently on an executor. Each
+ * receiver reads the data through its own stream.
+ * <p>
+ * The calling thread makes the first delivery itself, and any delivery the
+ * executor rejects, for example because its queue is full. So a bounded
+ * executor limits the threads used for deliveries without ever failing one.
+ */
+class FanOut
+{
+	private final static Logger log = LoggerFactory.getLogger(FanOut.class);
+
+	/**
+	 * A single delivery.
+	 */
+	interface Receiver
+	{
+		void deliver(InputStream data) throws IOException;
+	}
+
+	/**
+	 * Delivers the data to all receivers, and waits until all deliveries are
+	 * finished.
+	 *
+	 * @param executor
+	 *            runs the deliveries, or null to make them one after another
+	 * @throws IOException
+	 *             or RejectException, the failure of a delivery if the policy
+	 *             asks for it
+	 */
+	public static void deliver(List<? extends Receiver> receivers, final DeferredFileOutputStream data,
+			Executor executor, DeliveryFailurePolicy policy) throws IOException
+	{
+		List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>(receivers.size());
+		for (final Receiver receiver: receivers)
+		{
+			FutureTask<Void> task = new FutureTask<Void>(() -> {
+				try (InputStream stream = data.getInputStream())
+				{
+					receiver.deliver(stream);
+				}
+				return null;
+			});
+
+			tasks.add(task);
+		}
+
+		if (executor == null)
+		{
+			for (int i = 0; i < tasks.size(); i++)
+			{
+				tasks.get(i).run();
+				if (policy == DeliveryFailurePolicy.REJECT_ON_ANY_FAILURE && failure(tasks.get(i)) != null)
+				{
+					tasks = tasks.subList(0, i + 1);
+					break;
+				}
+			}
+		}
+		else
+		{
+			for (FutureTask<Void> task: tasks.subList(1, tasks.size()))
+			{
+				try
+				{
+					executor.execute(task);
+				}
+				catch (RejectedExecutionException ex)
+				{
+					task.run();
+				}
+			}
+			tasks.get(0).run();
+		}
+
+		report(tasks, policy);
+	}
+
+	/**
+	 * Waits until all deliveries are finished, and throws the failure of a
+	 * delivery if the policy asks for it.
+	 */
+	static void report(List<FutureTask<Void>> tasks, DeliveryFailurePolicy policy) throws IOException
+	{
+		List<Throwable> failures = new ArrayList<Throwable>();
+		for (FutureTask<Void> task: tasks)
+		{
+			Throwable failure = failure(task);
+			if (failure != null)
+				failures.add(failure);
+		}
+
+		if (failures.isEmpty())
+			return;
+
+		if (policy == DeliveryFailurePolicy.REJECT_ON_ALL_FAILURES && failures.size() < tasks.size())
+		{
+			for (Throwable failure: failures)
+				log.warn("Delivery to one of " + tasks.size() + " receivers failed", failure);
+			return;
+		}
+
+		Throwable first = failures.get(0);
+		for (Throwable failure: failures.subList(1, failures.size()))
+			first.addSuppressed(failure);
+		if (first instanceof IOException)
+			throw (IOException) first;
+		if (first instanceof RuntimeException)
+			throw (RuntimeException) first;
+		if (first instanceof Error)
+			throw (Error) first;
+		throw new IOException(first);
+	}
+
+	/**
+	 * Waits for the task, and returns its failure, or null if it succeeded.
+	 * The data must not be released before every delivery is finished, so
+	 * this waits even if the thread is interrupted.
+	 */
+	private static Throwable failure(FutureTask<Void> task)
+	{
+		boolean interrupted = false;
+		try
+		{
+			while (true)
+			{
+				try
+				{
+					task.get();
+					return null;
+				}
+				catch (ExecutionException ex)
+				{
+					return ex.getCause();
+				}
+				catch (InterruptedException ex)
+				{
+					interrupted = true;
+				}
+			}
+		}
+		finally
+		{
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+}
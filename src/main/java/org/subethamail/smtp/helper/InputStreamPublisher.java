@@ -0,0 +1,224 @@
+package org.subethamail.smtp.helper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Publishes the content of an InputStream as a sequence of read-only
+ * ByteBuffer chunks to a single subscriber. The stream is read on the thread
+ * which calls {@link #pump(long)}, and only as far as the subscriber requested,
+ * so a slow subscriber applies back pressure to the SMTP client.
+ */
+class InputStreamPublisher implements Flow.Publisher<ByteBuffer>
+{
+	/** The size of a single chunk */
+	static final int CHUNK_SIZE = 1024 * 32;
+
+	private final InputStream input;
+
+	/** Set once its onSubscribe returned */
+	@GuardedBy("this")
+	private Flow.Subscriber<? super ByteBuffer> subscriber;
+
+	/** True once a subscriber subscribed */
+	@GuardedBy("this")
+	private boolean subscribed;
+
+	/** The number of chunks requested but not yet delivered */
+	@GuardedBy("this")
+	private long demand;
+
+	/** True if the subscriber cancelled, or the pump should stop */
+	@GuardedBy("this")
+	private boolean stopped;
+
+	/** */
+	public InputStreamPublisher(InputStream input)
+	{
+		this.input = input;
+	}
+
+	/* */
+	public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber)
+	{
+		boolean first;
+		synchronized (this)
+		{
+			first = !this.subscribed;
+			this.subscribed = true;
+		}
+
+		// signalled outside the monitor, the subscriber may call back
+		if (!first)
+		{
+			subscriber.onSubscribe(new Flow.Subscription()
+			{
+				public void request(long n) {}
+				public void cancel() {}
+			});
+			subscriber.onError(new IllegalStateException("Only a single subscriber is supported"));
+			return;
+		}
+
+		subscriber.onSubscribe(new Flow.Subscription()
+		{
+			public void request(long n)
+			{
+				synchronized (InputStreamPublisher.this)
+				{
+					if (n <= 0)
+					{
+						// reported from pump(), see rule 3.9 of the specification
+						demand = -1;
+					}
+					else if (demand >= 0)
+					{
+						demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+					}
+					InputStreamPublisher.this.notifyAll();
+				}
+			}
+
+			public void cancel()
+			{
+				synchronized (InputStreamPublisher.this)
+				{
+					stopped = true;
+					InputStreamPublisher.this.notifyAll();
+				}
+			}
+		});
+
+		synchronized (this)
+		{
+			this.subscriber = subscriber;
+			this.notifyAll();
+		}
+	}
+
+	/**
+	 * Stops publishing, for example because the consumer of the data already
+	 * made its decision. The subscriber will not receive any more signals.
+	 */
+	public synchronized void stop()
+	{
+		this.stopped = true;
+		this.notifyAll();
+	}
+
+	/**
+	 * Reads the stream and publishes it as requested, until the end of the
+	 * stream is reached or publishing is stopped.
+	 *
+	 * @param timeout
+	 *            the maximum number of milliseconds to wait for the
+	 *            subscriber to request the next chunk, 0 waits indefinitely
+	 * @throws IOException
+	 *             if reading the stream fails. This is also signalled to the
+	 *             subscriber.
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting for demand
+	 * @throws TimeoutException
+	 *             if the subscriber did not request the next chunk in time.
+	 *             This is also signalled to the subscriber.
+	 */
+	public void pump(long timeout) throws IOException, InterruptedException, TimeoutException
+	{
+		Flow.Subscriber<? super ByteBuffer> target;
+		while (true)
+		{
+			TimeoutException timedOut = null;
+			boolean invalidDemand;
+			synchronized (this)
+			{
+				long deadline = System.currentTimeMillis() + timeout;
+				while (!this.stopped && (this.subscriber == null || this.demand == 0))
+				{
+					if (timeout <= 0)
+					{
+						this.wait();
+						continue;
+					}
+
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0)
+					{
+						timedOut = new TimeoutException("No demand for " + timeout + " ms");
+						break;
+					}
+					this.wait(remaining);
+				}
+
+				if (this.stopped)
+					return;
+				target = this.subscriber;
+				invalidDemand = this.demand < 0;
+			}
+
+			// signalled outside the monitor, the subscriber may call back
+			if (timedOut != null)
+			{
+				this.terminate(target, timedOut);
+				throw timedOut;
+			}
+			if (invalidDemand)
+			{
+				this.terminate(target, new IllegalArgumentException("Non-positive number of chunks requested"));
+				return;
+			}
+
+			byte[] chunk = new byte[CHUNK_SIZE];
+			int count;
+			try
+			{
+				count = this.input.read(chunk);
+			}
+			catch (IOException e)
+			{
+				this.terminate(target, e);
+				throw e;
+			}
+
+			if (count == -1)
+			{
+				this.terminate(target, null);
+				return;
+			}
+
+			synchronized (this)
+			{
+				if (this.stopped)
+					return;
+				if (this.demand != Long.MAX_VALUE)
+					this.demand--;
+			}
+			target.onNext(ByteBuffer.wrap(chunk, 0, count).asReadOnlyBuffer());
+		}
+	}
+
+	/**
+	 * Signals the end of the data to the subscriber, unless it cancelled, or
+	 * there is none yet.
+	 */
+	private void terminate(Flow.Subscriber<? super ByteBuffer> target, Throwable error)
+	{
+		synchronized (this)
+		{
+			if (this.stopped)
+				return;
+			this.stopped = true;
+		}
+
+		if (target == null)
+			return;
+		if (error == null)
+			target.onComplete();
+		else
+			target.onError(error);
+	}
+}
@@ -16,7 +16,6 @@ import org.subethamail.smtp.MessageHandler;
 import org.subethamail.smtp.MessageHandlerFactory;
 import org.subethamail.smtp.RejectException;
 import org.subethamail.smtp.TooMuchDataException;
-import org.subethamail.smtp.io.DeferredFileOutputStream;
 
 /**
  * MessageHandlerFactory implementation which adapts to a collection of
@@ -25,7 +24,7 @@ import org.subethamail.smtp.io.DeferredFileOutputStream;
  *
  * @author Jeff Schnitzer
  */
-public class SimpleMessageListenerAdapter implements MessageHandlerFactory
+public class SimpleMessageListenerAdapter extends AbstractMessageListenerAdapter implements MessageHandlerFactory
 {
 	/**
 	 * 5 megs by default. The server will buffer incoming messages to disk
@@ -136,33 +135,21 @@ public class SimpleMessageListenerAdapter implements MessageHandlerFactory
 		/** */
 		public void data(InputStream data) throws TooMuchDataException, IOException
 		{
-			if (this.deliveries.size() == 1)
-			{
-				Delivery delivery = this.deliveries.get(0);
-				delivery.getListener().deliver(this.from, delivery.getRecipient(), data);
-			}
-			else
-			{
-				DeferredFileOutputStream dfos = new DeferredFileOutputStream(SimpleMessageListenerAdapter.this.dataDeferredSize);
+			SimpleMessageListenerAdapter.this.deliver(this.ctx, SimpleMessageListenerAdapter.this.dataDeferredSize,
+					this.receivers(), data);
+		}
 
-				try
-				{
-					int value;
-					while ((value = data.read()) >= 0)
-					{
-						dfos.write(value);
-					}
-
-					for (Delivery delivery: this.deliveries)
-					{
-						delivery.getListener().deliver(this.from, delivery.getRecipient(), dfos.getInputStream());
-					}
-				}
-				finally
-				{
-					dfos.close();
-				}
+		/**
+		 * @return a receiver for each delivery
+		 */
+		private List<FanOut.Receiver> receivers()
+		{
+			List<FanOut.Receiver> receivers = new ArrayList<FanOut.Receiver>(this.deliveries.size());
+			for (final Delivery delivery: this.deliveries)
+			{
+				receivers.add(stream -> delivery.getListener().deliver(this.from, delivery.getRecipient(), stream));
 			}
+			return receivers;
 		}
 
 		/** */
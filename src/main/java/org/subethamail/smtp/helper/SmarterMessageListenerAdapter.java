@@ -17,7 +17,6 @@ import org.subethamail.smtp.MessageHandlerFactory;
 import org.subethamail.smtp.RejectException;
 import org.subethamail.smtp.TooMuchDataException;
 import org.subethamail.smtp.helper.SmarterMessageListener.Receiver;
-import org.subethamail.smtp.io.DeferredFileOutputStream;
 
 /**
  * MessageHandlerFactory implementation which adapts to a collection of
@@ -29,7 +28,7 @@ import org.subethamail.smtp.io.DeferredFileOutputStream;
  *
  * @author Jeff Schnitzer
  */
-public class SmarterMessageListenerAdapter implements MessageHandlerFactory
+public class SmarterMessageListenerAdapter extends AbstractMessageListenerAdapter implements MessageHandlerFactory
 {
 	/**
 	 * 5 megs by default. The server will buffer incoming messages to disk
@@ -119,32 +118,21 @@ public class SmarterMessageListenerAdapter implements MessageHandlerFactory
 		/** */
 		public void data(InputStream data) throws TooMuchDataException, IOException
 		{
-			if (this.deliveries.size() == 1)
-			{
-				this.deliveries.get(0).deliver(data);
-			}
-			else
+			SmarterMessageListenerAdapter.this.deliver(this.ctx, SmarterMessageListenerAdapter.this.dataDeferredSize,
+					this.receivers(), data);
+		}
+
+		/**
+		 * @return a receiver for each delivery
+		 */
+		private List<FanOut.Receiver> receivers()
+		{
+			List<FanOut.Receiver> receivers = new ArrayList<FanOut.Receiver>(this.deliveries.size());
+			for (Receiver rec: this.deliveries)
 			{
-				DeferredFileOutputStream dfos = new DeferredFileOutputStream(SmarterMessageListenerAdapter.this.dataDeferredSize);
-
-				try
-				{
-					int value;
-					while ((value = data.read()) >= 0)
-					{
-						dfos.write(value);
-					}
-
-					for (Receiver rec: this.deliveries)
-					{
-						rec.deliver(dfos.getInputStream());
-					}
-				}
-				finally
-				{
-					dfos.close();
-				}
+				receivers.add(rec::deliver);
 			}
+			return receivers;
 		}
 
 		/** */
@@ -0,0 +1,414 @@
+package org.subethamail.smtp.helper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import org.subethamail.smtp.io.ChunkPool;
+import org.subethamail.smtp.io.DeferredFileOutputStream;
+
+/**
+ * Delivers message data to a number of receivers while it is still arriving.
+ * Each receiver runs on the executor and reads from its own bounded queue of
+ * chunks; the chunks themselves are shared. They are taken from a
+ * {@link ChunkPool}, and go back to it when the last receiver which queued
+ * them is done with them. The thread reading the data
+ * never waits for a receiver: a receiver whose queue is full falls behind,
+ * and reads the rest of the data from a spool after the data is complete.
+ * The spool is only created when the first receiver falls behind, and
+ * starts at the position where it did, so if all receivers keep up nothing
+ * is buffered beyond their queues.
+ */
+class StreamingTee
+{
+	/** Provides the chunks the data is read into */
+	private final ChunkPool pool;
+
+	/** Chunks which a receiver may have queued before it falls behind */
+	private final int queueLength;
+
+	private final Supplier<DeferredFileOutputStream> spoolFactory;
+
+	@GuardedBy("this")
+	private final List<Consumer> consumers = new ArrayList<Consumer>();
+
+	/**
+	 * Receives the data from {@link #spoolStart} on, once a receiver fell
+	 * behind. Both are written only by the thread pumping the data; the
+	 * receivers read them only after {@link #done}, which publishes them.
+	 */
+	private DeferredFileOutputStream spool;
+
+	private long spoolStart;
+
+	/** True when all data was read, and the spool is complete */
+	@GuardedBy("this")
+	private boolean done;
+
+	/** The reason the data is incomplete, if reading it failed */
+	@GuardedBy("this")
+	private IOException failure;
+
+	/**
+	 * @param bufferSize
+	 *            the number of bytes a receiver may lag behind before it falls
+	 *            back to the spool
+	 * @param pool
+	 *            provides the chunks the data is read into
+	 */
+	public StreamingTee(int bufferSize, ChunkPool pool, Supplier<DeferredFileOutputStream> spoolFactory)
+	{
+		this.pool = pool;
+		this.queueLength = Math.max(1, bufferSize / pool.getChunkSize());
+		this.spoolFactory = spoolFactory;
+	}
+
+	/**
+	 * Reads the data, delivers it to all receivers, and waits until all
+	 * deliveries are finished.
+	 *
+	 * @throws IOException
+	 *             or RejectException, the failure of reading the data, or of
+	 *             a delivery if the policy asks for it
+	 */
+	public void deliver(List<? extends FanOut.Receiver> receivers, InputStream data, Executor executor,
+			DeliveryFailurePolicy policy) throws IOException
+	{
+		List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>(receivers.size());
+		List<FutureTask<Void>> rejected = new ArrayList<FutureTask<Void>>();
+		IOException dataFailure = null;
+		boolean complete = false;
+		try
+		{
+			for (final FanOut.Receiver receiver: receivers)
+			{
+				final Consumer consumer = new Consumer();
+				synchronized (this)
+				{
+					this.consumers.add(consumer);
+				}
+
+				FutureTask<Void> task = new FutureTask<Void>(() -> {
+					try
+					{
+						receiver.deliver(consumer);
+					}
+					finally
+					{
+						consumer.close();
+					}
+					return null;
+				});
+				tasks.add(task);
+
+				try
+				{
+					executor.execute(task);
+				}
+				catch (RejectedExecutionException ex)
+				{
+					// delivered from the spool by this thread afterwards
+					synchronized (this)
+					{
+						consumer.spoolPosition = 0;
+					}
+					rejected.add(task);
+				}
+			}
+
+			this.pump(data);
+			complete = true;
+		}
+		catch (IOException ex)
+		{
+			dataFailure = ex;
+		}
+		finally
+		{
+			synchronized (this)
+			{
+				if (dataFailure != null)
+					this.failure = dataFailure;
+				else if (!complete)
+					this.failure = new IOException("Delivery aborted");
+				this.done = true;
+				this.notifyAll();
+			}
+
+			for (FutureTask<Void> task: rejected)
+				task.run();
+
+			try
+			{
+				FanOut.report(tasks, policy);
+			}
+			catch (IOException | RuntimeException ex)
+			{
+				// the receivers failed because the data is incomplete
+				if (dataFailure == null)
+					throw ex;
+			}
+			finally
+			{
+				if (this.spool != null)
+					this.spool.close();
+			}
+		}
+
+		if (dataFailure != null)
+			throw dataFailure;
+	}
+
+	/**
+	 * Reads the data and hands it to the receivers, until its end.
+	 */
+	private void pump(InputStream data) throws IOException
+	{
+		long position = 0;
+		synchronized (this)
+		{
+			for (Consumer consumer: this.consumers)
+			{
+				if (consumer.spoolPosition == 0)
+					this.startSpool(0);
+			}
+		}
+
+		while (true)
+		{
+			byte[] bytes = this.pool.acquire();
+			int count;
+			try
+			{
+				count = data.read(bytes);
+			}
+			catch (IOException ex)
+			{
+				this.pool.release(bytes);
+				throw ex;
+			}
+			if (count == -1)
+			{
+				this.pool.release(bytes);
+				break;
+			}
+
+			// referenced by this thread until it is spooled, and by each queue
+			Chunk chunk = new Chunk(bytes, count);
+			synchronized (this)
+			{
+				for (Consumer consumer: this.consumers)
+				{
+					if (consumer.closed || consumer.spoolPosition >= 0)
+						continue;
+
+					if (consumer.chunks.size() < this.queueLength)
+					{
+						consumer.chunks.add(chunk);
+						chunk.references++;
+					}
+					else
+					{
+						// the queued chunks stay, the spool continues after them
+						consumer.spoolPosition = position;
+						this.startSpool(position);
+					}
+				}
+				this.notifyAll();
+			}
+
+			try
+			{
+				if (this.spool != null)
+					this.spool.write(bytes, 0, count);
+			}
+			finally
+			{
+				synchronized (this)
+				{
+					this.release(chunk);
+				}
+			}
+			position += count;
+		}
+	}
+
+	/**
+	 * Drops a reference to the chunk, and gives it back to the pool if it
+	 * was the last one.
+	 */
+	@GuardedBy("this")
+	private void release(Chunk chunk)
+	{
+		if (--chunk.references == 0)
+			this.pool.release(chunk.bytes);
+	}
+
+	/** */
+	@GuardedBy("this")
+	private void startSpool(long position)
+	{
+		if (this.spool == null)
+		{
+			this.spool = this.spoolFactory.get();
+			this.spoolStart = position;
+		}
+	}
+
+	/**
+	 * A chunk of the data, shared by the queues of the receivers.
+	 */
+	private static class Chunk
+	{
+		final byte[] bytes;
+
+		final int length;
+
+		/** The pumping thread and the queues which have not dropped it yet */
+		@GuardedBy("StreamingTee.this")
+		int references = 1;
+
+		/** */
+		Chunk(byte[] bytes, int length)
+		{
+			this.bytes = bytes;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * The stream of a single receiver.
+	 */
+	private class Consumer extends InputStream
+	{
+		@GuardedBy("StreamingTee.this")
+		final ArrayDeque<Chunk> chunks = new ArrayDeque<Chunk>();
+
+		/** The position from which on the data is in the spool, or -1 */
+		@GuardedBy("StreamingTee.this")
+		long spoolPosition = -1;
+
+		/** True once the receiver returned, it does not get any more data */
+		@GuardedBy("StreamingTee.this")
+		boolean closed;
+
+		/** The chunk being read, referenced by this receiver */
+		private Chunk current;
+
+		/** The position of the next byte to read in the current chunk */
+		private int offset;
+
+		/** Reads the data from the spool, once this receiver fell behind */
+		private InputStream spooled;
+
+		/** */
+		@Override
+		public int read() throws IOException
+		{
+			byte[] b = new byte[1];
+			return this.read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		/** */
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			if (len == 0)
+				return 0;
+
+			if (this.spooled == null && (this.current == null || this.offset == this.current.length))
+			{
+				if (!this.next())
+					return -1;
+			}
+
+			if (this.spooled != null)
+				return this.spooled.read(b, off, len);
+
+			int count = Math.min(len, this.current.length - this.offset);
+			System.arraycopy(this.current.bytes, this.offset, b, off, count);
+			this.offset += count;
+			return count;
+		}
+
+		/**
+		 * Drops the current chunk, and waits for the next one, or switches to
+		 * the spool.
+		 *
+		 * @return false at the end of the data
+		 */
+		private boolean next() throws IOException
+		{
+			synchronized (StreamingTee.this)
+			{
+				if (this.current != null)
+				{
+					StreamingTee.this.release(this.current);
+					this.current = null;
+				}
+
+				while (true)
+				{
+					if (this.closed)
+						throw new IOException("Stream closed");
+
+					this.current = this.chunks.poll();
+					this.offset = 0;
+					if (this.current != null)
+						return true;
+
+					if (StreamingTee.this.done)
+					{
+						if (StreamingTee.this.failure != null)
+							throw new IOException("The message data is incomplete", StreamingTee.this.failure);
+						if (this.spoolPosition < 0)
+							return false;
+
+						this.spooled = spool.getInputStream();
+						this.spooled.skipNBytes(this.spoolPosition - spoolStart);
+						return true;
+					}
+
+					try
+					{
+						StreamingTee.this.wait();
+					}
+					catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Interrupted while waiting for message data");
+					}
+				}
+			}
+		}
+
+		/** */
+		@Override
+		public void close() throws IOException
+		{
+			synchronized (StreamingTee.this)
+			{
+				this.closed = true;
+				if (this.current != null)
+				{
+					StreamingTee.this.release(this.current);
+					this.current = null;
+				}
+				for (Chunk chunk: this.chunks)
+					StreamingTee.this.release(chunk);
+				this.chunks.clear();
+			}
+			if (this.spooled != null)
+				this.spooled.close();
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package org.subethamail.smtp.io;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An InputStream which reads the remaining bytes of a {@link ByteBuffer}
+ * without copying them first. The position of the original buffer is not
+ * changed.
+ * <p>
+ * As a {@link ChunkSource} it returns all remaining bytes as a single chunk.
+ */
+public class ByteBufferInputStream extends InputStream implements ChunkSource
+{
+	private final ByteBuffer buffer;
+
+	/** */
+	public ByteBufferInputStream(ByteBuffer buffer)
+	{
+		this.buffer = buffer.duplicate();
+	}
+
+	/* */
+	@Override
+	public int read()
+	{
+		if (!this.buffer.hasRemaining())
+			return -1;
+		return this.buffer.get() & 0xFF;
+	}
+
+	/* */
+	@Override
+	public int read(byte[] b, int off, int len)
+	{
+		if (len == 0)
+			return 0;
+		if (!this.buffer.hasRemaining())
+			return -1;
+
+		int count = Math.min(len, this.buffer.remaining());
+		this.buffer.get(b, off, count);
+		return count;
+	}
+
+	/* */
+	public ByteBuffer nextChunk()
+	{
+		if (!this.buffer.hasRemaining())
+			return null;
+
+		ByteBuffer chunk = this.buffer.slice().asReadOnlyBuffer();
+		this.buffer.position(this.buffer.limit());
+		return chunk;
+	}
+
+	/* */
+	@Override
+	public long skip(long n)
+	{
+		int count = (int) Math.max(0, Math.min(n, this.buffer.remaining()));
+		this.buffer.position(this.buffer.position() + count);
+		return count;
+	}
+
+	/* */
+	@Override
+	public int available()
+	{
+		return this.buffer.remaining();
+	}
+}
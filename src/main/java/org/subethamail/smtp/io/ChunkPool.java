@@ -0,0 +1,82 @@
+package org.subethamail.smtp.io;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A bounded pool of fixed-size byte arrays, shared by the in-memory buffers
+ * of all messages, so that buffering a message does not allocate and discard
+ * large arrays. When the pool is empty a new array is allocated; arrays
+ * given back while the pool is full are left to the garbage collector. Thus
+ * the bound limits the memory retained by the pool, not the memory in use.
+ */
+public class ChunkPool
+{
+	/** The default size of a chunk */
+	public static final int DEFAULT_CHUNK_SIZE = 1024 * 16;
+
+	/** The default number of idle chunks retained, 16 MB worth */
+	public static final int DEFAULT_MAX_POOLED = 1024;
+
+	private static final ChunkPool DEFAULT = new ChunkPool(DEFAULT_CHUNK_SIZE, DEFAULT_MAX_POOLED);
+
+	private final int chunkSize;
+
+	private final ArrayBlockingQueue<byte[]> idle;
+
+	/**
+	 * @param chunkSize
+	 *            the size of each chunk in bytes
+	 * @param maxPooled
+	 *            the maximum number of idle chunks retained
+	 */
+	public ChunkPool(int chunkSize, int maxPooled)
+	{
+		if (chunkSize < 1 || maxPooled < 1)
+			throw new IllegalArgumentException("chunkSize and maxPooled must be positive");
+
+		this.chunkSize = chunkSize;
+		this.idle = new ArrayBlockingQueue<byte[]>(maxPooled);
+	}
+
+	/**
+	 * @return the pool shared by default by all {@link DeferredFileOutputStream}s
+	 */
+	public static ChunkPool getDefault()
+	{
+		return DEFAULT;
+	}
+
+	/** */
+	public int getChunkSize()
+	{
+		return this.chunkSize;
+	}
+
+	/**
+	 * @return the number of idle chunks currently retained
+	 */
+	public int getPooledCount()
+	{
+		return this.idle.size();
+	}
+
+	/**
+	 * Takes an idle chunk, or allocates a new one. The content of the chunk
+	 * is undefined.
+	 */
+	public byte[] acquire()
+	{
+		byte[] chunk = this.idle.poll();
+		return chunk != null ? chunk : new byte[this.chunkSize];
+	}
+
+	/**
+	 * Gives a chunk back to the pool. It must not be used by the caller
+	 * afterwards.
+	 */
+	public void release(byte[] chunk)
+	{
+		if (chunk.length == this.chunkSize)
+			this.idle.offer(chunk);
+	}
+}
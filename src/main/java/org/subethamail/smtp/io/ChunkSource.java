@@ -0,0 +1,31 @@
+package org.subethamail.smtp.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A source of message data which hands out its content as a sequence of
+ * buffers instead of byte by byte. Each chunk is typically a view of an
+ * internal buffer of the source, so it is only valid until the next call.
+ */
+public interface ChunkSource
+{
+	/**
+	 * Returns the next chunk of data.
+	 *
+	 * @return a read-only buffer with at least one remaining byte, which is
+	 *         valid until the next call of this method, or null if the end
+	 *         of the data is reached.
+	 */
+	public ByteBuffer nextChunk() throws IOException;
+
+	/**
+	 * Skips the rest of the data. Sources which can find the end of the data
+	 * without producing chunks override this.
+	 */
+	public default void discard() throws IOException
+	{
+		while (this.nextChunk() != null)
+			;
+	}
+}
@@ -0,0 +1,78 @@
+package org.subethamail.smtp.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An InputStream which reads the chunks of a {@link ChunkSource}.
+ */
+public class ChunkSourceInputStream extends InputStream
+{
+	private final ChunkSource source;
+
+	/** The remaining part of the current chunk */
+	private ByteBuffer chunk;
+
+	private boolean ended;
+
+	/** */
+	public ChunkSourceInputStream(ChunkSource source)
+	{
+		this.source = source;
+	}
+
+	/**
+	 * Makes the current chunk non-empty if possible.
+	 *
+	 * @return false if the source has ended
+	 */
+	private boolean ensureChunk() throws IOException
+	{
+		while (this.chunk == null || !this.chunk.hasRemaining())
+		{
+			if (this.ended)
+				return false;
+
+			this.chunk = this.source.nextChunk();
+			if (this.chunk == null)
+			{
+				this.ended = true;
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/* */
+	@Override
+	public int read() throws IOException
+	{
+		if (!this.ensureChunk())
+			return -1;
+
+		return this.chunk.get() & 0xff;
+	}
+
+	/* */
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if (len == 0)
+			return 0;
+		if (!this.ensureChunk())
+			return -1;
+
+		int count = Math.min(len, this.chunk.remaining());
+		this.chunk.get(b, off, count);
+		return count;
+	}
+
+	/* */
+	@Override
+	public int available() throws IOException
+	{
+		return this.chunk == null ? 0 : this.chunk.remaining();
+	}
+}
@@ -0,0 +1,268 @@
+package org.subethamail.smtp.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An in-memory output stream which stores the data in a list of fixed-size
+ * chunks taken from a {@link ChunkPool}, so that growing never copies the
+ * data written so far. The chunks go back to the pool when
+ * {@link #release()} is called.
+ * <p>
+ * If a {@link MemoryBudget} is given, each chunk is reserved from it, and
+ * {@link #ensureCapacity(int)} must succeed before each write. Bytes which
+ * the caller reserved in advance are used up first.
+ */
+class ChunkedByteArrayOutputStream extends OutputStream
+{
+	private final ChunkPool pool;
+
+	/** Null if the chunks are not limited by a budget */
+	private final MemoryBudget budget;
+
+	private final int chunkSize;
+
+	/** Bytes reserved from the budget which no chunk uses yet */
+	private long prepaid;
+
+	private final List<byte[]> chunks = new ArrayList<byte[]>();
+
+	/** The total number of bytes written */
+	private int count;
+
+	/** */
+	public ChunkedByteArrayOutputStream(ChunkPool pool, MemoryBudget budget)
+	{
+		this(pool, budget, 0);
+	}
+
+	/**
+	 * @param reserved
+	 *            bytes already reserved from the budget, which this stream
+	 *            takes over and gives back on {@link #release()}
+	 */
+	public ChunkedByteArrayOutputStream(ChunkPool pool, MemoryBudget budget, long reserved)
+	{
+		this.pool = pool;
+		this.budget = budget;
+		this.chunkSize = pool.getChunkSize();
+		this.prepaid = budget != null ? reserved : 0;
+	}
+
+	/**
+	 * Acquires the chunks needed to write the given number of bytes.
+	 *
+	 * @return false if the memory budget does not allow that
+	 */
+	public boolean ensureCapacity(int len)
+	{
+		while ((long) this.chunks.size() * this.chunkSize < (long) this.count + len)
+		{
+			if (!this.addChunk())
+				return false;
+		}
+		return true;
+	}
+
+	/** */
+	private boolean addChunk()
+	{
+		if (this.prepaid >= this.chunkSize)
+		{
+			this.prepaid -= this.chunkSize;
+		}
+		else if (this.budget != null)
+		{
+			if (!this.budget.tryReserve(this.chunkSize - this.prepaid))
+				return false;
+			this.prepaid = 0;
+		}
+
+		this.chunks.add(this.pool.acquire());
+		return true;
+	}
+
+	/** */
+	private void addChunkForWrite()
+	{
+		if (!this.addChunk())
+			throw new IllegalStateException("Memory budget exhausted, ensureCapacity() was not called");
+	}
+
+	/** @return the number of bytes written */
+	public int size()
+	{
+		return this.count;
+	}
+
+	/* */
+	@Override
+	public void write(int b)
+	{
+		int offset = this.count % this.chunkSize;
+		if (offset == 0 && this.count / this.chunkSize == this.chunks.size())
+			this.addChunkForWrite();
+
+		this.chunks.get(this.count / this.chunkSize)[offset] = (byte) b;
+		this.count++;
+	}
+
+	/* */
+	@Override
+	public void write(byte[] b, int off, int len)
+	{
+		while (len > 0)
+		{
+			int offset = this.count % this.chunkSize;
+			if (offset == 0 && this.count / this.chunkSize == this.chunks.size())
+				this.addChunkForWrite();
+
+			int n = Math.min(len, this.chunkSize - offset);
+			System.arraycopy(b, off, this.chunks.get(this.count / this.chunkSize), offset, n);
+			this.count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Writes all data to the channel with gathering writes, without copying
+	 * it into a single array first.
+	 */
+	public void writeTo(GatheringByteChannel channel) throws IOException
+	{
+		// ensureCapacity() may have added chunks which are still empty
+		ByteBuffer[] buffers = new ByteBuffer[(this.count + this.chunkSize - 1) / this.chunkSize];
+		for (int i = 0; i < buffers.length; i++)
+		{
+			int length = Math.min(this.chunkSize, this.count - i * this.chunkSize);
+			buffers[i] = ByteBuffer.wrap(this.chunks.get(i), 0, length);
+		}
+
+		long remaining = this.count;
+		while (remaining > 0)
+			remaining -= channel.write(buffers);
+	}
+
+	/**
+	 * Writes all data to the stream, a chunk at a time.
+	 */
+	public void writeTo(OutputStream out) throws IOException
+	{
+		for (int position = 0; position < this.count; position += this.chunkSize)
+			out.write(this.chunks.get(position / this.chunkSize), 0, Math.min(this.chunkSize, this.count - position));
+	}
+
+	/**
+	 * Copies bytes starting at the given position into the buffer.
+	 *
+	 * @return the number of bytes copied, or -1 if position is at the end
+	 */
+	public int read(int position, ByteBuffer dst)
+	{
+		if (position >= this.count)
+			return -1;
+
+		int start = dst.position();
+		while (dst.hasRemaining() && position < this.count)
+		{
+			int offset = position % this.chunkSize;
+			int n = Math.min(dst.remaining(), Math.min(this.chunkSize - offset, this.count - position));
+			dst.put(this.chunks.get(position / this.chunkSize), offset, n);
+			position += n;
+		}
+		return dst.position() - start;
+	}
+
+	/**
+	 * Writes the data starting at the given position to the channel,
+	 * directly from the chunks.
+	 *
+	 * @return the number of bytes written
+	 */
+	public long transferTo(int position, WritableByteChannel target) throws IOException
+	{
+		long written = 0;
+		while (position < this.count)
+		{
+			int offset = position % this.chunkSize;
+			int n = Math.min(this.chunkSize - offset, this.count - position);
+			ByteBuffer src = ByteBuffer.wrap(this.chunks.get(position / this.chunkSize), offset, n);
+			while (src.hasRemaining())
+				target.write(src);
+			position += n;
+			written += n;
+		}
+		return written;
+	}
+
+	/**
+	 * Returns a stream which reads the data written so far, without copying
+	 * it. Streams are independent of each other.
+	 */
+	public InputStream getInputStream()
+	{
+		return new InputStream()
+		{
+			private int position;
+
+			@Override
+			public int read()
+			{
+				if (this.position >= count)
+					return -1;
+
+				byte b = chunks.get(this.position / chunkSize)[this.position % chunkSize];
+				this.position++;
+				return b & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len)
+			{
+				if (len == 0)
+					return 0;
+
+				int n = ChunkedByteArrayOutputStream.this.read(this.position, ByteBuffer.wrap(b, off, len));
+				if (n > 0)
+					this.position += n;
+				return n;
+			}
+
+			@Override
+			public long skip(long n)
+			{
+				int skipped = (int) Math.max(0, Math.min(n, count - this.position));
+				this.position += skipped;
+				return skipped;
+			}
+
+			@Override
+			public int available()
+			{
+				return count - this.position;
+			}
+		};
+	}
+
+	/**
+	 * Gives the chunks back to the pool. The data, and any stream reading
+	 * it, must not be used afterwards.
+	 */
+	public void release()
+	{
+		for (byte[] chunk: this.chunks)
+			this.pool.release(chunk);
+		if (this.budget != null)
+			this.budget.release((long) this.chunks.size() * this.chunkSize + this.prepaid);
+		this.prepaid = 0;
+		this.chunks.clear();
+		this.count = 0;
+	}
+}
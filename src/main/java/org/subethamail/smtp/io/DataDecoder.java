@@ -0,0 +1,281 @@
+package org.subethamail.smtp.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes the content of the SMTP DATA command: it reads the raw stream in
+ * large blocks, removes the dot-stuffing in place and stops at the
+ * terminating &lt;CRLF&gt;.&lt;CRLF&gt; sequence. This does the work of a
+ * {@link DotTerminatedInputStream} and a {@link DotUnstuffingInputStream}
+ * with a single pass over an array instead of several method calls per byte.
+ * <p>
+ * The decoded data is handed out as read-only views of the internal buffer,
+ * see {@link ChunkSource}. Note that like a BufferedInputStream this may read
+ * beyond the terminating sequence, bytes pipelined by the client after the
+ * end of data are lost.
+ */
+public class DataDecoder implements ChunkSource
+{
+	/** The default number of raw bytes read at once */
+	public static final int DEFAULT_BUFFER_SIZE = 1024 * 32;
+
+	/** Inside a line */
+	private static final int TEXT = 0;
+	/** After a CR which is not yet known to start a CRLF */
+	private static final int CR = 1;
+	/** At the beginning of a line */
+	private static final int LINE_START = 2;
+	/** After a dot at the beginning of a line, the dot is not copied */
+	private static final int DOT = 3;
+	/** After a dot and a CR at the beginning of a line, none of them copied */
+	private static final int DOT_CR = 4;
+
+	private final InputStream in;
+
+	/**
+	 * The first byte is never filled from the stream, it is reserved for the
+	 * CR which is held back in the DOT_CR state across a refill.
+	 */
+	private final byte[] buf;
+
+	/** The next raw byte to decode */
+	private int readPos;
+
+	/** The end of the raw bytes in the buffer */
+	private int readLimit;
+
+	/** The position where the next decoded byte goes, always <= readPos */
+	private int writePos;
+
+	/** The start of the decoded bytes not yet returned */
+	private int chunkStart;
+
+	/** The beginning of the data counts as the beginning of a line */
+	private int state = LINE_START;
+
+	private boolean ended;
+
+	/** */
+	public DataDecoder(InputStream in)
+	{
+		this(in, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param bufferSize
+	 *            the number of raw bytes to read from the stream at once
+	 */
+	public DataDecoder(InputStream in, int bufferSize)
+	{
+		if (bufferSize < 1)
+			throw new IllegalArgumentException("bufferSize must be positive");
+
+		this.in = in;
+		this.buf = new byte[bufferSize + 1];
+	}
+
+	/**
+	 * Returns the next decoded chunk of the data.
+	 *
+	 * @throws EOFException
+	 *             if the stream ends before the terminating sequence
+	 */
+	public ByteBuffer nextChunk() throws IOException
+	{
+		while (!this.ended)
+		{
+			if (this.readPos == this.readLimit)
+				this.fill();
+
+			this.decode();
+
+			if (this.writePos > this.chunkStart)
+			{
+				ByteBuffer chunk = ByteBuffer.wrap(this.buf, this.chunkStart, this.writePos - this.chunkStart);
+				this.chunkStart = this.writePos;
+				return chunk.asReadOnlyBuffer();
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Skips the rest of the data, up to the terminating sequence. The raw
+	 * bytes are only scanned for the terminator, without removing the
+	 * dot-stuffing or producing chunks, which makes this considerably
+	 * cheaper than reading the data to its end.
+	 *
+	 * @throws EOFException
+	 *             if the stream ends before the terminating sequence
+	 */
+	@Override
+	public void discard() throws IOException
+	{
+		while (!this.ended)
+		{
+			if (this.readPos == this.readLimit)
+				this.fill();
+
+			this.scan();
+		}
+		// decoded bytes not yet returned are dropped as well
+		this.chunkStart = this.writePos;
+	}
+
+	/**
+	 * Reads the next block of raw bytes. Decoded bytes which were not
+	 * returned yet are not kept, the caller must have returned them.
+	 */
+	private void fill() throws IOException
+	{
+		int count = this.in.read(this.buf, 1, this.buf.length - 1);
+		if (count == -1)
+			throw new EOFException("Pre-mature end of <CRLF>.<CRLF> terminated data");
+
+		this.readPos = 1;
+		this.readLimit = 1 + count;
+		// a CR held back in the DOT_CR state may be written at index 0
+		this.writePos = this.chunkStart = this.state == DOT_CR ? 0 : 1;
+	}
+
+	/**
+	 * Decodes the raw bytes in the buffer, until the buffer is exhausted or
+	 * the terminating sequence is reached.
+	 */
+	private void decode()
+	{
+		final byte[] b = this.buf;
+		final int limit = this.readLimit;
+		int r = this.readPos;
+		int w = this.writePos;
+		int s = this.state;
+
+		while (r < limit)
+		{
+			byte c = b[r++];
+			switch (s)
+			{
+				case TEXT:
+					b[w++] = c;
+					if (c == '\r')
+						s = CR;
+					break;
+
+				case CR:
+					b[w++] = c;
+					if (c == '\n')
+						s = LINE_START;
+					else if (c != '\r')
+						s = TEXT;
+					break;
+
+				case LINE_START:
+					if (c == '.')
+					{
+						s = DOT;
+					}
+					else
+					{
+						b[w++] = c;
+						s = c == '\r' ? CR : TEXT;
+					}
+					break;
+
+				case DOT:
+					if (c == '\r')
+					{
+						s = DOT_CR;
+					}
+					else
+					{
+						// the dot was a stuffing one
+						b[w++] = c;
+						s = TEXT;
+					}
+					break;
+
+				case DOT_CR:
+					if (c == '\n')
+					{
+						this.ended = true;
+						this.readPos = r;
+						this.writePos = w;
+						this.state = s;
+						return;
+					}
+
+					// the dot was a stuffing one, the CR is data
+					b[w++] = '\r';
+					b[w++] = c;
+					s = c == '\r' ? CR : TEXT;
+					break;
+			}
+		}
+
+		this.readPos = r;
+		this.writePos = w;
+		this.state = s;
+	}
+
+	/**
+	 * Runs the state machine of {@link #decode()} over the raw bytes in the
+	 * buffer without copying anything, until the buffer is exhausted or the
+	 * terminating sequence is reached. Inside a line it just searches for
+	 * the next CR.
+	 */
+	private void scan()
+	{
+		final byte[] b = this.buf;
+		final int limit = this.readLimit;
+		int r = this.readPos;
+		int s = this.state;
+
+		while (r < limit)
+		{
+			if (s == TEXT)
+			{
+				while (r < limit && b[r] != '\r')
+					r++;
+				if (r == limit)
+					break;
+				r++;
+				s = CR;
+				continue;
+			}
+
+			byte c = b[r++];
+			switch (s)
+			{
+				case CR:
+					s = c == '\n' ? LINE_START : c == '\r' ? CR : TEXT;
+					break;
+
+				case LINE_START:
+					s = c == '.' ? DOT : c == '\r' ? CR : TEXT;
+					break;
+
+				case DOT:
+					s = c == '\r' ? DOT_CR : TEXT;
+					break;
+
+				case DOT_CR:
+					if (c == '\n')
+					{
+						this.ended = true;
+						this.readPos = r;
+						this.state = s;
+						return;
+					}
+					s = c == '\r' ? CR : TEXT;
+					break;
+			}
+		}
+
+		this.readPos = r;
+		this.state = s;
+	}
+}
@@ -4,49 +4,64 @@
  */
 package org.subethamail.smtp.io;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * This works like a ByteArrayOutputStream until a certain size is
- * reached, then creates a temp file and acts like a buffered
- * FileOutputStream.  The data can be retreived afterwards by
- * calling getInputStream().
+ * reached, then takes a file from a {@link SpoolManager} and acts
+ * like a buffered FileOutputStream.  The data can be retreived
+ * afterwards by calling getInputStream().
  *
- * When this object is closed, the temporary file is deleted.  You
- * can no longer call getInputStream().
+ * In memory, the data is kept in fixed-size chunks from a shared
+ * {@link ChunkPool}, so growing does not copy, and switching to the
+ * file is a single gathering write.
+ *
+ * With a {@link MemoryBudget}, the chunks are reserved from the budget,
+ * and the data moves to the file early when the budget runs out.
+ * A single message never takes more than a quarter of the budget
+ * which remains when it starts, so when the budget is tight, new
+ * messages go to disk sooner.
+ *
+ * When this object is closed, the file goes back to the spool manager,
+ * or the chunks go back to the pool.  You can no longer call getInputStream(),
+ * nor use a stream it returned.
  *
  * @author Jeff Schnitzer
  */
 public class DeferredFileOutputStream extends ThresholdingOutputStream
 {
-	/**
-	 * Initial size of the byte array buffer.  Better to make this
-	 * large to start with so that we can avoid reallocs; mail
-	 * messages are rarely tiny.
-	 */
-	static final int INITIAL_BUF_SIZE = 8192;
-
 	/** */
 	public static final String TMPFILE_PREFIX = "subetha";
 	public static final String TMPFILE_SUFFIX = ".msg";
 
+	/** The buffer of a stream reading the file, for small reads only */
+	static final int CURSOR_BUFFER_SIZE = 8192;
+
+	/** Supplies the file if we switch to file output */
+	SpoolManager spoolManager = SpoolManager.getDefault();
+
 	/** If we switch to file output, this is the file. */
-	File outFile;
+	SpoolFile spoolFile;
 
-	/** If we switch to file output, this is the stream. */
-	FileOutputStream outFileStream;
+	/** The codec of the file, null if the data is stored as is */
+	SpoolCodec codec;
 
-	/** When the output stream is closed, this becomes true */
-	boolean closed;
+	/**
+	 * With a codec, the decoding stream used by the last positional read,
+	 * and its position in the data.
+	 */
+	InputStream positionalStream;
+	long positionalStreamOffset;
 
-	boolean thresholdReached = false;
+	/** When the output stream is flushed for reading, this becomes true */
+	boolean closed;
 
 	/**
 	 * @param transitionSize is the number of bytes at which to convert
@@ -54,7 +69,92 @@ public class DeferredFileOutputStream extends ThresholdingOutputStream
 	 */
 	public DeferredFileOutputStream(int transitionSize)
 	{
-		super(new BetterByteArrayOutputStream(INITIAL_BUF_SIZE), transitionSize);
+		this(transitionSize, ChunkPool.getDefault());
+	}
+
+	/**
+	 * @param transitionSize is the number of bytes at which to convert
+	 *  from a byte array to a real file.
+	 * @param pool supplies the chunks of the in-memory buffer.
+	 */
+	public DeferredFileOutputStream(int transitionSize, ChunkPool pool)
+	{
+		super(new ChunkedByteArrayOutputStream(pool, null), transitionSize);
+	}
+
+	/**
+	 * @param transitionSize is the number of bytes at which to convert
+	 *  from a byte array to a real file.
+	 * @param pool supplies the chunks of the in-memory buffer.
+	 * @param budget limits the memory shared by all buffers.
+	 */
+	public DeferredFileOutputStream(int transitionSize, ChunkPool pool, MemoryBudget budget)
+	{
+		super(new ChunkedByteArrayOutputStream(pool, budget),
+				(int)Math.min(transitionSize, budget.getAvailable() / 4));
+	}
+
+	/**
+	 * @param transitionSize is the number of bytes at which to convert
+	 *  from a byte array to a real file.
+	 * @param pool supplies the chunks of the in-memory buffer.
+	 * @param budget limits the memory shared by all buffers.
+	 * @param spoolManager supplies the file.
+	 */
+	public DeferredFileOutputStream(int transitionSize, ChunkPool pool, MemoryBudget budget,
+			SpoolManager spoolManager)
+	{
+		this(transitionSize, pool, budget);
+		this.spoolManager = spoolManager;
+	}
+
+	/**
+	 * Creates a stream for data of a size known in advance, for example
+	 * declared with the SIZE parameter of the MAIL command. If that is above
+	 * the threshold, the temp file is created at once, so the data is not
+	 * copied through memory first; otherwise the in-memory chunks for the
+	 * whole size are acquired at once.
+	 *
+	 * @param transitionSize is the number of bytes at which to convert
+	 *  from a byte array to a real file.
+	 * @param pool supplies the chunks of the in-memory buffer.
+	 * @param budget limits the memory shared by all buffers.
+	 * @param spoolManager supplies the file.
+	 * @param expectedSize the expected size of the data, or 0 if unknown.
+	 * @param reserved bytes already reserved from the budget for this
+	 *  data, which are given back when this stream is closed.
+	 */
+	public DeferredFileOutputStream(int transitionSize, ChunkPool pool, MemoryBudget budget,
+			SpoolManager spoolManager, int expectedSize, long reserved) throws IOException
+	{
+		super(new ChunkedByteArrayOutputStream(pool, budget, reserved),
+				(int)Math.min(transitionSize,
+						Math.max(reserved, budget.getAvailable() / 4)));
+		this.spoolManager = spoolManager;
+
+		if (expectedSize > this.threshold
+				|| !((ChunkedByteArrayOutputStream)this.output).ensureCapacity(expectedSize))
+		{
+			this.thresholdReached(0, expectedSize);
+			this.thresholdReached = true;
+		}
+	}
+
+	/**
+	 * Also moves the data to the file if the memory budget does not allow
+	 * the next write.
+	 */
+	@Override
+	protected void checkThreshold(int count) throws IOException
+	{
+		super.checkThreshold(count);
+
+		if (this.output instanceof ChunkedByteArrayOutputStream
+				&& !((ChunkedByteArrayOutputStream)this.output).ensureCapacity(count))
+		{
+			this.thresholdReached(this.written, this.written + count);
+			this.thresholdReached = true;
+		}
 	}
 
 	/*
@@ -64,38 +164,197 @@ public class DeferredFileOutputStream extends ThresholdingOutputStream
 	@Override
 	protected void thresholdReached(int current, int predicted) throws IOException
 	{
-		// Open a temp file, write the byte array version, and swap the
+		// Take a spool file, write the chunks, and swap the
 		// output stream to the file version.
 
-		this.outFile = File.createTempFile(TMPFILE_PREFIX, TMPFILE_SUFFIX);
-		this.outFileStream = new FileOutputStream(this.outFile);
+		this.spoolFile = this.spoolManager.create();
+		this.codec = this.spoolManager.getCodec();
 
-		((ByteArrayOutputStream)this.output).writeTo(this.outFileStream);
-		this.output = new BufferedOutputStream(this.outFileStream);
+		ChunkedByteArrayOutputStream memory = (ChunkedByteArrayOutputStream)this.output;
+		if (this.codec == null)
+		{
+			memory.writeTo(this.spoolFile.getChannel());
+			memory.release();
+			this.output = new BufferedOutputStream(this.fileOutputStream());
+		}
+		else
+		{
+			// the codec buffers itself
+			this.output = this.codec.encode(this.fileOutputStream());
+			memory.writeTo(this.output);
+			memory.release();
+		}
+	}
+
+	/**
+	 * Returns a stream which appends to the spool file, and does not close
+	 * its channel.
+	 */
+	private OutputStream fileOutputStream()
+	{
+		final FileChannel channel = this.spoolFile.getChannel();
+		return new OutputStream()
+		{
+			@Override
+			public void write(int b) throws IOException
+			{
+				this.write(new byte[] { (byte)b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException
+			{
+				ByteBuffer src = ByteBuffer.wrap(b, off, len);
+				while (src.hasRemaining())
+					channel.write(src);
+			}
+		};
 	}
 
 	/**
-	 * Closes the output stream and creates an InputStream on the same data.
+	 * Flushes the output stream and creates an InputStream on the same data.
+	 * The streams are independent cursors; none of them opens the file
+	 * again, they all read from the channel of the spool file.
 	 *
-	 * @return either a BetterByteArrayOutputStream or buffered FileInputStream,
+	 * @return either a stream over the chunks or over the file,
 	 *  depending on what state we are in.
 	 */
 	public InputStream getInputStream() throws IOException
 	{
-		if (this.output instanceof BetterByteArrayOutputStream)
+		if (this.output instanceof ChunkedByteArrayOutputStream)
 		{
-			return ((BetterByteArrayOutputStream)this.output).getInputStream();
+			return ((ChunkedByteArrayOutputStream)this.output).getInputStream();
 		}
 		else
 		{
-			if (!this.closed)
+			this.closeOutput();
+
+			InputStream in = new FileCursor(this.spoolFile, this.spoolFile.getChannel().size());
+			return this.codec == null ? in : this.codec.decode(in);
+		}
+	}
+
+	/**
+	 * @return the number of bytes written so far
+	 */
+	public int getSize()
+	{
+		return this.written;
+	}
+
+	/**
+	 * Reads the data starting at the given position, without changing any
+	 * state shared with other readers, like FileChannel.read(ByteBuffer, long).
+	 * Once the data is on disk, this flushes the output stream.
+	 *
+	 * @return the number of bytes read, or -1 if position is at the end
+	 */
+	public int read(long position, ByteBuffer dst) throws IOException
+	{
+		if (this.output instanceof ChunkedByteArrayOutputStream)
+		{
+			if (position >= this.written)
+				return -1;
+			return ((ChunkedByteArrayOutputStream)this.output).read((int)position, dst);
+		}
+		else if (this.codec == null)
+		{
+			this.closeOutput();
+			return this.spoolFile.getChannel().read(dst, position);
+		}
+		else
+		{
+			return this.readDecoded(position, dst);
+		}
+	}
+
+	/**
+	 * Positional read of an encoded file: decodes from the beginning,
+	 * but keeps the stream, so reading forward continues where the last
+	 * read stopped.
+	 */
+	private synchronized int readDecoded(long position, ByteBuffer dst) throws IOException
+	{
+		if (position >= this.written)
+			return -1;
+
+		if (this.positionalStream == null || position < this.positionalStreamOffset)
+		{
+			if (this.positionalStream != null)
+				this.positionalStream.close();
+			this.positionalStream = this.getInputStream();
+			this.positionalStreamOffset = 0;
+		}
+
+		while (this.positionalStreamOffset < position)
+		{
+			long skipped = this.positionalStream.skip(position - this.positionalStreamOffset);
+			if (skipped <= 0)
+				return -1;
+			this.positionalStreamOffset += skipped;
+		}
+
+		byte[] b = new byte[Math.min(dst.remaining(), CURSOR_BUFFER_SIZE)];
+		int n = this.positionalStream.read(b, 0, b.length);
+		if (n > 0)
+		{
+			dst.put(b, 0, n);
+			this.positionalStreamOffset += n;
+		}
+		return n;
+	}
+
+	/**
+	 * Writes the data, starting at the given position, to the channel. From
+	 * the file this uses FileChannel.transferTo, which lets the operating
+	 * system copy from the page cache directly to a socket or file.
+	 *
+	 * @return the number of bytes written
+	 */
+	public long transferTo(long position, WritableByteChannel target) throws IOException
+	{
+		if (this.output instanceof ChunkedByteArrayOutputStream)
+		{
+			if (position >= this.written)
+				return 0;
+			return ((ChunkedByteArrayOutputStream)this.output).transferTo((int)position, target);
+		}
+		else if (this.codec != null)
+		{
+			InputStream in = this.getInputStream();
+			try
+			{
+				in.skipNBytes(position);
+				return in.transferTo(Channels.newOutputStream(target));
+			}
+			finally
 			{
-				this.output.flush();
-				this.output.close();
-				this.closed = true;
+				in.close();
 			}
+		}
+		else
+		{
+			long count = 0;
+			this.closeOutput();
+			FileChannel channel = this.spoolFile.getChannel();
+			long size = this.written;
+			while (position + count < size)
+				count += channel.transferTo(position + count, size - position - count, target);
+			return count;
+		}
+	}
 
-			return new BufferedInputStream(new FileInputStream(this.outFile));
+	/**
+	 * Ends writing. Closing the file output writes what the codec holds
+	 * back, but does not close the channel of the spool file.
+	 */
+	private synchronized void closeOutput() throws IOException
+	{
+		if (!this.closed)
+		{
+			this.output.flush();
+			this.output.close();
+			this.closed = true;
 		}
 	}
 
@@ -105,15 +364,162 @@ public class DeferredFileOutputStream extends ThresholdingOutputStream
 	@Override
 	public void close() throws IOException
 	{
-		if (!this.closed)
+		this.closeOutput();
+
+		if (this.output instanceof ChunkedByteArrayOutputStream)
+			((ChunkedByteArrayOutputStream)this.output).release();
+
+		synchronized (this)
 		{
-			this.output.flush();
-			this.output.close();
-			this.closed = true;
+			if (this.positionalStream != null)
+			{
+				this.positionalStream.close();
+				this.positionalStream = null;
+			}
+
+			if (this.spoolFile != null)
+			{
+				this.spoolFile.release();
+				this.spoolFile = null;
+			}
 		}
+	}
+
+	/**
+	 * An InputStream with its own position, which reads the spool file with
+	 * positional reads of the shared channel. Reads of at least the buffer
+	 * size go directly into the caller's array. It reads no further than the
+	 * length of the data when it was created, and fails once the file is
+	 * released, so it never returns data of a later message.
+	 */
+	static class FileCursor extends InputStream
+	{
+		private final SpoolFile file;
+		private final FileChannel channel;
+
+		/** The generation of the file when this was created */
+		private final int generation;
+
+		/** The length of the data in the file */
+		private final long length;
+
+		/** The position in the file of the byte after the buffer */
+		private long position;
+
+		private final byte[] buf = new byte[CURSOR_BUFFER_SIZE];
+		private int pos;
+		private int limit;
+
+		/** */
+		FileCursor(SpoolFile file, long length)
+		{
+			this.file = file;
+			this.channel = file.getChannel();
+			this.generation = file.getGeneration();
+			this.length = length;
+		}
+
+		/**
+		 * Reads from the channel at the current position, within the
+		 * length, and checks that the file was not released meanwhile.
+		 *
+		 * @return the number of bytes read, or -1 at the end of the data
+		 */
+		private int readChannel(byte[] b, int off, int len) throws IOException
+		{
+			this.checkGeneration();
+			int max = (int)Math.min(len, this.length - this.position);
+			if (max <= 0)
+				return -1;
+
+			int n = this.channel.read(ByteBuffer.wrap(b, off, max), this.position);
+			this.checkGeneration();
+			return n;
+		}
+
+		/** */
+		private void checkGeneration() throws IOException
+		{
+			if (this.file.getGeneration() != this.generation)
+				throw new IOException("The spool file was released");
+		}
+
+		/** @return false at the end of the file */
+		private boolean fill() throws IOException
+		{
+			int n = this.readChannel(this.buf, 0, this.buf.length);
+			if (n <= 0)
+				return false;
 
-		if (this.outFile != null)
-			this.outFile.delete();
+			this.position += n;
+			this.pos = 0;
+			this.limit = n;
+			return true;
+		}
+
+		/* */
+		@Override
+		public int read() throws IOException
+		{
+			if (this.pos == this.limit && !this.fill())
+				return -1;
+
+			return this.buf[this.pos++] & 0xff;
+		}
+
+		/* */
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			if (len == 0)
+				return 0;
+
+			if (this.pos == this.limit)
+			{
+				if (len >= this.buf.length)
+				{
+					int n = this.readChannel(b, off, len);
+					if (n > 0)
+						this.position += n;
+					return n;
+				}
+				if (!this.fill())
+					return -1;
+			}
+
+			int n = Math.min(len, this.limit - this.pos);
+			System.arraycopy(this.buf, this.pos, b, off, n);
+			this.pos += n;
+			return n;
+		}
+
+		/* */
+		@Override
+		public long skip(long n) throws IOException
+		{
+			if (n <= 0)
+				return 0;
+
+			long buffered = this.limit - this.pos;
+			if (n <= buffered)
+			{
+				this.pos += (int)n;
+				return n;
+			}
+
+			long skipped = buffered + Math.max(0, Math.min(n - buffered, this.length - this.position));
+			this.position += skipped - buffered;
+			this.pos = this.limit;
+			return skipped;
+		}
+
+		/* */
+		@Override
+		public int available() throws IOException
+		{
+			long remaining = (this.limit - this.pos) + Math.max(0, this.length - this.position);
+			return (int)Math.min(Integer.MAX_VALUE, remaining);
+		}
 	}
 
 }
@@ -0,0 +1,250 @@
+package org.subethamail.smtp.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import org.subethamail.smtp.MessageData;
+import org.subethamail.smtp.MessageHeaders;
+
+/**
+ * A {@link MessageData} which is filled chunk by chunk, and stored in a
+ * {@link DeferredFileOutputStream}: in memory up to a threshold, in a
+ * temporary file beyond it.
+ */
+public class DeferredMessageData implements MessageData
+{
+	/** The size of the buffer used to compute digests */
+	private static final int DIGEST_BUFFER_SIZE = 1024 * 32;
+
+	private final DeferredFileOutputStream output;
+
+	/** Used to copy chunks which do not expose their array */
+	private byte[] copyBuffer;
+
+	@GuardedBy("digests")
+	private final Map<String, byte[]> digests = new HashMap<String, byte[]>();
+
+	/** Parsed while the data was received, or on demand */
+	private volatile MessageHeaders headers;
+
+	/**
+	 * @param transitionSize
+	 *            the number of bytes at which the data is moved from memory
+	 *            to a temporary file
+	 */
+	public DeferredMessageData(int transitionSize)
+	{
+		this.output = new DeferredFileOutputStream(transitionSize);
+	}
+
+	/**
+	 * @param transitionSize
+	 *            the number of bytes at which the data is moved from memory
+	 *            to a temporary file
+	 * @param budget
+	 *            the memory shared with other messages
+	 */
+	public DeferredMessageData(int transitionSize, MemoryBudget budget)
+	{
+		this.output = new DeferredFileOutputStream(transitionSize, ChunkPool.getDefault(), budget);
+	}
+
+	/**
+	 * @param transitionSize
+	 *            the number of bytes at which the data is moved from memory
+	 *            to a temporary file
+	 * @param budget
+	 *            the memory shared with other messages
+	 * @param spoolManager
+	 *            supplies the temporary file
+	 * @param expectedSize
+	 *            the expected size of the data, or 0 if unknown
+	 * @param reserved
+	 *            bytes of the budget already reserved for the data, which
+	 *            are given back on {@link #release()}
+	 * @see DeferredFileOutputStream#DeferredFileOutputStream(int, ChunkPool, MemoryBudget, SpoolManager, int, long)
+	 */
+	public DeferredMessageData(int transitionSize, MemoryBudget budget, SpoolManager spoolManager,
+			int expectedSize, long reserved) throws IOException
+	{
+		this.output = new DeferredFileOutputStream(transitionSize, ChunkPool.getDefault(), budget,
+				spoolManager, expectedSize, reserved);
+	}
+
+	/**
+	 * Appends the remaining bytes of the chunk to the data. This must not be
+	 * called once the data has been read.
+	 */
+	public void append(ByteBuffer chunk) throws IOException
+	{
+		if (chunk.hasArray())
+		{
+			this.output.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+			chunk.position(chunk.limit());
+			return;
+		}
+
+		if (this.copyBuffer == null)
+			this.copyBuffer = new byte[Math.min(chunk.remaining(), 8192)];
+
+		while (chunk.hasRemaining())
+		{
+			int count = Math.min(chunk.remaining(), this.copyBuffer.length);
+			chunk.get(this.copyBuffer, 0, count);
+			this.output.write(this.copyBuffer, 0, count);
+		}
+	}
+
+	/**
+	 * Releases the memory or the temporary file. The data can no longer be
+	 * read afterwards.
+	 */
+	public void release() throws IOException
+	{
+		this.output.close();
+	}
+
+	/* */
+	public long getSize()
+	{
+		return this.output.getSize();
+	}
+
+	/* */
+	public InputStream getInputStream() throws IOException
+	{
+		return this.output.getInputStream();
+	}
+
+	/* */
+	public ReadableByteChannel getChannel()
+	{
+		return new ReadableByteChannel()
+		{
+			private long position;
+			private boolean open = true;
+
+			public int read(ByteBuffer dst) throws IOException
+			{
+				if (!this.open)
+					throw new ClosedChannelException();
+
+				int count = DeferredMessageData.this.read(this.position, dst);
+				if (count > 0)
+					this.position += count;
+				return count;
+			}
+
+			public boolean isOpen()
+			{
+				return this.open;
+			}
+
+			public void close()
+			{
+				this.open = false;
+			}
+		};
+	}
+
+	/* */
+	public long transferTo(WritableByteChannel target) throws IOException
+	{
+		return this.output.transferTo(0, target);
+	}
+
+	/* */
+	public long transferTo(long position, WritableByteChannel target) throws IOException
+	{
+		return this.output.transferTo(position, target);
+	}
+
+	/* */
+	public int read(long position, ByteBuffer dst) throws IOException
+	{
+		return this.output.read(position, dst);
+	}
+
+	/* */
+	public byte[] getDigest(String algorithm) throws IOException, NoSuchAlgorithmException
+	{
+		synchronized (this.digests)
+		{
+			byte[] digest = this.digests.get(algorithm);
+			if (digest == null)
+			{
+				MessageDigest md = DigestingSource.createDigest(algorithm);
+				ByteBuffer buffer = ByteBuffer.allocate(DIGEST_BUFFER_SIZE);
+				long position = this.getHeaders().getSectionSize();
+				int count;
+				while ((count = this.read(position, buffer)) != -1)
+				{
+					position += count;
+					buffer.flip();
+					md.update(buffer);
+					buffer.clear();
+				}
+
+				digest = md.digest();
+				this.digests.put(algorithm, digest);
+			}
+
+			return digest.clone();
+		}
+	}
+
+	/**
+	 * Sets the digest of the data, if it was computed while the data was
+	 * appended, so {@link #getDigest(String)} does not compute it again.
+	 */
+	public void setDigest(String algorithm, byte[] digest)
+	{
+		synchronized (this.digests)
+		{
+			this.digests.put(algorithm, digest.clone());
+		}
+	}
+
+	/**
+	 * Sets the headers, if they were parsed while the data was appended.
+	 */
+	public void setHeaders(MessageHeaders headers)
+	{
+		this.headers = headers;
+	}
+
+	/**
+	 * Returns the headers set by the server, or parses them from the start of
+	 * the data.
+	 */
+	public MessageHeaders getHeaders() throws IOException
+	{
+		if (this.headers == null)
+		{
+			HeaderParser parser = new HeaderParser();
+			ByteBuffer buffer = ByteBuffer.allocate(8192);
+			long position = 0;
+			int count;
+			while ((count = this.read(position, buffer)) != -1)
+			{
+				position += count;
+				buffer.flip();
+				if (parser.update(buffer))
+					break;
+				buffer.clear();
+			}
+			this.headers = parser.finish();
+		}
+		return this.headers;
+	}
+}
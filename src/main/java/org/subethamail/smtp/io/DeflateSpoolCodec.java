@@ -0,0 +1,90 @@
+package org.subethamail.smtp.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A {@link SpoolCodec} which compresses spool files with the deflate
+ * algorithm. Mail text typically shrinks to a third or less even at the
+ * fastest level, trading some CPU time for spool I/O; already compressed
+ * attachments do not shrink.
+ */
+public class DeflateSpoolCodec implements SpoolCodec
+{
+	/** The size of the buffers of the compressing streams */
+	private static final int BUFFER_SIZE = 8192;
+
+	private final int level;
+
+	/**
+	 * Compresses at the fastest level.
+	 */
+	public DeflateSpoolCodec()
+	{
+		this(Deflater.BEST_SPEED);
+	}
+
+	/**
+	 * @param level
+	 *            the compression level, from Deflater.BEST_SPEED to
+	 *            Deflater.BEST_COMPRESSION
+	 */
+	public DeflateSpoolCodec(int level)
+	{
+		this.level = level;
+	}
+
+	/** */
+	public int getLevel()
+	{
+		return this.level;
+	}
+
+	/* */
+	public OutputStream encode(OutputStream out)
+	{
+		final Deflater deflater = new Deflater(this.level);
+		return new DeflaterOutputStream(out, deflater, BUFFER_SIZE)
+		{
+			@Override
+			public void close() throws IOException
+			{
+				try
+				{
+					super.close();
+				}
+				finally
+				{
+					// not done by DeflaterOutputStream for a Deflater it did not create
+					deflater.end();
+				}
+			}
+		};
+	}
+
+	/* */
+	public InputStream decode(InputStream in)
+	{
+		final Inflater inflater = new Inflater();
+		return new InflaterInputStream(in, inflater, BUFFER_SIZE)
+		{
+			@Override
+			public void close() throws IOException
+			{
+				try
+				{
+					super.close();
+				}
+				finally
+				{
+					inflater.end();
+				}
+			}
+		};
+	}
+}
@@ -0,0 +1,143 @@
+package org.subethamail.smtp.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/**
+ * Passes the chunks of a source through unchanged, and updates a message
+ * digest with them on the way, so the digest of the data is known as soon as
+ * it has been read once.
+ */
+public class DigestingSource implements ChunkSource
+{
+	/**
+	 * The name of the fast, non-cryptographic hash accepted by
+	 * {@link #createDigest(String)} in addition to the MessageDigest
+	 * algorithms. Its digest is the 4 byte CRC32C value, in big-endian order.
+	 */
+	public static final String CRC32C = "CRC32C";
+
+	private final ChunkSource source;
+
+	private final MessageDigest digest;
+
+	/** The result, once the end of the data is reached */
+	private byte[] result;
+
+	/**
+	 * @param source
+	 *            the data
+	 * @param digest
+	 *            the digest to update, which may already have been updated
+	 *            with data preceding the source, like a Received header
+	 */
+	public DigestingSource(ChunkSource source, MessageDigest digest)
+	{
+		this.source = source;
+		this.digest = digest;
+	}
+
+	/* */
+	public ByteBuffer nextChunk() throws IOException
+	{
+		ByteBuffer chunk = this.source.nextChunk();
+		if (chunk == null)
+		{
+			if (this.result == null)
+				this.result = this.digest.digest();
+		}
+		else
+		{
+			this.digest.update(chunk.duplicate());
+		}
+		return chunk;
+	}
+
+	/**
+	 * @return the digest of the data, or null if the end of the data has not
+	 *         been read yet
+	 */
+	public byte[] getDigest()
+	{
+		return this.result == null ? null : this.result.clone();
+	}
+
+	/**
+	 * Returns a new digest for the algorithm.
+	 *
+	 * @param algorithm
+	 *            the name of a MessageDigest algorithm, for example
+	 *            "SHA-256", or {@link #CRC32C}
+	 * @throws NoSuchAlgorithmException
+	 *             if the algorithm is not available
+	 */
+	public static MessageDigest createDigest(String algorithm) throws NoSuchAlgorithmException
+	{
+		if (CRC32C.equalsIgnoreCase(algorithm))
+			return new ChecksumDigest(CRC32C, new CRC32C());
+		return MessageDigest.getInstance(algorithm);
+	}
+
+	/**
+	 * Presents a 32 bit checksum as a MessageDigest.
+	 */
+	private static class ChecksumDigest extends MessageDigest
+	{
+		private final Checksum checksum;
+
+		/** */
+		ChecksumDigest(String algorithm, Checksum checksum)
+		{
+			super(algorithm);
+			this.checksum = checksum;
+		}
+
+		/* */
+		@Override
+		protected int engineGetDigestLength()
+		{
+			return 4;
+		}
+
+		/* */
+		@Override
+		protected void engineUpdate(byte input)
+		{
+			this.checksum.update(input);
+		}
+
+		/* */
+		@Override
+		protected void engineUpdate(byte[] input, int offset, int len)
+		{
+			this.checksum.update(input, offset, len);
+		}
+
+		/* */
+		@Override
+		protected void engineUpdate(ByteBuffer input)
+		{
+			this.checksum.update(input);
+		}
+
+		/* */
+		@Override
+		protected byte[] engineDigest()
+		{
+			int value = (int) this.checksum.getValue();
+			this.checksum.reset();
+			return new byte[] { (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value };
+		}
+
+		/* */
+		@Override
+		protected void engineReset()
+		{
+			this.checksum.reset();
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package org.subethamail.smtp.io;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.subethamail.smtp.MessageHeaders;
+
+/**
+ * Finds the header fields at the start of message data while it is read, a
+ * chunk at a time. It keeps the bytes of the header section and the
+ * positions where fields start and end, and stops at the blank line which
+ * ends the header section. Folded lines are recognized; everything else,
+ * splitting off names and unfolding values, is left to
+ * {@link MessageHeaders} when a field is looked up.
+ * <p>
+ * Bare LF line terminators are accepted as well as CRLF.
+ */
+public class HeaderParser
+{
+	/** The default limit of the size of a header section */
+	public static final int DEFAULT_MAX_SIZE = 64 * 1024;
+
+	private final int maxSize;
+
+	/** The header section received so far */
+	private byte[] section = new byte[1024];
+
+	private int length;
+
+	private int[] starts = new int[16];
+
+	private int[] ends = new int[16];
+
+	private int fieldCount;
+
+	/** True if the next byte starts a line */
+	private boolean lineStart = true;
+
+	/** True if a line started with CR, which may be a blank line */
+	private boolean pendingCR;
+
+	/** The result, once the end of the header section was found */
+	private MessageHeaders headers;
+
+	/** */
+	public HeaderParser()
+	{
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * @param maxSize
+	 *            the size of the header section after which parsing stops.
+	 *            The headers are reported as incomplete in this case.
+	 */
+	public HeaderParser(int maxSize)
+	{
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Parses the remaining bytes of the chunk, without changing its position.
+	 *
+	 * @return true if the header section is finished, the rest of the data
+	 *         need not be passed
+	 */
+	public boolean update(ByteBuffer chunk)
+	{
+		if (this.headers != null)
+			return true;
+
+		int limit = chunk.limit();
+		for (int i = chunk.position(); i < limit; i++)
+		{
+			if (this.length == this.maxSize)
+			{
+				this.end(false);
+				return true;
+			}
+
+			byte b = chunk.get(i);
+			int position = this.length;
+			this.append(b);
+
+			if (this.pendingCR)
+			{
+				this.pendingCR = false;
+				if (b == '\n')
+				{
+					this.closeField(position - 1);
+					this.end(true);
+					return true;
+				}
+				// a stray CR, take it as the start of a malformed field
+				this.openField(position - 1);
+			}
+			else if (this.lineStart)
+			{
+				this.lineStart = false;
+				if (b == '\r')
+				{
+					this.pendingCR = true;
+					continue;
+				}
+				if (b == '\n')
+				{
+					this.closeField(position);
+					this.end(true);
+					return true;
+				}
+				if ((b != ' ' && b != '\t') || this.fieldCount == 0)
+					this.openField(position);
+			}
+
+			if (b == '\n')
+				this.lineStart = true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the headers if the end of the header section was found, or
+	 *         null
+	 */
+	public MessageHeaders getHeaders()
+	{
+		return this.headers;
+	}
+
+	/**
+	 * Called at the end of the data, returns the headers even if the header
+	 * section did not end with a blank line.
+	 */
+	public MessageHeaders finish()
+	{
+		if (this.headers == null)
+			this.end(false);
+		return this.headers;
+	}
+
+	/** */
+	private void append(byte b)
+	{
+		if (this.length == this.section.length)
+			this.section = Arrays.copyOf(this.section, Math.min(this.section.length * 2, this.maxSize));
+		this.section[this.length++] = b;
+	}
+
+	/** Ends the previous field, and starts a new one */
+	private void openField(int position)
+	{
+		this.closeField(position);
+		if (this.fieldCount == this.starts.length)
+		{
+			this.starts = Arrays.copyOf(this.starts, this.fieldCount * 2);
+			this.ends = Arrays.copyOf(this.ends, this.fieldCount * 2);
+		}
+		this.starts[this.fieldCount] = position;
+		this.ends[this.fieldCount] = -1;
+		this.fieldCount++;
+	}
+
+	/** */
+	private void closeField(int position)
+	{
+		if (this.fieldCount > 0 && this.ends[this.fieldCount - 1] < 0)
+			this.ends[this.fieldCount - 1] = position;
+	}
+
+	/** */
+	private void end(boolean complete)
+	{
+		this.closeField(this.length);
+		this.headers = new MessageHeaders(Arrays.copyOf(this.section, this.length),
+				Arrays.copyOf(this.starts, this.fieldCount), Arrays.copyOf(this.ends, this.fieldCount), complete);
+		this.section = null;
+	}
+}
@@ -0,0 +1,48 @@
+package org.subethamail.smtp.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link ChunkSource} which reads an InputStream in blocks, into a single
+ * reused buffer.
+ */
+public class InputStreamChunkSource implements ChunkSource
+{
+	/** The default number of bytes read at once */
+	public static final int DEFAULT_BUFFER_SIZE = 1024 * 32;
+
+	private final InputStream in;
+
+	private final byte[] buf;
+
+	/** */
+	public InputStreamChunkSource(InputStream in)
+	{
+		this(in, DEFAULT_BUFFER_SIZE);
+	}
+
+	/** */
+	public InputStreamChunkSource(InputStream in, int bufferSize)
+	{
+		this.in = in;
+		this.buf = new byte[bufferSize];
+	}
+
+	/* */
+	public ByteBuffer nextChunk() throws IOException
+	{
+		int count;
+		do
+		{
+			count = this.in.read(this.buf);
+		}
+		while (count == 0);
+
+		if (count == -1)
+			return null;
+
+		return ByteBuffer.wrap(this.buf, 0, count).asReadOnlyBuffer();
+	}
+}
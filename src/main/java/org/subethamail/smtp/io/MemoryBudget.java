@@ -0,0 +1,86 @@
+package org.subethamail.smtp.io;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A number of bytes which the in-memory message buffers of a server share.
+ * A {@link DeferredFileOutputStream} reserves each chunk of its buffer from
+ * the budget, and moves the message to its temporary file as soon as a
+ * reservation fails. This puts an upper bound on the heap used for buffering
+ * messages, whatever the number of concurrent sessions.
+ */
+public class MemoryBudget
+{
+	private final long limit;
+
+	private final AtomicLong used = new AtomicLong();
+
+	/**
+	 * @param limit
+	 *            the maximum number of bytes reserved at the same time
+	 */
+	public MemoryBudget(long limit)
+	{
+		if (limit < 0)
+			throw new IllegalArgumentException("limit must not be negative");
+
+		this.limit = limit;
+	}
+
+	/**
+	 * Reserves the given number of bytes, if that does not exceed the limit.
+	 *
+	 * @return true if the bytes were reserved
+	 */
+	public boolean tryReserve(long bytes)
+	{
+		while (true)
+		{
+			long current = this.used.get();
+			if (current + bytes > this.limit)
+				return false;
+			if (this.used.compareAndSet(current, current + bytes))
+				return true;
+		}
+	}
+
+	/**
+	 * Gives back bytes reserved earlier.
+	 */
+	public void release(long bytes)
+	{
+		this.used.addAndGet(-bytes);
+	}
+
+	/** */
+	public long getLimit()
+	{
+		return this.limit;
+	}
+
+	/**
+	 * @return the number of bytes currently reserved
+	 */
+	public long getUsed()
+	{
+		return this.used.get();
+	}
+
+	/**
+	 * @return the number of bytes which can still be reserved
+	 */
+	public long getAvailable()
+	{
+		return Math.max(0, this.limit - this.used.get());
+	}
+
+	/**
+	 * @return true if not even a single chunk of the default
+	 *         {@link ChunkPool} could be reserved, so no new message could be
+	 *         buffered in memory at all
+	 */
+	public boolean isExhausted()
+	{
+		return this.getAvailable() < ChunkPool.getDefault().getChunkSize();
+	}
+}
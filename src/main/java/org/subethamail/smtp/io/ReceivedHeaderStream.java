@@ -3,26 +3,26 @@
  */
 package org.subethamail.smtp.io;
 
-import java.io.ByteArrayInputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
-
-import org.subethamail.smtp.util.TextUtils;
 
 /**
  * Prepends a Received: header at the beginning of the input stream.
  */
 public class ReceivedHeaderStream extends FilterInputStream
 {
-	ByteArrayInputStream header;
+	private final byte[] header;
+
+	/** The position of the next byte of the header to read */
+	private int position;
 
 	/**
+	 * @param host
+	 *            the address of the remote SMTP client, or null if the client
+	 *            is not connected through TCP, in which case the TCP-info
+	 *            element is omitted
 	 * @param softwareName
 	 *            A software name and version, or null if this information
 	 *            should not be printed
@@ -33,57 +33,37 @@ public class ReceivedHeaderStream extends FilterInputStream
 	public ReceivedHeaderStream(InputStream in, String heloHost, InetAddress host, String whoami, String softwareName,
 			String id, String singleRecipient)
 	{
-		super(in);
-
-/* Looks like:
-Received: from iamhelo (wasabi.infohazard.org [209.237.247.14])
-        by mx.google.com with SMTP id 32si2669129wfa.13.2009.05.27.18.27.31;
-        Wed, 27 May 2009 18:27:48 -0700 (PDT)
- */
-		DateFormat fmt = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss Z (z)", Locale.US);
-		String timestamp = fmt.format(new Date());
-
-		StringBuilder header = new StringBuilder();
-		header.append("Received: from " + heloHost + " (" + constructTcpInfo(host) + ")\r\n");
-		header.append("        by " + whoami + "\r\n");
-		header.append("        with SMTP");
-		if (softwareName != null)
-			header.append(" (" + softwareName + ")");
-		header.append(" id ").append(id);
-		if (singleRecipient != null)
-			header.append("\r\n        for " + singleRecipient);
-		header.append(";\r\n");
-		header.append("        " + timestamp + "\r\n");
+		this(in, createHeader(heloHost, host, whoami, softwareName, id, singleRecipient));
+	}
 
-		this.header = new ByteArrayInputStream(TextUtils.getAsciiBytes(header.toString()));
+	/**
+	 * @param header
+	 *            the complete header, as returned by
+	 *            {@link #createHeader(String, InetAddress, String, String, String, String)}
+	 */
+	public ReceivedHeaderStream(InputStream in, byte[] header)
+	{
+		super(in);
+		this.header = header;
 	}
 
 	/**
-	 * Returns a formatted TCP-info element, depending on the success of the IP
-	 * address name resolution either with domain name or only the address
-	 * literal.
-	 * 
-	 * @param host
-	 *            the address of the remote SMTP client.
-	 * @return the formatted TCP-info element as defined by RFC 5321
+	 * Creates the text of a Received: header, including the terminating CRLF.
+	 * The parameters are the same as those of the constructor. A session
+	 * which receives several messages should rather create a
+	 * {@link ReceivedHeaderTemplate} once.
 	 */
-	private String constructTcpInfo(InetAddress host)
+	public static byte[] createHeader(String heloHost, InetAddress host, String whoami, String softwareName,
+			String id, String singleRecipient)
 	{
-		// if it is not successful it just returns the address
-		String domain = host.getCanonicalHostName();
-		String address = host.getHostAddress();
-		// check whether the host name resolution was successful
-		if (domain.equals(address))
-			return "[" + address + "]";
-		else
-			return domain + " [" + address + "]";
+		return new ReceivedHeaderTemplate(heloHost, host, whoami, softwareName).createHeader(id, singleRecipient);
 	}
 
 	/* */
 	@Override
 	public int available() throws IOException
 	{
-		return this.header.available() + super.available();
+		return this.header.length - this.position + super.available();
 	}
 
 	/* */
@@ -111,8 +91,8 @@ Received: from iamhelo (wasabi.infohazard.org [209.237.247.14])
 	@Override
 	public int read() throws IOException
 	{
-		if (this.header.available() > 0)
-			return this.header.read();
+		if (this.position < this.header.length)
+			return this.header[this.position++] & 0xff;
 		else
 			return super.read();
 	}
@@ -121,19 +101,19 @@ Received: from iamhelo (wasabi.infohazard.org [209.237.247.14])
 	@Override
 	public int read(byte[] b, int off, int len) throws IOException
 	{
-		if (this.header.available() > 0)
+		int countRead = Math.min(len, this.header.length - this.position);
+		if (countRead > 0)
 		{
-			int countRead = this.header.read(b, off, len);
+			System.arraycopy(this.header, this.position, b, off, countRead);
+			this.position += countRead;
 			if (countRead < len)
 			{
 				// We need to add a little extra from the normal stream
-				int remainder = len - countRead;
-				int additionalRead = super.read(b, off + countRead, remainder);
-
-				return countRead + additionalRead;
+				int additionalRead = super.read(b, off + countRead, len - countRead);
+				if (additionalRead > 0)
+					countRead += additionalRead;
 			}
-			else
-				return countRead;
+			return countRead;
 		}
 		else
 			return super.read(b, off, len);
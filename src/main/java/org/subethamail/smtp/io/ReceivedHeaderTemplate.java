@@ -0,0 +1,199 @@
+package org.subethamail.smtp.io;
+
+import java.net.InetAddress;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Locale;
+
+import org.subethamail.smtp.util.TextUtils;
+
+/**
+ * The parts of a Received: header which stay the same for all messages of a
+ * session, the HELO name, the TCP-info, the name of this server and the
+ * software name, encoded once. Only the id, the recipient and the timestamp
+ * are added for each message, and the timestamp is formatted at most once a
+ * second for all sessions.
+ * <p>
+ * The header looks like:
+ * <pre>
+ * Received: from iamhelo (wasabi.infohazard.org [209.237.247.14])
+ *         by mx.google.com with SMTP id 32si2669129wfa.13.2009.05.27.18.27.31;
+ *         Wed, 27 May 2009 18:27:48 -0700 (PDT)
+ * </pre>
+ * Instances may be used by several threads.
+ */
+public class ReceivedHeaderTemplate
+{
+	private static final DateTimeFormatter TIMESTAMP_FORMAT =
+		DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss Z (z)", Locale.US);
+
+	private static final byte[] FOR = TextUtils.getAsciiBytes("\r\n        for ");
+
+	private static final byte[] TIMESTAMP_START = TextUtils.getAsciiBytes(";\r\n        ");
+
+	private static final byte[] CRLF = { '\r', '\n' };
+
+	/** The last timestamp formatted */
+	private static volatile Timestamp timestamp = new Timestamp(0, null);
+
+	/** Everything up to the id */
+	private final byte[] prefix;
+
+	/**
+	 * @param heloHost
+	 *            the name the client gave in HELO or EHLO
+	 * @param host
+	 *            the address of the remote SMTP client, or null if the client
+	 *            is not connected through TCP, in which case the TCP-info
+	 *            element is omitted
+	 * @param whoami
+	 *            the name of this server
+	 * @param softwareName
+	 *            A software name and version, or null if this information
+	 *            should not be printed
+	 */
+	public ReceivedHeaderTemplate(String heloHost, InetAddress host, String whoami, String softwareName)
+	{
+		this(heloHost, host, host == null ? null : lookupHostName(host), whoami, softwareName);
+	}
+
+	/**
+	 * Creates the template with the host name of the client already known,
+	 * no lookup is done.
+	 *
+	 * @param hostName
+	 *            the name of the host, or null if it has none or it is not
+	 *            known, in which case the TCP-info shows only the address
+	 *            literal
+	 */
+	public ReceivedHeaderTemplate(String heloHost, InetAddress host, String hostName, String whoami,
+			String softwareName)
+	{
+		StringBuilder header = new StringBuilder(160);
+		header.append("Received: from ").append(heloHost);
+		if (host != null)
+			header.append(" (").append(constructTcpInfo(host, hostName)).append(')');
+		header.append("\r\n        by ").append(whoami);
+		header.append("\r\n        with SMTP");
+		if (softwareName != null)
+			header.append(" (").append(softwareName).append(')');
+		header.append(" id ");
+		this.prefix = TextUtils.getAsciiBytes(header.toString());
+	}
+
+	/**
+	 * Creates the text of the header for a message, including the
+	 * terminating CRLF.
+	 *
+	 * @param id
+	 *            the id of the session or message
+	 * @param singleRecipient
+	 *            The single recipient of the message. If there are more than
+	 *            one recipients then this must be null.
+	 */
+	public byte[] createHeader(String id, String singleRecipient)
+	{
+		byte[] time = currentTimestamp();
+		int length = this.prefix.length + id.length() + TIMESTAMP_START.length + time.length + CRLF.length;
+		if (singleRecipient != null)
+			length += FOR.length + singleRecipient.length();
+
+		byte[] header = Arrays.copyOf(this.prefix, length);
+		int position = putAscii(header, this.prefix.length, id);
+		if (singleRecipient != null)
+		{
+			position = put(header, position, FOR);
+			position = putAscii(header, position, singleRecipient);
+		}
+		position = put(header, position, TIMESTAMP_START);
+		position = put(header, position, time);
+		put(header, position, CRLF);
+		return header;
+	}
+
+	/**
+	 * Looks up the name of the host, blocking.
+	 *
+	 * @return the name, or null if the host has none
+	 */
+	private static String lookupHostName(InetAddress host)
+	{
+		// if it is not successful it just returns the address
+		String domain = host.getCanonicalHostName();
+		return domain.equals(host.getHostAddress()) ? null : domain;
+	}
+
+	/**
+	 * Returns a formatted TCP-info element, either with domain name or only
+	 * the address literal.
+	 *
+	 * @param host
+	 *            the address of the remote SMTP client.
+	 * @param hostName
+	 *            its name, or null
+	 * @return the formatted TCP-info element as defined by RFC 5321
+	 */
+	private static String constructTcpInfo(InetAddress host, String hostName)
+	{
+		String address = host.getHostAddress();
+		if (hostName == null)
+			return "[" + address + "]";
+		else
+			return hostName + " [" + address + "]";
+	}
+
+	/**
+	 * @return the current time formatted, shared by all headers created
+	 *         within the same second
+	 */
+	private static byte[] currentTimestamp()
+	{
+		long second = System.currentTimeMillis() / 1000;
+		Timestamp current = timestamp;
+		if (current.second != second)
+		{
+			String text = TIMESTAMP_FORMAT.format(Instant.ofEpochSecond(second).atZone(ZoneId.systemDefault()));
+			current = new Timestamp(second, TextUtils.getAsciiBytes(text));
+			timestamp = current;
+		}
+		return current.text;
+	}
+
+	/** */
+	private static int put(byte[] header, int position, byte[] bytes)
+	{
+		System.arraycopy(bytes, 0, header, position, bytes.length);
+		return position + bytes.length;
+	}
+
+	/** Copies the string as ASCII, other characters become '?' */
+	private static int putAscii(byte[] header, int position, String text)
+	{
+		for (int i = 0; i < text.length(); i++)
+		{
+			char c = text.charAt(i);
+			header[position++] = c < 128 ? (byte) c : (byte) '?';
+		}
+		return position;
+	}
+
+	/**
+	 * A second and its text, replaced as a whole so that readers never see
+	 * one without the other.
+	 */
+	private static class Timestamp
+	{
+		final long second;
+
+		final byte[] text;
+
+		/** */
+		Timestamp(long second, byte[] text)
+		{
+			this.second = second;
+			this.text = text;
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package org.subethamail.smtp.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Blocking stream views of a {@link SocketChannel}. Unlike the streams
+ * returned by {@link java.nio.channels.Channels}, these honour a read timeout
+ * in the same way as {@link java.net.Socket#setSoTimeout(int)}, which is
+ * necessary for channels which have no {@link java.net.Socket} adaptor, for
+ * example Unix domain socket channels.
+ * <p>
+ * The channel is switched to non-blocking mode and each direction waits on
+ * its own {@link Selector}, so the two streams may be used by different
+ * threads.
+ */
+public class SocketChannelStreams
+{
+	private final SocketChannel channel;
+	private final Selector readSelector;
+	private final Selector writeSelector;
+
+	/** Read timeout in milliseconds, 0 means infinite */
+	private volatile int timeout;
+
+	private final InputStream input = new InputStream()
+	{
+		@Override
+		public int read() throws IOException
+		{
+			byte[] b = new byte[1];
+			int count;
+			while ((count = this.read(b, 0, 1)) == 0)
+				;
+			return count == -1 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			if (len == 0)
+				return 0;
+			return SocketChannelStreams.this.read(ByteBuffer.wrap(b, off, len));
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			SocketChannelStreams.this.close();
+		}
+	};
+
+	private final OutputStream output = new OutputStream()
+	{
+		@Override
+		public void write(int b) throws IOException
+		{
+			this.write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			SocketChannelStreams.this.write(ByteBuffer.wrap(b, off, len));
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			SocketChannelStreams.this.close();
+		}
+	};
+
+	/**
+	 * @param channel
+	 *            a connected channel, it will be put into non-blocking mode
+	 * @param timeout
+	 *            the read timeout in milliseconds, 0 means infinite
+	 */
+	public SocketChannelStreams(SocketChannel channel, int timeout) throws IOException
+	{
+		this.channel = channel;
+		this.timeout = timeout;
+
+		this.channel.configureBlocking(false);
+		this.readSelector = Selector.open();
+		this.writeSelector = Selector.open();
+		this.channel.register(this.readSelector, SelectionKey.OP_READ);
+		this.channel.register(this.writeSelector, SelectionKey.OP_WRITE);
+	}
+
+	/** */
+	public InputStream getInputStream()
+	{
+		return this.input;
+	}
+
+	/** */
+	public OutputStream getOutputStream()
+	{
+		return this.output;
+	}
+
+	/** */
+	public SocketChannel getChannel()
+	{
+		return this.channel;
+	}
+
+	/**
+	 * Sets the read timeout in milliseconds, 0 means infinite.
+	 */
+	public void setTimeout(int timeout)
+	{
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Closes the channel, and wakes up any thread waiting for it.
+	 */
+	public void close() throws IOException
+	{
+		try
+		{
+			this.channel.close();
+		}
+		finally
+		{
+			this.readSelector.close();
+			this.writeSelector.close();
+		}
+	}
+
+	/**
+	 * Reads at least one byte, waiting at most for the timeout.
+	 */
+	private int read(ByteBuffer dst) throws IOException
+	{
+		long deadline = this.timeout == 0 ? 0 : System.currentTimeMillis() + this.timeout;
+		while (true)
+		{
+			int count = this.channel.read(dst);
+			if (count != 0)
+				return count;
+
+			long wait = 0;
+			if (deadline != 0)
+			{
+				wait = deadline - System.currentTimeMillis();
+				if (wait <= 0)
+					throw new SocketTimeoutException("Read timed out");
+			}
+			this.await(this.readSelector, wait);
+		}
+	}
+
+	/**
+	 * Writes all remaining bytes of the buffer.
+	 */
+	private void write(ByteBuffer src) throws IOException
+	{
+		while (src.hasRemaining())
+		{
+			if (this.channel.write(src) == 0)
+				this.await(this.writeSelector, 0);
+		}
+	}
+
+	/** */
+	private void await(Selector selector, long timeout) throws IOException
+	{
+		try
+		{
+			selector.select(timeout);
+			selector.selectedKeys().clear();
+		}
+		catch (ClosedSelectorException e)
+		{
+			throw new ClosedChannelException();
+		}
+	}
+}
@@ -0,0 +1,23 @@
+package org.subethamail.smtp.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Encodes message data on its way to a spool file, and decodes it on the way
+ * back, typically to compress it. See {@link SpoolManager#setCodec(SpoolCodec)}.
+ */
+public interface SpoolCodec
+{
+	/**
+	 * Wraps the stream which writes the spool file. Closing the returned
+	 * stream must write any pending data; it does not close the file.
+	 */
+	public OutputStream encode(OutputStream out) throws IOException;
+
+	/**
+	 * Wraps a stream which reads the spool file from the beginning.
+	 */
+	public InputStream decode(InputStream in) throws IOException;
+}
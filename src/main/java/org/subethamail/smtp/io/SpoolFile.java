@@ -0,0 +1,69 @@
+package org.subethamail.smtp.io;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+/**
+ * A file of a {@link SpoolManager}, which holds the data of a single message
+ * while it is in use, and may be recycled for another message afterwards.
+ */
+public class SpoolFile
+{
+	private final SpoolManager manager;
+
+	private final Path path;
+
+	/** Open for reading and writing for the whole life of the file */
+	private final FileChannel channel;
+
+	/** Counts the releases, so readers notice that their data is gone */
+	private volatile int generation;
+
+	/** */
+	SpoolFile(SpoolManager manager, Path path, FileChannel channel)
+	{
+		this.manager = manager;
+		this.path = path;
+		this.channel = channel;
+	}
+
+	/** */
+	public Path getPath()
+	{
+		return this.path;
+	}
+
+	/**
+	 * @return the channel of the file, which is open for reading and
+	 *         writing. It must not be closed by the caller.
+	 */
+	public FileChannel getChannel()
+	{
+		return this.channel;
+	}
+
+	/**
+	 * @return a number which changes whenever the file is released, before
+	 *         it is emptied for reuse
+	 */
+	public int getGeneration()
+	{
+		return this.generation;
+	}
+
+	/**
+	 * Gives the file back to its manager, which empties it for reuse or
+	 * deletes it. It must not be used by the caller afterwards.
+	 */
+	public void release() throws IOException
+	{
+		this.manager.recycle(this);
+	}
+
+	/** Called by the manager when the file is released */
+	void invalidate()
+	{
+		this.generation++;
+	}
+}
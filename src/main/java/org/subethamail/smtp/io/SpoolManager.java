@@ -0,0 +1,335 @@
+package org.subethamail.smtp.io;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Manages the files which message data spills into when it is too large for
+ * memory, see {@link DeferredFileOutputStream}.
+ * <p>
+ * A manager created with a directory owns that directory: it spreads the
+ * files over a number of shard subdirectories, so that no single directory
+ * grows large, and deletes files left over by a previous process, for
+ * example after a crash, when it is created. Released files are emptied and
+ * kept open for reuse up to a limit, which saves creating, opening and
+ * deleting a file for each message; {@link #createIdleFiles(int)} creates
+ * such idle files in advance. Streams still reading a released file fail
+ * rather than see the data of the next message.
+ * <p>
+ * A {@link SpoolCodec} can compress the files, see {@link #setCodec(SpoolCodec)}.
+ * <p>
+ * The {@link #getDefault() default} manager puts the files directly into the
+ * system temp directory, which it does not own, so it neither sweeps nor
+ * recycles files.
+ */
+public class SpoolManager
+{
+	private final static Logger log = LoggerFactory.getLogger(SpoolManager.class);
+
+	/** The default number of shard subdirectories */
+	public static final int DEFAULT_SHARDS = 16;
+
+	/** The default number of released files kept for reuse */
+	public static final int DEFAULT_MAX_IDLE_FILES = 32;
+
+	private static final SpoolManager DEFAULT = new SpoolManager();
+
+	/** Makes file names unique within the process, for all managers */
+	private static final AtomicLong counter = new AtomicLong();
+
+	/** Makes file names unique among processes sharing a directory */
+	private static final String NAME_PREFIX =
+		DeferredFileOutputStream.TMPFILE_PREFIX + ProcessHandle.current().pid() + "-";
+
+	private final Path directory;
+
+	/** The subdirectories, or just the directory itself */
+	private final Path[] shards;
+
+	/** Released files kept for reuse, null if files are not recycled */
+	private final ArrayBlockingQueue<SpoolFile> idle;
+
+	/** The files in use */
+	private final Set<SpoolFile> active = ConcurrentHashMap.newKeySet();
+
+	/** Encodes the data of new spool files, null to store it as is */
+	private volatile SpoolCodec codec;
+
+	/** Uses the system temp directory, see the class comment */
+	private SpoolManager()
+	{
+		this.directory = Paths.get(System.getProperty("java.io.tmpdir"));
+		this.shards = new Path[] { this.directory };
+		this.idle = null;
+	}
+
+	/**
+	 * Creates a manager which owns the given directory, with the default
+	 * number of shards and idle files. Spool files left in the directory are
+	 * deleted.
+	 */
+	public SpoolManager(Path directory) throws IOException
+	{
+		this(directory, DEFAULT_SHARDS, DEFAULT_MAX_IDLE_FILES);
+	}
+
+	/**
+	 * Creates a manager which owns the given directory. Spool files left in
+	 * the directory are deleted, so it must not be shared with another
+	 * manager.
+	 *
+	 * @param directory
+	 *            created if it does not exist
+	 * @param shards
+	 *            the number of subdirectories, or 0 to put the files into the
+	 *            directory itself
+	 * @param maxIdleFiles
+	 *            the maximum number of released files kept for reuse
+	 */
+	public SpoolManager(Path directory, int shards, int maxIdleFiles) throws IOException
+	{
+		this.directory = directory;
+		Files.createDirectories(directory);
+
+		if (shards <= 0)
+		{
+			this.shards = new Path[] { directory };
+		}
+		else
+		{
+			this.shards = new Path[shards];
+			for (int i = 0; i < shards; i++)
+			{
+				this.shards[i] = directory.resolve(String.format("%02x", i));
+				Files.createDirectories(this.shards[i]);
+			}
+		}
+
+		this.idle = maxIdleFiles > 0 ? new ArrayBlockingQueue<SpoolFile>(maxIdleFiles) : null;
+
+		int orphans = this.sweep(directory);
+		if (shards > 0)
+		{
+			for (Path shard: this.shards)
+				orphans += this.sweep(shard);
+		}
+		if (orphans > 0)
+			log.info("Deleted " + orphans + " orphaned spool files in " + directory);
+	}
+
+	/**
+	 * @return the manager which spools into the system temp directory
+	 */
+	public static SpoolManager getDefault()
+	{
+		return DEFAULT;
+	}
+
+	/**
+	 * Returns an empty file, a recycled one if available.
+	 */
+	public SpoolFile create() throws IOException
+	{
+		SpoolFile file = this.idle != null ? this.idle.poll() : null;
+		if (file == null)
+			file = this.newFile();
+
+		this.active.add(file);
+		return file;
+	}
+
+	/**
+	 * Creates empty idle files in advance, up to the limit of idle files, so
+	 * that a burst of large messages does not have to create and open them.
+	 * No disk space is reserved for the data.
+	 *
+	 * @return the number of files created
+	 */
+	public int createIdleFiles(int count) throws IOException
+	{
+		if (this.idle == null)
+			return 0;
+
+		int created = 0;
+		while (created < count && this.idle.remainingCapacity() > 0)
+		{
+			SpoolFile file = this.newFile();
+			if (!this.idle.offer(file))
+			{
+				this.delete(file);
+				break;
+			}
+			created++;
+		}
+		return created;
+	}
+
+	/**
+	 * Empties a released file for reuse, or deletes it if there are enough
+	 * idle files.
+	 */
+	void recycle(SpoolFile file) throws IOException
+	{
+		if (!this.active.remove(file))
+			return;
+
+		file.invalidate();
+
+		if (this.idle != null)
+		{
+			FileChannel channel = file.getChannel();
+			channel.truncate(0);
+			channel.position(0);
+			if (this.idle.offer(file))
+				return;
+		}
+
+		this.delete(file);
+	}
+
+	/**
+	 * Deletes the idle files. Files still in use are deleted when released.
+	 */
+	public void close() throws IOException
+	{
+		if (this.idle != null)
+		{
+			SpoolFile file;
+			while ((file = this.idle.poll()) != null)
+				this.delete(file);
+		}
+	}
+
+	/** */
+	public SpoolCodec getCodec()
+	{
+		return this.codec;
+	}
+
+	/**
+	 * @param codec
+	 *            encodes, typically compresses, the data of files created
+	 *            from now on, or null to store the data as is. Data in a
+	 *            file with a codec can only be read sequentially with
+	 *            reasonable cost, positional reads decode from the
+	 *            beginning when they go backwards.
+	 */
+	public void setCodec(SpoolCodec codec)
+	{
+		this.codec = codec;
+	}
+
+	/** */
+	public Path getDirectory()
+	{
+		return this.directory;
+	}
+
+	/**
+	 * @return the number of files in use
+	 */
+	public int getFileCount()
+	{
+		return this.active.size();
+	}
+
+	/**
+	 * @return the number of released files kept for reuse
+	 */
+	public int getIdleFileCount()
+	{
+		return this.idle != null ? this.idle.size() : 0;
+	}
+
+	/**
+	 * @return the total size of the files in use
+	 */
+	public long getBytes()
+	{
+		long bytes = 0;
+		for (SpoolFile file: this.active)
+		{
+			try
+			{
+				bytes += file.getChannel().size();
+			}
+			catch (IOException ex)
+			{
+				// released concurrently
+			}
+		}
+		return bytes;
+	}
+
+	/** */
+	private SpoolFile newFile() throws IOException
+	{
+		while (true)
+		{
+			long n = counter.incrementAndGet();
+			Path path = this.shards[(int) (n % this.shards.length)].resolve(
+					NAME_PREFIX + n + DeferredFileOutputStream.TMPFILE_SUFFIX);
+			try
+			{
+				FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+						StandardOpenOption.READ, StandardOpenOption.WRITE);
+				return new SpoolFile(this, path, channel);
+			}
+			catch (FileAlreadyExistsException ex)
+			{
+				// left by a previous process with the same pid, try the next name
+			}
+		}
+	}
+
+	/** */
+	private void delete(SpoolFile file) throws IOException
+	{
+		try
+		{
+			file.getChannel().close();
+		}
+		finally
+		{
+			Files.deleteIfExists(file.getPath());
+		}
+	}
+
+	/**
+	 * Deletes the spool files in a directory.
+	 *
+	 * @return the number of files deleted
+	 */
+	private int sweep(Path dir) throws IOException
+	{
+		int count = 0;
+		String glob = DeferredFileOutputStream.TMPFILE_PREFIX + "*" + DeferredFileOutputStream.TMPFILE_SUFFIX;
+		DirectoryStream<Path> files = Files.newDirectoryStream(dir, glob);
+		try
+		{
+			for (Path file: files)
+			{
+				if (Files.isRegularFile(file) && Files.deleteIfExists(file))
+					count++;
+			}
+		}
+		finally
+		{
+			files.close();
+		}
+		return count;
+	}
+}
@@ -0,0 +1,146 @@
+package org.subethamail.smtp.mime;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A {@link MimeHandler} which writes the decoded body of each attachment of
+ * a message into a file of its own. The files are named by the position of
+ * the attachment and its file name, reduced to characters which are safe on
+ * any file system, so a file name in a message can never point outside of
+ * the directory. Other parts are skipped.
+ */
+public class AttachmentExtractor implements MimeHandler
+{
+	/** File names are cut to this length */
+	private static final int MAX_NAME_LENGTH = 100;
+
+	private final Path directory;
+
+	private final List<Attachment> attachments = new ArrayList<Attachment>();
+
+	/** The attachment being written */
+	private Attachment current;
+
+	/**
+	 * @param directory
+	 *            receives the files, it must exist
+	 */
+	public AttachmentExtractor(Path directory)
+	{
+		this.directory = directory;
+	}
+
+	/**
+	 * @return the attachments extracted so far, in the order of the message
+	 */
+	public List<Attachment> getAttachments()
+	{
+		return Collections.unmodifiableList(this.attachments);
+	}
+
+	/* */
+	public void startPart(MimePart part)
+	{
+	}
+
+	/* */
+	public OutputStream body(MimePart part) throws IOException
+	{
+		if (!part.isAttachment())
+			return null;
+
+		String name = (this.attachments.size() + 1) + "-" + safeName(part.getFilename());
+		Path file = this.directory.resolve(name);
+		this.current = new Attachment(part, file);
+		this.attachments.add(this.current);
+		return new BufferedOutputStream(Files.newOutputStream(file,
+				StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), 32 * 1024);
+	}
+
+	/* */
+	public void endPart(MimePart part) throws IOException
+	{
+		if (this.current != null && this.current.part == part)
+		{
+			this.current.size = Files.size(this.current.file);
+			this.current = null;
+		}
+	}
+
+	/**
+	 * Drops any directories, and replaces everything but letters, digits,
+	 * dots, hyphens and underscores, and leading dots.
+	 */
+	static String safeName(String filename)
+	{
+		if (filename != null)
+			filename = filename.substring(Math.max(filename.lastIndexOf('/'), filename.lastIndexOf('\\')) + 1);
+		if (filename == null || filename.isEmpty())
+			return "attachment";
+
+		StringBuilder name = new StringBuilder(Math.min(filename.length(), MAX_NAME_LENGTH));
+		for (int i = 0; i < filename.length() && name.length() < MAX_NAME_LENGTH; i++)
+		{
+			char c = filename.charAt(i);
+			boolean safe = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+					|| c == '-' || c == '_' || (c == '.' && name.length() > 0);
+			name.append(safe ? c : '_');
+		}
+		return name.toString();
+	}
+
+	/**
+	 * An attachment written to a file.
+	 */
+	public static class Attachment
+	{
+		private final MimePart part;
+
+		private final Path file;
+
+		private long size = -1;
+
+		/** */
+		Attachment(MimePart part, Path file)
+		{
+			this.part = part;
+			this.file = file;
+		}
+
+		/** */
+		public MimePart getPart()
+		{
+			return this.part;
+		}
+
+		/** */
+		public Path getFile()
+		{
+			return this.file;
+		}
+
+		/**
+		 * @return the size of the decoded content, or -1 if it is still
+		 *         being written
+		 */
+		public long getSize()
+		{
+			return this.size;
+		}
+
+		/** */
+		@Override
+		public String toString()
+		{
+			return this.part + " -> " + this.file;
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package org.subethamail.smtp.mime;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Receives the events of a {@link MimeParser}, in the order of the message:
+ * each part is started, a leaf part is asked for a sink for its body, and
+ * the part is ended. The parts of a multipart are started and ended between
+ * the start and the end of the multipart.
+ */
+public interface MimeHandler
+{
+	/**
+	 * Called when the header section of a part has been parsed.
+	 */
+	public void startPart(MimePart part) throws IOException;
+
+	/**
+	 * Called after {@link #startPart(MimePart)} for a part which is not a
+	 * multipart.
+	 *
+	 * @return the stream which receives the body of the part, decoded from
+	 *         base64 or quoted-printable if it is so encoded, or null to skip
+	 *         the body. The parser closes the stream at the end of the part.
+	 *         A channel can be adapted by
+	 *         {@link java.nio.channels.Channels#newOutputStream(java.nio.channels.WritableByteChannel)}.
+	 */
+	public OutputStream body(MimePart part) throws IOException;
+
+	/**
+	 * Called at the end of a part, after its body or all of its parts.
+	 */
+	public void endPart(MimePart part) throws IOException;
+}
@@ -0,0 +1,419 @@
+package org.subethamail.smtp.mime;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.subethamail.smtp.MessageHeaders;
+import org.subethamail.smtp.io.HeaderParser;
+import org.subethamail.smtp.util.Base64;
+import org.subethamail.smtp.util.TextUtils;
+
+/**
+ * A streaming MIME parser. It is fed the data of a message a chunk at a
+ * time, and reports the parts of the message to a {@link MimeHandler} as it
+ * finds them: their header fields, and their bodies decoded from base64 or
+ * quoted-printable into the stream the handler supplies. Nothing of a body
+ * is kept, so the memory used is bounded by the size of a line and of a
+ * header section, however large the message and its attachments are.
+ * <p>
+ * The parser is lenient, as mail parsers have to be: a multipart which is
+ * not closed ends with the data or with the boundary of an enclosing
+ * multipart, a header section which is too large is cut, and malformed
+ * encodings are passed on as they are. An encapsulated message/rfc822 part
+ * is reported as a single leaf part.
+ * <p>
+ * A message handler can parse the data while it reads it:
+ * <pre>
+ * public void data(InputStream data) throws IOException
+ * {
+ *     MimeParser.parse(data, new AttachmentExtractor(directory));
+ * }
+ * </pre>
+ * or a {@link org.subethamail.smtp.ChunkedMessageHandler} can pass each chunk
+ * to {@link #update(ByteBuffer)} and call {@link #finish()} at the end.
+ */
+public class MimeParser
+{
+	/** Lines are buffered up to this length, longer ones are passed on in pieces */
+	private static final int MAX_LINE_LENGTH = 1024;
+
+	/** Multiparts nested deeper are taken as leaf parts */
+	private static final int MAX_DEPTH = 32;
+
+	private static final byte[] CRLF = { '\r', '\n' };
+
+	/** Reading the header section of a part */
+	private static final int HEADERS = 0;
+
+	/** Skipping the rest of a header section which is too large */
+	private static final int SKIP_HEADERS = 1;
+
+	/** Reading the body of a leaf part */
+	private static final int BODY = 2;
+
+	/** In the preamble or epilogue of a multipart */
+	private static final int IGNORE = 3;
+
+	private final MimeHandler handler;
+
+	private final int maxHeaderSize;
+
+	/** The current line, up to its line break */
+	private final byte[] line = new byte[MAX_LINE_LENGTH];
+
+	private int lineLength;
+
+	/** True if the current line continues one which was too long */
+	private boolean continuation;
+
+	/** The multiparts around the current position, the innermost last */
+	private final List<MimePart> multiparts = new ArrayList<MimePart>();
+
+	/** The delimiter lines of the multiparts, "--" and the boundary */
+	private final List<byte[]> delimiters = new ArrayList<byte[]>();
+
+	private int state = HEADERS;
+
+	/** Parses the header section in the HEADERS state */
+	private HeaderParser headerParser;
+
+	/** The header section which was cut, in the SKIP_HEADERS state */
+	private MessageHeaders cutHeaders;
+
+	/** The leaf part whose body is read, in the BODY state */
+	private MimePart current;
+
+	/** Receives the body of the current part, or null */
+	private OutputStream sink;
+
+	/** The length of the line break held back from the sink, 0, 1 or 2 */
+	private int pendingLineBreak;
+
+	private boolean finished;
+
+	/** */
+	public MimeParser(MimeHandler handler)
+	{
+		this(handler, HeaderParser.DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * @param maxHeaderSize
+	 *            the size of the header section of a part beyond which the
+	 *            fields are dropped
+	 */
+	public MimeParser(MimeHandler handler, int maxHeaderSize)
+	{
+		this.handler = handler;
+		this.maxHeaderSize = maxHeaderSize;
+		this.headerParser = new HeaderParser(maxHeaderSize);
+	}
+
+	/**
+	 * Parses the message read from the stream up to its end.
+	 */
+	public static void parse(InputStream in, MimeHandler handler) throws IOException
+	{
+		MimeParser parser = new MimeParser(handler);
+		byte[] buf = new byte[8192];
+		int count;
+		while ((count = in.read(buf)) != -1)
+			parser.update(buf, 0, count);
+		parser.finish();
+	}
+
+	/**
+	 * Parses the remaining bytes of the chunk, without changing its position.
+	 */
+	public void update(ByteBuffer chunk) throws IOException
+	{
+		if (chunk.hasArray())
+		{
+			this.update(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+		}
+		else
+		{
+			ByteBuffer view = chunk.duplicate();
+			byte[] buf = new byte[Math.min(view.remaining(), 8192)];
+			while (view.hasRemaining())
+			{
+				int count = Math.min(view.remaining(), buf.length);
+				view.get(buf, 0, count);
+				this.update(buf, 0, count);
+			}
+		}
+	}
+
+	/**
+	 * Parses the bytes.
+	 */
+	public void update(byte[] b, int off, int len) throws IOException
+	{
+		if (this.finished)
+			throw new IllegalStateException("MimeParser already finished");
+
+		int end = off + len;
+		while (off < end)
+		{
+			int count = Math.min(this.line.length - this.lineLength, end - off);
+			int lineBreak = -1;
+			for (int i = off; i < off + count; i++)
+			{
+				if (b[i] == '\n')
+				{
+					lineBreak = i;
+					break;
+				}
+			}
+			if (lineBreak >= 0)
+				count = lineBreak - off + 1;
+
+			System.arraycopy(b, off, this.line, this.lineLength, count);
+			this.lineLength += count;
+			off += count;
+
+			if (lineBreak >= 0)
+			{
+				this.endLine(true);
+			}
+			else if (this.lineLength == this.line.length)
+			{
+				// a CR at the end may be the start of the line break
+				boolean cr = this.line[this.lineLength - 1] == '\r';
+				if (cr)
+					this.lineLength--;
+				this.endLine(false);
+				if (cr)
+					this.line[this.lineLength++] = '\r';
+			}
+		}
+	}
+
+	/**
+	 * Called at the end of the data, ends all parts which are still open.
+	 */
+	public void finish() throws IOException
+	{
+		if (this.finished)
+			return;
+
+		if (this.lineLength > 0)
+			this.endLine(false);
+		this.finished = true;
+
+		// unless a boundary follows, the last line break belongs to the body
+		if (this.state == BODY && this.multiparts.isEmpty())
+			this.writeLineBreak();
+
+		this.endLeaf();
+		while (!this.multiparts.isEmpty())
+			this.endMultipart();
+	}
+
+	/**
+	 * Processes the line in the buffer, and empties the buffer.
+	 *
+	 * @param complete
+	 *            true if the line ends with a line break, false if it is
+	 *            passed on in pieces or ends the data
+	 */
+	private void endLine(boolean complete) throws IOException
+	{
+		int lineBreak = 0;
+		if (complete)
+			lineBreak = this.lineLength >= 2 && this.line[this.lineLength - 2] == '\r' ? 2 : 1;
+		int length = this.lineLength - lineBreak;
+		boolean continued = this.continuation;
+		this.continuation = !complete;
+
+		if (continued || !this.isDelimiter(length))
+		{
+			switch (this.state)
+			{
+				case HEADERS:
+					if (this.headerParser.update(ByteBuffer.wrap(this.line, 0, this.lineLength)))
+					{
+						MessageHeaders headers = this.headerParser.getHeaders();
+						this.headerParser = null;
+						if (headers.isComplete() || (length == 0 && lineBreak > 0))
+						{
+							this.startPart(headers);
+						}
+						else
+						{
+							this.cutHeaders = headers;
+							this.state = SKIP_HEADERS;
+						}
+					}
+					break;
+
+				case SKIP_HEADERS:
+					if (length == 0 && lineBreak > 0 && !continued)
+					{
+						this.startPart(this.cutHeaders);
+						this.cutHeaders = null;
+					}
+					break;
+
+				case BODY:
+					if (this.sink != null)
+					{
+						this.writeLineBreak();
+						this.sink.write(this.line, 0, length);
+					}
+					this.pendingLineBreak = lineBreak;
+					break;
+			}
+		}
+
+		this.lineLength = 0;
+	}
+
+	/**
+	 * Checks if the line is the delimiter of one of the open multiparts, and
+	 * if it is, ends and starts the parts accordingly.
+	 */
+	private boolean isDelimiter(int length) throws IOException
+	{
+		if (length < 2 || this.line[0] != '-' || this.line[1] != '-')
+			return false;
+
+		for (int index = this.delimiters.size() - 1; index >= 0; index--)
+		{
+			byte[] delimiter = this.delimiters.get(index);
+			if (length < delimiter.length)
+				continue;
+
+			int position = 2;
+			while (position < delimiter.length && this.line[position] == delimiter[position])
+				position++;
+			if (position < delimiter.length)
+				continue;
+
+			boolean close = false;
+			if (length >= position + 2 && this.line[position] == '-' && this.line[position + 1] == '-')
+			{
+				close = true;
+				position += 2;
+			}
+			// transport padding
+			while (position < length && (this.line[position] == ' ' || this.line[position] == '\t'))
+				position++;
+			if (position < length)
+				continue;
+
+			this.endLeaf();
+			// multiparts nested in this one which were not closed
+			while (this.multiparts.size() > index + 1)
+				this.endMultipart();
+
+			if (close)
+			{
+				this.endMultipart();
+			}
+			else
+			{
+				this.headerParser = new HeaderParser(this.maxHeaderSize);
+				this.state = HEADERS;
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Reports the start of a part, and prepares for its body or its parts.
+	 */
+	private void startPart(MessageHeaders headers) throws IOException
+	{
+		MimePart parent = this.multiparts.isEmpty() ? null : this.multiparts.get(this.multiparts.size() - 1);
+		String path = "";
+		if (parent != null)
+			path = (parent.getPath().isEmpty() ? "" : parent.getPath() + ".") + ++parent.childCount;
+
+		MimePart part = new MimePart(parent, path, headers);
+		this.handler.startPart(part);
+
+		if (part.isMultipart() && this.multiparts.size() < MAX_DEPTH)
+		{
+			this.multiparts.add(part);
+			this.delimiters.add(TextUtils.getAsciiBytes("--" + part.getBoundary()));
+			this.state = IGNORE;
+		}
+		else
+		{
+			this.current = part;
+			OutputStream out = this.handler.body(part);
+			if (out != null)
+			{
+				if ("base64".equals(part.getTransferEncoding()))
+					out = new Base64.DecodingOutputStream(out);
+				else if ("quoted-printable".equals(part.getTransferEncoding()))
+					out = new QuotedPrintableDecodingOutputStream(out);
+			}
+			this.sink = out;
+			this.pendingLineBreak = 0;
+			this.state = BODY;
+		}
+	}
+
+	/**
+	 * Ends the current leaf part, if any. A part whose header section is not
+	 * finished is reported with the fields received so far.
+	 */
+	private void endLeaf() throws IOException
+	{
+		if (this.state == HEADERS)
+		{
+			MessageHeaders headers = this.headerParser.finish();
+			this.headerParser = null;
+			this.startPart(headers);
+		}
+		else if (this.state == SKIP_HEADERS)
+		{
+			this.startPart(this.cutHeaders);
+			this.cutHeaders = null;
+		}
+
+		if (this.state == BODY)
+		{
+			MimePart part = this.current;
+			this.current = null;
+			if (this.sink != null)
+			{
+				OutputStream sink = this.sink;
+				this.sink = null;
+				sink.close();
+			}
+			this.handler.endPart(part);
+		}
+		this.state = IGNORE;
+	}
+
+	/**
+	 * Ends the innermost multipart.
+	 */
+	private void endMultipart() throws IOException
+	{
+		int last = this.multiparts.size() - 1;
+		MimePart multipart = this.multiparts.remove(last);
+		this.delimiters.remove(last);
+		this.handler.endPart(multipart);
+		this.state = IGNORE;
+	}
+
+	/**
+	 * Writes the line break held back from the sink, now that it is known
+	 * not to be part of a delimiter.
+	 */
+	private void writeLineBreak() throws IOException
+	{
+		if (this.sink != null && this.pendingLineBreak > 0)
+			this.sink.write(CRLF, 2 - this.pendingLineBreak, this.pendingLineBreak);
+		this.pendingLineBreak = 0;
+	}
+}
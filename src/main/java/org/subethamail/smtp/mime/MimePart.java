@@ -0,0 +1,204 @@
+package org.subethamail.smtp.mime;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Locale;
+
+import javax.mail.internet.ContentDisposition;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimeUtility;
+import javax.mail.internet.ParseException;
+
+import org.subethamail.smtp.MessageHeaders;
+
+/**
+ * A part of a MIME message, as reported by {@link MimeParser}: the message
+ * itself, a multipart container or a leaf part with a body. It holds the
+ * header fields of the part and the MIME attributes taken from them, but
+ * never the body.
+ */
+public class MimePart
+{
+	private final MimePart parent;
+
+	private final String path;
+
+	private final MessageHeaders headers;
+
+	private String mimeType = "text/plain";
+
+	private String boundary;
+
+	private String charset;
+
+	private final String transferEncoding;
+
+	private String disposition;
+
+	private String filename;
+
+	/** The number of child parts started so far, if this is a multipart */
+	int childCount;
+
+	/** */
+	MimePart(MimePart parent, String path, MessageHeaders headers)
+	{
+		this.parent = parent;
+		this.path = path;
+		this.headers = headers;
+
+		String name = null;
+		String contentType = headers.get("Content-Type");
+		if (contentType != null)
+		{
+			try
+			{
+				ContentType type = new ContentType(contentType);
+				this.mimeType = type.getBaseType().toLowerCase(Locale.ENGLISH);
+				this.boundary = type.getParameter("boundary");
+				this.charset = type.getParameter("charset");
+				name = type.getParameter("name");
+			}
+			catch (ParseException ex)
+			{
+				// taken as text/plain, as RFC 2045 requires
+			}
+		}
+
+		String encoding = headers.get("Content-Transfer-Encoding");
+		this.transferEncoding = encoding == null ? "7bit" : encoding.trim().toLowerCase(Locale.ENGLISH);
+
+		String contentDisposition = headers.get("Content-Disposition");
+		if (contentDisposition != null)
+		{
+			try
+			{
+				ContentDisposition disposition = new ContentDisposition(contentDisposition);
+				this.disposition = disposition.getDisposition().toLowerCase(Locale.ENGLISH);
+				if (disposition.getParameter("filename") != null)
+					name = disposition.getParameter("filename");
+			}
+			catch (ParseException ex)
+			{
+				// no disposition
+			}
+		}
+
+		if (name != null)
+		{
+			try
+			{
+				this.filename = MimeUtility.decodeText(name);
+			}
+			catch (UnsupportedEncodingException ex)
+			{
+				this.filename = name;
+			}
+		}
+	}
+
+	/**
+	 * @return the multipart which contains this part, or null if this is the
+	 *         message itself
+	 */
+	public MimePart getParent()
+	{
+		return this.parent;
+	}
+
+	/**
+	 * @return the position of the part in the message, like "2.1" for the
+	 *         first part of the second part of the message. It is empty for
+	 *         the message itself.
+	 */
+	public String getPath()
+	{
+		return this.path;
+	}
+
+	/** */
+	public MessageHeaders getHeaders()
+	{
+		return this.headers;
+	}
+
+	/**
+	 * @return the media type and subtype in lower case, for example
+	 *         "text/plain", which is also the default
+	 */
+	public String getMimeType()
+	{
+		return this.mimeType;
+	}
+
+	/**
+	 * @return true if the part is a multipart container with a boundary,
+	 *         whose parts are reported separately
+	 */
+	public boolean isMultipart()
+	{
+		return this.mimeType.startsWith("multipart/") && this.boundary != null;
+	}
+
+	/**
+	 * @return the boundary of a multipart, or null
+	 */
+	public String getBoundary()
+	{
+		return this.boundary;
+	}
+
+	/**
+	 * @return the charset parameter of the content type, or null
+	 */
+	public String getCharset()
+	{
+		return this.charset;
+	}
+
+	/**
+	 * @return the content transfer encoding in lower case, "7bit" by default
+	 */
+	public String getTransferEncoding()
+	{
+		return this.transferEncoding;
+	}
+
+	/**
+	 * @return the disposition in lower case, for example "attachment", or
+	 *         null
+	 */
+	public String getDisposition()
+	{
+		return this.disposition;
+	}
+
+	/**
+	 * @return the file name of the disposition, or the name of the content
+	 *         type, with RFC 2047 encoded words decoded, or null
+	 */
+	public String getFilename()
+	{
+		return this.filename;
+	}
+
+	/**
+	 * @return true if the part is a leaf which is meant to be saved rather
+	 *         than displayed: its disposition is attachment, or it has a file
+	 *         name and is not inline
+	 */
+	public boolean isAttachment()
+	{
+		if (this.isMultipart())
+			return false;
+		if ("attachment".equals(this.disposition))
+			return true;
+		return this.filename != null && !"inline".equals(this.disposition);
+	}
+
+	/** */
+	@Override
+	public String toString()
+	{
+		return (this.path.isEmpty() ? "message" : this.path) + " " + this.mimeType;
+	}
+}
@@ -0,0 +1,160 @@
+package org.subethamail.smtp.mime;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Decodes quoted-printable content (RFC 2045) written to it, and writes the
+ * decoded bytes to the underlying stream. Soft line breaks are removed, and
+ * malformed escapes are passed on as they are.
+ */
+public class QuotedPrintableDecodingOutputStream extends FilterOutputStream
+{
+	private static final int NORMAL = 0;
+
+	/** After '=' */
+	private static final int ESCAPE = 1;
+
+	/** After '=' and a hex digit */
+	private static final int ESCAPE_DIGIT = 2;
+
+	/** After '=' and CR */
+	private static final int SOFT_BREAK = 3;
+
+	private int state = NORMAL;
+
+	/** The first hex digit of an escape */
+	private byte digit;
+
+	private final byte[] buf = new byte[8192];
+
+	private int count;
+
+	/** */
+	public QuotedPrintableDecodingOutputStream(OutputStream out)
+	{
+		super(out);
+	}
+
+	/* */
+	@Override
+	public void write(int b) throws IOException
+	{
+		byte c = (byte) b;
+		switch (this.state)
+		{
+			case NORMAL:
+				if (c == '=')
+					this.state = ESCAPE;
+				else
+					this.put(c);
+				break;
+
+			case ESCAPE:
+				if (c == '\r')
+				{
+					this.state = SOFT_BREAK;
+				}
+				else if (c == '\n')
+				{
+					this.state = NORMAL;
+				}
+				else if (Character.digit(c, 16) >= 0)
+				{
+					this.digit = c;
+					this.state = ESCAPE_DIGIT;
+				}
+				else
+				{
+					this.put((byte) '=');
+					this.state = NORMAL;
+					this.write(c);
+				}
+				break;
+
+			case ESCAPE_DIGIT:
+				if (Character.digit(c, 16) >= 0)
+				{
+					this.put((byte) (Character.digit(this.digit, 16) << 4 | Character.digit(c, 16)));
+					this.state = NORMAL;
+				}
+				else
+				{
+					this.put((byte) '=');
+					this.put(this.digit);
+					this.state = NORMAL;
+					this.write(c);
+				}
+				break;
+
+			case SOFT_BREAK:
+				this.state = NORMAL;
+				if (c != '\n')
+					this.write(c);
+				break;
+		}
+	}
+
+	/* */
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		int end = off + len;
+		for (int i = off; i < end; i++)
+		{
+			byte c = b[i];
+			if (this.state == NORMAL && c != '=')
+			{
+				if (this.count == this.buf.length)
+					this.flushBuffer();
+				this.buf[this.count++] = c;
+			}
+			else
+			{
+				this.write(c);
+			}
+		}
+	}
+
+	/* */
+	@Override
+	public void flush() throws IOException
+	{
+		this.flushBuffer();
+		this.out.flush();
+	}
+
+	/**
+	 * Passes on an incomplete escape at the end as it is, and closes the
+	 * underlying stream.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if (this.state == ESCAPE || this.state == ESCAPE_DIGIT)
+			this.put((byte) '=');
+		if (this.state == ESCAPE_DIGIT)
+			this.put(this.digit);
+		this.state = NORMAL;
+		super.close();
+	}
+
+	/** */
+	private void put(byte b) throws IOException
+	{
+		if (this.count == this.buf.length)
+			this.flushBuffer();
+		this.buf[this.count++] = b;
+	}
+
+	/** */
+	private void flushBuffer() throws IOException
+	{
+		if (this.count > 0)
+		{
+			this.out.write(this.buf, 0, this.count);
+			this.count = 0;
+		}
+	}
+}
@@ -0,0 +1,718 @@
+package org.subethamail.smtp.queue;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32C;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.MessageData;
+
+/**
+ * An append-only log of queued messages, split into segment files. A message
+ * record holds the envelope and the data of a message; a delivered record
+ * marks an earlier message as delivered. Segments are only appended to, and
+ * are deleted as a whole once every message in them, and in all older
+ * segments, is delivered.
+ * <p>
+ * Appending reserves the space of the record in the current segment, and
+ * then writes it without holding any lock, so sessions copy their data
+ * concurrently. It waits until the record, and every record reserved before
+ * it, is on stable storage. Sessions appending at the same time share a
+ * single fsync: while one is in progress, further records are written but
+ * wait, and the next fsync covers all of them (group commit). Delivered
+ * records are not synced themselves; if they are lost in a crash the
+ * messages are delivered again.
+ * <p>
+ * A reserved record whose write fails is truncated if it is the last one,
+ * and otherwise overwritten with a header which marks it as a gap.
+ * <p>
+ * Each record starts with a fixed size header: a magic number, the record
+ * type, the length of the envelope and of the data, and a CRC32C of both. A
+ * record which is incomplete or does not match its checksum can only be the
+ * result of a crash while it was being written, so recovery drops it and
+ * everything after it in the segment.
+ */
+class MessageLog implements Closeable
+{
+	private final static Logger log = LoggerFactory.getLogger(MessageLog.class);
+
+	/** "SMQ1" */
+	private static final int MAGIC = 0x534d5131;
+
+	private static final byte MESSAGE = 1;
+
+	private static final byte DELIVERED = 2;
+
+	/** The space of a record which failed, the header is followed by junk */
+	private static final byte SKIPPED = 3;
+
+	/** Magic, type, envelope length, data length, checksum */
+	private static final int HEADER_SIZE = 4 + 1 + 4 + 8 + 4;
+
+	private static final String SUFFIX = ".log";
+
+	private final Path directory;
+
+	/** A new segment is started when the current one reaches this size */
+	private final long segmentSize;
+
+	private final Object appendLock = new Object();
+
+	/** All segments, oldest first */
+	@GuardedBy("appendLock")
+	private final Deque<Segment> segments = new ArrayDeque<Segment>();
+
+	/** The segment which records are appended to */
+	@GuardedBy("appendLock")
+	private Segment current;
+
+	/** The number of message records reserved so far */
+	@GuardedBy("appendLock")
+	private long reserved;
+
+	/** All records up to this one are written, or have failed */
+	@GuardedBy("appendLock")
+	private long resolved;
+
+	/** Records above {@link #resolved} which are written, or have failed */
+	@GuardedBy("appendLock")
+	private final Set<Long> resolvedAhead = new HashSet<Long>();
+
+	private final Object syncLock = new Object();
+
+	/** The number of message records known to be on stable storage */
+	@GuardedBy("syncLock")
+	private long synced;
+
+	/** True while a session is syncing on behalf of all waiting ones */
+	@GuardedBy("syncLock")
+	private boolean syncing;
+
+	/** */
+	MessageLog(Path directory, long segmentSize)
+	{
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * Reads the existing segments, and starts a new segment for appending.
+	 *
+	 * @return the messages which are not delivered yet, in the order they
+	 *         were queued
+	 */
+	List<QueuedMessage> open() throws IOException
+	{
+		Files.createDirectories(this.directory);
+
+		List<Path> files = new ArrayList<Path>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.directory, "*" + SUFFIX))
+		{
+			for (Path file: stream)
+				files.add(file);
+		}
+		// the names are fixed width hexadecimal numbers
+		Collections.sort(files);
+
+		synchronized (this.appendLock)
+		{
+			Map<String, QueuedMessage> pending = new LinkedHashMap<String, QueuedMessage>();
+			long sequence = 0;
+			for (Path file: files)
+			{
+				String name = file.getFileName().toString();
+				Segment segment = new Segment(Long.parseLong(name.substring(0, name.length() - SUFFIX.length()), 16),
+						file, FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE));
+				this.segments.add(segment);
+				this.recover(segment, pending);
+				sequence = segment.sequence + 1;
+			}
+
+			for (QueuedMessage message: pending.values())
+				message.segment.pending++;
+
+			this.current = this.createSegment(sequence);
+			this.deleteDelivered();
+
+			if (!pending.isEmpty())
+				log.info("Recovered " + pending.size() + " queued messages from " + this.directory);
+			return new ArrayList<QueuedMessage>(pending.values());
+		}
+	}
+
+	/**
+	 * Appends a message, and waits until it is on stable storage.
+	 */
+	QueuedMessage append(QueuedMessage.Envelope envelope, MessageData data) throws IOException
+	{
+		byte[] encodedEnvelope = envelope.encode();
+		long dataLength = data.getSize();
+		long length = HEADER_SIZE + encodedEnvelope.length + dataLength;
+
+		Segment segment;
+		long offset;
+		long record;
+		synchronized (this.appendLock)
+		{
+			if (this.current.size >= this.segmentSize)
+				this.roll();
+
+			segment = this.current;
+			offset = segment.size;
+			segment.size = offset + length;
+			// keeps the segment while it is written
+			segment.pending++;
+			record = ++this.reserved;
+		}
+
+		boolean written = false;
+		try
+		{
+			CRC32C crc = new CRC32C();
+			long position = offset + HEADER_SIZE;
+			position += writeFully(segment.channel, ByteBuffer.wrap(encodedEnvelope), position, crc);
+			long count = data.transferTo(new ChecksummingChannel(segment.channel, position, offset + length, crc));
+			if (count != dataLength)
+				throw new IOException("Expected " + dataLength + " bytes of data, got " + count);
+
+			// last, so a record interrupted by a crash has no valid header
+			writeFully(segment.channel, header(MESSAGE, encodedEnvelope.length, dataLength, crc), offset, null);
+			written = true;
+		}
+		finally
+		{
+			synchronized (this.appendLock)
+			{
+				if (written)
+					segment.dirty = true;
+				else
+					this.discardRecord(segment, offset, length);
+				this.resolve(record);
+			}
+		}
+
+		QueuedMessage message = new QueuedMessage(segment, offset, offset + HEADER_SIZE + encodedEnvelope.length,
+				dataLength, envelope);
+		try
+		{
+			this.awaitDurable(record);
+			synchronized (this.appendLock)
+			{
+				if (segment.broken)
+					throw new IOException("Queue segment " + segment.path + " is damaged");
+			}
+		}
+		catch (IOException ex)
+		{
+			// the sender will retry, do not deliver it in addition
+			try
+			{
+				this.delivered(message);
+			}
+			catch (IOException ex2)
+			{
+				log.debug("Failed to withdraw message " + message, ex2);
+			}
+			throw ex;
+		}
+		return message;
+	}
+
+	/**
+	 * Marks the message as delivered, and deletes the segments which are no
+	 * longer needed. The record is not synced.
+	 */
+	void delivered(QueuedMessage message) throws IOException
+	{
+		synchronized (this.appendLock)
+		{
+			try
+			{
+				ByteBuffer payload = ByteBuffer.allocate(16);
+				payload.putLong(message.segment.sequence).putLong(message.offset).flip();
+				CRC32C crc = new CRC32C();
+				crc.update(payload.duplicate());
+
+				Segment segment = this.current;
+				long offset = segment.size;
+				try
+				{
+					writeFully(segment.channel, header(DELIVERED, payload.remaining(), 0, crc), offset, null);
+					writeFully(segment.channel, payload, offset + HEADER_SIZE, null);
+					segment.size = offset + HEADER_SIZE + 16;
+				}
+				catch (IOException ex)
+				{
+					this.discardTail(segment, offset);
+					throw ex;
+				}
+			}
+			finally
+			{
+				// at worst the message is delivered again after a restart
+				message.segment.pending--;
+				this.deleteDelivered();
+			}
+		}
+	}
+
+	/**
+	 * Closes the segments. Messages which are not delivered remain in the
+	 * log for the next {@link #open()}.
+	 */
+	public void close() throws IOException
+	{
+		synchronized (this.appendLock)
+		{
+			for (Segment segment: this.segments)
+				segment.channel.close();
+			this.segments.clear();
+		}
+	}
+
+	/**
+	 * Waits until the given number of message records is resolved and on
+	 * stable storage, syncing on behalf of all waiting sessions if no other
+	 * session does.
+	 */
+	private void awaitDurable(long record) throws IOException
+	{
+		while (true)
+		{
+			synchronized (this.syncLock)
+			{
+				while (this.syncing && this.synced < record)
+				{
+					try
+					{
+						this.syncLock.wait();
+					}
+					catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Interrupted while waiting for the queue to sync");
+					}
+				}
+				if (this.synced >= record)
+					return;
+				this.syncing = true;
+			}
+
+			long target;
+			List<Segment> dirty = new ArrayList<Segment>();
+			synchronized (this.appendLock)
+			{
+				target = this.resolved;
+				for (Segment segment: this.segments)
+				{
+					if (segment.dirty)
+					{
+						segment.dirty = false;
+						dirty.add(segment);
+					}
+				}
+			}
+
+			boolean success = false;
+			try
+			{
+				for (Segment segment: dirty)
+				{
+					try
+					{
+						segment.channel.force(false);
+					}
+					catch (ClosedChannelException ex)
+					{
+						// deleted, all of its messages are delivered
+					}
+				}
+				success = true;
+			}
+			finally
+			{
+				if (!success)
+				{
+					synchronized (this.appendLock)
+					{
+						for (Segment segment: dirty)
+							segment.dirty = true;
+					}
+				}
+
+				synchronized (this.syncLock)
+				{
+					if (success)
+						this.synced = Math.max(this.synced, target);
+					this.syncing = false;
+					this.syncLock.notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Starts a new segment. Records still being written to the old one are
+	 * synced when they are resolved, like all others.
+	 */
+	@GuardedBy("appendLock")
+	private void roll() throws IOException
+	{
+		this.current = this.createSegment(this.current.sequence + 1);
+		this.deleteDelivered();
+	}
+
+	/**
+	 * Marks a reserved record as written or failed, and advances
+	 * {@link #resolved} over all records which are.
+	 */
+	@GuardedBy("appendLock")
+	private void resolve(long record)
+	{
+		this.resolvedAhead.add(record);
+		while (this.resolvedAhead.remove(this.resolved + 1))
+			this.resolved++;
+	}
+
+	/**
+	 * Gives up the space of a reserved record whose write failed.
+	 */
+	@GuardedBy("appendLock")
+	private void discardRecord(Segment segment, long offset, long length)
+	{
+		segment.pending--;
+		if (segment.size == offset + length)
+		{
+			this.discardTail(segment, offset);
+			return;
+		}
+
+		// records reserved after it may be written already
+		try
+		{
+			writeFully(segment.channel, header(SKIPPED, 0, length - HEADER_SIZE, new CRC32C()), offset, null);
+			segment.dirty = true;
+		}
+		catch (IOException ex)
+		{
+			// recovery stops there, the records after it must not be acknowledged
+			log.error("Failed to mark a failed record in queue segment " + segment.path, ex);
+			segment.broken = true;
+			if (segment == this.current)
+			{
+				try
+				{
+					this.current = this.createSegment(segment.sequence + 1);
+				}
+				catch (IOException ex2)
+				{
+					log.error("Failed to start a new queue segment", ex2);
+				}
+			}
+		}
+	}
+
+	/** */
+	@GuardedBy("appendLock")
+	private Segment createSegment(long sequence) throws IOException
+	{
+		Path path = this.directory.resolve(String.format("%016x", sequence) + SUFFIX);
+		Segment segment = new Segment(sequence, path, FileChannel.open(path,
+				StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE));
+		this.segments.add(segment);
+
+		// the directory entry of the new file must survive a crash as well
+		try (FileChannel directoryChannel = FileChannel.open(this.directory, StandardOpenOption.READ))
+		{
+			directoryChannel.force(true);
+		}
+		catch (IOException ex)
+		{
+			log.debug("Syncing directory " + this.directory + " is not supported", ex);
+		}
+		return segment;
+	}
+
+	/**
+	 * Deletes the oldest segments as long as all their messages are
+	 * delivered. Delivered records always follow the message record, so a
+	 * segment may hold the delivered record for a message in an older one,
+	 * but never the other way round.
+	 */
+	@GuardedBy("appendLock")
+	private void deleteDelivered()
+	{
+		while (!this.segments.isEmpty())
+		{
+			Segment oldest = this.segments.peekFirst();
+			if (oldest == this.current || oldest.pending > 0)
+				break;
+
+			this.segments.removeFirst();
+			try
+			{
+				oldest.channel.close();
+				Files.delete(oldest.path);
+			}
+			catch (IOException ex)
+			{
+				log.warn("Failed to delete queue segment " + oldest.path, ex);
+			}
+		}
+	}
+
+	/**
+	 * Removes a partially written record, so that following records are
+	 * readable. If that fails as well, appending continues in a new segment.
+	 */
+	@GuardedBy("appendLock")
+	private void discardTail(Segment segment, long offset)
+	{
+		segment.size = offset;
+		try
+		{
+			segment.channel.truncate(offset);
+		}
+		catch (IOException ex)
+		{
+			log.warn("Failed to truncate queue segment " + segment.path, ex);
+			if (segment != this.current)
+				return; // nothing is appended to it any more
+
+			try
+			{
+				this.current = this.createSegment(segment.sequence + 1);
+			}
+			catch (IOException ex2)
+			{
+				log.error("Failed to start a new queue segment", ex2);
+			}
+		}
+	}
+
+	/**
+	 * Reads the records of a segment. Message records are added to the
+	 * pending messages, delivered records remove them.
+	 */
+	private void recover(Segment segment, Map<String, QueuedMessage> pending) throws IOException
+	{
+		FileChannel channel = segment.channel;
+		long size = channel.size();
+		long position = 0;
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		ByteBuffer buffer = ByteBuffer.allocate(1024 * 64);
+		while (position + HEADER_SIZE <= size)
+		{
+			header.clear();
+			readFully(channel, header, position);
+			header.flip();
+			int magic = header.getInt();
+			byte type = header.get();
+			int envelopeLength = header.getInt();
+			long dataLength = header.getLong();
+			int checksum = header.getInt();
+			if (magic != MAGIC || envelopeLength < 0 || dataLength < 0
+					|| position + HEADER_SIZE + envelopeLength + dataLength > size)
+				break;
+
+			if (type == SKIPPED)
+			{
+				position += HEADER_SIZE + envelopeLength + dataLength;
+				continue;
+			}
+
+			ByteBuffer envelope = ByteBuffer.allocate(envelopeLength);
+			readFully(channel, envelope, position + HEADER_SIZE);
+			envelope.flip();
+
+			CRC32C crc = new CRC32C();
+			crc.update(envelope.duplicate());
+			long dataPosition = position + HEADER_SIZE + envelopeLength;
+			for (long read = 0; read < dataLength; )
+			{
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), dataLength - read));
+				readFully(channel, buffer, dataPosition + read);
+				buffer.flip();
+				read += buffer.remaining();
+				crc.update(buffer);
+			}
+			if ((int) crc.getValue() != checksum)
+				break;
+
+			if (type == MESSAGE)
+			{
+				QueuedMessage.Envelope decoded = QueuedMessage.Envelope.decode(
+						new DataInputStream(new ByteArrayInputStream(envelope.array())));
+				pending.put(segment.sequence + ":" + position,
+						new QueuedMessage(segment, position, dataPosition, dataLength, decoded));
+			}
+			else if (type == DELIVERED)
+			{
+				pending.remove(envelope.getLong() + ":" + envelope.getLong());
+			}
+			position = dataPosition + dataLength;
+		}
+
+		if (position < size)
+		{
+			log.warn("Discarding an incomplete record of " + (size - position) + " bytes at the end of "
+					+ segment.path);
+			channel.truncate(position);
+		}
+		segment.size = position;
+	}
+
+	/** */
+	private static ByteBuffer header(byte type, int envelopeLength, long dataLength, CRC32C crc)
+	{
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).put(type).putInt(envelopeLength).putLong(dataLength).putInt((int) crc.getValue());
+		header.flip();
+		return header;
+	}
+
+	/**
+	 * Writes the whole buffer at the given position.
+	 *
+	 * @param crc
+	 *            updated with the bytes written, may be null
+	 * @return the number of bytes written
+	 */
+	private static int writeFully(FileChannel channel, ByteBuffer src, long position, CRC32C crc) throws IOException
+	{
+		if (crc != null)
+			crc.update(src.duplicate());
+
+		int count = 0;
+		while (src.hasRemaining())
+			count += channel.write(src, position + count);
+		return count;
+	}
+
+	/** Fills the buffer from the given position */
+	private static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException
+	{
+		int count = 0;
+		while (dst.hasRemaining())
+		{
+			int read = channel.read(dst, position + count);
+			if (read < 0)
+				throw new IOException("Unexpected end of file");
+			count += read;
+		}
+	}
+
+	/**
+	 * A segment file. The channel stays open until the segment is deleted,
+	 * delivery reads the data through it.
+	 */
+	static class Segment
+	{
+		final long sequence;
+
+		final Path path;
+
+		final FileChannel channel;
+
+		/** The end of the last reserved record */
+		@GuardedBy("appendLock")
+		long size;
+
+		/**
+		 * The number of messages in the segment which are not delivered,
+		 * including those still being written
+		 */
+		@GuardedBy("appendLock")
+		int pending;
+
+		/** True if records were written since the last sync */
+		@GuardedBy("appendLock")
+		boolean dirty;
+
+		/** True if a failed record could not be marked as a gap */
+		@GuardedBy("appendLock")
+		boolean broken;
+
+		/** */
+		Segment(long sequence, Path path, FileChannel channel)
+		{
+			this.sequence = sequence;
+			this.path = path;
+			this.channel = channel;
+		}
+	}
+
+	/**
+	 * Writes sequentially from a position of a file, up to a limit, and
+	 * updates a checksum with the bytes written.
+	 */
+	private static class ChecksummingChannel implements WritableByteChannel
+	{
+		private final FileChannel channel;
+
+		private long position;
+
+		/** The end of the reserved space */
+		private final long limit;
+
+		private final CRC32C crc;
+
+		/** */
+		ChecksummingChannel(FileChannel channel, long position, long limit, CRC32C crc)
+		{
+			this.channel = channel;
+			this.position = position;
+			this.limit = limit;
+			this.crc = crc;
+		}
+
+		/** */
+		public int write(ByteBuffer src) throws IOException
+		{
+			if (src.remaining() > this.limit - this.position)
+				throw new IOException("More data than reserved");
+
+			ByteBuffer written = src.duplicate();
+			int count = this.channel.write(src, this.position);
+			written.limit(written.position() + count);
+			this.crc.update(written);
+			this.position += count;
+			return count;
+		}
+
+		/** */
+		public boolean isOpen()
+		{
+			return this.channel.isOpen();
+		}
+
+		/** The file stays open */
+		public void close()
+		{
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package org.subethamail.smtp.queue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.subethamail.smtp.io.ChunkSource;
+
+/**
+ * A message in a {@link MessageLog}: its envelope, and the location of its
+ * data in a segment of the log.
+ */
+class QueuedMessage
+{
+	/** The size of the chunks in which the data is read back */
+	private static final int CHUNK_SIZE = 1024 * 32;
+
+	/** The segment which holds the record */
+	final MessageLog.Segment segment;
+
+	/** The position of the record within the segment */
+	final long offset;
+
+	/** The position of the data within the segment */
+	final long dataPosition;
+
+	final long dataLength;
+
+	final long receivedTime;
+
+	final String from;
+
+	/**
+	 * The recipients which the message still needs to be delivered to. This
+	 * is only updated in memory, after a restart delivery to all recipients
+	 * is attempted again.
+	 */
+	List<String> recipients;
+
+	/** The address of the client, or null if it was not an IP address */
+	final SocketAddress remoteAddress;
+
+	final String helo;
+
+	final boolean local;
+
+	/** Delivery attempts since the message was queued or recovered */
+	int attempts;
+
+	/** */
+	QueuedMessage(MessageLog.Segment segment, long offset, long dataPosition, long dataLength, Envelope envelope)
+	{
+		this.segment = segment;
+		this.offset = offset;
+		this.dataPosition = dataPosition;
+		this.dataLength = dataLength;
+		this.receivedTime = envelope.receivedTime;
+		this.from = envelope.from;
+		this.recipients = envelope.recipients;
+		this.remoteAddress = envelope.remoteAddress;
+		this.helo = envelope.helo;
+		this.local = envelope.local;
+	}
+
+	/**
+	 * Returns a new source which reads the data from the log, a chunk at a
+	 * time.
+	 */
+	ChunkSource getData()
+	{
+		return new ChunkSource()
+		{
+			long position = dataPosition;
+
+			final long end = dataPosition + dataLength;
+
+			public ByteBuffer nextChunk() throws IOException
+			{
+				if (this.position >= this.end)
+					return null;
+
+				ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(CHUNK_SIZE, this.end - this.position));
+				while (chunk.hasRemaining())
+				{
+					if (segment.channel.read(chunk, this.position + chunk.position()) < 0)
+						throw new IOException("Queue segment " + segment.path + " is truncated");
+				}
+				this.position += chunk.capacity();
+				chunk.flip();
+				return chunk.asReadOnlyBuffer();
+			}
+		};
+	}
+
+	/** */
+	@Override
+	public String toString()
+	{
+		return this.segment.path.getFileName() + "@" + this.offset;
+	}
+
+	/**
+	 * The envelope of a message, as stored in the log.
+	 */
+	static class Envelope
+	{
+		long receivedTime;
+
+		String from;
+
+		List<String> recipients;
+
+		SocketAddress remoteAddress;
+
+		String helo;
+
+		boolean local;
+
+		/** */
+		byte[] encode() throws IOException
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeLong(this.receivedTime);
+			out.writeUTF(this.from);
+			out.writeInt(this.recipients.size());
+			for (String recipient: this.recipients)
+				out.writeUTF(recipient);
+
+			if (this.remoteAddress instanceof InetSocketAddress
+					&& ((InetSocketAddress) this.remoteAddress).getAddress() != null)
+			{
+				InetSocketAddress inet = (InetSocketAddress) this.remoteAddress;
+				byte[] address = inet.getAddress().getAddress();
+				out.writeByte(address.length);
+				out.write(address);
+				out.writeShort(inet.getPort());
+			}
+			else
+			{
+				out.writeByte(0);
+			}
+
+			out.writeBoolean(this.helo != null);
+			if (this.helo != null)
+				out.writeUTF(this.helo);
+			out.writeBoolean(this.local);
+			out.flush();
+			return bytes.toByteArray();
+		}
+
+		/** */
+		static Envelope decode(DataInputStream in) throws IOException
+		{
+			Envelope envelope = new Envelope();
+			envelope.receivedTime = in.readLong();
+			envelope.from = in.readUTF();
+			int count = in.readInt();
+			envelope.recipients = new ArrayList<String>(count);
+			for (int i = 0; i < count; i++)
+				envelope.recipients.add(in.readUTF());
+
+			int addressLength = in.readUnsignedByte();
+			if (addressLength > 0)
+			{
+				byte[] address = new byte[addressLength];
+				in.readFully(address);
+				envelope.remoteAddress = new InetSocketAddress(InetAddress.getByAddress(address),
+						in.readUnsignedShort());
+			}
+
+			if (in.readBoolean())
+				envelope.helo = in.readUTF();
+			envelope.local = in.readBoolean();
+			return envelope;
+		}
+	}
+}
@@ -0,0 +1,496 @@
+package org.subethamail.smtp.queue;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.file.Path;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.AuthenticationHandler;
+import org.subethamail.smtp.MessageContext;
+import org.subethamail.smtp.MessageData;
+import org.subethamail.smtp.MessageDataHandler;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.MessageHandlerFactory;
+import org.subethamail.smtp.PeerCredentials;
+import org.subethamail.smtp.RejectException;
+import org.subethamail.smtp.server.DataDelivery;
+import org.subethamail.smtp.server.SMTPServer;
+
+/**
+ * MessageHandlerFactory implementation which accepts messages into a durable
+ * queue on disk, and delivers them to the handlers of another factory
+ * asynchronously. The client receives the reply to DATA as soon as the
+ * message is on stable storage, so the latency of the downstream handlers no
+ * longer holds up SMTP sessions.
+ * <p>
+ * The queue accepts every recipient. A downstream handler which rejects a
+ * recipient or the data with a permanent (5xx) error drops the message for
+ * those recipients, which is logged, no bounce is generated. Other failures
+ * are retried with an exponential backoff. Messages not yet delivered when
+ * the queue is stopped or the process crashes are delivered after the next
+ * {@link #start(SMTPServer)}; a message may be delivered more than once in
+ * that case, but it is never lost.
+ * <p>
+ * The downstream handlers receive a MessageContext with the server, the
+ * client address and HELO of the original session, but no authentication
+ * handler and no TLS or peer credentials.
+ * <p>
+ * Usage:
+ * <pre>
+ * QueueingMessageHandlerFactory queue = new QueueingMessageHandlerFactory(factory, directory);
+ * SMTPServer server = new SMTPServer(queue);
+ * queue.start(server);
+ * server.start();
+ * </pre>
+ */
+public class QueueingMessageHandlerFactory implements MessageHandlerFactory
+{
+	private final static Logger log = LoggerFactory.getLogger(QueueingMessageHandlerFactory.class);
+
+	/** The default size at which a new segment file is started */
+	public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+	private final MessageHandlerFactory target;
+
+	private final Path directory;
+
+	private long segmentSize = DEFAULT_SEGMENT_SIZE;
+
+	private int deliveryThreads = 1;
+
+	private long retryDelay = 1000;
+
+	private long maxRetryDelay = 10 * 60 * 1000;
+
+	/** 0 for unlimited */
+	private int maxAttempts;
+
+	private volatile SMTPServer server;
+
+	/** Null unless started */
+	private volatile MessageLog messageLog;
+
+	private ScheduledExecutorService executor;
+
+	/** The messages queued or being delivered */
+	private final AtomicInteger pendingCount = new AtomicInteger();
+
+	/**
+	 * @param target
+	 *            creates the handlers which the queued messages are delivered
+	 *            to
+	 * @param directory
+	 *            holds the queue, created if it does not exist. It must not
+	 *            be shared with another queue.
+	 */
+	public QueueingMessageHandlerFactory(MessageHandlerFactory target, Path directory)
+	{
+		this.target = target;
+		this.directory = directory;
+	}
+
+	/**
+	 * Opens the queue, and starts delivering the messages left in it.
+	 *
+	 * @param server
+	 *            the server which the queue receives messages from. Its
+	 *            settings apply to the delivery as well.
+	 */
+	public synchronized void start(SMTPServer server) throws IOException
+	{
+		if (this.messageLog != null)
+			throw new IllegalStateException("QueueingMessageHandlerFactory already started");
+
+		this.server = server;
+		MessageLog messageLog = new MessageLog(this.directory, this.segmentSize);
+		List<QueuedMessage> recovered = messageLog.open();
+		this.messageLog = messageLog;
+
+		final AtomicInteger threadCount = new AtomicInteger();
+		this.executor = Executors.newScheduledThreadPool(this.deliveryThreads, runnable -> {
+			Thread thread = new Thread(runnable,
+					QueueingMessageHandlerFactory.class.getName() + "-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		this.pendingCount.addAndGet(recovered.size());
+		for (QueuedMessage message: recovered)
+			this.schedule(message, 0);
+	}
+
+	/**
+	 * Stops delivery, waiting for deliveries in progress to finish, and
+	 * closes the queue. Messages which are not delivered stay in the queue.
+	 */
+	public synchronized void stop() throws IOException
+	{
+		if (this.messageLog == null)
+			return;
+
+		this.executor.shutdownNow();
+		try
+		{
+			if (!this.executor.awaitTermination(30, TimeUnit.SECONDS))
+				log.warn("Deliveries of the queue did not finish");
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		this.messageLog.close();
+		this.messageLog = null;
+		this.pendingCount.set(0);
+	}
+
+	/**
+	 * @return the number of messages in the queue which are not delivered
+	 *         yet
+	 */
+	public int getPendingCount()
+	{
+		return this.pendingCount.get();
+	}
+
+	/** */
+	public long getSegmentSize()
+	{
+		return this.segmentSize;
+	}
+
+	/**
+	 * Sets the size at which a new segment file is started. A segment is
+	 * deleted when all of its messages are delivered.
+	 */
+	public void setSegmentSize(long segmentSize)
+	{
+		this.segmentSize = segmentSize;
+	}
+
+	/** */
+	public int getDeliveryThreads()
+	{
+		return this.deliveryThreads;
+	}
+
+	/**
+	 * Sets the number of threads which deliver queued messages, 1 by
+	 * default. It applies from the next {@link #start(SMTPServer)}.
+	 */
+	public void setDeliveryThreads(int deliveryThreads)
+	{
+		this.deliveryThreads = deliveryThreads;
+	}
+
+	/** */
+	public long getRetryDelay()
+	{
+		return this.retryDelay;
+	}
+
+	/**
+	 * Sets the delay before the first retry of a failed delivery, in
+	 * milliseconds. The delay doubles on each further failure, up to
+	 * {@link #setMaxRetryDelay(long)}.
+	 */
+	public void setRetryDelay(long retryDelay)
+	{
+		this.retryDelay = retryDelay;
+	}
+
+	/** */
+	public long getMaxRetryDelay()
+	{
+		return this.maxRetryDelay;
+	}
+
+	/** Sets the upper limit of the retry delay, in milliseconds */
+	public void setMaxRetryDelay(long maxRetryDelay)
+	{
+		this.maxRetryDelay = maxRetryDelay;
+	}
+
+	/** */
+	public int getMaxAttempts()
+	{
+		return this.maxAttempts;
+	}
+
+	/**
+	 * Sets the number of delivery attempts after which a message is dropped,
+	 * or 0 to retry until it is delivered, which is the default.
+	 */
+	public void setMaxAttempts(int maxAttempts)
+	{
+		this.maxAttempts = maxAttempts;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.subethamail.smtp.MessageHandlerFactory#create(org.subethamail.smtp.MessageContext)
+	 */
+	public MessageHandler create(MessageContext ctx)
+	{
+		return new Handler(ctx);
+	}
+
+	/**
+	 * Schedules a delivery attempt.
+	 */
+	private void schedule(final QueuedMessage message, long delay)
+	{
+		try
+		{
+			this.executor.schedule(() -> this.deliver(message), delay, TimeUnit.MILLISECONDS);
+		}
+		catch (RejectedExecutionException ex)
+		{
+			// stopped, the message is delivered after the next start
+		}
+	}
+
+	/**
+	 * Makes a delivery attempt to the recipients the message has not been
+	 * delivered to yet, and schedules a retry or removes the message from
+	 * the queue.
+	 */
+	private void deliver(QueuedMessage message)
+	{
+		message.attempts++;
+		List<String> deferred = new ArrayList<String>();
+		// rejected permanently in this attempt, never retried
+		List<String> rejected = new ArrayList<String>();
+		boolean retry;
+
+		MessageHandler handler = this.target.create(new QueuedMessageContext(this.server, message));
+		DataDelivery delivery = new DataDelivery(this.server, handler);
+		try
+		{
+			handler.from(message.from);
+
+			List<String> accepted = new ArrayList<String>(message.recipients.size());
+			for (String recipient: message.recipients)
+			{
+				try
+				{
+					handler.recipient(recipient);
+					accepted.add(recipient);
+				}
+				catch (RejectException ex)
+				{
+					if (ex.getCode() >= 500)
+					{
+						log.warn("Queued message " + message + " dropped for " + recipient + ": "
+								+ ex.getErrorResponse());
+						rejected.add(recipient);
+					}
+					else
+						deferred.add(recipient);
+				}
+			}
+
+			if (!accepted.isEmpty())
+				delivery.deliver(null, message.getData());
+
+			retry = !deferred.isEmpty();
+		}
+		catch (RejectException ex)
+		{
+			if (ex.getCode() >= 500)
+			{
+				log.warn("Queued message " + message + " from " + message.from + " dropped: "
+						+ ex.getErrorResponse());
+				retry = false;
+			}
+			else
+			{
+				log.debug("Delivery of queued message " + message + " deferred: " + ex.getErrorResponse());
+				deferred = this.remaining(message, rejected);
+				retry = true;
+			}
+		}
+		catch (Exception ex)
+		{
+			log.warn("Delivery of queued message " + message + " failed", ex);
+			deferred = this.remaining(message, rejected);
+			retry = true;
+		}
+		finally
+		{
+			try
+			{
+				handler.done();
+			}
+			catch (Throwable ex)
+			{
+				log.error("done() threw exception", ex);
+			}
+			delivery.release();
+		}
+
+		if (retry && (this.maxAttempts <= 0 || message.attempts < this.maxAttempts))
+		{
+			message.recipients = deferred;
+			long delay = this.retryDelay << Math.min(message.attempts - 1, 30);
+			this.schedule(message, Math.min(delay, this.maxRetryDelay));
+			return;
+		}
+
+		if (retry)
+			log.error("Queued message " + message + " from " + message.from + " dropped after "
+					+ message.attempts + " attempts, not delivered to " + deferred);
+
+		this.pendingCount.decrementAndGet();
+		try
+		{
+			this.messageLog.delivered(message);
+		}
+		catch (IOException ex)
+		{
+			log.warn("Failed to mark queued message " + message + " as delivered", ex);
+		}
+	}
+
+	/**
+	 * @return the recipients of the message which are still to be tried
+	 *         after a failed attempt, all but the ones rejected permanently
+	 */
+	private List<String> remaining(QueuedMessage message, List<String> rejected)
+	{
+		List<String> remaining = new ArrayList<String>(message.recipients);
+		remaining.removeAll(rejected);
+		return remaining;
+	}
+
+	/**
+	 * Collects the envelope, and queues the message.
+	 */
+	class Handler implements MessageDataHandler
+	{
+		private final MessageContext ctx;
+
+		private String from;
+
+		private final List<String> recipients = new ArrayList<String>();
+
+		/** */
+		public Handler(MessageContext ctx)
+		{
+			this.ctx = ctx;
+		}
+
+		/** */
+		public void from(String from)
+		{
+			this.from = from;
+		}
+
+		/** */
+		public void recipient(String recipient)
+		{
+			this.recipients.add(recipient);
+		}
+
+		/** */
+		public void data(MessageData data) throws RejectException
+		{
+			MessageLog messageLog = QueueingMessageHandlerFactory.this.messageLog;
+			if (messageLog == null)
+				throw new RejectException(451, "4.3.0 Error: queue not available");
+
+			QueuedMessage.Envelope envelope = new QueuedMessage.Envelope();
+			envelope.receivedTime = System.currentTimeMillis();
+			envelope.from = this.from;
+			envelope.recipients = new ArrayList<String>(this.recipients);
+			envelope.remoteAddress = this.ctx.getRemoteAddress();
+			envelope.helo = this.ctx.getHelo();
+			envelope.local = this.ctx.isLocal();
+
+			QueuedMessage message;
+			try
+			{
+				message = messageLog.append(envelope, data);
+			}
+			catch (IOException ex)
+			{
+				log.error("Failed to queue message from " + this.from, ex);
+				throw new RejectException(451, "4.3.0 Error: could not queue the message");
+			}
+			pendingCount.incrementAndGet();
+			schedule(message, 0);
+		}
+
+		/** */
+		public void done()
+		{
+		}
+	}
+
+	/**
+	 * The context of a queued message, taken over from the session which
+	 * received it as far as it is stored in the queue.
+	 */
+	private static class QueuedMessageContext implements MessageContext
+	{
+		private final SMTPServer server;
+
+		private final QueuedMessage message;
+
+		/** */
+		QueuedMessageContext(SMTPServer server, QueuedMessage message)
+		{
+			this.server = server;
+			this.message = message;
+		}
+
+		/* */
+		public SMTPServer getSMTPServer()
+		{
+			return this.server;
+		}
+
+		/** Null if the client was not connected over IP */
+		public SocketAddress getRemoteAddress()
+		{
+			return this.message.remoteAddress;
+		}
+
+		/** Not stored in the queue, this returns null */
+		public AuthenticationHandler getAuthenticationHandler()
+		{
+			return null;
+		}
+
+		/* */
+		public String getHelo()
+		{
+			return this.message.helo;
+		}
+
+		/** Not stored in the queue, this returns null */
+		public Certificate[] getTlsPeerCertificates()
+		{
+			return null;
+		}
+
+		/** Not stored in the queue, this returns null */
+		public PeerCredentials getPeerCredentials()
+		{
+			return null;
+		}
+
+		/* */
+		public boolean isLocal()
+		{
+			return this.message.local;
+		}
+	}
+}
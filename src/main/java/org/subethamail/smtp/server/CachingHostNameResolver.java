@@ -0,0 +1,227 @@
+package org.subethamail.smtp.server;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * The default {@link HostNameResolver}. It looks up names with
+ * {@link InetAddress#getCanonicalHostName()} on a few daemon threads of its
+ * own, and keeps the results for a while: names for the positive TTL,
+ * addresses without a name for the shorter negative TTL. Clients which
+ * connect again, as most do, are answered from the cache, and concurrent
+ * connections from one address share a single lookup.
+ * <p>
+ * The cache holds a bounded number of addresses, the least recently used
+ * is dropped to make room. The lookups waiting for a thread are bounded as
+ * well: beyond that, an address is answered at once without a name, so the
+ * Received header shows the address literal.
+ * <p>
+ * The JDK resolver tells no TTL, so they are fixed here.
+ */
+public class CachingHostNameResolver implements HostNameResolver
+{
+	/** The number of concurrent lookups by default */
+	private static final int DEFAULT_THREADS = 4;
+
+	/** The number of addresses cached by default */
+	private static final int DEFAULT_MAX_ENTRIES = 10000;
+
+	/** The number of lookups waiting for a thread by default */
+	private static final int DEFAULT_MAX_QUEUED = 1000;
+
+	/** In access order, the least recently used first */
+	@GuardedBy("this")
+	private final LinkedHashMap<InetAddress, Entry> cache;
+
+	private final Executor executor;
+
+	private volatile long positiveTtl = TimeUnit.MINUTES.toMillis(10);
+
+	private volatile long negativeTtl = TimeUnit.MINUTES.toMillis(1);
+
+	/** */
+	public CachingHostNameResolver()
+	{
+		this(DEFAULT_THREADS);
+	}
+
+	/**
+	 * @param threads
+	 *            the number of lookups which run at once, further ones wait.
+	 *            Idle threads end after a minute.
+	 */
+	public CachingHostNameResolver(int threads)
+	{
+		this(threads, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_QUEUED);
+	}
+
+	/**
+	 * @param threads
+	 *            the number of lookups which run at once, further ones wait.
+	 *            Idle threads end after a minute.
+	 * @param maxEntries
+	 *            the number of addresses cached, 10000 by default
+	 * @param maxQueued
+	 *            the number of lookups which wait for a thread, further
+	 *            addresses get no name. 1000 by default.
+	 */
+	public CachingHostNameResolver(int threads, int maxEntries, int maxQueued)
+	{
+		this.cache = new LinkedHashMap<InetAddress, Entry>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<InetAddress, CachingHostNameResolver.Entry> eldest)
+			{
+				return this.size() > maxEntries;
+			}
+		};
+
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES,
+				new LinkedBlockingQueue<Runnable>(maxQueued), new ThreadFactory()
+		{
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "HostNameResolver-" + this.count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.allowCoreThreadTimeOut(true);
+		this.executor = executor;
+	}
+
+	/** */
+	public long getPositiveTtl()
+	{
+		return this.positiveTtl;
+	}
+
+	/**
+	 * @param positiveTtl
+	 *            milliseconds a host name is kept, 10 minutes by default
+	 */
+	public void setPositiveTtl(long positiveTtl)
+	{
+		this.positiveTtl = positiveTtl;
+	}
+
+	/** */
+	public long getNegativeTtl()
+	{
+		return this.negativeTtl;
+	}
+
+	/**
+	 * @param negativeTtl
+	 *            milliseconds an address without a host name, or whose
+	 *            lookup failed, is kept, 1 minute by default
+	 */
+	public void setNegativeTtl(long negativeTtl)
+	{
+		this.negativeTtl = negativeTtl;
+	}
+
+	/* */
+	public CompletableFuture<String> resolve(InetAddress address)
+	{
+		Entry created = new Entry();
+		synchronized (this)
+		{
+			Entry entry = this.cache.get(address);
+			if (entry != null && !entry.isExpired(System.currentTimeMillis()))
+				return entry.name;
+
+			// only queues the lookup, so it does not block
+			try
+			{
+				this.executor.execute(() -> {
+					String name = null;
+					try
+					{
+						name = this.lookup(address);
+					}
+					finally
+					{
+						created.expires = System.currentTimeMillis() + (name != null ? this.positiveTtl : this.negativeTtl);
+						created.name.complete(name);
+					}
+				});
+			}
+			catch (RejectedExecutionException ex)
+			{
+				// too many lookups waiting, do without the name this time
+				return CompletableFuture.completedFuture(null);
+			}
+			this.cache.put(address, created);
+		}
+		return created.name;
+	}
+
+	/**
+	 * @return the number of addresses cached, including ones still being
+	 *         looked up
+	 */
+	public synchronized int size()
+	{
+		return this.cache.size();
+	}
+
+	/** Empties the cache */
+	public synchronized void clear()
+	{
+		this.cache.clear();
+	}
+
+	/**
+	 * Looks up the name, bypassing the name InetAddress may have been
+	 * created with. It runs on the threads of the resolver.
+	 *
+	 * @return the host name, or null if there is none
+	 */
+	protected String lookup(InetAddress address)
+	{
+		try
+		{
+			InetAddress plain = InetAddress.getByAddress(address.getAddress());
+			String name = plain.getCanonicalHostName();
+			return name.equals(plain.getHostAddress()) ? null : name;
+		}
+		catch (UnknownHostException ex)
+		{
+			return null;	// can't happen with a valid address
+		}
+	}
+
+	/**
+	 * The lookup of an address, pending or done.
+	 */
+	private static class Entry
+	{
+		final CompletableFuture<String> name = new CompletableFuture<String>();
+
+		/** When the result expires, set once the lookup is done */
+		volatile long expires = Long.MAX_VALUE;
+
+		/** */
+		boolean isExpired(long now)
+		{
+			return now >= this.expires;
+		}
+	}
+}
@@ -0,0 +1,474 @@
+package org.subethamail.smtp.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.ChunkedMessageHandler;
+import org.subethamail.smtp.DkimSignatureHandler;
+import org.subethamail.smtp.DropConnectionException;
+import org.subethamail.smtp.MessageData;
+import org.subethamail.smtp.MessageDataHandler;
+import org.subethamail.smtp.MessageDigestHandler;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.MessageHeaders;
+import org.subethamail.smtp.MessageHeadersHandler;
+import org.subethamail.smtp.RejectException;
+import org.subethamail.smtp.TooMuchDataException;
+import org.subethamail.smtp.dkim.DkimBodyHasher;
+import org.subethamail.smtp.dkim.DkimSigner;
+import org.subethamail.smtp.io.ChunkSource;
+import org.subethamail.smtp.io.ChunkSourceInputStream;
+import org.subethamail.smtp.io.DeferredMessageData;
+import org.subethamail.smtp.io.DigestingSource;
+import org.subethamail.smtp.io.HeaderParser;
+import org.subethamail.smtp.io.ReceivedHeaderStream;
+
+/**
+ * Hands the message data over to a message handler, in the form the handler
+ * asks for: as a {@link MessageData} if it is a {@link MessageDataHandler},
+ * as chunks if it is a {@link ChunkedMessageHandler}, otherwise as an
+ * InputStream. Both the DATA command and in-process submission deliver
+ * through this class. On the way the header section is parsed, and the digest
+ * and the DKIM signature computed, if the handler or the server configuration
+ * asks for them.
+ * <p>
+ * A MessageData must outlive the data() call, so {@link #release()} must be
+ * called after the handler's done().
+ */
+public class DataDelivery
+{
+	private final static Logger log = LoggerFactory.getLogger(DataDelivery.class);
+
+	private final SMTPServer server;
+
+	private final MessageHandler handler;
+
+	/** The data passed to a MessageDataHandler, if any */
+	private DeferredMessageData messageData;
+
+	/** The size of the message if known in advance, or 0 */
+	private int declaredSize;
+
+	/** Bytes of the memory budget reserved for the message */
+	private long reservedMemory;
+
+	/**
+	 * Thrown by the handler from headers() or digest(). Any further read of
+	 * the data throws it again.
+	 */
+	private RejectException rejection;
+
+	/** */
+	public DataDelivery(SMTPServer server, MessageHandler handler)
+	{
+		this.server = server;
+		this.handler = handler;
+	}
+
+	/**
+	 * Tells the size of the message, if it is known before the data.
+	 *
+	 * @param declaredSize
+	 *            the size declared by the client, or 0 if unknown
+	 * @param reservedMemory
+	 *            bytes of the server's memory budget reserved for the
+	 *            message. The delivery takes them over, and gives them back
+	 *            on {@link #release()} at the latest.
+	 */
+	public void setDeclaredSize(int declaredSize, long reservedMemory)
+	{
+		this.declaredSize = declaredSize;
+		this.reservedMemory = reservedMemory;
+	}
+
+	/**
+	 * Delivers the data. When this method returns normally or with a
+	 * RejectException, the data is consumed up to its end.
+	 *
+	 * @param receivedHeader
+	 *            the Received header to prepend, or null
+	 * @param data
+	 *            the decoded message data
+	 */
+	public void deliver(byte[] receivedHeader, ChunkSource data)
+			throws RejectException, TooMuchDataException, IOException
+	{
+		// other handlers do their own buffering, if any
+		if (!(this.handler instanceof MessageDataHandler))
+			this.releaseReservedMemory();
+
+		ChunkSource source = data;
+		DkimSigner dkimSigner = this.server.getDkimSigner();
+		if (dkimSigner != null && this.handler instanceof DkimSignatureHandler)
+			source = new DkimSigningSource(source, dkimSigner);
+
+		String digestAlgorithm = this.server.getDigestAlgorithm();
+		DigestReportingSource digestingSource = null;
+		if (digestAlgorithm != null)
+		{
+			MessageDigest digest;
+			try
+			{
+				digest = DigestingSource.createDigest(digestAlgorithm);
+			}
+			catch (NoSuchAlgorithmException ex)
+			{
+				throw new IllegalStateException(ex); // checked by the server
+			}
+			source = digestingSource = new DigestReportingSource(source, digestAlgorithm, digest, receivedHeader);
+		}
+
+		HeaderParser parser = null;
+		if (this.handler instanceof MessageHeadersHandler || this.handler instanceof MessageDataHandler)
+		{
+			parser = new HeaderParser();
+			if (receivedHeader != null)
+				parser.update(ByteBuffer.wrap(receivedHeader));
+			source = new HeaderParsingSource(source, parser);
+		}
+
+		try
+		{
+			if (this.handler instanceof MessageDataHandler)
+			{
+				int expectedSize = this.declaredSize;
+				if (expectedSize > 0 && receivedHeader != null)
+					expectedSize += receivedHeader.length;
+
+				this.messageData = new DeferredMessageData(this.server.getDataDeferredSize(),
+						this.server.getMemoryBudget(), this.server.getSpoolManager(),
+						expectedSize, this.reservedMemory);
+				this.reservedMemory = 0;
+				if (receivedHeader != null)
+					this.messageData.append(ByteBuffer.wrap(receivedHeader));
+
+				ByteBuffer chunk;
+				while ((chunk = source.nextChunk()) != null)
+					this.messageData.append(chunk);
+
+				this.messageData.setHeaders(parser.finish());
+				if (digestingSource != null)
+					this.messageData.setDigest(digestAlgorithm, digestingSource.getDigest());
+				((MessageDataHandler) this.handler).data(this.messageData);
+			}
+			else if (this.handler instanceof ChunkedMessageHandler)
+			{
+				ChunkedMessageHandler chunked = (ChunkedMessageHandler) this.handler;
+				if (receivedHeader != null)
+					chunked.dataChunk(ByteBuffer.wrap(receivedHeader).asReadOnlyBuffer());
+
+				ByteBuffer chunk;
+				while ((chunk = source.nextChunk()) != null)
+					chunked.dataChunk(chunk);
+
+				chunked.dataEnd();
+			}
+			else
+			{
+				InputStream stream = new ChunkSourceInputStream(source);
+				if (receivedHeader != null)
+					stream = new ReceivedHeaderStream(stream, receivedHeader);
+
+				this.handler.data(stream);
+			}
+
+			// even if the handler caught it
+			if (this.rejection != null)
+				throw this.rejection;
+		}
+		catch (DropConnectionException ex)
+		{
+			throw ex; // the connection is closed anyway
+		}
+		catch (RejectException ex)
+		{
+			// nothing received so far is needed any more
+			this.release();
+
+			// the rest of the data must not be taken for commands
+			data.discard();
+			throw ex;
+		}
+
+		// Just in case the handler didn't consume all the data, we might as well
+		// suck it up so it doesn't pollute further exchanges.
+		data.discard();
+	}
+
+	/**
+	 * Releases the memory or temporary file of the MessageData, if one was
+	 * created.
+	 */
+	public void release()
+	{
+		this.releaseReservedMemory();
+
+		if (this.messageData != null)
+		{
+			try
+			{
+				this.messageData.release();
+			}
+			catch (IOException ex)
+			{
+				log.warn("Failed to release the message data", ex);
+			}
+			this.messageData = null;
+		}
+	}
+
+	/** */
+	private void releaseReservedMemory()
+	{
+		if (this.reservedMemory > 0)
+		{
+			this.server.getMemoryBudget().release(this.reservedMemory);
+			this.reservedMemory = 0;
+		}
+	}
+
+	/**
+	 * Records a rejection by the handler, and rethrows it.
+	 */
+	private RejectException rejected(RejectException ex)
+	{
+		if (!(ex instanceof DropConnectionException))
+			this.rejection = ex;
+		return ex;
+	}
+
+	/**
+	 * Passes the chunks of the data through a header parser, and tells the
+	 * handler the headers when the parser finds the end of the header
+	 * section. If the handler rejects the message at that point, no further
+	 * data is passed on.
+	 */
+	private class HeaderParsingSource implements ChunkSource
+	{
+		private final ChunkSource source;
+
+		private final HeaderParser parser;
+
+		private boolean finished;
+
+		/** */
+		HeaderParsingSource(ChunkSource source, HeaderParser parser)
+		{
+			this.source = source;
+			this.parser = parser;
+		}
+
+		/* */
+		public ByteBuffer nextChunk() throws IOException
+		{
+			if (rejection != null)
+				throw rejection;
+
+			ByteBuffer chunk = this.source.nextChunk();
+			if (!this.finished && (chunk == null || this.parser.update(chunk)))
+			{
+				this.finished = true;
+				if (handler instanceof MessageHeadersHandler)
+				{
+					try
+					{
+						((MessageHeadersHandler) handler).headers(this.parser.finish());
+					}
+					catch (RejectException ex)
+					{
+						throw rejected(ex);
+					}
+				}
+			}
+			return chunk;
+		}
+	}
+
+	/**
+	 * Computes the DKIM body hash of the data after the header section, and
+	 * gives the handler the signature at the end of the data. The Received
+	 * header of this server is not part of the data at this point, so it is
+	 * not signed.
+	 */
+	private class DkimSigningSource implements ChunkSource
+	{
+		private final ChunkSource source;
+
+		private final DkimSigner signer;
+
+		private final DkimBodyHasher bodyHasher;
+
+		private final HeaderParser parser = new HeaderParser();
+
+		/** The number of bytes passed so far */
+		private long position;
+
+		/** The position of the body, or -1 while the header section is read */
+		private long bodyStart = -1;
+
+		private boolean signed;
+
+		/** */
+		DkimSigningSource(ChunkSource source, DkimSigner signer)
+		{
+			this.source = source;
+			this.signer = signer;
+			this.bodyHasher = signer.createBodyHasher();
+		}
+
+		/* */
+		public ByteBuffer nextChunk() throws IOException
+		{
+			if (rejection != null)
+				throw rejection;
+
+			ByteBuffer chunk = this.source.nextChunk();
+			if (chunk == null)
+			{
+				if (!this.signed)
+				{
+					this.signed = true;
+					this.sign();
+				}
+				return null;
+			}
+
+			if (this.bodyStart < 0 && this.parser.update(chunk))
+				this.bodyStart = this.parser.getHeaders().getSectionSize();
+
+			long end = this.position + chunk.remaining();
+			if (this.bodyStart >= 0 && end > this.bodyStart)
+			{
+				ByteBuffer body = chunk.duplicate();
+				body.position(chunk.limit() - (int) Math.min(end - this.bodyStart, chunk.remaining()));
+				this.bodyHasher.update(body);
+			}
+			this.position = end;
+			return chunk;
+		}
+
+		/** */
+		private void sign()
+		{
+			MessageHeaders headers = this.parser.finish();
+			// a message without a body is complete, one whose header
+			// section was cut can't be signed
+			if (!headers.isComplete() && this.bodyStart >= 0)
+			{
+				log.debug("The header section is too large to be signed");
+				return;
+			}
+
+			byte[] field;
+			try
+			{
+				field = this.signer.sign(headers, this.bodyHasher.finish());
+			}
+			catch (IOException | GeneralSecurityException ex)
+			{
+				log.warn("Failed to sign the message, it is passed on unsigned", ex);
+				return;
+			}
+			if (field != null)
+				((DkimSignatureHandler) handler).dkimSignature(field);
+		}
+	}
+
+	/**
+	 * Computes the digest of the body, the data after the header section, and
+	 * tells it the handler at the end of the data.
+	 */
+	private class DigestReportingSource implements ChunkSource
+	{
+		private final ChunkSource source;
+
+		private final String algorithm;
+
+		private final MessageDigest digest;
+
+		private final HeaderParser parser = new HeaderParser();
+
+		/** The number of bytes passed so far, with the Received header */
+		private long position;
+
+		/** The position of the body, or -1 while the header section is read */
+		private long bodyStart = -1;
+
+		/** The result, once the end of the data is reached */
+		private byte[] result;
+
+		private boolean reported;
+
+		/**
+		 * @param receivedHeader
+		 *            the Received header which precedes the data, or null.
+		 *            The header section is found as in the MessageData, so
+		 *            the body starts at the same position.
+		 */
+		DigestReportingSource(ChunkSource source, String algorithm, MessageDigest digest, byte[] receivedHeader)
+		{
+			this.source = source;
+			this.algorithm = algorithm;
+			this.digest = digest;
+			if (receivedHeader != null)
+			{
+				this.parser.update(ByteBuffer.wrap(receivedHeader));
+				this.position = receivedHeader.length;
+			}
+		}
+
+		/* */
+		public ByteBuffer nextChunk() throws IOException
+		{
+			if (rejection != null)
+				throw rejection;
+
+			ByteBuffer chunk = this.source.nextChunk();
+			if (chunk != null)
+			{
+				if (this.bodyStart < 0 && this.parser.update(chunk))
+					this.bodyStart = this.parser.getHeaders().getSectionSize();
+
+				long end = this.position + chunk.remaining();
+				if (this.bodyStart >= 0 && end > this.bodyStart)
+				{
+					ByteBuffer body = chunk.duplicate();
+					body.position(chunk.limit() - (int) Math.min(end - this.bodyStart, chunk.remaining()));
+					this.digest.update(body);
+				}
+				this.position = end;
+			}
+			else if (!this.reported)
+			{
+				this.reported = true;
+				this.result = this.digest.digest();
+				if (handler instanceof MessageDigestHandler)
+				{
+					try
+					{
+						((MessageDigestHandler) handler).digest(this.algorithm, this.getDigest());
+					}
+					catch (RejectException ex)
+					{
+						throw rejected(ex);
+					}
+				}
+			}
+			return chunk;
+		}
+
+		/**
+		 * @return the digest of the body, once the end of the data is reached
+		 */
+		public byte[] getDigest()
+		{
+			return this.result.clone();
+		}
+	}
+}
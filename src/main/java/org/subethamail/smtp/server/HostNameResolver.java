@@ -0,0 +1,24 @@
+package org.subethamail.smtp.server;
+
+import java.net.InetAddress;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Finds the host names of client addresses by reverse DNS, for the TCP-info
+ * of Received headers. The session starts the lookup when the connection is
+ * accepted and only waits for it when the first message arrives, so a slow
+ * resolver does not hold up the session.
+ *
+ * @see CachingHostNameResolver
+ * @see SMTPServer#setHostNameResolver(HostNameResolver)
+ */
+public interface HostNameResolver
+{
+	/**
+	 * Starts finding the host name of the address, and must not block.
+	 *
+	 * @return completes with the host name, or with null if the address has
+	 *         none
+	 */
+	CompletableFuture<String> resolve(InetAddress address);
+}
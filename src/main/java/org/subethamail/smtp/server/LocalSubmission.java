@@ -0,0 +1,172 @@
+package org.subethamail.smtp.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.AuthenticationHandler;
+import org.subethamail.smtp.MessageContext;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.PeerCredentials;
+import org.subethamail.smtp.RejectException;
+import org.subethamail.smtp.TooMuchDataException;
+import org.subethamail.smtp.io.ChunkSource;
+import org.subethamail.smtp.io.ReceivedHeaderStream;
+import org.subethamail.smtp.util.EmailUtils;
+
+/**
+ * A single mail transaction submitted in-process through
+ * {@link SMTPServer#submit(String, Collection, InputStream)}. It drives a
+ * message handler through the same from, recipient, data and done sequence as
+ * an SMTP session does, and applies the same policies, but without a
+ * connection, SMTP dialogue or dot-stuffing.
+ */
+class LocalSubmission implements MessageContext
+{
+	private final static Logger log = LoggerFactory.getLogger(LocalSubmission.class);
+
+	private final SMTPServer server;
+
+	/** Identifies the submission in logs and in the Received header */
+	private final String id;
+
+	/** */
+	public LocalSubmission(SMTPServer server)
+	{
+		this.server = server;
+		this.id = server.getSessionIdFactory().create();
+	}
+
+	/**
+	 * Runs the mail transaction.
+	 *
+	 * @param size
+	 *            the size of the data if known in advance, or 0
+	 * @return the accepted recipients
+	 */
+	public List<String> deliver(String from, Collection<String> recipients, ChunkSource data, int size)
+			throws RejectException, TooMuchDataException, IOException
+	{
+		if (!EmailUtils.isValidEmailAddress(from))
+			throw new RejectException(553, "<" + from + "> Invalid email address.");
+
+		int maxMessageSize = this.server.getMaxMessageSize();
+		if (maxMessageSize > 0 && size > maxMessageSize)
+			throw new RejectException(552, "5.3.4 Message size exceeds fixed limit");
+
+		MessageHandler handler = this.server.getMessageHandlerFactory().create(this);
+		DataDelivery delivery = new DataDelivery(this.server, handler);
+		delivery.setDeclaredSize(size, 0);
+		try
+		{
+			handler.from(from);
+
+			List<String> accepted = new ArrayList<String>(recipients.size());
+			RejectException lastRejection = null;
+			for (String recipient: recipients)
+			{
+				if (this.server.getMaxRecipients() >= 0 && accepted.size() >= this.server.getMaxRecipients())
+				{
+					lastRejection = new RejectException(452, "Error: too many recipients");
+					break;
+				}
+
+				try
+				{
+					handler.recipient(recipient);
+					accepted.add(recipient);
+				}
+				catch (RejectException ex)
+				{
+					if (log.isDebugEnabled())
+						log.debug("Recipient " + recipient + " rejected: " + ex.getErrorResponse());
+					lastRejection = ex;
+				}
+			}
+
+			if (accepted.isEmpty())
+			{
+				if (lastRejection != null)
+					throw lastRejection;
+				throw new RejectException(503, "Error: need RCPT command");
+			}
+
+			byte[] receivedHeader = null;
+			if (!this.server.getDisableReceivedHeaders())
+			{
+				receivedHeader = ReceivedHeaderStream.createHeader(this.server.getHostName(), null,
+						this.server.getHostName(), this.server.getSoftwareName(), this.id,
+						accepted.size() == 1 ? accepted.get(0) : null);
+			}
+
+			delivery.deliver(receivedHeader, data);
+
+			return accepted;
+		}
+		finally
+		{
+			try
+			{
+				handler.done();
+			}
+			catch (Throwable ex)
+			{
+				log.error("done() threw exception", ex);
+			}
+			delivery.release();
+		}
+	}
+
+	/* */
+	public SMTPServer getSMTPServer()
+	{
+		return this.server;
+	}
+
+	/**
+	 * The producer is in the same process, the loopback address is returned
+	 * with port 0.
+	 */
+	public SocketAddress getRemoteAddress()
+	{
+		return new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+	}
+
+	/** In-process submissions are not authenticated, this returns null. */
+	public AuthenticationHandler getAuthenticationHandler()
+	{
+		return null;
+	}
+
+	/** There is no HELO in an in-process submission, this returns null. */
+	public String getHelo()
+	{
+		return null;
+	}
+
+	/* */
+	public Certificate[] getTlsPeerCertificates()
+	{
+		return null;
+	}
+
+	/* */
+	public PeerCredentials getPeerCredentials()
+	{
+		return null;
+	}
+
+	/** Always true */
+	public boolean isLocal()
+	{
+		return true;
+	}
+}
@@ -0,0 +1,249 @@
+package org.subethamail.smtp.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import org.subethamail.smtp.util.TextUtils;
+
+/**
+ * Reads the PROXY protocol header which a load balancer or proxy sends at the
+ * very beginning of a connection, before any SMTP traffic, in order to pass on
+ * the address of the real client. Both the human readable version 1 and the
+ * binary version 2 of the header are recognized.
+ * <p>
+ * The header is read byte by byte from the unbuffered socket stream, so not a
+ * single byte of the following SMTP conversation is consumed.
+ *
+ * @see <a href="http://www.haproxy.org/download/1.8/doc/proxy-protocol.txt">The
+ *      PROXY protocol</a>
+ */
+class ProxyProtocolReader
+{
+	/** The longest possible version 1 header, including the CRLF */
+	static final int MAX_V1_LENGTH = 107;
+
+	/** The fixed signature which starts a version 2 header */
+	private static final byte[] V2_SIGNATURE = new byte[] {
+			0x0D, 0x0A, 0x0D, 0x0A, 0x00, 0x0D, 0x0A, 0x51, 0x55, 0x49, 0x54, 0x0A
+	};
+
+	/** The fixed prefix of a version 1 header */
+	private static final byte[] V1_PREFIX = TextUtils.getAsciiBytes("PROXY ");
+
+	/** Thrown if the connection does not start with a valid PROXY header */
+	@SuppressWarnings("serial")
+	public static class ProxyProtocolException extends IOException
+	{
+		public ProxyProtocolException(String message)
+		{
+			super(message);
+		}
+	}
+
+	private final InputStream in;
+
+	/**
+	 * @param in
+	 *            the raw, unbuffered input stream of the connection
+	 */
+	public ProxyProtocolReader(InputStream in)
+	{
+		this.in = in;
+	}
+
+	/**
+	 * Reads and parses the PROXY header.
+	 *
+	 * @return the address of the client which connected to the proxy, or null
+	 *         if the header does not carry a usable address, for example in
+	 *         the case of health checks sent by the proxy itself (version 2
+	 *         LOCAL command, or version 1 UNKNOWN protocol).
+	 * @throws ProxyProtocolException
+	 *             if the header is missing or malformed
+	 */
+	public InetSocketAddress read() throws IOException
+	{
+		int first = this.readByte();
+		if (first == V1_PREFIX[0])
+			return this.readV1();
+		else if (first == V2_SIGNATURE[0])
+			return this.readV2();
+		else
+			throw new ProxyProtocolException("Connection does not start with a PROXY protocol header");
+	}
+
+	/**
+	 * Parses a line like "PROXY TCP4 192.0.2.1 198.51.100.1 56324 25", the
+	 * first byte of which has already been read.
+	 */
+	private InetSocketAddress readV1() throws IOException
+	{
+		StringBuilder line = new StringBuilder(MAX_V1_LENGTH);
+		line.append((char) V1_PREFIX[0]);
+		boolean crSeen = false;
+		while (true)
+		{
+			int b = this.readByte();
+			if (crSeen)
+			{
+				if (b != '\n')
+					throw new ProxyProtocolException("CR not followed by LF in PROXY header");
+				break;
+			}
+			if (b == '\r')
+				crSeen = true;
+			else
+				line.append((char) b);
+
+			if (line.length() + 2 > MAX_V1_LENGTH)
+				throw new ProxyProtocolException("PROXY header is too long");
+		}
+
+		String header = line.toString();
+		if (!header.startsWith(TextUtils.getStringAscii(V1_PREFIX)))
+			throw new ProxyProtocolException("Malformed PROXY header: " + header);
+
+		String[] fields = header.split(" ");
+		if (fields.length >= 2 && fields[1].equals("UNKNOWN"))
+			return null;
+		if (fields.length != 6)
+			throw new ProxyProtocolException("Malformed PROXY header: " + header);
+
+		InetAddress source;
+		if (fields[1].equals("TCP4"))
+			source = parseIPv4(fields[2]);
+		else if (fields[1].equals("TCP6"))
+			source = parseIPv6(fields[2]);
+		else
+			throw new ProxyProtocolException("Unsupported protocol in PROXY header: " + fields[1]);
+
+		return new InetSocketAddress(source, parsePort(fields[4]));
+	}
+
+	/**
+	 * Parses the binary version 2 header, the first byte of which has already
+	 * been read.
+	 */
+	private InetSocketAddress readV2() throws IOException
+	{
+		byte[] header = new byte[16];
+		header[0] = V2_SIGNATURE[0];
+		this.readFully(header, 1, header.length - 1);
+
+		for (int i = 1; i < V2_SIGNATURE.length; i++)
+		{
+			if (header[i] != V2_SIGNATURE[i])
+				throw new ProxyProtocolException("Invalid PROXY protocol v2 signature");
+		}
+
+		int version = (header[12] & 0xF0) >> 4;
+		int command = header[12] & 0x0F;
+		int family = (header[13] & 0xF0) >> 4;
+		int length = ((header[14] & 0xFF) << 8) | (header[15] & 0xFF);
+
+		if (version != 2)
+			throw new ProxyProtocolException("Unsupported PROXY protocol version: " + version);
+
+		byte[] body = new byte[length];
+		this.readFully(body, 0, length);
+
+		// LOCAL: the connection was established by the proxy itself
+		if (command == 0x0)
+			return null;
+		if (command != 0x1)
+			throw new ProxyProtocolException("Unsupported PROXY protocol v2 command: " + command);
+
+		switch (family)
+		{
+			case 0x1: // AF_INET
+				if (length < 12)
+					throw new ProxyProtocolException("PROXY protocol v2 address block is too short");
+				return new InetSocketAddress(address(body, 0, 4), port(body, 8));
+			case 0x2: // AF_INET6
+				if (length < 36)
+					throw new ProxyProtocolException("PROXY protocol v2 address block is too short");
+				return new InetSocketAddress(address(body, 0, 16), port(body, 32));
+			default:
+				// AF_UNSPEC and AF_UNIX do not carry an IP address
+				return null;
+		}
+	}
+
+	/** Converts a dotted quad to an address without any name service lookup */
+	private static InetAddress parseIPv4(String literal) throws IOException
+	{
+		String[] parts = literal.split("\\.", -1);
+		if (parts.length != 4)
+			throw new ProxyProtocolException("Invalid IPv4 address in PROXY header: " + literal);
+
+		byte[] bytes = new byte[4];
+		for (int i = 0; i < 4; i++)
+		{
+			if (!parts[i].matches("[0-9]{1,3}"))
+				throw new ProxyProtocolException("Invalid IPv4 address in PROXY header: " + literal);
+			int value = Integer.parseInt(parts[i]);
+			if (value > 255)
+				throw new ProxyProtocolException("Invalid IPv4 address in PROXY header: " + literal);
+			bytes[i] = (byte) value;
+		}
+		return InetAddress.getByAddress(bytes);
+	}
+
+	/**
+	 * Converts an IPv6 literal to an address. A string containing colons is
+	 * always treated as a literal by InetAddress, so no lookup takes place.
+	 */
+	private static InetAddress parseIPv6(String literal) throws IOException
+	{
+		if (literal.indexOf(':') < 0 || !literal.matches("[0-9A-Fa-f:.]+"))
+			throw new ProxyProtocolException("Invalid IPv6 address in PROXY header: " + literal);
+		return InetAddress.getByName(literal);
+	}
+
+	/** */
+	private static int parsePort(String value) throws IOException
+	{
+		if (!value.matches("[0-9]{1,5}") || Integer.parseInt(value) > 65535)
+			throw new ProxyProtocolException("Invalid port in PROXY header: " + value);
+		return Integer.parseInt(value);
+	}
+
+	/** */
+	private static InetAddress address(byte[] buf, int offset, int length) throws IOException
+	{
+		byte[] bytes = new byte[length];
+		System.arraycopy(buf, offset, bytes, 0, length);
+		return InetAddress.getByAddress(bytes);
+	}
+
+	/** */
+	private static int port(byte[] buf, int offset)
+	{
+		return ((buf[offset] & 0xFF) << 8) | (buf[offset + 1] & 0xFF);
+	}
+
+	/** */
+	private int readByte() throws IOException
+	{
+		int b = this.in.read();
+		if (b == -1)
+			throw new EOFException("Connection closed while reading the PROXY header");
+		return b;
+	}
+
+	/** */
+	private void readFully(byte[] buf, int offset, int length) throws IOException
+	{
+		while (length > 0)
+		{
+			int count = this.in.read(buf, offset, length);
+			if (count == -1)
+				throw new EOFException("Connection closed while reading the PROXY header");
+			offset += count;
+			length -= count;
+		}
+	}
+}
@@ -26,7 +26,8 @@ public class RequireTLSCommandWrapper implements Command
 	public void execute(String commandString, Session sess) 
 			throws IOException, DropConnectionException
 	{
-		if (!sess.getServer().getRequireTLS() || sess.isTLSStarted())
+		// traffic on a Unix domain socket never leaves the host
+		if (!sess.getServer().getRequireTLS() || sess.isTLSStarted() || sess.isUnixDomainSocket())
 			wrapped.execute(commandString, sess);
 		else
 			sess.sendResponse("530 Must issue a STARTTLS command first");
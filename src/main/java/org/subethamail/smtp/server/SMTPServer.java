@@ -1,13 +1,32 @@
 package org.subethamail.smtp.server;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.annotation.concurrent.GuardedBy;
 import javax.net.ssl.SSLSocket;
@@ -16,8 +35,17 @@ import javax.net.ssl.SSLSocketFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.subethamail.smtp.AuthenticationHandlerFactory;
+import org.subethamail.smtp.MessageContext;
 import org.subethamail.smtp.MessageHandlerFactory;
+import org.subethamail.smtp.RejectException;
+import org.subethamail.smtp.TooMuchDataException;
 import org.subethamail.smtp.Version;
+import org.subethamail.smtp.dkim.DkimSigner;
+import org.subethamail.smtp.io.ByteBufferInputStream;
+import org.subethamail.smtp.io.DigestingSource;
+import org.subethamail.smtp.io.InputStreamChunkSource;
+import org.subethamail.smtp.io.MemoryBudget;
+import org.subethamail.smtp.io.SpoolManager;
 
 /**
  * Main SMTPServer class.  Construct this object, set the
@@ -53,10 +81,27 @@ public class SMTPServer
 	/** Hostname used if we can't find one */
 	private final static String UNKNOWN_HOSTNAME = "localhost";
 
+	/** The default of {@link #setDataDeferredSize(int)}, 5 MB */
+	public static final int DEFAULT_DATA_DEFERRED_SIZE = 1024 * 1024 * 5;
+
+	/** The milliseconds getHostName() waits for the name of the local host */
+	private final static int LOCAL_HOST_NAME_TIMEOUT = 3000;
+
+	/**
+	 * The lookup of the name of the local host, started by the first server
+	 * and shared by all, or null
+	 */
+	@GuardedBy("SMTPServer.class")
+	private static CompletableFuture<String> localHostName;
+
+	/** True once getHostName() gave up waiting for the lookup */
+	private static volatile boolean localHostNameTimedOut;
+
 	private InetAddress bindAddress = null;	// default to all interfaces
 	private int port = 25;	// default to 25
-	private String hostName;	// defaults to a lookup of the local address
+	private String hostName;	// defaults to a lookup of the local address, see localHostName()
 	private int backlog = 50;
+	private Path unixDomainSocketPath = null;	// default to TCP
 	private String softwareName = "SubEthaSMTP " + Version.getSpecification();
 
 	private MessageHandlerFactory messageHandlerFactory;
@@ -83,6 +128,12 @@ public class SMTPServer
 	/** If true, a TLS handshake is required; ignored if enableTLS=false */
 	private boolean requireTLS = false;
 
+	/**
+	 * If true, every connection must start with a PROXY protocol header, which
+	 * supplies the address of the real client.
+	 */
+	private boolean enableProxyProtocol = false;
+
 	/** If true, no Received headers will be inserted */
 	private boolean disableReceivedHeaders = false;
 
@@ -112,8 +163,38 @@ public class SMTPServer
 	 */
 	private int maxMessageSize = 0;
 
+	/**
+	 * The size up to which the data passed to a MessageDataHandler is kept in
+	 * memory, larger messages are stored in a temporary file. Default is 5 MB.
+	 */
+	private int dataDeferredSize = DEFAULT_DATA_DEFERRED_SIZE;
+
+	/**
+	 * The heap which all in-memory message buffers share, a quarter of the
+	 * maximum heap by default.
+	 */
+	private MemoryBudget memoryBudget = new MemoryBudget(Runtime.getRuntime().maxMemory() / 4);
+
+	/** Supplies the files of message data too large for memory */
+	private SpoolManager spoolManager = SpoolManager.getDefault();
+
+	/** The digest computed while message data is received, or null */
+	private String digestAlgorithm;
+
+	/** Signs the messages for handlers which ask for a signature, or null */
+	private DkimSigner dkimSigner;
+
 	private SessionIdFactory sessionIdFactory = new TimeBasedSessionIdFactory();
 
+	/** Finds the host names of clients for Received headers */
+	private HostNameResolver hostNameResolver = new CachingHostNameResolver();
+
+	/**
+	 * The time in milliseconds the first message of a session waits for the
+	 * host name of the client
+	 */
+	private int hostNameTimeout = 1000;
+
 	/**
 	 * Simple constructor.
 	 */
@@ -161,33 +242,85 @@ public class SMTPServer
 			this.executorService = Executors.newCachedThreadPool();
 		}
 
-		try
-		{
-			this.hostName = InetAddress.getLocalHost().getCanonicalHostName();
-		}
-		catch (UnknownHostException e)
-		{
-			this.hostName = UNKNOWN_HOSTNAME;
-		}
+		// in the background, a misconfigured resolver can take seconds
+		localHostName();
 
 		this.commandHandler = new CommandHandler();
 	}
 
-	/** @return the host name that will be reported to SMTP clients */
+	/**
+	 * @return the host name that will be reported to SMTP clients. Unless one
+	 *         was set, this is the name of the local host, which is looked up
+	 *         in the background when the first server is created. If the
+	 *         lookup is not done yet, the first call waits for it up to a few
+	 *         seconds, and returns "localhost" if it takes longer. Once a call
+	 *         timed out, calls no longer wait, and return "localhost" until
+	 *         the lookup is done.
+	 */
 	public String getHostName()
 	{
-		if (this.hostName == null)
-			return UNKNOWN_HOSTNAME;
-		else
+		if (this.hostName != null)
 			return this.hostName;
+
+		try
+		{
+			if (localHostNameTimedOut)
+				return localHostName().getNow(UNKNOWN_HOSTNAME);
+			return localHostName().get(LOCAL_HOST_NAME_TIMEOUT, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return UNKNOWN_HOSTNAME;
+		}
+		catch (TimeoutException e)
+		{
+			localHostNameTimedOut = true;
+			return UNKNOWN_HOSTNAME;
+		}
+		catch (ExecutionException | CompletionException e)
+		{
+			return UNKNOWN_HOSTNAME;
+		}
 	}
 
-	/** The host name that will be reported to SMTP clients */
+	/**
+	 * The host name that will be reported to SMTP clients, null for the name
+	 * of the local host
+	 */
 	public void setHostName(String hostName)
 	{
 		this.hostName = hostName;
 	}
 
+	/**
+	 * Starts the lookup of the name of the local host on a daemon thread, on
+	 * the first call.
+	 *
+	 * @return completes with the name, or "localhost" if it is unknown
+	 */
+	private static synchronized CompletableFuture<String> localHostName()
+	{
+		if (localHostName == null)
+		{
+			localHostName = CompletableFuture.supplyAsync(() -> {
+				try
+				{
+					return InetAddress.getLocalHost().getCanonicalHostName();
+				}
+				catch (UnknownHostException e)
+				{
+					return UNKNOWN_HOSTNAME;
+				}
+			}, runnable -> {
+				Thread thread = new Thread(runnable, "LocalHostNameLookup");
+				thread.setDaemon(true);
+				thread.start();
+			});
+		}
+		return localHostName;
+	}
+
 	/** null means all interfaces */
 	public InetAddress getBindAddress()
 	{
@@ -212,6 +345,37 @@ public class SMTPServer
 		this.port = port;
 	}
 
+	/**
+	 * @return the path of the Unix domain socket this server listens on, or
+	 *         null if it listens on a TCP port
+	 */
+	public Path getUnixDomainSocketPath()
+	{
+		return this.unixDomainSocketPath;
+	}
+
+	/**
+	 * Makes this server listen on a Unix domain socket at the specified path
+	 * instead of the TCP port and bind address. This is an efficient way for
+	 * applications on the same host to submit mail, it avoids TCP connection
+	 * setup and the loopback network stack. Sessions on a Unix domain socket
+	 * work exactly as TCP sessions, except that STARTTLS is not offered, no
+	 * name lookup is ever done for the client, and
+	 * {@link Session#getPeerCredentials()} returns the user and group of the
+	 * client process where the platform supports it.
+	 * <p>
+	 * A file left at the path by an earlier run is deleted when the server
+	 * starts; the socket file is deleted again when the server stops. Access
+	 * can be controlled by the permissions of the containing directory.
+	 *
+	 * @param path
+	 *            the file system path of the socket, or null to listen on TCP
+	 */
+	public void setUnixDomainSocketPath(Path path)
+	{
+		this.unixDomainSocketPath = path;
+	}
+
 	/** 
 	 * The string reported to the public as the software running here.  Defaults
 	 * to SubEthaSTP and the version number. 
@@ -282,17 +446,18 @@ public class SMTPServer
 					"SMTPServer can only be started once");
 
 		// Create our server socket here.
-		ServerSocket serverSocket;
 		try
 		{
-			serverSocket = this.createServerSocket();
+			if (this.unixDomainSocketPath != null)
+				this.serverThread = new ServerThread(this, this.createUnixDomainServerChannel());
+			else
+				this.serverThread = new ServerThread(this, this.createServerSocket());
 		}
 		catch (Exception e)
 		{
 			throw new RuntimeException(e);
 		}
 
-		this.serverThread = new ServerThread(this, serverSocket);
 		this.serverThread.start();
 		this.started = true;
 	}
@@ -311,6 +476,51 @@ public class SMTPServer
 		this.serverThread = null;
 	}
 
+	/**
+	 * Submits a message in-process, without opening a connection. The message
+	 * handler factory of this server receives the message exactly as if it
+	 * arrived over SMTP: a handler is created, then from(), recipient() for
+	 * each recipient, data() and finally done() are called on it. The same
+	 * recipient limit and Received header settings apply. The
+	 * {@link MessageContext} passed to the factory returns true from
+	 * {@link MessageContext#isLocal()}.
+	 * <p>
+	 * The server does not need to be started to accept submissions, and the
+	 * handler runs on the calling thread.
+	 *
+	 * @param from
+	 *            the envelope sender
+	 * @param recipients
+	 *            the envelope recipients
+	 * @param data
+	 *            the raw message, headers and body, without dot-stuffing
+	 * @return the recipients accepted by the handler. Recipients rejected by
+	 *         the handler are left out, as in SMTP, where only the
+	 *         affected RCPT command fails.
+	 * @throws RejectException
+	 *             if the sender, all recipients or the data was rejected
+	 */
+	public List<String> submit(String from, Collection<String> recipients, InputStream data)
+			throws RejectException, TooMuchDataException, IOException
+	{
+		return new LocalSubmission(this).deliver(from, recipients, new InputStreamChunkSource(data), 0);
+	}
+
+	/**
+	 * Submits a message in-process, without opening a connection. The
+	 * remaining bytes of the buffer are the message, the buffer position is
+	 * not changed. The message size limit is checked before the handler is
+	 * created, as if the client declared the size in the MAIL command.
+	 *
+	 * @see #submit(String, Collection, InputStream)
+	 */
+	public List<String> submit(String from, Collection<String> recipients, ByteBuffer data)
+			throws RejectException, TooMuchDataException, IOException
+	{
+		return new LocalSubmission(this).deliver(from, recipients, new ByteBufferInputStream(data),
+				data.remaining());
+	}
+
 	/**
 	 * Override this method if you want to create your own server sockets.
 	 * You must return a bound ServerSocket instance
@@ -341,6 +551,36 @@ public class SMTPServer
 		return serverSocket;
 	}
 
+	/**
+	 * Override this method if you want to create your own Unix domain server
+	 * socket channel. You must return a bound, blocking channel. A socket
+	 * left at the path, for example by a crashed server, is replaced; any
+	 * other file is not.
+	 *
+	 * @throws IOException if the path exists and is not a socket
+	 */
+	protected ServerSocketChannel createUnixDomainServerChannel() throws IOException
+	{
+		try
+		{
+			BasicFileAttributes attributes = Files.readAttributes(this.unixDomainSocketPath,
+					BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			if (!attributes.isOther())
+				throw new FileAlreadyExistsException(this.unixDomainSocketPath.toString(), null,
+						"Not a socket, remove it or choose another Unix domain socket path");
+			Files.deleteIfExists(this.unixDomainSocketPath);
+		}
+		catch (NoSuchFileException e)
+		{
+			// nothing left over
+		}
+
+		ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		channel.bind(UnixDomainSocketAddress.of(this.unixDomainSocketPath), this.backlog);
+
+		return channel;
+	}
+
 	/**
 	 * Create a SSL socket that wraps the existing socket. This method
 	 * is called after the client issued the STARTTLS command.
@@ -356,7 +596,7 @@ public class SMTPServer
 	{
 		SSLSocketFactory sf = ((SSLSocketFactory) SSLSocketFactory.getDefault());
 		InetSocketAddress remoteAddress = (InetSocketAddress) socket.getRemoteSocketAddress();
-		SSLSocket s = (SSLSocket) (sf.createSocket(socket, remoteAddress.getHostName(), socket.getPort(), true));
+		SSLSocket s = (SSLSocket) (sf.createSocket(socket, remoteAddress.getHostString(), socket.getPort(), true));
 
 		// we are a server
 		s.setUseClientMode(false);
@@ -369,6 +609,9 @@ public class SMTPServer
 
 	public String getDisplayableLocalSocketAddress()
 	{
+		if (this.unixDomainSocketPath != null)
+			return "unix:" + this.unixDomainSocketPath;
+
 		return (this.bindAddress == null ? "*" : this.bindAddress) + ":" + this.port;
 	}
 
@@ -538,6 +781,33 @@ public class SMTPServer
 		this.requireTLS = requireTLS;
 	}
 
+	/** */
+	public boolean getEnableProxyProtocol()
+	{
+		return this.enableProxyProtocol;
+	}
+
+	/**
+	 * If set to true, the server expects a PROXY protocol (version 1 or 2)
+	 * header at the beginning of each connection, before it sends the
+	 * greeting. This is useful if this server is behind a TCP load balancer
+	 * or proxy: the client address in the header replaces the address of the
+	 * socket peer everywhere, in {@link Session#getRemoteAddress()}, in
+	 * logging and in the Received header. Connections without a valid header
+	 * are closed.
+	 * <p>
+	 * Only enable this on listeners which are exclusively reachable through
+	 * the proxy, otherwise any client could forge its address. Default is
+	 * false.
+	 *
+	 * @see <a href="http://www.haproxy.org/download/1.8/doc/proxy-protocol.txt">The
+	 *      PROXY protocol</a>
+	 */
+	public void setEnableProxyProtocol(boolean enableProxyProtocol)
+	{
+		this.enableProxyProtocol = enableProxyProtocol;
+	}
+
 	/**
 	 * @return the maxMessageSize
 	 */
@@ -555,6 +825,125 @@ public class SMTPServer
 		this.maxMessageSize = maxMessageSize;
 	}
 
+	/**
+	 * @return the size up to which message data is kept in memory
+	 */
+	public int getDataDeferredSize()
+	{
+		return this.dataDeferredSize;
+	}
+
+	/**
+	 * @param dataDeferredSize
+	 *            the size up to which the data passed to a
+	 *            {@link org.subethamail.smtp.MessageDataHandler} is kept in
+	 *            memory, larger messages are stored in a temporary file
+	 */
+	public void setDataDeferredSize(int dataDeferredSize)
+	{
+		this.dataDeferredSize = dataDeferredSize;
+	}
+
+	/**
+	 * @return the memory budget of the message buffers. Its
+	 *         {@link MemoryBudget#getUsed()} is the number of bytes currently
+	 *         buffered in memory.
+	 */
+	public MemoryBudget getMemoryBudget()
+	{
+		return this.memoryBudget;
+	}
+
+	/**
+	 * @param memoryBudget
+	 *            the heap which the in-memory message buffers of all
+	 *            sessions share. If it is exhausted, DATA commands are
+	 *            rejected with a temporary error. A budget may be shared by
+	 *            several servers.
+	 */
+	public void setMemoryBudget(MemoryBudget memoryBudget)
+	{
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * @return the manager of the files which message data too large for
+	 *         memory is spooled to. It reports the current number and size
+	 *         of these files.
+	 */
+	public SpoolManager getSpoolManager()
+	{
+		return this.spoolManager;
+	}
+
+	/**
+	 * @param spoolManager
+	 *            the manager of the files which message data too large for
+	 *            memory is spooled to. The default one uses the system temp
+	 *            directory.
+	 */
+	public void setSpoolManager(SpoolManager spoolManager)
+	{
+		this.spoolManager = spoolManager;
+	}
+
+	/**
+	 * @return the digest algorithm applied to message data while it is
+	 *         received, or null if none
+	 */
+	public String getDigestAlgorithm()
+	{
+		return this.digestAlgorithm;
+	}
+
+	/**
+	 * @param digestAlgorithm
+	 *            the name of a MessageDigest algorithm, for example
+	 *            "SHA-256", or "CRC32C" for a fast non-cryptographic hash.
+	 *            The digest of each message is computed while it is received
+	 *            and reported to handlers which implement
+	 *            {@link org.subethamail.smtp.MessageDigestHandler}, and by
+	 *            {@link org.subethamail.smtp.MessageData#getDigest(String)}.
+	 *            Null, the default, computes no digest.
+	 * @throws IllegalArgumentException
+	 *             if the algorithm is not available
+	 */
+	public void setDigestAlgorithm(String digestAlgorithm)
+	{
+		if (digestAlgorithm != null)
+		{
+			try
+			{
+				DigestingSource.createDigest(digestAlgorithm);
+			}
+			catch (NoSuchAlgorithmException ex)
+			{
+				throw new IllegalArgumentException(ex.getMessage(), ex);
+			}
+		}
+		this.digestAlgorithm = digestAlgorithm;
+	}
+
+	/**
+	 * @return the signer of messages, or null if none
+	 */
+	public DkimSigner getDkimSigner()
+	{
+		return this.dkimSigner;
+	}
+
+	/**
+	 * @param dkimSigner
+	 *            computes a DKIM signature of each message while it is
+	 *            received, for handlers which implement
+	 *            {@link org.subethamail.smtp.DkimSignatureHandler}. Null, the
+	 *            default, signs nothing.
+	 */
+	public void setDkimSigner(DkimSigner dkimSigner)
+	{
+		this.dkimSigner = dkimSigner;
+	}
+
 	/** */
 	public boolean getDisableReceivedHeaders()
 	{
@@ -582,4 +971,40 @@ public class SMTPServer
 	public void setSessionIdFactory(SessionIdFactory sessionIdFactory) {
 		this.sessionIdFactory = sessionIdFactory;
 	}
+
+	/** */
+	public HostNameResolver getHostNameResolver()
+	{
+		return this.hostNameResolver;
+	}
+
+	/**
+	 * Sets the {@link HostNameResolver} which finds the host names of clients
+	 * for the TCP-info of Received headers. The default is a
+	 * {@link CachingHostNameResolver}. Null looks up no names, the headers
+	 * then show the address literal only.
+	 */
+	public void setHostNameResolver(HostNameResolver hostNameResolver)
+	{
+		this.hostNameResolver = hostNameResolver;
+	}
+
+	/** */
+	public int getHostNameTimeout()
+	{
+		return this.hostNameTimeout;
+	}
+
+	/**
+	 * @param hostNameTimeout
+	 *            the time in milliseconds the Received header of the first
+	 *            message of a session waits for the host name of the client,
+	 *            whose lookup started when the connection was accepted. If
+	 *            the name is not known by then, the header shows the address
+	 *            literal. Default is 1 second.
+	 */
+	public void setHostNameTimeout(int hostNameTimeout)
+	{
+		this.hostNameTimeout = hostNameTimeout;
+	}
 }
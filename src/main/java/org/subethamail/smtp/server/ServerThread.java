@@ -1,8 +1,13 @@
 package org.subethamail.smtp.server;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -18,15 +23,19 @@ import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
 
 /**
- * ServerThread accepts TCP connections to the server socket and starts a new
- * {@link Session} thread for each connection which will handle the connection.
+ * ServerThread accepts TCP connections to the server socket, or connections to
+ * a Unix domain server socket channel, and starts a new {@link Session} thread
+ * for each connection which will handle the connection.
  * On shutdown it terminates not only this thread, but the session threads too.
  */
 class ServerThread extends Thread
 {
 	private final Logger log = LoggerFactory.getLogger(ServerThread.class);
 	private final SMTPServer server;
+	/** The TCP server socket, or null if listening on a Unix domain socket */
 	private final ServerSocket serverSocket;
+	/** The Unix domain server socket channel, or null if listening on TCP */
+	private final ServerSocketChannel serverChannel;
 	/**
 	 * A semaphore which is used to prevent accepting new connections by
 	 * blocking this thread if the allowed count of open connections is already
@@ -45,10 +54,21 @@ class ServerThread extends Thread
 	private volatile boolean shuttingDown;
 
 	public ServerThread(SMTPServer server, ServerSocket serverSocket)
+	{
+		this(server, serverSocket, null);
+	}
+
+	public ServerThread(SMTPServer server, ServerSocketChannel serverChannel)
+	{
+		this(server, null, serverChannel);
+	}
+
+	private ServerThread(SMTPServer server, ServerSocket serverSocket, ServerSocketChannel serverChannel)
 	{
 		super(ServerThread.class.getName() + " " + server.getDisplayableLocalSocketAddress());
 		this.server = server;
 		this.serverSocket = serverSocket;
+		this.serverChannel = serverChannel;
 		// reserve a few places for graceful disconnects with informative
 		// messages
 		int countOfConnectionPermits = server.getMaxConnections() + 10;
@@ -104,10 +124,13 @@ class ServerThread extends Thread
 				continue; // exit or retry
 			}
 
-			Socket socket = null;
+			Closeable connection = null;
 			try
 			{
-				socket = this.serverSocket.accept();
+				if (this.serverChannel != null)
+					connection = this.serverChannel.accept();
+				else
+					connection = this.serverSocket.accept();
 			}
 			catch (IOException e)
 			{
@@ -132,7 +155,10 @@ class ServerThread extends Thread
 			Session session = null;
 			try
 			{
-				session = new Session(server, this, socket);
+				if (connection instanceof SocketChannel)
+					session = new Session(server, this, (SocketChannel) connection);
+				else
+					session = new Session(server, this, (Socket) connection);
 			}
 			catch (IOException e)
 			{
@@ -140,7 +166,7 @@ class ServerThread extends Thread
 				log.error("Error while starting a connection", e);
 				try
 				{
-					socket.close();
+					connection.close();
 				}
 				catch (IOException e1)
 				{
@@ -168,7 +194,7 @@ class ServerThread extends Thread
 				log.error("Error while executing a session", e);
 				try
 				{
-					socket.close();
+					connection.close();
 				}
 				catch (IOException e1)
 				{
@@ -203,13 +229,23 @@ class ServerThread extends Thread
 	}
 
 	/**
-	 * Closes the serverSocket in an orderly way.
+	 * Closes the serverSocket in an orderly way. A Unix domain socket file is
+	 * deleted as well.
 	 */
 	private void closeServerSocket()
 	{
 		try
 		{
-			this.serverSocket.close();
+			if (this.serverChannel != null)
+			{
+				UnixDomainSocketAddress address = (UnixDomainSocketAddress) this.serverChannel.getLocalAddress();
+				this.serverChannel.close();
+				Files.deleteIfExists(address.getPath());
+			}
+			else
+			{
+				this.serverSocket.close();
+			}
 			log.debug("SMTP Server socket shut down");
 		}
 		catch (IOException e)
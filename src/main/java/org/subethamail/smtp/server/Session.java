@@ -8,8 +8,16 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
 import java.security.cert.Certificate;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import jdk.net.ExtendedSocketOptions;
+import jdk.net.UnixDomainPrincipal;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,7 +26,10 @@ import org.subethamail.smtp.AuthenticationHandler;
 import org.subethamail.smtp.DropConnectionException;
 import org.subethamail.smtp.MessageContext;
 import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.PeerCredentials;
 import org.subethamail.smtp.io.CRLFTerminatedReader;
+import org.subethamail.smtp.io.ReceivedHeaderTemplate;
+import org.subethamail.smtp.io.SocketChannelStreams;
 
 /**
  * The thread that handles a connection. This class
@@ -59,6 +70,21 @@ public class Session implements Runnable, MessageContext
 
 	/** I/O to the client */
 	private Socket socket;
+	/**
+	 * The address of the real client as reported by a PROXY protocol header,
+	 * or null if the socket peer is the client itself.
+	 */
+	private InetSocketAddress proxiedRemoteAddress;
+	/**
+	 * The streams of the Unix domain socket channel to the client, or null if
+	 * the client is connected through {@link #socket}.
+	 */
+	private SocketChannelStreams channelStreams;
+	/**
+	 * The credentials of the process at the other end of a Unix domain socket,
+	 * or null if they are not available.
+	 */
+	private PeerCredentials peerCredentials;
 	private InputStream input;
 	private CRLFTerminatedReader reader;
 	private PrintWriter writer;
@@ -69,8 +95,17 @@ public class Session implements Runnable, MessageContext
 	/** Might exist if the client is giving us a message */
 	private MessageHandler messageHandler;
 
+	/** The delivery of the message data, released after the handler is done */
+	private DataDelivery dataDelivery;
+
 	/** Some state information */
 	private String helo;
+	/** The Received header parts for the current HELO, created on demand */
+	private ReceivedHeaderTemplate receivedHeaderTemplate;
+	/** The lookup of the host name of the client, started with the session, or null */
+	private CompletableFuture<String> remoteHostName;
+	/** True once a message waited for the host name */
+	private boolean remoteHostNameAwaited;
 	private boolean hasMailFrom;
 	private int recipientCount;
 	/**
@@ -88,6 +123,12 @@ public class Session implements Runnable, MessageContext
 	 */
 	private int declaredMessageSize = 0;
 
+	/**
+	 * The bytes of the server's memory budget reserved for the declared
+	 * message size, until the DATA command takes them over.
+	 */
+	private long reservedMessageMemory = 0;
+
 	/** Some more state information */
 	private boolean tlsStarted;
 	private Certificate[] tlsPeerCertificates;
@@ -108,6 +149,36 @@ public class Session implements Runnable, MessageContext
 		this.setSocket(socket);
 	}
 
+	/**
+	 * Creates the Runnable Session object for a client connected through a
+	 * Unix domain socket.
+	 *
+	 * @param server a link to our parent
+	 * @param channel is the Unix domain socket channel to the client
+	 * @throws IOException
+	 */
+	public Session(SMTPServer server, ServerThread serverThread, SocketChannel channel)
+		throws IOException
+	{
+		this.server = server;
+		this.serverThread = serverThread;
+
+		this.channelStreams = new SocketChannelStreams(channel, server.getConnectionTimeout());
+		this.input = this.channelStreams.getInputStream();
+		this.reader = new CRLFTerminatedReader(this.input);
+		this.writer = new PrintWriter(this.channelStreams.getOutputStream());
+
+		try
+		{
+			UnixDomainPrincipal principal = channel.getOption(ExtendedSocketOptions.SO_PEERCRED);
+			this.peerCredentials = new PeerCredentials(principal.user().getName(), principal.group().getName());
+		}
+		catch (UnsupportedOperationException e)
+		{
+			log.debug("Peer credentials are not supported on this platform");
+		}
+	}
+
 	/**
 	 * @return a reference to the master server object
 	 */
@@ -127,21 +198,31 @@ public class Session implements Runnable, MessageContext
 		sessionId = server.getSessionIdFactory().create();
 		MDC.put("SessionId", sessionId);
 		final String originalName = Thread.currentThread().getName();
-		Thread.currentThread().setName(
-				Session.class.getName() + "-" + socket.getInetAddress() + ":"
-						+ socket.getPort());
+		this.updateThreadName();
 
-		if (log.isDebugEnabled())
+		try
 		{
-			InetAddress remoteInetAddress = this.getRemoteAddress().getAddress();
-			remoteInetAddress.getHostName();	// Causes future toString() to print the name too
+			if (this.server.getEnableProxyProtocol() && !this.readProxyHeader())
+				return;
 
-			log.debug("SMTP connection from {}, new connection count: {}", remoteInetAddress,
-					this.serverThread.getNumberOfConnections());
-		}
+			// the name is looked up while the client reads the greeting and
+			// says HELO, it is needed for the Received header only
+			HostNameResolver resolver = this.server.getHostNameResolver();
+			if (resolver != null && !this.server.getDisableReceivedHeaders() && !this.isUnixDomainSocket())
+				this.remoteHostName = resolver.resolve(this.getRemoteAddress().getAddress());
+
+			if (log.isDebugEnabled())
+			{
+				Object remote;
+				if (this.isUnixDomainSocket())
+					remote = this.describePeer();
+				else
+					remote = this.getRemoteAddress().getAddress();
+
+				log.debug("SMTP connection from {}, new connection count: {}", remote,
+						this.serverThread.getNumberOfConnections());
+			}
 
-		try
-		{
 			runCommandLoop();
 		}
 		catch (IOException e1)
@@ -188,6 +269,63 @@ public class Session implements Runnable, MessageContext
 		}
 	}
 
+	/**
+	 * Names the current thread after the remote address, so it is easy to
+	 * identify in thread dumps.
+	 */
+	private void updateThreadName()
+	{
+		Thread.currentThread().setName(Session.class.getName() + "-" + this.describePeer());
+	}
+
+	/**
+	 * Returns the address of the remote client for logging purposes, without
+	 * doing any name lookup.
+	 */
+	private String describePeer()
+	{
+		if (this.channelStreams != null && this.proxiedRemoteAddress == null)
+			return "unix:" + this.server.getUnixDomainSocketPath();
+
+		InetSocketAddress remoteAddress = this.getRemoteAddress();
+		return remoteAddress.getAddress() + ":" + remoteAddress.getPort();
+	}
+
+	/**
+	 * Reads the PROXY protocol header which must precede the SMTP conversation
+	 * if the server is configured to be behind a proxy or load balancer. The
+	 * client address in the header replaces the address of the socket peer.
+	 *
+	 * @return false if the header is missing or invalid, in which case the
+	 *         connection must be closed without a greeting.
+	 * @throws IOException
+	 *             if receiving from the proxy fails.
+	 */
+	private boolean readProxyHeader() throws IOException
+	{
+		String peer = this.describePeer();
+		InetSocketAddress clientAddress;
+		try
+		{
+			clientAddress = new ProxyProtocolReader(this.input).read();
+		}
+		catch (ProxyProtocolReader.ProxyProtocolException e)
+		{
+			log.debug("Rejecting connection from {}: {}", peer, e.getMessage());
+			return false;
+		}
+
+		if (clientAddress != null)
+		{
+			if (log.isDebugEnabled())
+				log.debug("PROXY header from {} reports client {}", peer, clientAddress);
+
+			this.proxiedRemoteAddress = clientAddress;
+			this.updateThreadName();
+		}
+		return true;
+	}
+
 	/**
 	 * Sends the welcome message and starts receiving and processing client
 	 * commands. It quits when {@link #quitting} becomes true or when it can be
@@ -317,7 +455,8 @@ public class Session implements Runnable, MessageContext
 
 	/**
 	 * This method is only used by the start tls command
-	 * @return the current socket to the client
+	 * @return the current socket to the client, or null if the client is
+	 *  connected through a Unix domain socket
 	 */
 	public Socket getSocket()
 	{
@@ -329,6 +468,17 @@ public class Session implements Runnable, MessageContext
 	{
 		if ((this.socket != null) && this.socket.isBound() && !this.socket.isClosed())
 			this.socket.close();
+		else if ((this.channelStreams != null) && this.channelStreams.getChannel().isOpen())
+			this.channelStreams.close();
+	}
+
+	/**
+	 * @return true if the client is connected through a Unix domain socket
+	 *  instead of TCP.
+	 */
+	public boolean isUnixDomainSocket()
+	{
+		return this.channelStreams != null;
 	}
 
 	/**
@@ -365,11 +515,21 @@ public class Session implements Runnable, MessageContext
 		return sessionId;
 	}
 	
-	/* (non-Javadoc)
+	/**
+	 * Returns the address of the client. Clients connected through a Unix
+	 * domain socket are on the same host, for them the loopback address is
+	 * returned with port 0.
+	 *
 	 * @see org.subethamail.smtp.MessageContext#getRemoteAddress()
 	 */
 	public InetSocketAddress getRemoteAddress()
 	{
+		if (this.proxiedRemoteAddress != null)
+			return this.proxiedRemoteAddress;
+
+		if (this.channelStreams != null)
+			return new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+
 		return (InetSocketAddress)this.socket.getRemoteSocketAddress();
 	}
 
@@ -399,6 +559,61 @@ public class Session implements Runnable, MessageContext
 	public void setHelo(String value)
 	{
 		this.helo = value;
+		this.receivedHeaderTemplate = null;
+	}
+
+	/**
+	 * @return the parts of the Received header which are the same for all
+	 *         messages of the session, created on the first call after HELO.
+	 *         While the host name of the client is still being looked up,
+	 *         the template is created anew on each call, so later messages
+	 *         get the name once it is known.
+	 */
+	public ReceivedHeaderTemplate getReceivedHeaderTemplate()
+	{
+		ReceivedHeaderTemplate template = this.receivedHeaderTemplate;
+		if (template == null)
+		{
+			// a Unix domain socket peer has no TCP-info worth a name lookup
+			InetAddress remoteHost = this.isUnixDomainSocket() ? null : this.getRemoteAddress().getAddress();
+			template = new ReceivedHeaderTemplate(this.helo, remoteHost,
+					remoteHost == null ? null : this.getRemoteHostName(), this.server.getHostName(),
+					this.server.getSoftwareName());
+
+			if (remoteHost == null || this.remoteHostName == null || this.remoteHostName.isDone())
+				this.receivedHeaderTemplate = template;
+		}
+		return template;
+	}
+
+	/**
+	 * Returns the host name of the client, as found by the host name resolver
+	 * of the server. The first call waits for the lookup up to the host name
+	 * timeout of the server, later ones take what is known at that time.
+	 *
+	 * @return the host name, or null if the client has none, or it is not
+	 *         known yet
+	 */
+	public String getRemoteHostName()
+	{
+		if (this.remoteHostName == null)
+			return null;
+
+		long timeout = this.remoteHostNameAwaited ? 0 : this.server.getHostNameTimeout();
+		this.remoteHostNameAwaited = true;
+		try
+		{
+			return this.remoteHostName.get(timeout, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		catch (ExecutionException | TimeoutException ex)
+		{
+			return null;
+		}
 	}
 
 	/** */
@@ -472,6 +687,36 @@ public class Session implements Runnable, MessageContext
 		this.declaredMessageSize = declaredMessageSize;
 	}
 
+	/**
+	 * Reserves memory from the server's budget for the declared message
+	 * size, unless it is unknown, or so large that the message would be
+	 * buffered on disk anyway. Calling it again has no effect.
+	 *
+	 * @return false if the budget does not have enough room
+	 */
+	public boolean reserveDeclaredMessageSize()
+	{
+		if (this.reservedMessageMemory > 0 || this.declaredMessageSize <= 0
+				|| this.declaredMessageSize > this.server.getDataDeferredSize())
+			return true;
+
+		if (!this.server.getMemoryBudget().tryReserve(this.declaredMessageSize))
+			return false;
+
+		this.reservedMessageMemory = this.declaredMessageSize;
+		return true;
+	}
+
+	/** Gives back the memory reserved for the declared message size */
+	private void releaseDeclaredMessageSize()
+	{
+		if (this.reservedMessageMemory > 0)
+		{
+			this.server.getMemoryBudget().release(this.reservedMessageMemory);
+			this.reservedMessageMemory = 0;
+		}
+	}
+
 	/**
 	 * Reset the SMTP protocol to the initial state, which is the state after 
 	 * a server issues a 220 service ready greeting. 
@@ -479,6 +724,7 @@ public class Session implements Runnable, MessageContext
 	public void resetSmtpProtocol() {
 		resetMessageState();
 		this.helo = null;
+		this.receivedHeaderTemplate = null;
 	}
 	
 	/**
@@ -493,6 +739,7 @@ public class Session implements Runnable, MessageContext
 		this.recipientCount = 0;
 		this.singleRecipient = null;
 		this.declaredMessageSize = 0;
+		this.releaseDeclaredMessageSize();
 	}
 	
 	public void startMailTransaction() {
@@ -503,6 +750,19 @@ public class Session implements Runnable, MessageContext
 				this);
 	}
 
+	/**
+	 * Creates the delivery of the message data to the current message
+	 * handler. The data it holds is released after done() is called on the
+	 * handler.
+	 */
+	public DataDelivery startDataDelivery()
+	{
+		this.dataDelivery = new DataDelivery(this.server, this.messageHandler);
+		this.dataDelivery.setDeclaredSize(this.declaredMessageSize, this.reservedMessageMemory);
+		this.reservedMessageMemory = 0;
+		return this.dataDelivery;
+	}
+
 	/** Safely calls done() on a message hander, if one exists */
 	protected void endMessageHandler()
 	{
@@ -517,6 +777,12 @@ public class Session implements Runnable, MessageContext
 				log.error("done() threw exception", ex);
 			}
 		}
+
+		if (this.dataDelivery != null)
+		{
+			this.dataDelivery.release();
+			this.dataDelivery = null;
+		}
 	}
 
 	/**
@@ -556,4 +822,20 @@ public class Session implements Runnable, MessageContext
 	{
 		return tlsPeerCertificates;
 	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public PeerCredentials getPeerCredentials()
+	{
+		return peerCredentials;
+	}
+
+	/**
+	 * Always false, a session is an SMTP connection.
+	 */
+	public boolean isLocal()
+	{
+		return false;
+	}
 }
@@ -0,0 +1,375 @@
+package org.subethamail.smtp.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.MessageData;
+
+/**
+ * A content-addressed message store. The body of each distinct message is
+ * stored once, in a file named by its SHA-256 digest, and each recipient of
+ * a message gets a small envelope record which refers to the body by the
+ * digest. Messages with the same body sent to many recipients, in one
+ * transaction or in many, take the disk space and the write of a single
+ * copy.
+ * <p>
+ * The data is reference counted by the envelopes which refer to it, and is
+ * deleted when the last of them is removed. The counts are not stored, they
+ * are rebuilt from the envelopes when the store is opened; data which no
+ * envelope refers to, for example because of a crash during
+ * {@link #remove(StoredMessage)}, is deleted then.
+ * <p>
+ * The body is the data after the header section, see
+ * {@link org.subethamail.smtp.MessageHeaders#getSectionSize()}. The header
+ * section, with the Received header of this server, To, Message-ID, Date
+ * and so on, differs for every transaction even of a newsletter, so it is
+ * kept in the envelopes instead, and put back in front of the body when
+ * the message is read.
+ * <p>
+ * The digest of the body is taken from {@link MessageData#getDigest(String)}. Configure
+ * {@link org.subethamail.smtp.server.SMTPServer#setDigestAlgorithm(String)}
+ * with {@link #DIGEST_ALGORITHM} so it is computed while the data is
+ * received, otherwise the data is read once more to compute it.
+ * <p>
+ * All methods may be called concurrently.
+ */
+public class ContentStore
+{
+	private final static Logger log = LoggerFactory.getLogger(ContentStore.class);
+
+	/** The digest which identifies the data */
+	public static final String DIGEST_ALGORITHM = "SHA-256";
+
+	private static final String ENVELOPE_SUFFIX = ".env";
+
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private final Path contentDirectory;
+
+	private final Path envelopeDirectory;
+
+	/** The number of envelopes which refer to each digest */
+	@GuardedBy("this")
+	private final Map<String, Integer> references = new HashMap<String, Integer>();
+
+	/** The envelopes by id */
+	private final Map<String, StoredMessage> messages = new ConcurrentHashMap<String, StoredMessage>();
+
+	/** Makes ids and temporary file names unique */
+	private final AtomicLong sequence;
+
+	/**
+	 * Opens the store, and deletes the data which no envelope refers to.
+	 *
+	 * @param directory
+	 *            holds the store, created if it does not exist
+	 */
+	public ContentStore(Path directory) throws IOException
+	{
+		this.contentDirectory = Files.createDirectories(directory.resolve("content"));
+		this.envelopeDirectory = Files.createDirectories(directory.resolve("envelopes"));
+
+		long lastId = 0;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(this.envelopeDirectory))
+		{
+			for (Path file: files)
+			{
+				String name = file.getFileName().toString();
+				if (!name.endsWith(ENVELOPE_SUFFIX))
+				{
+					Files.delete(file);
+					continue;
+				}
+
+				String id = name.substring(0, name.length() - ENVELOPE_SUFFIX.length());
+				StoredMessage message;
+				try (DataInputStream in = new DataInputStream(Files.newInputStream(file)))
+				{
+					message = StoredMessage.decode(id, in);
+				}
+				if (!Files.exists(this.contentPath(message.getDigest())))
+				{
+					log.warn("Data of stored message " + message + " is missing, deleting the envelope");
+					Files.delete(file);
+					continue;
+				}
+
+				this.messages.put(id, message);
+				this.references.merge(message.getDigest(), 1, Integer::sum);
+				lastId = Math.max(lastId, Long.parseLong(id, 16));
+			}
+		}
+
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(this.contentDirectory))
+		{
+			for (Path file: files)
+			{
+				if (!this.references.containsKey(file.getFileName().toString()))
+					Files.delete(file);
+			}
+		}
+
+		this.sequence = new AtomicLong(Math.max(lastId, System.currentTimeMillis() << 16));
+	}
+
+	/**
+	 * Stores the message for each recipient. The data is written only if the
+	 * store does not have it yet. When this method returns, the data and the
+	 * envelopes are on stable storage.
+	 *
+	 * @return the envelopes, one for each recipient
+	 */
+	public List<StoredMessage> store(String from, List<String> recipients, MessageData data) throws IOException
+	{
+		String digest;
+		try
+		{
+			digest = toHex(data.getDigest(DIGEST_ALGORITHM));
+		}
+		catch (NoSuchAlgorithmException ex)
+		{
+			throw new IllegalStateException(ex); // required of every Java platform
+		}
+
+		long bodyStart = data.getHeaders().getSectionSize();
+		if (!this.addReferences(digest, recipients.size()))
+		{
+			Path temp = this.contentDirectory.resolve(this.sequence.incrementAndGet() + TEMP_SUFFIX);
+			try
+			{
+				try (FileChannel channel = FileChannel.open(temp,
+						StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))
+				{
+					data.transferTo(bodyStart, channel);
+					channel.force(false);
+				}
+
+				synchronized (this)
+				{
+					// an identical message stored in the meantime has the same content
+					Files.move(temp, this.contentPath(digest),
+							StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+					this.references.merge(digest, recipients.size(), Integer::sum);
+				}
+				syncDirectory(this.contentDirectory);
+			}
+			finally
+			{
+				Files.deleteIfExists(temp);
+			}
+		}
+
+		byte[] header = readHeaderSection(data, bodyStart);
+		long receivedTime = System.currentTimeMillis();
+		List<StoredMessage> stored = new ArrayList<StoredMessage>(recipients.size());
+		try
+		{
+			for (String recipient: recipients)
+			{
+				String id = String.format("%016x", this.sequence.incrementAndGet());
+				StoredMessage message = new StoredMessage(id, receivedTime, from, recipient, digest,
+						header);
+				this.writeEnvelope(message);
+				this.messages.put(id, message);
+				stored.add(message);
+			}
+			syncDirectory(this.envelopeDirectory);
+		}
+		catch (IOException ex)
+		{
+			for (StoredMessage message: stored)
+				this.remove(message);
+			this.releaseReferences(digest, recipients.size() - stored.size());
+			throw ex;
+		}
+
+		return stored;
+	}
+
+	/**
+	 * @return the envelopes in the store, in no particular order
+	 */
+	public List<StoredMessage> getMessages()
+	{
+		return new ArrayList<StoredMessage>(this.messages.values());
+	}
+
+	/**
+	 * Returns a new stream which reads the data of the message, its header
+	 * section and the body. It must not be used after the message is
+	 * removed.
+	 */
+	public InputStream getInputStream(StoredMessage message) throws IOException
+	{
+		InputStream content = Files.newInputStream(this.contentPath(message.getDigest()));
+		if (message.getHeader().length == 0)
+			return content;
+		return new SequenceInputStream(new ByteArrayInputStream(message.getHeader()), content);
+	}
+
+	/**
+	 * Removes the envelope, and the data as well if no other envelope refers
+	 * to it.
+	 *
+	 * @return false if the message was not in the store
+	 */
+	public boolean remove(StoredMessage message) throws IOException
+	{
+		if (this.messages.remove(message.getId()) == null)
+			return false;
+
+		Files.deleteIfExists(this.envelopeDirectory.resolve(message.getId() + ENVELOPE_SUFFIX));
+		this.releaseReferences(message.getDigest(), 1);
+		return true;
+	}
+
+	/**
+	 * @return the number of distinct messages whose data is stored
+	 */
+	public synchronized int getContentCount()
+	{
+		return this.references.size();
+	}
+
+	/**
+	 * @return the number of envelopes which refer to the data with the
+	 *         digest
+	 */
+	public synchronized int getReferenceCount(String digest)
+	{
+		Integer count = this.references.get(digest);
+		return count == null ? 0 : count;
+	}
+
+	/**
+	 * Adds references to data which is already stored.
+	 *
+	 * @return false if the data is not stored, and no references were added
+	 */
+	private synchronized boolean addReferences(String digest, int count)
+	{
+		Integer current = this.references.get(digest);
+		if (current == null)
+			return false;
+
+		this.references.put(digest, current + count);
+		return true;
+	}
+
+	/**
+	 * Drops references, and deletes the data when the last one is dropped.
+	 */
+	private synchronized void releaseReferences(String digest, int count) throws IOException
+	{
+		Integer current = this.references.get(digest);
+		if (current == null || count == 0)
+			return;
+
+		if (current > count)
+		{
+			this.references.put(digest, current - count);
+		}
+		else
+		{
+			this.references.remove(digest);
+			try
+			{
+				Files.delete(this.contentPath(digest));
+			}
+			catch (NoSuchFileException ex)
+			{
+				log.warn("Stored data " + digest + " was already deleted");
+			}
+		}
+	}
+
+	/**
+	 * Writes the envelope to a temporary file, syncs it, and then gives it its
+	 * name, so a crash never leaves a partial envelope behind.
+	 */
+	private void writeEnvelope(StoredMessage message) throws IOException
+	{
+		Path temp = this.envelopeDirectory.resolve(message.getId() + TEMP_SUFFIX);
+		try
+		{
+			try (FileChannel channel = FileChannel.open(temp,
+					StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))
+			{
+				ByteBuffer buffer = ByteBuffer.wrap(message.encode());
+				while (buffer.hasRemaining())
+					channel.write(buffer);
+				channel.force(false);
+			}
+			Files.move(temp, this.envelopeDirectory.resolve(message.getId() + ENVELOPE_SUFFIX),
+					StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally
+		{
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * Makes the names of the files moved into the directory survive a crash.
+	 */
+	private static void syncDirectory(Path directory)
+	{
+		try (FileChannel directoryChannel = FileChannel.open(directory, StandardOpenOption.READ))
+		{
+			directoryChannel.force(true);
+		}
+		catch (IOException ex)
+		{
+			log.debug("Syncing directory " + directory + " is not supported", ex);
+		}
+	}
+
+	/** */
+	private static byte[] readHeaderSection(MessageData data, long size) throws IOException
+	{
+		ByteBuffer header = ByteBuffer.allocate((int) size);
+		while (header.hasRemaining())
+		{
+			if (data.read(header.position(), header) < 0)
+				throw new IOException("The data ends within the header section");
+		}
+		return header.array();
+	}
+
+	/** */
+	private Path contentPath(String digest)
+	{
+		return this.contentDirectory.resolve(digest);
+	}
+
+	/** */
+	private static String toHex(byte[] bytes)
+	{
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b: bytes)
+			hex.append(String.format("%02x", b));
+		return hex.toString();
+	}
+}
@@ -0,0 +1,97 @@
+package org.subethamail.smtp.store;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.MessageContext;
+import org.subethamail.smtp.MessageData;
+import org.subethamail.smtp.MessageDataHandler;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.MessageHandlerFactory;
+import org.subethamail.smtp.RejectException;
+
+/**
+ * MessageHandlerFactory implementation which accepts every recipient, and
+ * stores the messages in a {@link ContentStore}: the data of identical
+ * messages once, and an envelope for each recipient. The client receives the
+ * reply to DATA when the message is on stable storage. The application takes
+ * the messages from the store.
+ * <p>
+ * Usage:
+ * <pre>
+ * ContentStore store = new ContentStore(directory);
+ * SMTPServer server = new SMTPServer(new ContentStoreMessageHandlerFactory(store));
+ * server.setDigestAlgorithm(ContentStore.DIGEST_ALGORITHM);
+ * server.start();
+ * </pre>
+ */
+public class ContentStoreMessageHandlerFactory implements MessageHandlerFactory
+{
+	private final static Logger log = LoggerFactory.getLogger(ContentStoreMessageHandlerFactory.class);
+
+	private final ContentStore store;
+
+	/** */
+	public ContentStoreMessageHandlerFactory(ContentStore store)
+	{
+		this.store = store;
+	}
+
+	/** */
+	public ContentStore getStore()
+	{
+		return this.store;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.subethamail.smtp.MessageHandlerFactory#create(org.subethamail.smtp.MessageContext)
+	 */
+	public MessageHandler create(MessageContext ctx)
+	{
+		return new Handler();
+	}
+
+	/**
+	 * Collects the envelope, and stores the message.
+	 */
+	class Handler implements MessageDataHandler
+	{
+		private String from;
+
+		private final List<String> recipients = new ArrayList<String>();
+
+		/** */
+		public void from(String from)
+		{
+			this.from = from;
+		}
+
+		/** */
+		public void recipient(String recipient)
+		{
+			this.recipients.add(recipient);
+		}
+
+		/** */
+		public void data(MessageData data) throws RejectException
+		{
+			try
+			{
+				store.store(this.from, this.recipients, data);
+			}
+			catch (IOException ex)
+			{
+				log.error("Failed to store message from " + this.from, ex);
+				throw new RejectException(451, "4.3.0 Error: could not store the message");
+			}
+		}
+
+		/** */
+		public void done()
+		{
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package org.subethamail.smtp.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * The envelope of a message for a single recipient in a {@link ContentStore}.
+ * It is a small record which refers to the body by its digest, so the
+ * envelopes of all recipients of messages with the same body share one copy
+ * of it. The header section differs for every transaction, so it is kept in
+ * the envelope rather than in the shared body.
+ */
+public class StoredMessage
+{
+	/** "SMS1", without the header section */
+	private static final int MAGIC_V1 = 0x534d5331;
+
+	/** "SMS2" */
+	private static final int MAGIC = 0x534d5332;
+
+	private final String id;
+
+	private final long receivedTime;
+
+	private final String from;
+
+	private final String recipient;
+
+	private final String digest;
+
+	/** The header section which precedes the stored data, may be empty */
+	private final byte[] header;
+
+	/** */
+	StoredMessage(String id, long receivedTime, String from, String recipient, String digest,
+			byte[] header)
+	{
+		this.id = id;
+		this.receivedTime = receivedTime;
+		this.from = from;
+		this.recipient = recipient;
+		this.digest = digest;
+		this.header = header;
+	}
+
+	/**
+	 * @return identifies the envelope within its store
+	 */
+	public String getId()
+	{
+		return this.id;
+	}
+
+	/**
+	 * @return the time the message was stored, in milliseconds since the
+	 *         epoch
+	 */
+	public long getReceivedTime()
+	{
+		return this.receivedTime;
+	}
+
+	/** */
+	public String getFrom()
+	{
+		return this.from;
+	}
+
+	/** */
+	public String getRecipient()
+	{
+		return this.recipient;
+	}
+
+	/**
+	 * @return the hexadecimal SHA-256 digest of the body, which is its key in
+	 *         the store
+	 */
+	public String getDigest()
+	{
+		return this.digest;
+	}
+
+	/** */
+	byte[] getHeader()
+	{
+		return this.header;
+	}
+
+	/** */
+	@Override
+	public String toString()
+	{
+		return this.id + " " + this.from + " -> " + this.recipient;
+	}
+
+	/** */
+	byte[] encode() throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeLong(this.receivedTime);
+		out.writeUTF(this.from);
+		out.writeUTF(this.recipient);
+		out.writeUTF(this.digest);
+		out.writeInt(this.header.length);
+		out.write(this.header);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/** */
+	static StoredMessage decode(String id, DataInputStream in) throws IOException
+	{
+		int magic = in.readInt();
+		if (magic != MAGIC && magic != MAGIC_V1)
+			throw new IOException("Not an envelope: " + id);
+
+		long receivedTime = in.readLong();
+		String from = in.readUTF();
+		String recipient = in.readUTF();
+		String digest = in.readUTF();
+
+		// the stored data of an old envelope starts with its header section
+		byte[] header = new byte[magic == MAGIC ? in.readInt() : 0];
+		in.readFully(header);
+		return new StoredMessage(id, receivedTime, from, recipient, digest, header);
+	}
+}
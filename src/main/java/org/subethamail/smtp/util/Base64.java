@@ -1,5 +1,12 @@
 package org.subethamail.smtp.util;
 
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /** A very fast and memory efficient class to encode and decode to and from BASE64 in full accordance
@@ -81,6 +88,19 @@ public class Base64
 		IA['='] = 0;
 	}
 
+	/** Like {@link #IA}, but {@link #PAD} for the pad character, and a byte each. */
+	private static final byte[] DA = new byte[256];
+	private static final byte[] BA = new byte[64];
+	private static final int PAD = -2;
+	static {
+		Arrays.fill(DA, (byte) -1);
+		for (int i = 0; i < 64; i++) {
+			DA[CA[i]] = (byte) i;
+			BA[i] = (byte) CA[i];
+		}
+		DA['='] = PAD;
+	}
+
 	// ****************************************************************************************
 	// *  char[] version
 	// ****************************************************************************************
@@ -155,7 +175,7 @@ public class Base64
 		// so we don't have to reallocate & copy it later.
 		int sepCnt = 0; // Number of separator characters. (Actually illegal characters, but that's a bonus...)
 		for (int i = 0; i < sLen; i++)  // If input is "pure" (I.e. no line separators or illegal chars) base64 this loop can be commented out.
-			if (IA[sArr[i]] < 0)
+			if (ia(sArr[i]) < 0)
 				sepCnt++;
 
 		// Check so that legal chars (including '=') are evenly divideable by 4 as specified in RFC 2045.
@@ -163,7 +183,7 @@ public class Base64
 			return null;
 
 		int pad = 0;
-		for (int i = sLen; i > 1 && IA[sArr[--i]] <= 0;)
+		for (int i = sLen; i > 1 && ia(sArr[--i]) <= 0;)
 			if (sArr[i] == '=')
 				pad++;
 
@@ -175,7 +195,7 @@ public class Base64
 			// Assemble three bytes into an int from four "valid" characters.
 			int i = 0;
 			for (int j = 0; j < 4; j++) {   // j only increased if a valid char was found.
-				int c = IA[sArr[s++]];
+				int c = ia(sArr[s++]);
 				if (c >= 0)
 				    i |= c << (18 - j * 6);
 				else
@@ -470,7 +490,7 @@ public class Base64
 		// so we don't have to reallocate & copy it later.
 		int sepCnt = 0; // Number of separator characters. (Actually illegal characters, but that's a bonus...)
 		for (int i = 0; i < sLen; i++)  // If input is "pure" (I.e. no line separators or illegal chars) base64 this loop can be commented out.
-			if (IA[str.charAt(i)] < 0)
+			if (ia(str.charAt(i)) < 0)
 				sepCnt++;
 
 		// Check so that legal chars (including '=') are evenly divideable by 4 as specified in RFC 2045.
@@ -479,7 +499,7 @@ public class Base64
 
 		// Count '=' at end
 		int pad = 0;
-		for (int i = sLen; i > 1 && IA[str.charAt(--i)] <= 0;)
+		for (int i = sLen; i > 1 && ia(str.charAt(--i)) <= 0;)
 			if (str.charAt(i) == '=')
 				pad++;
 
@@ -491,7 +511,7 @@ public class Base64
 			// Assemble three bytes into an int from four "valid" characters.
 			int i = 0;
 			for (int j = 0; j < 4; j++) {   // j only increased if a valid char was found.
-				int c = IA[str.charAt(s++)];
+				int c = ia(str.charAt(s++));
 				if (c >= 0)
 				    i |= c << (18 - j * 6);
 				else
@@ -572,4 +592,533 @@ public class Base64
 
 		return dArr;
 	}
-}
\ No newline at end of file
+
+	// ****************************************************************************************
+	// * byte[] range and ByteBuffer version
+	// ****************************************************************************************
+
+	/** Returns the number of bytes {@link #encode(byte[], int, int, byte[], int, boolean)} produces.
+	 * @param len The number of bytes to encode.
+	 * @param lineSep If "\r\n" is inserted after 76 characters.
+	 * @return The length of the BASE64 representation.
+	 */
+	public final static int encodedLength(int len, boolean lineSep)
+	{
+		if (len == 0)
+			return 0;
+
+		int cCnt = ((len - 1) / 3 + 1) << 2;
+		return cCnt + (lineSep ? (cCnt - 1) / 76 << 1 : 0);
+	}
+
+	/** Encodes a range of a byte array into a BASE64 representation in another array, in accordance with RFC 2045.
+	 * No temporary arrays are created.
+	 * @param sArr The bytes to convert.
+	 * @param sOff The index of the first byte to convert.
+	 * @param sLen The number of bytes to convert.
+	 * @param dArr The destination array, with room for {@link #encodedLength(int, boolean)} bytes.
+	 * @param dOff The index to write the first character to.
+	 * @param lineSep Optional "\r\n" after 76 characters, unless end of file.
+	 * @return The number of bytes written.
+	 */
+	public final static int encode(byte[] sArr, int sOff, int sLen, byte[] dArr, int dOff, boolean lineSep)
+	{
+		int dLen = encodedLength(sLen, lineSep);
+		if (dLen == 0)
+			return 0;
+
+		int eEnd = sOff + (sLen / 3) * 3;  // End of even 24-bits.
+		int dEnd = dOff + dLen;
+
+		// Encode even 24-bits
+		for (int s = sOff, d = dOff, cc = 0; s < eEnd;) {
+			int i = (sArr[s++] & 0xff) << 16 | (sArr[s++] & 0xff) << 8 | (sArr[s++] & 0xff);
+
+			dArr[d++] = BA[(i >>> 18) & 0x3f];
+			dArr[d++] = BA[(i >>> 12) & 0x3f];
+			dArr[d++] = BA[(i >>> 6) & 0x3f];
+			dArr[d++] = BA[i & 0x3f];
+
+			if (lineSep && ++cc == 19 && d < dEnd - 2) {
+				dArr[d++] = '\r';
+				dArr[d++] = '\n';
+				cc = 0;
+			}
+		}
+
+		// Pad and encode last bits if source isn't an even 24 bits.
+		int left = sOff + sLen - eEnd; // 0 - 2.
+		if (left > 0) {
+			int i = ((sArr[eEnd] & 0xff) << 10) | (left == 2 ? ((sArr[eEnd + 1] & 0xff) << 2) : 0);
+
+			dArr[dEnd - 4] = BA[i >> 12];
+			dArr[dEnd - 3] = BA[(i >>> 6) & 0x3f];
+			dArr[dEnd - 2] = left == 2 ? BA[i & 0x3f] : (byte) '=';
+			dArr[dEnd - 1] = '=';
+		}
+		return dLen;
+	}
+
+	/** Encodes the remaining bytes of a buffer into a BASE64 representation in another buffer, in accordance with
+	 * RFC 2045. The positions of both buffers are advanced. Buffers without an accessible array, like read-only
+	 * or direct ones, are encoded through a small buffer.
+	 * @param src The bytes to convert.
+	 * @param dst The destination, with room for {@link #encodedLength(int, boolean)} bytes.
+	 * @param lineSep Optional "\r\n" after 76 characters, unless end of file.
+	 * @return The number of bytes written.
+	 * @throws BufferOverflowException If there is not enough room in the destination.
+	 */
+	public final static int encode(ByteBuffer src, ByteBuffer dst, boolean lineSep)
+	{
+		int sLen = src.remaining();
+		int dLen = encodedLength(sLen, lineSep);
+		if (dst.remaining() < dLen)
+			throw new BufferOverflowException();
+
+		if (src.hasArray() && dst.hasArray()) {
+			encode(src.array(), src.arrayOffset() + src.position(), sLen,
+					dst.array(), dst.arrayOffset() + dst.position(), lineSep);
+			src.position(src.limit());
+			dst.position(dst.position() + dLen);
+			return dLen;
+		}
+
+		// Whole lines at a time, so line separators only need to be added between them.
+		byte[] in = new byte[57 * 16];
+		byte[] out = new byte[encodedLength(in.length, lineSep)];
+		while (src.hasRemaining()) {
+			int n = Math.min(src.remaining(), in.length);
+			src.get(in, 0, n);
+			dst.put(out, 0, encode(in, 0, n, out, 0, lineSep));
+			if (lineSep && src.hasRemaining()) {
+				dst.put((byte) '\r');
+				dst.put((byte) '\n');
+			}
+		}
+		return dLen;
+	}
+
+	/** Decodes a range of a BASE64 encoded byte array into another array, or into the same one. All illegal
+	 * characters will be ignored and can handle both arrays with and without line separators. No temporary arrays
+	 * are created.
+	 * @param sArr The source array.
+	 * @param sOff The index of the first character.
+	 * @param sLen The number of characters.
+	 * @param dArr The destination array, with room for <code>sLen * 3 / 4</code> bytes. It may be the source array
+	 * if <code>dOff &lt;= sOff</code>, so data can be decoded in place.
+	 * @param dOff The index to write the first byte to.
+	 * @return The number of bytes decoded, or -1 if the legal characters (including '=') do not form complete
+	 * groups of four. (I.e. definitely corrupted).
+	 */
+	public final static int decode(byte[] sArr, int sOff, int sLen, byte[] dArr, int dOff)
+	{
+		DecodeState state = new DecodeState();
+		int d = state.decode(sArr, sOff, sOff + sLen, dArr, dOff);
+		return state.count != 0 || state.corrupt ? -1 : d - dOff;
+	}
+
+	/** Decodes a range of a BASE64 encoded byte array in place, see {@link #decode(byte[], int, int, byte[], int)}.
+	 * @return The number of bytes decoded, starting at <code>off</code>, or -1 if corrupted.
+	 */
+	public final static int decodeInPlace(byte[] arr, int off, int len)
+	{
+		return decode(arr, off, len, arr, off);
+	}
+
+	/** Decodes the remaining characters of a buffer into another buffer, see
+	 * {@link #decode(byte[], int, int, byte[], int)}. The positions of both buffers are advanced. The buffers may
+	 * share their content if the position of the destination is not after the one of the source.
+	 * @param src The BASE64 encoded characters.
+	 * @param dst The destination, with room for <code>src.remaining() * 3 / 4</code> bytes.
+	 * @return The number of bytes decoded, or -1 if corrupted. The destination is undefined then.
+	 * @throws BufferOverflowException If there is not enough room in the destination.
+	 */
+	public final static int decode(ByteBuffer src, ByteBuffer dst)
+	{
+		int sLen = src.remaining();
+		if (dst.remaining() < sLen * 3 / 4)
+			throw new BufferOverflowException();
+
+		DecodeState state = new DecodeState();
+		int dStart = dst.position();
+		if (src.hasArray() && dst.hasArray()) {
+			int d = state.decode(src.array(), src.arrayOffset() + src.position(), src.arrayOffset() + src.limit(),
+					dst.array(), dst.arrayOffset() + dStart);
+			src.position(src.limit());
+			dst.position(d - dst.arrayOffset());
+		} else {
+			// Room for the group left from the last chunk, like DecodingInputStream.
+			byte[] buf = new byte[Math.min(sLen, 1024) + 2];
+			while (src.hasRemaining()) {
+				int n = Math.min(src.remaining(), buf.length - 2);
+				src.get(buf, 2, n);
+				dst.put(buf, 0, state.decode(buf, 2, 2 + n, buf, 0));
+			}
+		}
+		return state.count != 0 || state.corrupt ? -1 : dst.position() - dStart;
+	}
+
+	/** Decodes the remaining characters of a buffer in place. The limit is set to the end of the decoded bytes,
+	 * the position is not changed.
+	 * @return The number of bytes decoded, or -1 if corrupted. The content of the buffer is undefined then.
+	 */
+	public final static int decodeInPlace(ByteBuffer buf)
+	{
+		ByteBuffer dst = buf.duplicate();
+		int len = decode(buf.duplicate(), dst);
+		if (len >= 0)
+			buf.limit(dst.position());
+		return len;
+	}
+
+	/** Looks up a character which may be outside of the table. Those are illegal. */
+	private static int ia(char c)
+	{
+		return c < 256 ? IA[c] : -1;
+	}
+
+	/** The state of a decoding which is continued over several calls. */
+	private static final class DecodeState
+	{
+		/** The bits of the current group of four characters. */
+		int bits;
+
+		/** The number of characters in the current group. */
+		int count;
+
+		/** True once a pad character was seen. */
+		boolean ended;
+
+		/** True if a single character was left over at the end. */
+		boolean corrupt;
+
+		/** Decodes the characters <code>sArr[s]</code> to <code>sArr[sEnd - 1]</code> into <code>dArr</code>
+		 * from index <code>d</code>. It may be the same array if <code>d &lt;= s</code>, or if <code>d + 2 &lt;= s</code>
+		 * when a group was left from an earlier call. Characters after a pad character are ignored.
+		 * @return The index after the last byte written.
+		 */
+		int decode(byte[] sArr, int s, int sEnd, byte[] dArr, int d)
+		{
+			int bits = this.bits, n = this.count;
+			while (s < sEnd && !this.ended) {
+				if (n == 0) {
+					// Four legal characters in a row. Any other character makes the int negative.
+					for (int e = sEnd - 3; s < e; s += 4) {
+						int i = DA[sArr[s] & 0xff] << 18 | DA[sArr[s + 1] & 0xff] << 12
+								| DA[sArr[s + 2] & 0xff] << 6 | DA[sArr[s + 3] & 0xff];
+						if (i < 0)
+							break;
+						dArr[d++] = (byte) (i >> 16);
+						dArr[d++] = (byte) (i >> 8);
+						dArr[d++] = (byte) i;
+					}
+					if (s == sEnd)
+						break;
+				}
+
+				int c = DA[sArr[s++] & 0xff];
+				if (c >= 0) {
+					bits = bits << 6 | c;
+					if (++n == 4) {
+						dArr[d++] = (byte) (bits >> 16);
+						dArr[d++] = (byte) (bits >> 8);
+						dArr[d++] = (byte) bits;
+						bits = 0;
+						n = 0;
+					}
+				} else if (c == PAD) {
+					this.bits = bits;
+					this.count = n;
+					d = this.end(dArr, d);
+					bits = 0;
+					n = 0;
+				}
+			}
+			this.bits = bits;
+			this.count = n;
+			return d;
+		}
+
+		/** Ends the data, and writes the one or two bytes of an incomplete last group.
+		 * @return The index after the last byte written.
+		 */
+		int end(byte[] dArr, int d)
+		{
+			if (!this.ended) {
+				this.ended = true;
+				if (this.count == 1) {
+					this.corrupt = true;
+				} else if (this.count == 2) {
+					dArr[d++] = (byte) (this.bits >> 4);
+				} else if (this.count == 3) {
+					dArr[d++] = (byte) (this.bits >> 10);
+					dArr[d++] = (byte) (this.bits >> 2);
+				}
+				this.bits = 0;
+				this.count = 0;
+			}
+			return d;
+		}
+	}
+
+	// ****************************************************************************************
+	// * Streaming version
+	// ****************************************************************************************
+
+	/** Decodes BASE64 content written to it, and writes the decoded bytes to the underlying stream. Line separators
+	 * and all other illegal characters are ignored, as RFC 2045 requires, and decoding stops at the pad character.
+	 * An incomplete last group is decoded as far as possible.
+	 */
+	public static class DecodingOutputStream extends FilterOutputStream
+	{
+		private final DecodeState state = new DecodeState();
+
+		private final byte[] buf = new byte[8192];
+
+		private int len;
+
+		public DecodingOutputStream(OutputStream out)
+		{
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			this.write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			// At most 3 bytes for every 4 characters, plus 2 for the group left from the last call.
+			for (int end = off + len; off < end && !this.state.ended;) {
+				int n = Math.min(end - off, 4096);
+				if (this.len > this.buf.length - (n * 3 / 4 + 3))
+					this.flushBuffer();
+				this.len = this.state.decode(b, off, off + n, this.buf, this.len);
+				off += n;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException
+		{
+			this.flushBuffer();
+			this.out.flush();
+		}
+
+		/** Decodes an incomplete last group, and closes the underlying stream. */
+		@Override
+		public void close() throws IOException
+		{
+			if (this.len > this.buf.length - 2)
+				this.flushBuffer();
+			this.len = this.state.end(this.buf, this.len);
+			super.close();
+		}
+
+		private void flushBuffer() throws IOException
+		{
+			if (this.len > 0) {
+				this.out.write(this.buf, 0, this.len);
+				this.len = 0;
+			}
+		}
+	}
+
+	/** Reads BASE64 content from the underlying stream, and returns it decoded, see {@link DecodingOutputStream}.
+	 * The end of the stream is reported after the pad character, even if the underlying stream goes on.
+	 */
+	public static class DecodingInputStream extends FilterInputStream
+	{
+		private final DecodeState state = new DecodeState();
+
+		/** Receives the characters, and then the decoded bytes */
+		private final byte[] buf = new byte[8192];
+
+		private int pos;
+
+		private int len;
+
+		public DecodingInputStream(InputStream in)
+		{
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			if (!this.fill())
+				return -1;
+			return this.buf[this.pos++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			if (len == 0)
+				return 0;
+			if (!this.fill())
+				return -1;
+
+			int n = Math.min(len, this.len - this.pos);
+			System.arraycopy(this.buf, this.pos, b, off, n);
+			this.pos += n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException
+		{
+			long skipped = 0;
+			while (skipped < n && this.fill()) {
+				int count = (int) Math.min(n - skipped, this.len - this.pos);
+				this.pos += count;
+				skipped += count;
+			}
+			return skipped;
+		}
+
+		@Override
+		public int available()
+		{
+			return this.len - this.pos;
+		}
+
+		@Override
+		public boolean markSupported()
+		{
+			return false;
+		}
+
+		@Override
+		public void mark(int readlimit)
+		{
+		}
+
+		@Override
+		public void reset() throws IOException
+		{
+			throw new IOException("mark/reset not supported");
+		}
+
+		/** Decodes more bytes into the buffer if it is empty.
+		 * @return False at the end of the data.
+		 */
+		private boolean fill() throws IOException
+		{
+			while (this.pos == this.len) {
+				if (this.state.ended)
+					return false;
+
+				// Leave room for the group left from the last call.
+				int n = this.in.read(this.buf, 2, this.buf.length - 2);
+				this.pos = 0;
+				if (n == -1)
+					this.len = this.state.end(this.buf, 0);
+				else
+					this.len = this.state.decode(this.buf, 2, 2 + n, this.buf, 0);
+			}
+			return true;
+		}
+	}
+
+	/** Encodes the bytes written to it into BASE64, and writes the characters to the underlying stream. The pad
+	 * characters are written when the stream is closed.
+	 */
+	public static class EncodingOutputStream extends FilterOutputStream
+	{
+		private final boolean lineSep;
+
+		/** The bytes of an incomplete group of three. */
+		private int bits;
+
+		private int count;
+
+		/** The characters on the current line. */
+		private int lineLength;
+
+		private final byte[] buf = new byte[8192];
+
+		private int len;
+
+		/**
+		 * @param lineSep Optional "\r\n" after 76 characters, unless end of file.
+		 */
+		public EncodingOutputStream(OutputStream out, boolean lineSep)
+		{
+			super(out);
+			this.lineSep = lineSep;
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			this.write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			int bits = this.bits, count = this.count;
+			for (int end = off + len; off < end;) {
+				bits = bits << 8 | (b[off++] & 0xff);
+				if (++count == 3) {
+					this.quad(bits);
+					bits = 0;
+					count = 0;
+				}
+			}
+			this.bits = bits;
+			this.count = count;
+		}
+
+		@Override
+		public void flush() throws IOException
+		{
+			this.flushBuffer();
+			this.out.flush();
+		}
+
+		/** Encodes and pads an incomplete last group, and closes the underlying stream. */
+		@Override
+		public void close() throws IOException
+		{
+			if (this.count > 0) {
+				int i = this.count == 1 ? this.bits << 16 : this.bits << 8;
+				this.quad(i);
+				this.buf[this.len - 1] = '=';
+				if (this.count == 1)
+					this.buf[this.len - 2] = '=';
+				this.count = 0;
+			}
+			super.close();
+		}
+
+		/** Adds the four characters of a group, and a line separator before them if the line is full. */
+		private void quad(int i) throws IOException
+		{
+			if (this.len > this.buf.length - 6)
+				this.flushBuffer();
+			if (this.lineSep && this.lineLength == 76) {
+				this.buf[this.len++] = '\r';
+				this.buf[this.len++] = '\n';
+				this.lineLength = 0;
+			}
+			this.buf[this.len++] = BA[(i >>> 18) & 0x3f];
+			this.buf[this.len++] = BA[(i >>> 12) & 0x3f];
+			this.buf[this.len++] = BA[(i >>> 6) & 0x3f];
+			this.buf[this.len++] = BA[i & 0x3f];
+			this.lineLength += 4;
+		}
+
+		private void flushBuffer() throws IOException
+		{
+			if (this.len > 0) {
+				this.out.write(this.buf, 0, this.len);
+				this.len = 0;
+			}
+		}
+	}
+}
@@ -5,7 +5,6 @@
 
 package org.subethamail.wiser;
 
-import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -119,14 +118,9 @@ public class Wiser implements SimpleMessageListener
 			log.debug("Delivering mail from " + from + " to " + recipient);
 
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
-		data = new BufferedInputStream(data);
-
-		// read the data from the stream
-		int current;
-		while ((current = data.read()) >= 0)
-		{
-			out.write(current);
-		}
+
+		// read the data from the stream, a block at a time
+		data.transferTo(out);
 
 		byte[] bytes = out.toByteArray();
 
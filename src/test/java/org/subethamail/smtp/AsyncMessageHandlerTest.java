@@ -0,0 +1,220 @@
+package org.subethamail.smtp;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeoutException;
+
+import junit.framework.TestCase;
+
+import org.subethamail.smtp.client.SMTPException;
+import org.subethamail.smtp.client.SmartClient;
+import org.subethamail.smtp.helper.AsyncMessageHandlerAdapter;
+import org.subethamail.smtp.server.SMTPServer;
+import org.subethamail.smtp.util.TextUtils;
+
+/**
+ * Tests asynchronous message handlers plugged in through
+ * {@link AsyncMessageHandlerAdapter}.
+ */
+public class AsyncMessageHandlerTest extends TestCase
+{
+	/** */
+	public static final int PORT = 2566;
+
+	private SMTPServer server;
+
+	/** Completes the stages, standing in for a non-blocking remote store */
+	private ExecutorService store;
+
+	/** The data received by the last handler */
+	private volatile String received;
+
+	/** If true, the handlers never complete the stage of from() */
+	private volatile boolean stalled;
+
+	/** If true, the data subscribers never request a chunk */
+	private volatile boolean stalledData;
+
+	/** The failure signalled to the last data subscriber */
+	private volatile Throwable dataError;
+
+	/** */
+	public AsyncMessageHandlerTest(String name)
+	{
+		super(name);
+	}
+
+	/** */
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+
+		this.store = Executors.newSingleThreadExecutor();
+		this.server = new SMTPServer(new AsyncMessageHandlerAdapter(new AsyncMessageHandlerFactory()
+		{
+			public AsyncMessageHandler create(MessageContext ctx)
+			{
+				return new StoringHandler();
+			}
+		}));
+		this.server.setHostName("localhost");
+		this.server.setPort(PORT);
+		this.server.setDisableReceivedHeaders(true);
+		this.server.start();
+	}
+
+	/** */
+	@Override
+	protected void tearDown() throws Exception
+	{
+		this.server.stop();
+		this.store.shutdown();
+		super.tearDown();
+	}
+
+	/** */
+	public void testDelivery() throws Exception
+	{
+		StringBuilder body = new StringBuilder();
+		for (int i = 0; i < 10000; i++)
+			body.append("line ").append(i).append("\r\n");
+
+		SmartClient client = new SmartClient("localhost", PORT, "localhost");
+		client.from("john@example.com");
+		client.to("jane@example.com");
+		try
+		{
+			client.to("unknown@example.com");
+			fail();
+		}
+		catch (SMTPException e)
+		{
+			assertEquals(553, e.getResponse().getCode());
+		}
+		client.dataStart();
+		byte[] bytes = TextUtils.getAsciiBytes(body.toString());
+		client.dataWrite(bytes, bytes.length);
+		client.dataEnd();
+		client.quit();
+
+		assertEquals(body.toString(), this.received);
+	}
+
+	/** */
+	public void testStalledHandler() throws Exception
+	{
+		this.server.setConnectionTimeout(500);
+		this.stalled = true;
+
+		SmartClient client = new SmartClient("localhost", PORT, "localhost");
+		try
+		{
+			client.from("john@example.com");
+			fail();
+		}
+		catch (SMTPException e)
+		{
+			assertEquals(451, e.getResponse().getCode());
+		}
+		client.quit();
+	}
+
+	/** */
+	public void testStalledSubscriber() throws Exception
+	{
+		this.server.setConnectionTimeout(500);
+		this.stalledData = true;
+
+		SmartClient client = new SmartClient("localhost", PORT, "localhost");
+		client.from("john@example.com");
+		client.to("jane@example.com");
+		client.dataStart();
+		byte[] bytes = TextUtils.getAsciiBytes("Subject: test\r\n\r\nbody\r\n");
+		client.dataWrite(bytes, bytes.length);
+		try
+		{
+			client.dataEnd();
+			fail();
+		}
+		catch (SMTPException e)
+		{
+			assertEquals(451, e.getResponse().getCode());
+		}
+		client.quit();
+		assertTrue(String.valueOf(this.dataError), this.dataError instanceof TimeoutException);
+	}
+
+	/**
+	 * Completes every stage on the store thread, and consumes the data one
+	 * chunk at a time.
+	 */
+	class StoringHandler implements AsyncMessageHandler
+	{
+		public CompletionStage<Void> from(String from)
+		{
+			if (stalled)
+				return new CompletableFuture<Void>();
+			return CompletableFuture.runAsync(() -> {}, store);
+		}
+
+		public CompletionStage<Void> recipient(final String recipient)
+		{
+			return CompletableFuture.runAsync(() -> {
+				if (recipient.startsWith("unknown"))
+					throw new RejectException(553, "<" + recipient + "> address unknown.");
+			}, store);
+		}
+
+		public CompletionStage<Void> data(Flow.Publisher<ByteBuffer> data)
+		{
+			final CompletableFuture<Void> result = new CompletableFuture<Void>();
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			data.subscribe(new Flow.Subscriber<ByteBuffer>()
+			{
+				Flow.Subscription subscription;
+
+				public void onSubscribe(Flow.Subscription subscription)
+				{
+					this.subscription = subscription;
+					if (!stalledData)
+						subscription.request(1);
+				}
+
+				public void onNext(final ByteBuffer chunk)
+				{
+					store.execute(() -> {
+						byte[] bytes = new byte[chunk.remaining()];
+						chunk.get(bytes);
+						out.write(bytes, 0, bytes.length);
+						subscription.request(1);
+					});
+				}
+
+				public void onError(Throwable throwable)
+				{
+					dataError = throwable;
+					result.completeExceptionally(throwable);
+				}
+
+				public void onComplete()
+				{
+					store.execute(() -> {
+						received = TextUtils.getStringAscii(out.toByteArray());
+						result.complete(null);
+					});
+				}
+			});
+			return result;
+		}
+
+		public void done()
+		{
+		}
+	}
+}
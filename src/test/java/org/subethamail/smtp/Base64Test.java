@@ -0,0 +1,157 @@
+package org.subethamail.smtp;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+import org.subethamail.smtp.util.Base64;
+import org.subethamail.smtp.util.TextUtils;
+
+public class Base64Test
+{
+	private final Random random = new Random(1);
+
+	@Test
+	public void testEncode()
+	{
+		for (int len = 0; len < 200; len++)
+		{
+			byte[] data = this.bytes(len);
+			for (boolean lineSep : new boolean[] { false, true })
+			{
+				byte[] expected = Base64.encodeToByte(data, lineSep);
+				assertEquals(expected.length, Base64.encodedLength(len, lineSep));
+
+				byte[] dst = new byte[expected.length + 5];
+				assertEquals(expected.length, Base64.encode(data, 0, len, dst, 3, lineSep));
+				assertArrayEquals(expected, Arrays.copyOfRange(dst, 3, 3 + expected.length));
+
+				ByteBuffer buffer = ByteBuffer.allocateDirect(expected.length);
+				Base64.encode(ByteBuffer.wrap(data).asReadOnlyBuffer(), buffer, lineSep);
+				assertEquals(0, buffer.remaining());
+				assertArrayEquals(expected, this.array(buffer.flip()));
+			}
+		}
+		byte[] data = this.bytes(5000);
+		assertEquals(java.util.Base64.getMimeEncoder().encodeToString(data),
+				TextUtils.getStringAscii(Base64.encodeToByte(data, true)));
+	}
+
+	@Test
+	public void testDecode()
+	{
+		for (int len = 0; len < 200; len++)
+		{
+			byte[] data = this.bytes(len);
+			byte[] encoded = java.util.Base64.getMimeEncoder().encode(data);
+
+			byte[] dst = new byte[encoded.length * 3 / 4 + 1];
+			int count = Base64.decode(encoded, 0, encoded.length, dst, 1);
+			assertArrayEquals(data, Arrays.copyOfRange(dst, 1, 1 + count));
+
+			byte[] copy = encoded.clone();
+			assertArrayEquals(data, Arrays.copyOf(copy, Base64.decodeInPlace(copy, 0, copy.length)));
+
+			ByteBuffer buffer = ByteBuffer.allocateDirect(encoded.length);
+			buffer.put(encoded).flip();
+			assertEquals(len, Base64.decodeInPlace(buffer));
+			assertArrayEquals(data, this.array(buffer));
+
+			ByteBuffer out = ByteBuffer.allocate(encoded.length);
+			assertEquals(len, Base64.decode(ByteBuffer.wrap(encoded), out));
+			assertArrayEquals(data, this.array(out.flip()));
+		}
+	}
+
+	@Test
+	public void testDecodeCorrupt()
+	{
+		byte[] dst = new byte[16];
+		assertEquals(-1, Base64.decode(TextUtils.getAsciiBytes("QUJ"), 0, 3, dst, 0));
+		assertEquals(-1, Base64.decode(TextUtils.getAsciiBytes("QUJDR==="), 0, 8, dst, 0));
+		assertEquals(4, Base64.decode(TextUtils.getAsciiBytes("Q U\r\nJ*DRA=="), 0, 12, dst, 0));
+		assertEquals("ABCD", TextUtils.getStringAscii(Arrays.copyOf(dst, 4)));
+	}
+
+	@Test
+	public void testNonAscii()
+	{
+		assertArrayEquals(TextUtils.getAsciiBytes("AB"), Base64.decode("QU€I="));
+		assertArrayEquals(TextUtils.getAsciiBytes("AB"), Base64.decode("QU€I=".toCharArray()));
+	}
+
+	@Test
+	public void testStreams() throws IOException
+	{
+		byte[] data = this.bytes(100000);
+		byte[] encoded = java.util.Base64.getMimeEncoder().encode(data);
+		for (int chunk : new int[] { 1, 3, 4, 7, 76, 5000, encoded.length })
+		{
+			ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+			try (OutputStream out = new Base64.DecodingOutputStream(decoded))
+			{
+				for (int off = 0; off < encoded.length; off += chunk)
+					out.write(encoded, off, Math.min(chunk, encoded.length - off));
+			}
+			assertArrayEquals("chunk " + chunk, data, decoded.toByteArray());
+
+			decoded.reset();
+			try (InputStream in = new Base64.DecodingInputStream(new ByteArrayInputStream(encoded)))
+			{
+				byte[] buf = new byte[chunk];
+				int count;
+				while ((count = in.read(buf)) != -1)
+					decoded.write(buf, 0, count);
+			}
+			assertArrayEquals("chunk " + chunk, data, decoded.toByteArray());
+
+			ByteArrayOutputStream reencoded = new ByteArrayOutputStream();
+			try (OutputStream out = new Base64.EncodingOutputStream(reencoded, true))
+			{
+				for (int off = 0; off < data.length; off += chunk)
+					out.write(data, off, Math.min(chunk, data.length - off));
+			}
+			assertArrayEquals("chunk " + chunk, encoded, reencoded.toByteArray());
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocateDirect(encoded.length);
+		buffer.put(encoded).flip();
+		assertEquals(data.length, Base64.decodeInPlace(buffer));
+		assertArrayEquals(data, this.array(buffer));
+	}
+
+	@Test
+	public void testUnpaddedStream() throws IOException
+	{
+		ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+		try (OutputStream out = new Base64.DecodingOutputStream(decoded))
+		{
+			out.write(TextUtils.getAsciiBytes("QUJDRA"));
+		}
+		assertEquals("ABCD", TextUtils.getStringAscii(decoded.toByteArray()));
+	}
+
+	/** */
+	private byte[] bytes(int len)
+	{
+		byte[] bytes = new byte[len];
+		this.random.nextBytes(bytes);
+		return bytes;
+	}
+
+	/** */
+	private byte[] array(ByteBuffer buffer)
+	{
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return bytes;
+	}
+}
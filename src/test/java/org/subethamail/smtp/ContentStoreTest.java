@@ -0,0 +1,213 @@
+package org.subethamail.smtp;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import junit.framework.TestCase;
+
+import org.subethamail.smtp.client.SmartClient;
+import org.subethamail.smtp.server.SMTPServer;
+import org.subethamail.smtp.store.ContentStore;
+import org.subethamail.smtp.store.ContentStoreMessageHandlerFactory;
+import org.subethamail.smtp.store.StoredMessage;
+import org.subethamail.smtp.util.TextUtils;
+
+/**
+ * Tests storing messages through {@link ContentStoreMessageHandlerFactory},
+ * with a single copy of identical data.
+ */
+public class ContentStoreTest extends TestCase
+{
+	/** */
+	public static final int PORT = 2566;
+
+	private static final String NEWSLETTER = "Subject: news\r\n\r\nnews\r\n";
+
+	private static final String OTHER = "Subject: other\r\n\r\nother\r\n";
+
+	private Path directory;
+
+	private ContentStore store;
+
+	private SMTPServer server;
+
+	/** */
+	public ContentStoreTest(String name)
+	{
+		super(name);
+	}
+
+	/** */
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+
+		this.directory = Files.createTempDirectory("store");
+		this.store = new ContentStore(this.directory);
+		this.server = new SMTPServer(new ContentStoreMessageHandlerFactory(this.store));
+		this.server.setHostName("localhost");
+		this.server.setPort(PORT);
+		this.server.setDisableReceivedHeaders(true);
+		this.server.setDigestAlgorithm(ContentStore.DIGEST_ALGORITHM);
+		this.server.start();
+	}
+
+	/** */
+	@Override
+	protected void tearDown() throws Exception
+	{
+		this.server.stop();
+		try (Stream<Path> files = Files.walk(this.directory))
+		{
+			files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+		super.tearDown();
+	}
+
+	/** */
+	public void testDeduplication() throws Exception
+	{
+		for (int i = 0; i < 3; i++)
+			this.send(NEWSLETTER, "jane" + i + "@example.com", "joe" + i + "@example.com");
+		this.send(OTHER, "jane@example.com");
+
+		assertEquals(7, this.store.getMessages().size());
+		assertEquals(2, this.store.getContentCount());
+
+		StoredMessage newsletter = this.find("joe1@example.com");
+		assertEquals("john@example.com", newsletter.getFrom());
+		assertEquals(6, this.store.getReferenceCount(newsletter.getDigest()));
+		try (InputStream in = this.store.getInputStream(newsletter))
+		{
+			assertEquals(NEWSLETTER, TextUtils.getStringAscii(in.readAllBytes()));
+		}
+
+		// the data is deleted with the last envelope which refers to it
+		for (StoredMessage message: this.store.getMessages())
+		{
+			if (message.getDigest().equals(newsletter.getDigest()))
+				assertTrue(this.store.remove(message));
+		}
+		assertFalse(this.store.remove(newsletter));
+		assertEquals(1, this.store.getContentCount());
+		assertEquals(0, this.store.getReferenceCount(newsletter.getDigest()));
+	}
+
+	/** */
+	public void testReopen() throws Exception
+	{
+		this.send(NEWSLETTER, "jane@example.com", "joe@example.com");
+		this.send(NEWSLETTER, "jim@example.com");
+		this.store.remove(this.find("joe@example.com"));
+
+		// a leftover of a crash
+		Files.write(this.directory.resolve("content").resolve("0123"), new byte[] { 1 });
+
+		ContentStore reopened = new ContentStore(this.directory);
+		assertEquals(2, reopened.getMessages().size());
+		assertEquals(1, reopened.getContentCount());
+		StoredMessage message = reopened.getMessages().get(0);
+		assertEquals(2, reopened.getReferenceCount(message.getDigest()));
+		assertFalse(Files.exists(this.directory.resolve("content").resolve("0123")));
+	}
+
+	/** */
+	public void testReceivedHeaders() throws Exception
+	{
+		this.server.setDisableReceivedHeaders(false);
+		// each Received header has another session id, and time
+		this.send(NEWSLETTER, "jane@example.com");
+		this.send(NEWSLETTER, "joe@example.com");
+
+		assertEquals(2, this.store.getMessages().size());
+		assertEquals(1, this.store.getContentCount());
+
+		String jane;
+		try (InputStream in = this.store.getInputStream(this.find("jane@example.com")))
+		{
+			jane = TextUtils.getStringAscii(in.readAllBytes());
+		}
+		String joe;
+		try (InputStream in = this.store.getInputStream(this.find("joe@example.com")))
+		{
+			joe = TextUtils.getStringAscii(in.readAllBytes());
+		}
+		assertTrue(jane.startsWith("Received: "));
+		assertTrue(jane.endsWith(NEWSLETTER));
+		assertTrue(joe.endsWith(NEWSLETTER));
+		assertFalse(jane.equals(joe));
+
+		// the headers survive reopening the store
+		ContentStore reopened = new ContentStore(this.directory);
+		for (StoredMessage message: reopened.getMessages())
+		{
+			try (InputStream in = reopened.getInputStream(message))
+			{
+				String data = TextUtils.getStringAscii(in.readAllBytes());
+				assertEquals(message.getRecipient().startsWith("jane") ? jane : joe, data);
+			}
+		}
+	}
+
+	/** */
+	public void testSameBodyOtherHeaders() throws Exception
+	{
+		String body = "Dear reader,\r\n\r\nthe news of the week.\r\n";
+		String jane = "To: jane@example.com\r\nMessage-ID: <1@example.com>\r\n\r\n" + body;
+		String joe = "To: joe@example.com\r\nMessage-ID: <2@example.com>\r\n\r\n" + body;
+		this.send(jane, "jane@example.com");
+		this.send(joe, "joe@example.com");
+
+		// the body is stored once, the header sections in the envelopes
+		assertEquals(2, this.store.getMessages().size());
+		assertEquals(1, this.store.getContentCount());
+		assertEquals(this.find("jane@example.com").getDigest(), this.find("joe@example.com").getDigest());
+		try (InputStream in = this.store.getInputStream(this.find("jane@example.com")))
+		{
+			assertEquals(jane, TextUtils.getStringAscii(in.readAllBytes()));
+		}
+		try (InputStream in = this.store.getInputStream(this.find("joe@example.com")))
+		{
+			assertEquals(joe, TextUtils.getStringAscii(in.readAllBytes()));
+		}
+
+		// the digest computed afterwards is the same as the one computed inline
+		this.server.setDigestAlgorithm(null);
+		this.send(jane, "jim@example.com");
+		assertEquals(this.find("jane@example.com").getDigest(), this.find("jim@example.com").getDigest());
+		assertEquals(1, this.store.getContentCount());
+	}
+
+	/** */
+	private void send(String message, String... recipients) throws Exception
+	{
+		SmartClient client = new SmartClient("localhost", PORT, "localhost");
+		client.from("john@example.com");
+		for (String recipient: recipients)
+			client.to(recipient);
+		client.dataStart();
+		byte[] bytes = TextUtils.getAsciiBytes(message);
+		client.dataWrite(bytes, bytes.length);
+		client.dataEnd();
+		client.quit();
+	}
+
+	/** */
+	private StoredMessage find(String recipient)
+	{
+		List<StoredMessage> messages = this.store.getMessages();
+		for (StoredMessage message: messages)
+		{
+			if (message.getRecipient().equals(recipient))
+				return message;
+		}
+		fail(recipient + " not in " + Arrays.toString(messages.toArray()));
+		return null;
+	}
+}
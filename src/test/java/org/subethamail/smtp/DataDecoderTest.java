@@ -0,0 +1,130 @@
+package org.subethamail.smtp;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import org.subethamail.smtp.io.DataDecoder;
+import org.subethamail.smtp.io.DotTerminatedInputStream;
+import org.subethamail.smtp.io.DotUnstuffingInputStream;
+
+public class DataDecoderTest
+{
+	/** Every buffer size from 1 up, so that each state meets a refill */
+	private static final int MAX_BUFFER_SIZE = 8;
+
+	@Test
+	public void testEmpty() throws IOException
+	{
+		assertDecodes("", ".\r\n");
+	}
+
+	@Test
+	public void testPreserveLastCrLf() throws IOException
+	{
+		assertDecodes("a\r\n", "a\r\n.\r\n");
+	}
+
+	@Test
+	public void testUnstuffing() throws IOException
+	{
+		assertDecodes(".\r\n", "..\r\n.\r\n");
+		assertDecodes("a\r\n.b\r\n", "a\r\n..b\r\n.\r\n");
+		assertDecodes("a\r\nb\r\n", "a\r\n.b\r\n.\r\n");
+		assertDecodes("a\r\n\r\r\n", "a\r\n.\r\r\n.\r\n");
+		assertDecodes("a\r\n\rb\r\n", "a\r\n.\rb\r\n.\r\n");
+	}
+
+	@Test
+	public void testNoFalseTerminator() throws IOException
+	{
+		assertDecodes("a.\r\nb\n.\nc\r.\r\n", "a.\r\nb\n.\nc\r.\r\n.\r\n");
+		assertDecodes("a\r\r\n\r\n", "a\r\r\n\r\n.\r\n");
+	}
+
+	@Test
+	public void testSameAsStreams() throws IOException
+	{
+		String data = "Subject: x\r\n\r\nline\r\n..dot\r\n\r\nx.\r\n.\r\n";
+		InputStream old = new DotUnstuffingInputStream(new DotTerminatedInputStream(
+				new ByteArrayInputStream(data.getBytes("US-ASCII"))));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		old.transferTo(out);
+
+		assertDecodes(out.toString("US-ASCII"), data);
+	}
+
+	@Test
+	public void testStopsAtTerminator() throws IOException
+	{
+		DataDecoder decoder = new DataDecoder(new ByteArrayInputStream("a\r\n.\r\n".getBytes("US-ASCII")), 2);
+		assertEquals("a\r\n", decode(decoder));
+		assertNull(decoder.nextChunk());
+	}
+
+	@Test(expected = EOFException.class)
+	public void testMissingDotLine() throws IOException
+	{
+		decode(new DataDecoder(new ByteArrayInputStream("a\r\n".getBytes("US-ASCII"))));
+	}
+
+	@Test
+	public void testReadOnlyChunks() throws IOException
+	{
+		DataDecoder decoder = new DataDecoder(new ByteArrayInputStream("a\r\n.\r\n".getBytes("US-ASCII")));
+		assertTrue(decoder.nextChunk().isReadOnly());
+	}
+
+	@Test
+	public void testDiscard() throws IOException
+	{
+		byte[] bytes = "a\r\n..b\r\n.\r\r\n\r\n.\r\nMAIL".getBytes("US-ASCII");
+		for (int size = 1; size <= MAX_BUFFER_SIZE; size++)
+		{
+			for (int read = 0; read < 2; read++)
+			{
+				InputStream in = new ByteArrayInputStream(bytes);
+				DataDecoder decoder = new DataDecoder(in, size);
+				if (read > 0)
+					decoder.nextChunk();
+				decoder.discard();
+				assertNull("buffer size " + size, decoder.nextChunk());
+			}
+		}
+	}
+
+	@Test(expected = EOFException.class)
+	public void testDiscardMissingDotLine() throws IOException
+	{
+		new DataDecoder(new ByteArrayInputStream("a\r\n..\r\n".getBytes("US-ASCII"))).discard();
+	}
+
+	private void assertDecodes(String expected, String raw) throws IOException
+	{
+		byte[] bytes = raw.getBytes("US-ASCII");
+		for (int size = 1; size <= MAX_BUFFER_SIZE; size++)
+		{
+			DataDecoder decoder = new DataDecoder(new ByteArrayInputStream(bytes), size);
+			assertEquals("buffer size " + size, expected, decode(decoder));
+		}
+	}
+
+	private String decode(DataDecoder decoder) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ByteBuffer chunk;
+		while ((chunk = decoder.nextChunk()) != null)
+		{
+			byte[] bytes = new byte[chunk.remaining()];
+			chunk.get(bytes);
+			out.write(bytes);
+		}
+		return out.toString("US-ASCII");
+	}
+}
@@ -0,0 +1,141 @@
+package org.subethamail.smtp;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+import org.junit.Test;
+import org.subethamail.smtp.io.ChunkPool;
+import org.subethamail.smtp.io.DeferredFileOutputStream;
+import org.subethamail.smtp.io.MemoryBudget;
+import org.subethamail.smtp.io.SpoolManager;
+
+public class DeferredFileOutputStreamTest
+{
+	private static final String DATA = "0123456789abcdefghijklmnopqrstuvwxyz";
+
+	@Test
+	public void testInMemory() throws IOException
+	{
+		ChunkPool pool = new ChunkPool(8, 16);
+		DeferredFileOutputStream out = new DeferredFileOutputStream(1000, pool);
+		writeData(out);
+		checkData(out);
+
+		out.close();
+		assertEquals(5, pool.getPooledCount());
+	}
+
+	@Test
+	public void testSwitchToFile() throws IOException
+	{
+		ChunkPool pool = new ChunkPool(8, 16);
+		DeferredFileOutputStream out = new DeferredFileOutputStream(20, pool);
+		writeData(out);
+		// the chunks go back to the pool as soon as the data is on disk
+		assertEquals(2, pool.getPooledCount());
+		checkData(out);
+		out.close();
+	}
+
+	@Test
+	public void testMemoryBudget() throws IOException
+	{
+		ChunkPool pool = new ChunkPool(8, 16);
+		MemoryBudget budget = new MemoryBudget(40);
+		assertTrue(budget.tryReserve(16));
+
+		// the rest of the budget holds 3 chunks, but the message may take a
+		// quarter of it only
+		DeferredFileOutputStream out = new DeferredFileOutputStream(1000, pool, budget);
+		out.write(DATA.getBytes("US-ASCII")[0]);
+		assertEquals(24, budget.getUsed());
+		out.write(DATA.getBytes("US-ASCII"), 1, DATA.length() - 1);
+		assertEquals(16, budget.getUsed());
+		checkData(out);
+		out.close();
+		budget.release(16);
+
+		// once the budget runs out, the data goes to the file
+		budget = new MemoryBudget(400);
+		out = new DeferredFileOutputStream(1000, pool, budget);
+		out.write(DATA.getBytes("US-ASCII"), 0, 6);
+		assertEquals(8, budget.getUsed());
+		assertTrue(budget.tryReserve(390));
+		out.write(DATA.getBytes("US-ASCII"), 6, DATA.length() - 6);
+		assertEquals(390, budget.getUsed());
+		checkData(out);
+		out.close();
+		budget.release(390);
+		assertEquals(0, budget.getUsed());
+	}
+
+	@Test
+	public void testExpectedSize() throws IOException
+	{
+		ChunkPool pool = new ChunkPool(8, 16);
+		MemoryBudget budget = new MemoryBudget(1000);
+		assertTrue(budget.tryReserve(40));
+
+		// the reserved bytes are used for the chunks up front
+		DeferredFileOutputStream out = new DeferredFileOutputStream(100, pool, budget,
+				SpoolManager.getDefault(), DATA.length(), 40);
+		assertEquals(40, budget.getUsed());
+		writeData(out);
+		assertEquals(40, budget.getUsed());
+		checkData(out);
+		out.close();
+		assertEquals(0, budget.getUsed());
+		assertEquals(5, pool.getPooledCount());
+
+		// too large for memory, the file is created at once
+		out = new DeferredFileOutputStream(20, pool, budget,
+				SpoolManager.getDefault(), DATA.length(), 0);
+		assertEquals(0, budget.getUsed());
+		writeData(out);
+		assertEquals(0, budget.getUsed());
+		checkData(out);
+		out.close();
+	}
+
+	private void writeData(DeferredFileOutputStream out) throws IOException
+	{
+		byte[] bytes = DATA.getBytes("US-ASCII");
+		out.write(bytes[0]);
+		out.write(bytes, 1, 10);
+		out.write(bytes, 11, bytes.length - 11);
+	}
+
+	private void checkData(DeferredFileOutputStream out) throws IOException
+	{
+		assertEquals(DATA.length(), out.getSize());
+
+		ByteBuffer dst = ByteBuffer.allocate(12);
+		assertEquals(12, out.read(5, dst));
+		assertEquals(DATA.substring(5, 17), new String(dst.array(), "US-ASCII"));
+		dst.clear();
+		assertEquals(-1, out.read(DATA.length(), dst));
+
+		for (int i = 0; i < 2; i++)
+		{
+			ByteArrayOutputStream copy = new ByteArrayOutputStream();
+			out.getInputStream().transferTo(copy);
+			assertEquals(DATA, copy.toString("US-ASCII"));
+		}
+
+		InputStream in = out.getInputStream();
+		assertEquals(2, in.skip(2));
+		assertEquals(DATA.charAt(2), in.read());
+		byte[] small = new byte[4];
+		assertEquals(4, in.read(small));
+		assertEquals(DATA.substring(3, 7), new String(small, "US-ASCII"));
+
+		ByteArrayOutputStream copy = new ByteArrayOutputStream();
+		assertEquals(DATA.length() - 10, out.transferTo(10, Channels.newChannel(copy)));
+		assertEquals(DATA.substring(10), copy.toString("US-ASCII"));
+	}
+}
@@ -0,0 +1,178 @@
+package org.subethamail.smtp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import org.subethamail.smtp.client.SMTPException;
+import org.subethamail.smtp.client.SmartClient;
+import org.subethamail.smtp.server.SMTPServer;
+import org.subethamail.smtp.util.TextUtils;
+
+/**
+ * Tests that a message rejected by a {@link MessageHeadersHandler} is
+ * refused once the client finished sending it, and that the session can go on
+ * with the next transaction.
+ */
+public class EarlyRejectionTest extends TestCase
+{
+	/** */
+	public static final int PORT = 2566;
+
+	/** The size of the message body, larger than any buffer */
+	private static final int BODY_SIZE = 512 * 1024;
+
+	/** The most a handler may read of a rejected message, one chunk */
+	private static final int READ_LIMIT = 64 * 1024;
+
+	private SMTPServer server;
+
+	/** True if the handler ignores the rejection and returns normally */
+	private volatile boolean swallow;
+
+	/** The number of bytes the last handler read */
+	private final AtomicLong read = new AtomicLong();
+
+	/** True if a read after a swallowed rejection failed as well */
+	private volatile boolean rejectedAgain;
+
+	/** */
+	public EarlyRejectionTest(String name)
+	{
+		super(name);
+	}
+
+	/** */
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+
+		this.server = new SMTPServer(new MessageHandlerFactory()
+		{
+			public MessageHandler create(MessageContext ctx)
+			{
+				return new FilteringHandler();
+			}
+		});
+		this.server.setHostName("localhost");
+		this.server.setPort(PORT);
+		this.server.start();
+	}
+
+	/** */
+	@Override
+	protected void tearDown() throws Exception
+	{
+		this.server.stop();
+		super.tearDown();
+	}
+
+	/** */
+	public void testRejectAfterHeaders() throws Exception
+	{
+		SmartClient client = new SmartClient("localhost", PORT, "localhost");
+		this.send(client, "spammer@example.com", 554);
+		assertTrue(this.read.get() < READ_LIMIT);
+
+		this.send(client, "john@example.com", 250);
+		assertTrue(this.read.get() > BODY_SIZE - 100);
+		client.quit();
+	}
+
+	/** */
+	public void testRejectionSwallowed() throws Exception
+	{
+		this.swallow = true;
+
+		SmartClient client = new SmartClient("localhost", PORT, "localhost");
+		this.send(client, "spammer@example.com", 554);
+		assertTrue(this.rejectedAgain);
+		assertTrue(this.read.get() < READ_LIMIT);
+
+		this.send(client, "john@example.com", 250);
+		client.quit();
+	}
+
+	/**
+	 * Sends a message with a large body, and checks the reply to it.
+	 */
+	private void send(SmartClient client, String from, int expectedCode) throws IOException, SMTPException
+	{
+		client.from(from);
+		client.to("jane@example.com");
+		client.dataStart();
+		byte[] header = TextUtils.getAsciiBytes("From: <" + from + ">\r\nSubject: test\r\n\r\n");
+		client.dataWrite(header, header.length);
+		StringBuilder lines = new StringBuilder();
+		while (lines.length() < 64 * 1024)
+			lines.append("0123456789012345678901234567890123456789012345678901234567890\r\n");
+		byte[] block = TextUtils.getAsciiBytes(lines.toString());
+		for (int sent = 0; sent < BODY_SIZE; sent += block.length)
+			client.dataWrite(block, block.length);
+		try
+		{
+			client.dataEnd();
+			assertEquals(250, expectedCode);
+		}
+		catch (SMTPException e)
+		{
+			assertEquals(expectedCode, e.getResponse().getCode());
+		}
+	}
+
+	/**
+	 * Rejects messages from spammers as soon as the headers are known, and
+	 * counts the body bytes it reads. If it swallows the rejection, it tries
+	 * to read on once, which must fail again.
+	 */
+	class FilteringHandler implements MessageHeadersHandler
+	{
+		public void from(String from) {}
+
+		public void recipient(String recipient) {}
+
+		public void headers(MessageHeaders headers) throws RejectException
+		{
+			if (headers.get("From").contains("spammer"))
+				throw new RejectException(554, "5.7.1 Sender blocked");
+		}
+
+		public void data(InputStream data) throws IOException
+		{
+			read.set(0);
+			rejectedAgain = false;
+			byte[] buf = new byte[8192];
+			while (true)
+			{
+				try
+				{
+					int count = data.read(buf);
+					if (count == -1)
+						break;
+					read.addAndGet(count);
+				}
+				catch (RejectException e)
+				{
+					if (!swallow)
+						throw e;
+					try
+					{
+						int count = data.read(buf);
+						if (count > 0)
+							read.addAndGet(count);
+					}
+					catch (RejectException again)
+					{
+						rejectedAgain = true;
+					}
+					break;
+				}
+			}
+		}
+
+		public void done() {}
+	}
+}
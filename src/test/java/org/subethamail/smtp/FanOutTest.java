@@ -0,0 +1,225 @@
+package org.subethamail.smtp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.subethamail.smtp.client.SMTPException;
+import org.subethamail.smtp.client.SmartClient;
+import org.subethamail.smtp.helper.DeliveryFailurePolicy;
+import org.subethamail.smtp.helper.SimpleMessageListener;
+import org.subethamail.smtp.helper.SimpleMessageListenerAdapter;
+import org.subethamail.smtp.server.SMTPServer;
+import org.subethamail.smtp.util.TextUtils;
+
+/**
+ * Tests delivery to several listeners at the same time by the message
+ * listener adapters.
+ */
+public class FanOutTest extends TestCase
+{
+	/** */
+	public static final int PORT = 2566;
+
+	private static final String MESSAGE = "Subject: test\r\n\r\nbody\r\n";
+
+	private static final int RECIPIENTS = 3;
+
+	private SMTPServer server;
+
+	private SimpleMessageListenerAdapter adapter;
+
+	private ExecutorService executor;
+
+	/** Released when all deliveries are in progress at the same time */
+	private CountDownLatch concurrent;
+
+	/** Released when all deliveries have read the first byte */
+	private CountDownLatch reading;
+
+	/** The recipients which received the message */
+	private final List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+
+	/** */
+	public FanOutTest(String name)
+	{
+		super(name);
+	}
+
+	/** */
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+
+		this.concurrent = new CountDownLatch(RECIPIENTS);
+		this.reading = new CountDownLatch(RECIPIENTS);
+		this.executor = Executors.newFixedThreadPool(RECIPIENTS);
+		this.adapter = new SimpleMessageListenerAdapter(new SimpleMessageListener()
+		{
+			public boolean accept(String from, String recipient)
+			{
+				return true;
+			}
+
+			public void deliver(String from, String recipient, InputStream data) throws IOException
+			{
+				int first = data.read();
+				reading.countDown();
+				if (recipient.startsWith("slow"))
+				{
+					try
+					{
+						Thread.sleep(500);
+					}
+					catch (InterruptedException e)
+					{
+						throw new IOException(e);
+					}
+				}
+				String content = (char) first + TextUtils.getStringAscii(data.readAllBytes());
+				if (recipient.startsWith("failing"))
+					throw new RejectException(554, "Transaction failed");
+
+				concurrent.countDown();
+				try
+				{
+					if (!concurrent.await(5, TimeUnit.SECONDS))
+						throw new IOException("Deliveries were not concurrent");
+				}
+				catch (InterruptedException e)
+				{
+					throw new IOException(e);
+				}
+
+				delivered.add(recipient + " " + content);
+			}
+		});
+		this.adapter.setDeliveryExecutor(this.executor);
+
+		this.server = new SMTPServer(this.adapter);
+		this.server.setHostName("localhost");
+		this.server.setPort(PORT);
+		this.server.setDisableReceivedHeaders(true);
+		this.server.start();
+	}
+
+	/** */
+	@Override
+	protected void tearDown() throws Exception
+	{
+		this.server.stop();
+		this.executor.shutdown();
+		super.tearDown();
+	}
+
+	/** */
+	public void testConcurrentDelivery() throws Exception
+	{
+		this.send("a@example.com", "b@example.com", "c@example.com");
+
+		assertEquals(RECIPIENTS, this.delivered.size());
+		assertTrue(this.delivered.contains("a@example.com " + MESSAGE));
+	}
+
+	/** */
+	public void testRejectOnAnyFailure() throws Exception
+	{
+		this.concurrent = new CountDownLatch(RECIPIENTS - 1);
+		try
+		{
+			this.send("a@example.com", "b@example.com", "failing@example.com");
+			fail();
+		}
+		catch (SMTPException e)
+		{
+			assertEquals(554, e.getResponse().getCode());
+		}
+		assertEquals(RECIPIENTS - 1, this.delivered.size());
+	}
+
+	/** */
+	public void testRejectOnAllFailures() throws Exception
+	{
+		this.adapter.setFailurePolicy(DeliveryFailurePolicy.REJECT_ON_ALL_FAILURES);
+		this.concurrent = new CountDownLatch(RECIPIENTS - 1);
+
+		this.send("a@example.com", "failing@example.com", "b@example.com");
+
+		assertEquals(RECIPIENTS - 1, this.delivered.size());
+	}
+
+	/** */
+	public void testStreaming() throws Exception
+	{
+		this.adapter.setStreamingBufferSize(64 * 1024);
+
+		SmartClient client = new SmartClient("localhost", PORT, "localhost");
+		client.from("john@example.com");
+		client.to("a@example.com");
+		client.to("b@example.com");
+		client.to("c@example.com");
+		client.dataStart();
+		byte[] bytes = TextUtils.getAsciiBytes("Subject: test\r\n\r\n");
+		client.dataWrite(bytes, bytes.length);
+
+		// the listeners receive the data before its end
+		assertTrue(this.reading.await(5, TimeUnit.SECONDS));
+
+		bytes = TextUtils.getAsciiBytes("body\r\n");
+		client.dataWrite(bytes, bytes.length);
+		client.dataEnd();
+		client.quit();
+
+		assertEquals(RECIPIENTS, this.delivered.size());
+		assertTrue(this.delivered.contains("b@example.com " + MESSAGE));
+	}
+
+	/** */
+	public void testStreamingSlowListener() throws Exception
+	{
+		this.adapter.setStreamingBufferSize(16 * 1024);
+
+		StringBuilder message = new StringBuilder("Subject: test\r\n\r\n");
+		for (int i = 0; i < 50000; i++)
+			message.append("line ").append(i).append("\r\n");
+
+		SmartClient client = new SmartClient("localhost", PORT, "localhost");
+		client.from("john@example.com");
+		client.to("a@example.com");
+		client.to("slow@example.com");
+		client.to("c@example.com");
+		client.dataStart();
+		byte[] bytes = TextUtils.getAsciiBytes(message.toString());
+		client.dataWrite(bytes, bytes.length);
+		client.dataEnd();
+		client.quit();
+
+		assertEquals(RECIPIENTS, this.delivered.size());
+		assertTrue(this.delivered.contains("a@example.com " + message));
+		assertTrue(this.delivered.contains("slow@example.com " + message));
+		assertTrue(this.delivered.contains("c@example.com " + message));
+	}
+
+	/** */
+	private void send(String... recipients) throws Exception
+	{
+		SmartClient client = new SmartClient("localhost", PORT, "localhost");
+		client.from("john@example.com");
+		for (String recipient: recipients)
+			client.to(recipient);
+		client.dataStart();
+		byte[] bytes = TextUtils.getAsciiBytes(MESSAGE);
+		client.dataWrite(bytes, bytes.length);
+		client.dataEnd();
+		client.quit();
+	}
+}
@@ -0,0 +1,131 @@
+package org.subethamail.smtp;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.subethamail.smtp.io.HeaderParser;
+import org.subethamail.smtp.util.TextUtils;
+
+public class HeaderParserTest
+{
+	private static final String MESSAGE = "Received: from a\r\n\tby b\r\n"
+		+ "Received: from c\r\n"
+		+ "Subject: =?UTF-8?Q?Gr=C3=BC=C3=9Fe?=\r\n"
+		+ "X-Empty:\r\n"
+		+ "\r\n"
+		+ "Subject: not a header\r\n";
+
+	@Test
+	public void testFields()
+	{
+		MessageHeaders headers = parse(MESSAGE, MESSAGE.length());
+
+		assertTrue(headers.isComplete());
+		assertEquals(4, headers.size());
+		assertEquals(MESSAGE.indexOf("Subject: not"), headers.getSectionSize());
+		assertEquals("Received", headers.getName(0));
+		assertEquals("from a\tby b", headers.getValue(0));
+		assertEquals(2, headers.count("received"));
+		assertEquals(Arrays.asList("from a\tby b", "from c"), headers.getAll("RECEIVED"));
+		assertEquals("=?UTF-8?Q?Gr=C3=BC=C3=9Fe?=", headers.get("Subject"));
+		assertEquals("Grüße", headers.getDecoded("Subject"));
+		assertEquals("", headers.get("X-Empty"));
+		assertNull(headers.get("From"));
+		assertEquals(0, headers.count("From"));
+	}
+
+	@Test
+	public void testOffsets()
+	{
+		MessageHeaders headers = parse(MESSAGE, MESSAGE.length());
+
+		int subject = MESSAGE.indexOf("Subject");
+		assertEquals(subject, headers.getOffset(2));
+		assertEquals(MESSAGE.indexOf("X-Empty") - subject, headers.getLength(2));
+		assertEquals("Received: from a\r\n\tby b\r\n".length(), headers.getLength(0));
+	}
+
+	@Test
+	public void testEveryChunkSize()
+	{
+		for (int chunkSize = 1; chunkSize <= MESSAGE.length(); chunkSize++)
+		{
+			MessageHeaders headers = parse(MESSAGE, chunkSize);
+			assertTrue(headers.isComplete());
+			assertEquals(4, headers.size());
+			assertEquals("from c", headers.getValue(1));
+		}
+	}
+
+	@Test
+	public void testBareLf()
+	{
+		MessageHeaders headers = parse("A: 1\n b\nC: 2\n\nbody\n", 3);
+
+		assertTrue(headers.isComplete());
+		assertEquals(2, headers.size());
+		assertEquals("1 b", headers.get("a"));
+		assertEquals("2", headers.get("c"));
+	}
+
+	@Test
+	public void testNoBody()
+	{
+		HeaderParser parser = new HeaderParser();
+		assertFalse(parser.update(ByteBuffer.wrap(TextUtils.getAsciiBytes("Subject: x\r\nFrom: y\r\n"))));
+		assertNull(parser.getHeaders());
+
+		MessageHeaders headers = parser.finish();
+		assertFalse(headers.isComplete());
+		assertEquals("y", headers.get("From"));
+	}
+
+	@Test
+	public void testEmptyHeaderSection()
+	{
+		MessageHeaders headers = parse("\r\nbody\r\n", 100);
+
+		assertTrue(headers.isComplete());
+		assertEquals(0, headers.size());
+		assertEquals(2, headers.getSectionSize());
+	}
+
+	@Test
+	public void testSizeLimit()
+	{
+		HeaderParser parser = new HeaderParser(16);
+		assertTrue(parser.update(ByteBuffer.wrap(TextUtils.getAsciiBytes(MESSAGE))));
+
+		MessageHeaders headers = parser.getHeaders();
+		assertFalse(headers.isComplete());
+		assertEquals(16, headers.getSectionSize());
+		assertEquals("from a", headers.get("Received"));
+	}
+
+	@Test
+	public void testPositionUnchanged()
+	{
+		ByteBuffer chunk = ByteBuffer.wrap(TextUtils.getAsciiBytes(MESSAGE));
+		new HeaderParser().update(chunk);
+
+		assertEquals(0, chunk.position());
+	}
+
+	/**
+	 * Parses the data in chunks of the given size.
+	 */
+	private static MessageHeaders parse(String data, int chunkSize)
+	{
+		HeaderParser parser = new HeaderParser();
+		byte[] bytes = TextUtils.getUtf8Bytes(data);
+		for (int off = 0; off < bytes.length; off += chunkSize)
+		{
+			if (parser.update(ByteBuffer.wrap(bytes, off, Math.min(chunkSize, bytes.length - off))))
+				break;
+		}
+		return parser.finish();
+	}
+}
@@ -0,0 +1,169 @@
+package org.subethamail.smtp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.subethamail.smtp.client.SmartClient;
+import org.subethamail.smtp.server.SMTPServer;
+import org.subethamail.smtp.util.TextUtils;
+
+/**
+ * Tests the delivery of message data to a {@link MessageDataHandler}.
+ */
+public class MessageDataTest extends TestCase
+{
+	/** */
+	public static final int PORT = 2566;
+
+	private SMTPServer server;
+
+	/** What the handler read through the stream and the channel views */
+	private volatile String firstPass;
+	private volatile String secondPass;
+
+	/** What the handler read at position 6000 */
+	private volatile String positional;
+
+	private volatile long size;
+	private volatile byte[] digest;
+
+	/** */
+	public MessageDataTest(String name)
+	{
+		super(name);
+	}
+
+	/** */
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+
+		this.server = new SMTPServer(new MessageHandlerFactory()
+		{
+			public MessageHandler create(MessageContext ctx)
+			{
+				return new MessageDataHandler()
+				{
+					public void from(String from) {}
+					public void recipient(String recipient) {}
+					public void data(InputStream data)
+					{
+						fail();
+					}
+					public void data(MessageData data) throws IOException
+					{
+						firstPass = readAll(data.getInputStream());
+						secondPass = readAll(Channels.newInputStream(data.getChannel()));
+						size = data.getSize();
+
+						ByteBuffer dst = ByteBuffer.allocate(9);
+						data.read(6000, dst);
+						positional = TextUtils.getStringAscii(dst.array());
+						try
+						{
+							digest = data.getDigest("SHA-256");
+						}
+						catch (NoSuchAlgorithmException e)
+						{
+							throw new RuntimeException(e);
+						}
+					}
+					public void done() {}
+				};
+			}
+		});
+		this.server.setHostName("localhost");
+		this.server.setPort(PORT);
+		this.server.setDisableReceivedHeaders(true);
+	}
+
+	/** */
+	@Override
+	protected void tearDown() throws Exception
+	{
+		this.server.stop();
+		super.tearDown();
+	}
+
+	/** */
+	public void testInMemory() throws Exception
+	{
+		this.checkDelivery(1024 * 1024);
+	}
+
+	/** */
+	public void testInFile() throws Exception
+	{
+		this.checkDelivery(100);
+	}
+
+	/** */
+	public void testStreamPassedOn() throws Exception
+	{
+		final String[] received = new String[1];
+		MessageDataHandler handler = new MessageDataHandler()
+		{
+			public void from(String from) {}
+			public void recipient(String recipient) {}
+			public void data(MessageData data) throws IOException
+			{
+				received[0] = readAll(data.getInputStream());
+			}
+			public void done() {}
+		};
+
+		// as a delegating handler would
+		String message = "Subject: test\r\n\r\nbody\r\n";
+		MessageHandler delegate = handler;
+		delegate.data(new ByteArrayInputStream(TextUtils.getAsciiBytes(message)));
+		assertEquals(message, received[0]);
+	}
+
+	/** */
+	private void checkDelivery(int dataDeferredSize) throws Exception
+	{
+		this.server.setDataDeferredSize(dataDeferredSize);
+		this.server.start();
+
+		StringBuilder body = new StringBuilder();
+		for (int i = 0; i < 1000; i++)
+			body.append("line ").append(i).append("\r\n");
+		String header = "Subject: test\r\n\r\n";
+		String message = header + body;
+
+		SmartClient client = new SmartClient("localhost", PORT, "localhost");
+		client.from("john@example.com");
+		client.to("jane@example.com");
+		client.dataStart();
+		byte[] bytes = TextUtils.getAsciiBytes(message);
+		client.dataWrite(bytes, bytes.length);
+		client.dataEnd();
+		client.quit();
+
+		assertEquals(message, this.firstPass);
+		assertEquals(message, this.secondPass);
+		assertEquals(message.length(), this.size);
+		assertEquals(message.substring(6000, 6009), this.positional);
+		// the digest is of the body only
+		assertTrue(Arrays.equals(MessageDigest.getInstance("SHA-256").digest(
+				TextUtils.getAsciiBytes(body.toString())), this.digest));
+	}
+
+	/** */
+	private static String readAll(InputStream in) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		in.transferTo(out);
+		return TextUtils.getStringAscii(out.toByteArray());
+	}
+}
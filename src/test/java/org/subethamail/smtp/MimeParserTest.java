@@ -0,0 +1,197 @@
+package org.subethamail.smtp;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+import org.subethamail.smtp.mime.AttachmentExtractor;
+import org.subethamail.smtp.mime.MimeHandler;
+import org.subethamail.smtp.mime.MimeParser;
+import org.subethamail.smtp.mime.MimePart;
+import org.subethamail.smtp.mime.QuotedPrintableDecodingOutputStream;
+import org.subethamail.smtp.util.TextUtils;
+
+public class MimeParserTest
+{
+	private static final String MESSAGE = "Subject: test\r\n"
+		+ "Content-Type: multipart/mixed; boundary=\"outer\"\r\n"
+		+ "\r\n"
+		+ "preamble\r\n"
+		+ "--outer\r\n"
+		+ "Content-Type: multipart/alternative; boundary=inner\r\n"
+		+ "\r\n"
+		+ "--inner\r\n"
+		+ "Content-Type: text/plain; charset=UTF-8\r\n"
+		+ "Content-Transfer-Encoding: quoted-printable\r\n"
+		+ "\r\n"
+		+ "Gr=C3=BC=C3=9Fe, a soft=\r\n"
+		+ " break\r\n"
+		+ "--inner\r\n"
+		+ "Content-Type: text/html\r\n"
+		+ "\r\n"
+		+ "<p>--outerwear</p>\r\n"
+		+ "\r\n"
+		+ "--inner--\r\n"
+		+ "--outer\r\n"
+		+ "Content-Type: application/octet-stream; name=data.bin\r\n"
+		+ "Content-Disposition: attachment; filename=\"data.bin\"\r\n"
+		+ "Content-Transfer-Encoding: base64\r\n"
+		+ "\r\n"
+		+ "QUJD\r\n"
+		+ "RA==\r\n"
+		+ "--outer-- \r\n"
+		+ "epilogue\r\n";
+
+	private static final String EVENTS = "start message multipart/mixed\n"
+		+ "start 1 multipart/alternative\n"
+		+ "start 1.1 text/plain\n"
+		+ "end 1.1 [Grüße, a soft break]\n"
+		+ "start 1.2 text/html\n"
+		+ "end 1.2 [<p>--outerwear</p>\r\n]\n"
+		+ "end 1\n"
+		+ "start 2 application/octet-stream\n"
+		+ "end 2 [ABCD]\n"
+		+ "end message\n";
+
+	@Test
+	public void testStructure() throws IOException
+	{
+		byte[] bytes = TextUtils.getUtf8Bytes(MESSAGE);
+		for (int size = 1; size <= 16; size++)
+			assertEquals("chunk size " + size, EVENTS, this.parse(bytes, size));
+		assertEquals(EVENTS, this.parse(bytes, bytes.length));
+	}
+
+	@Test
+	public void testSinglePart() throws IOException
+	{
+		String message = "Subject: test\r\n\r\nline 1\r\nline 2\r\n";
+		assertEquals("start message text/plain\nend message [line 1\r\nline 2\r\n]\n",
+				this.parse(TextUtils.getAsciiBytes(message), 3));
+	}
+
+	@Test
+	public void testMalformed() throws IOException
+	{
+		// the inner multipart is never closed, the last part has no blank line
+		String message = "Content-Type: multipart/mixed; boundary=a\n\n"
+			+ "--a\nContent-Type: multipart/mixed; boundary=b\n\n"
+			+ "--b\n\nfirst\n"
+			+ "--a\nContent-Type: text/plain\n";
+		assertEquals("start message multipart/mixed\n"
+			+ "start 1 multipart/mixed\n"
+			+ "start 1.1 text/plain\n"
+			+ "end 1.1 [first]\n"
+			+ "end 1\n"
+			+ "start 2 text/plain\n"
+			+ "end 2 []\n"
+			+ "end message\n", this.parse(TextUtils.getAsciiBytes(message), 5));
+	}
+
+	@Test
+	public void testLongLines() throws IOException
+	{
+		StringBuilder body = new StringBuilder();
+		for (int i = 0; i < 5000; i++)
+			body.append((char) ('a' + i % 26));
+		String message = "Content-Type: multipart/mixed; boundary=x\r\n\r\n--x\r\n\r\n" + body + "\r\n--x--\r\n";
+
+		assertEquals("start message multipart/mixed\n"
+			+ "start 1 text/plain\n"
+			+ "end 1 [" + body + "]\n"
+			+ "end message\n", this.parse(TextUtils.getAsciiBytes(message), 777));
+	}
+
+	@Test
+	public void testQuotedPrintable() throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (OutputStream qp = new QuotedPrintableDecodingOutputStream(out))
+		{
+			qp.write(TextUtils.getAsciiBytes("a=3D=3db=\nc=\r\nd=XY=4"));
+		}
+		assertEquals("a==bcd=XY=4", TextUtils.getStringAscii(out.toByteArray()));
+	}
+
+	@Test
+	public void testAttachmentExtractor() throws IOException
+	{
+		byte[] content = new byte[1024 * 1024 + 1];
+		new Random(1).nextBytes(content);
+		String message = "Content-Type: multipart/mixed; boundary=b\r\n\r\n"
+			+ "--b\r\n\r\ntext\r\n"
+			+ "--b\r\nContent-Type: application/pdf; name=\"../../report.pdf\"\r\nContent-Transfer-Encoding: base64\r\n\r\n"
+			+ Base64.getMimeEncoder().encodeToString(content) + "\r\n"
+			+ "--b\r\nContent-Disposition: attachment\r\n\r\nplain\r\n"
+			+ "--b--\r\n";
+
+		Path directory = Files.createTempDirectory("attachments");
+		try
+		{
+			AttachmentExtractor extractor = new AttachmentExtractor(directory);
+			MimeParser.parse(new ByteArrayInputStream(TextUtils.getAsciiBytes(message)), extractor);
+
+			List<AttachmentExtractor.Attachment> attachments = extractor.getAttachments();
+			assertEquals(2, attachments.size());
+			assertEquals(directory.resolve("1-report.pdf"), attachments.get(0).getFile());
+			assertEquals("../../report.pdf", attachments.get(0).getPart().getFilename());
+			assertEquals(content.length, attachments.get(0).getSize());
+			assertArrayEquals(content, Files.readAllBytes(attachments.get(0).getFile()));
+			assertEquals(directory.resolve("2-attachment"), attachments.get(1).getFile());
+			assertEquals("plain", TextUtils.getStringAscii(Files.readAllBytes(attachments.get(1).getFile())));
+		}
+		finally
+		{
+			try (Stream<Path> files = Files.walk(directory))
+			{
+				files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+			}
+		}
+	}
+
+	/**
+	 * Parses the message fed in chunks of the size, and returns the events.
+	 */
+	private String parse(byte[] message, int chunkSize) throws IOException
+	{
+		final StringBuilder events = new StringBuilder();
+		MimeParser parser = new MimeParser(new MimeHandler()
+		{
+			ByteArrayOutputStream body;
+
+			public void startPart(MimePart part)
+			{
+				events.append("start ").append(part).append('\n');
+			}
+
+			public OutputStream body(MimePart part)
+			{
+				return this.body = new ByteArrayOutputStream();
+			}
+
+			public void endPart(MimePart part)
+			{
+				events.append("end ").append(part.getPath().isEmpty() ? "message" : part.getPath());
+				if (!part.isMultipart())
+					events.append(" [").append(TextUtils.getStringUtf8(this.body.toByteArray())).append(']');
+				events.append('\n');
+			}
+		});
+
+		for (int off = 0; off < message.length; off += chunkSize)
+			parser.update(message, off, Math.min(chunkSize, message.length - off));
+		parser.finish();
+		return events.toString();
+	}
+}
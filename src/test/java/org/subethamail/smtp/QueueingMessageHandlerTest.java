@@ -0,0 +1,254 @@
+package org.subethamail.smtp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import junit.framework.TestCase;
+
+import org.subethamail.smtp.client.SmartClient;
+import org.subethamail.smtp.queue.QueueingMessageHandlerFactory;
+import org.subethamail.smtp.server.SMTPServer;
+import org.subethamail.smtp.util.TextUtils;
+
+/**
+ * Tests accepting messages into a durable queue with
+ * {@link QueueingMessageHandlerFactory}, and delivering them later.
+ */
+public class QueueingMessageHandlerTest extends TestCase
+{
+	/** */
+	public static final int PORT = 2566;
+
+	private static final String MESSAGE = "Subject: test\r\n\r\nbody\r\n";
+
+	private Path directory;
+
+	private SMTPServer server;
+
+	private QueueingMessageHandlerFactory queue;
+
+	/** Recipient and data of each delivery, in the order received */
+	private final List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+
+	/** The recipients of all attempts */
+	private final List<String> attempted = Collections.synchronizedList(new ArrayList<String>());
+
+	/** The number of data calls which fail temporarily */
+	private final AtomicInteger failures = new AtomicInteger();
+
+	/** */
+	public QueueingMessageHandlerTest(String name)
+	{
+		super(name);
+	}
+
+	/** */
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+
+		this.directory = Files.createTempDirectory("queue");
+		this.queue = this.createQueue();
+		this.server = new SMTPServer(this.queue);
+		this.server.setHostName("localhost");
+		this.server.setPort(PORT);
+		this.server.setDisableReceivedHeaders(true);
+		this.queue.start(this.server);
+		this.server.start();
+	}
+
+	/** */
+	@Override
+	protected void tearDown() throws Exception
+	{
+		this.server.stop();
+		this.queue.stop();
+		try (Stream<Path> files = Files.walk(this.directory))
+		{
+			files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+		super.tearDown();
+	}
+
+	/** */
+	public void testDelivery() throws Exception
+	{
+		this.send("jane@example.com", "joe@example.com");
+		this.awaitDelivery();
+
+		assertEquals(2, this.delivered.size());
+		assertTrue(this.delivered.contains("jane@example.com " + MESSAGE));
+		assertTrue(this.delivered.contains("joe@example.com " + MESSAGE));
+	}
+
+	/** */
+	public void testRetry() throws Exception
+	{
+		this.queue.setRetryDelay(10);
+		this.failures.set(2);
+
+		this.send("jane@example.com");
+		this.awaitDelivery();
+
+		assertEquals(0, this.failures.get());
+		assertEquals(Collections.singletonList("jane@example.com " + MESSAGE), this.delivered);
+	}
+
+	/** */
+	public void testPermanentRejection() throws Exception
+	{
+		this.send("unknown@example.com", "jane@example.com");
+		this.awaitDelivery();
+
+		assertEquals(Collections.singletonList("jane@example.com " + MESSAGE), this.delivered);
+	}
+
+	/** */
+	public void testRetryAfterPermanentRejection() throws Exception
+	{
+		this.queue.setRetryDelay(10);
+		this.failures.set(1);
+
+		this.send("unknown@example.com", "jane@example.com");
+		this.awaitDelivery();
+
+		assertEquals(Collections.singletonList("jane@example.com " + MESSAGE), this.delivered);
+		// the rejected recipient is not tried again when the data fails
+		assertEquals(Arrays.asList("unknown@example.com", "jane@example.com", "jane@example.com"), this.attempted);
+	}
+
+	/** */
+	public void testConcurrentSessions() throws Exception
+	{
+		List<Thread> senders = new ArrayList<Thread>();
+		final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+		for (int i = 0; i < 8; i++)
+		{
+			final String recipient = "jane" + i + "@example.com";
+			senders.add(new Thread(() -> {
+				try
+				{
+					this.send(recipient);
+				}
+				catch (Exception e)
+				{
+					errors.add(e);
+				}
+			}));
+		}
+		for (Thread sender: senders)
+			sender.start();
+		for (Thread sender: senders)
+			sender.join();
+		assertEquals(Collections.emptyList(), errors);
+
+		this.awaitDelivery();
+		assertEquals(8, this.delivered.size());
+		for (int i = 0; i < 8; i++)
+			assertTrue(this.delivered.contains("jane" + i + "@example.com " + MESSAGE));
+	}
+
+	/** */
+	public void testRecovery() throws Exception
+	{
+		this.queue.setRetryDelay(60 * 1000);
+		this.failures.set(1);
+
+		this.send("jane@example.com");
+		while (this.failures.get() > 0)
+			Thread.sleep(10);
+		this.queue.stop();
+		assertTrue(this.delivered.isEmpty());
+
+		this.queue = this.createQueue();
+		this.queue.start(this.server);
+		this.awaitDelivery();
+		assertEquals(Collections.singletonList("jane@example.com " + MESSAGE), this.delivered);
+
+		// the delivered message is not recovered again
+		this.queue.stop();
+		this.delivered.clear();
+		this.queue = this.createQueue();
+		this.queue.start(this.server);
+		assertEquals(0, this.queue.getPendingCount());
+	}
+
+	/** */
+	private QueueingMessageHandlerFactory createQueue()
+	{
+		return new QueueingMessageHandlerFactory(new MessageHandlerFactory()
+		{
+			public MessageHandler create(MessageContext ctx)
+			{
+				return new RecordingHandler();
+			}
+		}, this.directory);
+	}
+
+	/** */
+	private void send(String... recipients) throws Exception
+	{
+		SmartClient client = new SmartClient("localhost", PORT, "localhost");
+		client.from("john@example.com");
+		for (String recipient: recipients)
+			client.to(recipient);
+		client.dataStart();
+		byte[] bytes = TextUtils.getAsciiBytes(MESSAGE);
+		client.dataWrite(bytes, bytes.length);
+		client.dataEnd();
+		client.quit();
+	}
+
+	/** */
+	private void awaitDelivery() throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + 10000;
+		while (this.queue.getPendingCount() > 0 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(0, this.queue.getPendingCount());
+	}
+
+	/**
+	 * Records each delivery, and fails the first ones as configured.
+	 */
+	class RecordingHandler implements MessageHandler
+	{
+		private final List<String> recipients = new ArrayList<String>();
+
+		public void from(String from)
+		{
+		}
+
+		public void recipient(String recipient) throws RejectException
+		{
+			attempted.add(recipient);
+			if (recipient.startsWith("unknown"))
+				throw new RejectException(553, "<" + recipient + "> address unknown.");
+			this.recipients.add(recipient);
+		}
+
+		public void data(InputStream data) throws RejectException, IOException
+		{
+			String content = TextUtils.getStringAscii(data.readAllBytes());
+			if (failures.getAndUpdate(count -> Math.max(count - 1, 0)) > 0)
+				throw new RejectException(451, "4.3.0 Try again later");
+
+			for (String recipient: this.recipients)
+				delivered.add(recipient + " " + content);
+		}
+
+		public void done()
+		{
+		}
+	}
+}
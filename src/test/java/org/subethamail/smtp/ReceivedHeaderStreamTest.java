@@ -8,6 +8,8 @@ import junit.framework.TestCase;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.subethamail.smtp.io.ReceivedHeaderStream;
+import org.subethamail.smtp.io.ReceivedHeaderTemplate;
+import org.subethamail.smtp.util.TextUtils;
 
 /**
  * This class tests a bug in ReceivedHeaderStream which
@@ -48,4 +50,31 @@ public class ReceivedHeaderStreamTest extends TestCase
 
 		assertTrue(result.endsWith("\nhello world"));
 	}
+
+	/** */
+	public void testTemplate() throws Exception
+	{
+		ReceivedHeaderTemplate template = new ReceivedHeaderTemplate("ehlo", null, "foo", "SubEthaSMTP");
+		String header = TextUtils.getStringAscii(template.createHeader("123", "jane@example.com"));
+		assertTrue(header, header.matches("Received: from ehlo\r\n"
+				+ "        by foo\r\n"
+				+ "        with SMTP \\(SubEthaSMTP\\) id 123\r\n"
+				+ "        for jane@example.com;\r\n"
+				+ "        \\w{3}, \\d{2} \\w{3} \\d{4} \\d{2}:\\d{2}:\\d{2} [+-]\\d{4} \\(.+\\)\r\n"));
+
+		header = TextUtils.getStringAscii(template.createHeader("456", null));
+		assertTrue(header, header.contains(" id 456;\r\n"));
+		assertEquals(TextUtils.getStringAscii(ReceivedHeaderStream.createHeader("ehlo", null, "foo", "SubEthaSMTP",
+				"456", null)).length(), header.length());
+	}
+
+	/** */
+	public void testEmptyData() throws Exception
+	{
+		byte[] header = TextUtils.getAsciiBytes("Received: from ehlo\r\n");
+		ReceivedHeaderStream in = new ReceivedHeaderStream(new ByteArrayInputStream(new byte[0]), header);
+		byte[] buf = new byte[100];
+		assertEquals(header.length, in.read(buf, 0, buf.length));
+		assertEquals(-1, in.read(buf, 0, buf.length));
+	}
 }
\ No newline at end of file
@@ -0,0 +1,187 @@
+package org.subethamail.smtp;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.subethamail.smtp.io.ChunkPool;
+import org.subethamail.smtp.io.DeferredFileOutputStream;
+import org.subethamail.smtp.io.DeflateSpoolCodec;
+import org.subethamail.smtp.io.MemoryBudget;
+import org.subethamail.smtp.io.SpoolFile;
+import org.subethamail.smtp.io.SpoolManager;
+
+public class SpoolManagerTest
+{
+	private Path directory;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		this.directory = Files.createTempDirectory("spool");
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		for (Path shard: Files.newDirectoryStream(this.directory))
+		{
+			if (Files.isDirectory(shard))
+			{
+				for (Path file: Files.newDirectoryStream(shard))
+					Files.delete(file);
+			}
+			Files.delete(shard);
+		}
+		Files.delete(this.directory);
+	}
+
+	@Test
+	public void testSweepOrphans() throws IOException
+	{
+		Files.createDirectories(this.directory.resolve("03"));
+		Path orphan = Files.createFile(this.directory.resolve("03").resolve("subetha1-1.msg"));
+		Path other = Files.createFile(this.directory.resolve("keep.txt"));
+
+		new SpoolManager(this.directory, 4, 2);
+		assertFalse(Files.exists(orphan));
+		assertTrue(Files.exists(other));
+		Files.delete(other);
+	}
+
+	@Test
+	public void testRecycle() throws IOException
+	{
+		SpoolManager manager = new SpoolManager(this.directory, 4, 1);
+
+		SpoolFile first = manager.create();
+		first.getChannel().write(ByteBuffer.wrap(new byte[100]));
+		SpoolFile second = manager.create();
+		assertEquals(2, manager.getFileCount());
+		assertEquals(100, manager.getBytes());
+
+		first.release();
+		second.release();
+		assertEquals(0, manager.getFileCount());
+		assertEquals(1, manager.getIdleFileCount());
+		assertTrue(Files.exists(first.getPath()));
+		assertFalse(Files.exists(second.getPath()));
+
+		SpoolFile again = manager.create();
+		assertSame(first, again);
+		assertEquals(0, again.getChannel().size());
+		again.release();
+
+		manager.close();
+		assertFalse(Files.exists(first.getPath()));
+	}
+
+	@Test
+	public void testCreateIdleFiles() throws IOException
+	{
+		SpoolManager manager = new SpoolManager(this.directory, 0, 3);
+		assertEquals(3, manager.createIdleFiles(5));
+		assertEquals(3, manager.getIdleFileCount());
+		manager.close();
+	}
+
+	@Test
+	public void testCompression() throws IOException
+	{
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 5000; i++)
+			text.append("Line ").append(i).append(" of a rather repetitive message\r\n");
+		byte[] data = text.toString().getBytes("US-ASCII");
+
+		SpoolManager manager = new SpoolManager(this.directory);
+		manager.setCodec(new DeflateSpoolCodec());
+		DeferredFileOutputStream out = new DeferredFileOutputStream(1000, ChunkPool.getDefault(),
+				new MemoryBudget(100000), manager);
+		out.write(data, 0, 500);
+		out.write(data, 500, data.length - 500);
+		out.getInputStream().close();
+		assertEquals(data.length, out.getSize());
+		assertTrue(manager.getBytes() < data.length / 3);
+
+		ByteArrayOutputStream copy = new ByteArrayOutputStream();
+		out.getInputStream().transferTo(copy);
+		assertArrayEquals(data, copy.toByteArray());
+
+		copy.reset();
+		assertEquals(data.length - 7, out.transferTo(7, Channels.newChannel(copy)));
+		assertEquals(text.substring(7), copy.toString("US-ASCII"));
+
+		ByteBuffer dst = ByteBuffer.allocate(10);
+		for (int position: new int[] { 90000, 100000, 20 })
+		{
+			dst.clear();
+			assertEquals(10, out.read(position, dst));
+			assertEquals(text.substring(position, position + 10), new String(dst.array(), "US-ASCII"));
+		}
+
+		out.close();
+		manager.close();
+	}
+
+	@Test
+	public void testDeferredFileOutputStream() throws IOException
+	{
+		SpoolManager manager = new SpoolManager(this.directory);
+		DeferredFileOutputStream out = new DeferredFileOutputStream(10, ChunkPool.getDefault(),
+				new MemoryBudget(1000), manager);
+		out.write(new byte[100]);
+		out.getInputStream().close();
+		assertEquals(1, manager.getFileCount());
+		assertEquals(100, manager.getBytes());
+
+		out.close();
+		assertEquals(0, manager.getFileCount());
+		assertEquals(1, manager.getIdleFileCount());
+		manager.close();
+	}
+
+	@Test
+	public void testStreamOutlivesRelease() throws IOException
+	{
+		SpoolManager manager = new SpoolManager(this.directory, 0, 1);
+		DeferredFileOutputStream first = new DeferredFileOutputStream(10, ChunkPool.getDefault(),
+				new MemoryBudget(1000), manager);
+		first.write(new byte[100]);
+		InputStream in = first.getInputStream();
+		first.close();
+
+		DeferredFileOutputStream second = new DeferredFileOutputStream(10, ChunkPool.getDefault(),
+				new MemoryBudget(1000), manager);
+		byte[] secret = new byte[200];
+		Arrays.fill(secret, (byte)'x');
+		second.write(secret);
+		second.getInputStream().close();
+		assertEquals(0, manager.getIdleFileCount());
+
+		try
+		{
+			in.read(new byte[300]);
+			fail();
+		}
+		catch (IOException e)
+		{
+			// expected, the data of the first message is gone
+		}
+
+		InputStream bounded = second.getInputStream();
+		assertEquals(200, bounded.available());
+		assertEquals(200, bounded.readAllBytes().length);
+		second.close();
+		manager.close();
+	}
+}
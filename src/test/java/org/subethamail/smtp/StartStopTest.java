@@ -10,6 +10,7 @@ import junit.framework.TestSuite;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.server.SMTPServer;
 import org.subethamail.wiser.Wiser;
 
 /**
@@ -67,6 +68,24 @@ public class StartStopTest extends TestCase
 		assertEquals(this.counter, 10);
 	}
 
+	/** */
+	public void testHostName() throws Exception
+	{
+		Wiser wiser = new Wiser();
+		SMTPServer server = wiser.getServer();
+
+		// the name of the local host, whatever it is, once looked up
+		String name = server.getHostName();
+		assertNotNull(name);
+		assertFalse(name.isEmpty());
+		assertEquals(name, new Wiser().getServer().getHostName());
+
+		server.setHostName("mx.example.com");
+		assertEquals("mx.example.com", server.getHostName());
+		server.setHostName(null);
+		assertEquals(name, server.getHostName());
+	}
+
 	/** */
 	private void startStop(boolean pause) throws Exception
 	{
@@ -1,5 +1,6 @@
 package org.subethamail.smtp.command;
 
+import org.subethamail.smtp.io.MemoryBudget;
 import org.subethamail.smtp.util.ServerTestCase;
 
 /**
@@ -83,4 +84,24 @@ public class DataTest extends ServerTestCase
 		this.send("HELO foo.com");
 		this.expect("250");
 	}
+
+	/** */
+	public void testMemoryBudgetExhausted() throws Exception
+	{
+		this.wiser.getServer().setMemoryBudget(new MemoryBudget(0));
+
+		this.expect("220");
+
+		this.send("HELO foo.com");
+		this.expect("250");
+
+		this.send("MAIL FROM: success@subethamail.org");
+		this.expect("250");
+
+		this.send("RCPT TO: success@subethamail.org");
+		this.expect("250");
+
+		this.send("DATA");
+		this.expect("452 4.3.1");
+	}
 }
@@ -1,5 +1,6 @@
 package org.subethamail.smtp.command;
 
+import org.subethamail.smtp.io.MemoryBudget;
 import org.subethamail.smtp.util.ServerTestCase;
 
 /**
@@ -72,4 +73,34 @@ public class ReceiptTest extends ServerTestCase
 		this.send("RCPT TO:success@subethamail.org");
 		this.expect("250 Ok");
 	}
+
+	/** */
+	public void testDeclaredSizeReservesMemory() throws Exception
+	{
+		MemoryBudget budget = new MemoryBudget(1000);
+		this.wiser.getServer().setMemoryBudget(budget);
+
+		this.expect("220");
+
+		this.send("HELO foo.com");
+		this.expect("250");
+
+		this.send("MAIL FROM: <success@subethamail.org> SIZE=600");
+		this.expect("250 Ok");
+
+		this.send("RCPT TO: success@subethamail.org");
+		this.expect("250 Ok");
+		assertEquals(600, budget.getUsed());
+
+		this.send("RSET");
+		this.expect("250 Ok");
+		assertEquals(0, budget.getUsed());
+
+		assertTrue(budget.tryReserve(500));
+		this.send("MAIL FROM: <success@subethamail.org> SIZE=600");
+		this.expect("250 Ok");
+
+		this.send("RCPT TO: success@subethamail.org");
+		this.expect("452 4.3.1");
+	}
 }
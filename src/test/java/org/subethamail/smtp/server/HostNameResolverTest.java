@@ -0,0 +1,212 @@
+package org.subethamail.smtp.server;
+
+import java.net.InetAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.subethamail.smtp.util.Client;
+import org.subethamail.wiser.Wiser;
+
+/**
+ * Tests that the host name of the client in the Received header comes from
+ * the host name resolver of the server, and that the session does not wait
+ * for it beyond the timeout.
+ */
+public class HostNameResolverTest extends TestCase
+{
+	/** */
+	public static final int PORT = 2566;
+
+	private Wiser wiser;
+
+	/** */
+	public HostNameResolverTest(String name)
+	{
+		super(name);
+	}
+
+	/** */
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+
+		this.wiser = new Wiser();
+		this.wiser.setHostname("localhost");
+		this.wiser.setPort(PORT);
+	}
+
+	/** */
+	@Override
+	protected void tearDown() throws Exception
+	{
+		this.wiser.stop();
+		super.tearDown();
+	}
+
+	/** */
+	public void testResolvedName() throws Exception
+	{
+		this.wiser.getServer().setHostNameResolver(address -> CompletableFuture.completedFuture("client.example.com"));
+
+		String received = this.send();
+		assertTrue(received, received.startsWith("Received: from helo (client.example.com [127.0.0.1])\r\n"));
+	}
+
+	/** */
+	public void testNoName() throws Exception
+	{
+		this.wiser.getServer().setHostNameResolver(address -> CompletableFuture.completedFuture(null));
+
+		String received = this.send();
+		assertTrue(received, received.startsWith("Received: from helo ([127.0.0.1])\r\n"));
+	}
+
+	/** */
+	public void testTimeout() throws Exception
+	{
+		// a resolver which never answers
+		this.wiser.getServer().setHostNameResolver(address -> new CompletableFuture<String>());
+		this.wiser.getServer().setHostNameTimeout(100);
+
+		long start = System.nanoTime();
+		String received = this.send();
+		assertTrue(received, received.startsWith("Received: from helo ([127.0.0.1])\r\n"));
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+	}
+
+	/** */
+	public void testLateName() throws Exception
+	{
+		final CompletableFuture<String> name = new CompletableFuture<String>();
+		this.wiser.getServer().setHostNameResolver(address -> name);
+		this.wiser.getServer().setHostNameTimeout(100);
+		this.wiser.start();
+
+		Client client = new Client("localhost", PORT);
+		try
+		{
+			client.expect("220");
+			client.send("HELO helo");
+			client.expect("250");
+			this.sendMessage(client);
+			name.complete("late.example.com");
+			this.sendMessage(client);
+			client.send("QUIT");
+			client.expect("221");
+		}
+		finally
+		{
+			client.close();
+		}
+
+		String first = new String(this.wiser.getMessages().get(0).getData(), "US-ASCII");
+		assertTrue(first, first.startsWith("Received: from helo ([127.0.0.1])\r\n"));
+		String second = new String(this.wiser.getMessages().get(1).getData(), "US-ASCII");
+		assertTrue(second, second.startsWith("Received: from helo (late.example.com [127.0.0.1])\r\n"));
+	}
+
+	/** */
+	public void testCache() throws Exception
+	{
+		CachingHostNameResolver resolver = new CachingHostNameResolver(1);
+		InetAddress address = InetAddress.getLoopbackAddress();
+
+		CompletableFuture<String> first = resolver.resolve(address);
+		assertSame(first, resolver.resolve(address));
+		first.get(10, TimeUnit.SECONDS);
+		assertSame(first, resolver.resolve(address));
+		assertEquals(1, resolver.size());
+
+		// expired results are looked up again
+		resolver.setPositiveTtl(0);
+		resolver.setNegativeTtl(0);
+		resolver.clear();
+		CompletableFuture<String> second = resolver.resolve(address);
+		second.get(10, TimeUnit.SECONDS);
+		assertNotSame(second, resolver.resolve(address));
+	}
+
+	/** */
+	public void testBounds() throws Exception
+	{
+		final CountDownLatch release = new CountDownLatch(1);
+		CachingHostNameResolver resolver = new CachingHostNameResolver(1, 2, 1)
+		{
+			@Override
+			protected String lookup(InetAddress address)
+			{
+				try
+				{
+					release.await();
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+				return "host" + address.getAddress()[3] + ".example.com";
+			}
+		};
+		InetAddress a = InetAddress.getByAddress(new byte[] { 10, 0, 0, 1 });
+		InetAddress b = InetAddress.getByAddress(new byte[] { 10, 0, 0, 2 });
+		InetAddress c = InetAddress.getByAddress(new byte[] { 10, 0, 0, 3 });
+
+		// one lookup runs, one waits, the third gets no name at once
+		CompletableFuture<String> first = resolver.resolve(a);
+		CompletableFuture<String> second = resolver.resolve(b);
+		CompletableFuture<String> third = resolver.resolve(c);
+		assertTrue(third.isDone());
+		assertNull(third.get());
+		assertEquals(2, resolver.size());
+
+		release.countDown();
+		assertEquals("host1.example.com", first.get(10, TimeUnit.SECONDS));
+		assertEquals("host2.example.com", second.get(10, TimeUnit.SECONDS));
+
+		// the least recently used address makes room
+		assertSame(first, resolver.resolve(a));
+		assertEquals("host3.example.com", resolver.resolve(c).get(10, TimeUnit.SECONDS));
+		assertEquals(2, resolver.size());
+		assertSame(first, resolver.resolve(a));
+		assertNotSame(second, resolver.resolve(b));
+	}
+
+	/**
+	 * Sends a message and returns its data as received.
+	 */
+	private String send() throws Exception
+	{
+		this.wiser.start();
+		Client client = new Client("localhost", PORT);
+		try
+		{
+			client.expect("220");
+			client.send("HELO helo");
+			client.expect("250");
+			this.sendMessage(client);
+			client.send("QUIT");
+			client.expect("221");
+		}
+		finally
+		{
+			client.close();
+		}
+		return new String(this.wiser.getMessages().get(0).getData(), "US-ASCII");
+	}
+
+	/** */
+	private void sendMessage(Client client) throws Exception
+	{
+		client.send("MAIL FROM: <john@example.com>");
+		client.expect("250");
+		client.send("RCPT TO: <jane@example.com>");
+		client.expect("250");
+		client.send("DATA");
+		client.expect("354");
+		client.send("Subject: test\r\n\r\nbody\r\n.");
+		client.expect("250");
+	}
+}
@@ -0,0 +1,333 @@
+package org.subethamail.smtp.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+import junit.framework.TestCase;
+
+import org.subethamail.smtp.ChunkedMessageHandler;
+import org.subethamail.smtp.MessageContext;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.MessageData;
+import org.subethamail.smtp.MessageDataHandler;
+import org.subethamail.smtp.MessageDigestHandler;
+import org.subethamail.smtp.MessageHandlerFactory;
+import org.subethamail.smtp.MessageHeaders;
+import org.subethamail.smtp.MessageHeadersHandler;
+import org.subethamail.smtp.RejectException;
+import org.subethamail.smtp.util.TextUtils;
+import org.subethamail.wiser.Wiser;
+import org.subethamail.wiser.WiserMessage;
+
+/**
+ * Tests in-process submission through {@link SMTPServer#submit}.
+ */
+public class LocalSubmissionTest extends TestCase
+{
+	private static final String BODY = "body\r\n";
+
+	private static final String MESSAGE = "Subject: test\r\n\r\n" + BODY;
+
+	/** The server is never started, submission does not need a socket */
+	private Wiser wiser;
+
+	/** */
+	public LocalSubmissionTest(String name)
+	{
+		super(name);
+	}
+
+	/** */
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+
+		this.wiser = new Wiser()
+		{
+			@Override
+			public boolean accept(String from, String recipient)
+			{
+				return !recipient.startsWith("unknown");
+			}
+		};
+		this.wiser.setHostname("localhost");
+	}
+
+	/** */
+	public void testSubmitStream() throws Exception
+	{
+		List<String> accepted = this.wiser.getServer().submit("john@example.com",
+				Arrays.asList("jane@example.com", "unknown@example.com"),
+				new ByteArrayInputStream(TextUtils.getAsciiBytes(MESSAGE)));
+
+		assertEquals(Arrays.asList("jane@example.com"), accepted);
+		assertEquals(1, this.wiser.getMessages().size());
+
+		WiserMessage message = this.wiser.getMessages().get(0);
+		assertEquals("john@example.com", message.getEnvelopeSender());
+		assertEquals("jane@example.com", message.getEnvelopeReceiver());
+
+		String data = TextUtils.getStringAscii(message.getData());
+		assertTrue(data.startsWith("Received: from localhost\r\n"));
+		assertTrue(data.contains("for jane@example.com;"));
+		assertTrue(data.endsWith(MESSAGE));
+	}
+
+	/** */
+	public void testSubmitBuffer() throws Exception
+	{
+		this.wiser.getServer().setDisableReceivedHeaders(true);
+		ByteBuffer buffer = ByteBuffer.wrap(TextUtils.getAsciiBytes(MESSAGE));
+
+		this.wiser.getServer().submit("john@example.com",
+				Arrays.asList("jane@example.com", "joe@example.com"), buffer);
+
+		assertEquals(2, this.wiser.getMessages().size());
+		assertEquals(MESSAGE, TextUtils.getStringAscii(this.wiser.getMessages().get(1).getData()));
+		assertEquals(0, buffer.position());
+	}
+
+	/** */
+	public void testChunkedHandler() throws Exception
+	{
+		final ByteArrayOutputStream received = new ByteArrayOutputStream();
+		SMTPServer server = new SMTPServer(new MessageHandlerFactory()
+		{
+			public MessageHandler create(MessageContext ctx)
+			{
+				return new ChunkedMessageHandler()
+				{
+					public void from(String from) {}
+					public void recipient(String recipient) {}
+					public void data(InputStream data)
+					{
+						fail();
+					}
+					public void dataChunk(ByteBuffer chunk)
+					{
+						assertTrue(chunk.isReadOnly());
+						byte[] bytes = new byte[chunk.remaining()];
+						chunk.get(bytes);
+						received.write(bytes, 0, bytes.length);
+					}
+					public void dataEnd()
+					{
+						received.write('$');
+					}
+					public void done() {}
+				};
+			}
+		});
+		server.setHostName("localhost");
+		server.setDisableReceivedHeaders(true);
+
+		server.submit("john@example.com", Arrays.asList("jane@example.com"),
+				new ByteArrayInputStream(TextUtils.getAsciiBytes(MESSAGE)));
+
+		assertEquals(MESSAGE + "$", TextUtils.getStringAscii(received.toByteArray()));
+	}
+
+	/** */
+	public void testHeadersHandler() throws Exception
+	{
+		final StringBuilder events = new StringBuilder();
+		SMTPServer server = new SMTPServer(new MessageHandlerFactory()
+		{
+			public MessageHandler create(MessageContext ctx)
+			{
+				return new MessageHeadersHandler()
+				{
+					public void from(String from) {}
+					public void recipient(String recipient) {}
+					public void headers(MessageHeaders headers)
+					{
+						events.append(headers.count("Received")).append(' ').append(headers.get("Subject"));
+					}
+					public void data(InputStream data) throws IOException
+					{
+						events.append(" data(");
+						data.transferTo(OutputStream.nullOutputStream());
+						events.append(")");
+					}
+					public void done() {}
+				};
+			}
+		});
+		server.setHostName("localhost");
+
+		server.submit("john@example.com", Arrays.asList("jane@example.com"),
+				new ByteArrayInputStream(TextUtils.getAsciiBytes(MESSAGE)));
+
+		// the headers are reported while the handler reads the data
+		assertEquals(" data(1 test)", events.toString());
+	}
+
+	/** */
+	public void testMessageDataHeaders() throws Exception
+	{
+		final MessageHeaders[] received = new MessageHeaders[1];
+		SMTPServer server = new SMTPServer(new MessageHandlerFactory()
+		{
+			public MessageHandler create(MessageContext ctx)
+			{
+				return new MessageDataHandler()
+				{
+					public void from(String from) {}
+					public void recipient(String recipient) {}
+					public void data(MessageData data) throws IOException
+					{
+						received[0] = data.getHeaders();
+					}
+					public void done() {}
+				};
+			}
+		});
+		server.setHostName("localhost");
+		server.setDisableReceivedHeaders(true);
+
+		server.submit("john@example.com", Arrays.asList("jane@example.com"),
+				ByteBuffer.wrap(TextUtils.getAsciiBytes(MESSAGE)));
+
+		assertTrue(received[0].isComplete());
+		assertEquals(1, received[0].size());
+		assertEquals("test", received[0].get("subject"));
+	}
+
+	/** */
+	public void testDigestHandler() throws Exception
+	{
+		final StringBuilder events = new StringBuilder();
+		final byte[][] received = new byte[1][];
+		SMTPServer server = new SMTPServer(new MessageHandlerFactory()
+		{
+			public MessageHandler create(MessageContext ctx)
+			{
+				return new MessageDigestHandler()
+				{
+					public void from(String from) {}
+					public void recipient(String recipient) {}
+					public void digest(String algorithm, byte[] digest)
+					{
+						events.append(algorithm);
+						received[0] = digest;
+					}
+					public void data(InputStream data) throws IOException
+					{
+						events.append("data(");
+						data.transferTo(OutputStream.nullOutputStream());
+						events.append(")");
+					}
+					public void done() {}
+				};
+			}
+		});
+		server.setHostName("localhost");
+		server.setDisableReceivedHeaders(true);
+		server.setDigestAlgorithm("SHA-256");
+
+		server.submit("john@example.com", Arrays.asList("jane@example.com"),
+				new ByteArrayInputStream(TextUtils.getAsciiBytes(MESSAGE)));
+
+		// the digest is reported when the handler reads the end of the data
+		assertEquals("data(SHA-256)", events.toString());
+		byte[] expected = MessageDigest.getInstance("SHA-256").digest(TextUtils.getAsciiBytes(BODY));
+		assertTrue(Arrays.equals(expected, received[0]));
+	}
+
+	/** */
+	public void testMessageDataDigest() throws Exception
+	{
+		final byte[][] received = new byte[2][];
+		SMTPServer server = new SMTPServer(new MessageHandlerFactory()
+		{
+			public MessageHandler create(MessageContext ctx)
+			{
+				return new MessageDataHandler()
+				{
+					public void from(String from) {}
+					public void recipient(String recipient) {}
+					public void data(MessageData data) throws IOException
+					{
+						try
+						{
+							received[0] = data.getDigest("CRC32C");
+						}
+						catch (NoSuchAlgorithmException e)
+						{
+							throw new AssertionError(e);
+						}
+						received[1] = data.getInputStream().readAllBytes();
+					}
+					public void done() {}
+				};
+			}
+		});
+		server.setHostName("localhost");
+		server.setDigestAlgorithm("CRC32C");
+
+		server.submit("john@example.com", Arrays.asList("jane@example.com"),
+				ByteBuffer.wrap(TextUtils.getAsciiBytes(MESSAGE)));
+
+		// the data includes the Received header, the digest is of the body only
+		assertTrue(received[1].length > MESSAGE.length());
+		CRC32C crc = new CRC32C();
+		crc.update(TextUtils.getAsciiBytes(BODY));
+		assertEquals((int) crc.getValue(), ByteBuffer.wrap(received[0]).getInt());
+	}
+
+	/** */
+	public void testUnknownDigestAlgorithm()
+	{
+		try
+		{
+			this.wiser.getServer().setDigestAlgorithm("NO-SUCH-DIGEST");
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+			assertNull(this.wiser.getServer().getDigestAlgorithm());
+		}
+	}
+
+	/** */
+	public void testAllRecipientsRejected() throws Exception
+	{
+		try
+		{
+			this.wiser.getServer().submit("john@example.com", Arrays.asList("unknown@example.com"),
+					ByteBuffer.wrap(TextUtils.getAsciiBytes(MESSAGE)));
+			fail();
+		}
+		catch (RejectException e)
+		{
+			assertEquals(553, e.getCode());
+		}
+		assertTrue(this.wiser.getMessages().isEmpty());
+	}
+
+	/** */
+	public void testMessageSizeLimit() throws Exception
+	{
+		this.wiser.getServer().setMaxMessageSize(10);
+		try
+		{
+			this.wiser.getServer().submit("john@example.com", Arrays.asList("jane@example.com"),
+					ByteBuffer.wrap(TextUtils.getAsciiBytes(MESSAGE)));
+			fail();
+		}
+		catch (RejectException e)
+		{
+			assertEquals(552, e.getCode());
+		}
+	}
+}
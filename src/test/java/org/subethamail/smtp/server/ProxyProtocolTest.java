@@ -0,0 +1,159 @@
+package org.subethamail.smtp.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import junit.framework.TestCase;
+
+import org.subethamail.smtp.MessageContext;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.MessageHandlerFactory;
+import org.subethamail.smtp.RejectException;
+import org.subethamail.smtp.util.TextUtils;
+
+/**
+ * Tests that the client address is taken from the PROXY protocol header.
+ */
+public class ProxyProtocolTest extends TestCase
+{
+	/** */
+	public static final int PORT = 2566;
+
+	private SMTPServer server;
+
+	/** The remote address seen by the last created message handler */
+	private volatile InetSocketAddress remoteAddress;
+
+	/** */
+	public ProxyProtocolTest(String name)
+	{
+		super(name);
+	}
+
+	/** */
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+
+		this.server = new SMTPServer(new MessageHandlerFactory()
+		{
+			public MessageHandler create(MessageContext ctx)
+			{
+				remoteAddress = (InetSocketAddress) ctx.getRemoteAddress();
+				return new MessageHandler()
+				{
+					public void from(String from) throws RejectException {}
+					public void recipient(String recipient) throws RejectException {}
+					public void data(InputStream data) throws IOException {}
+					public void done() {}
+				};
+			}
+		});
+		this.server.setHostName("localhost");
+		this.server.setPort(PORT);
+		this.server.setEnableProxyProtocol(true);
+		this.server.start();
+	}
+
+	/** */
+	@Override
+	protected void tearDown() throws Exception
+	{
+		this.server.stop();
+		super.tearDown();
+	}
+
+	/** */
+	public void testVersion1() throws Exception
+	{
+		this.converse(TextUtils.getAsciiBytes("PROXY TCP4 192.0.2.1 198.51.100.1 56324 25\r\n"));
+
+		assertEquals("192.0.2.1", this.remoteAddress.getAddress().getHostAddress());
+		assertEquals(56324, this.remoteAddress.getPort());
+	}
+
+	/** */
+	public void testVersion1Unknown() throws Exception
+	{
+		this.converse(TextUtils.getAsciiBytes("PROXY UNKNOWN\r\n"));
+
+		assertTrue(this.remoteAddress.getAddress().isLoopbackAddress());
+	}
+
+	/** */
+	public void testVersion2() throws Exception
+	{
+		byte[] header = new byte[] {
+				0x0D, 0x0A, 0x0D, 0x0A, 0x00, 0x0D, 0x0A, 0x51, 0x55, 0x49, 0x54, 0x0A,
+				0x21, // version 2, PROXY
+				0x11, // AF_INET, STREAM
+				0x00, 0x0C, // 12 bytes of addresses
+				(byte) 203, 0, 113, 7, // source
+				(byte) 198, 51, 100, 1, // destination
+				(byte) 0xDB, (byte) 0xE4, // source port 56292
+				0x00, 0x19 // destination port 25
+		};
+		this.converse(header);
+
+		assertEquals("203.0.113.7", this.remoteAddress.getAddress().getHostAddress());
+		assertEquals(56292, this.remoteAddress.getPort());
+	}
+
+	/** */
+	public void testMissingHeader() throws Exception
+	{
+		Socket socket = new Socket("localhost", PORT);
+		try
+		{
+			OutputStream out = socket.getOutputStream();
+			out.write(TextUtils.getAsciiBytes("EHLO foo.com\r\n"));
+			out.flush();
+
+			// the connection is closed without a greeting
+			assertEquals(-1, socket.getInputStream().read());
+		}
+		finally
+		{
+			socket.close();
+		}
+	}
+
+	/**
+	 * Sends the specified header followed by the start of a mail transaction.
+	 */
+	private void converse(byte[] header) throws Exception
+	{
+		Socket socket = new Socket("localhost", PORT);
+		try
+		{
+			OutputStream out = socket.getOutputStream();
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+
+			out.write(header);
+			out.flush();
+			assertTrue(in.readLine().startsWith("220"));
+
+			out.write(TextUtils.getAsciiBytes("HELO foo.com\r\n"));
+			out.flush();
+			assertTrue(in.readLine().startsWith("250"));
+
+			out.write(TextUtils.getAsciiBytes("MAIL FROM: <john@example.com>\r\n"));
+			out.flush();
+			assertTrue(in.readLine().startsWith("250"));
+
+			out.write(TextUtils.getAsciiBytes("QUIT\r\n"));
+			out.flush();
+			assertTrue(in.readLine().startsWith("221"));
+		}
+		finally
+		{
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,187 @@
+package org.subethamail.smtp.server;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import junit.framework.TestCase;
+
+import org.subethamail.smtp.MessageContext;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.MessageHandlerFactory;
+import org.subethamail.smtp.PeerCredentials;
+import org.subethamail.smtp.RejectException;
+import org.subethamail.smtp.util.TextUtils;
+
+/**
+ * Tests a server listening on a Unix domain socket.
+ */
+public class UnixDomainSocketTest extends TestCase
+{
+	private Path path;
+
+	private SMTPServer server;
+
+	/** The message received by the last created message handler */
+	private volatile String message;
+
+	private volatile MessageContext context;
+
+	/** */
+	public UnixDomainSocketTest(String name)
+	{
+		super(name);
+	}
+
+	/** */
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+
+		this.path = new File(System.getProperty("java.io.tmpdir"), "subetha-test-" + System.nanoTime() + ".sock").toPath();
+		this.server = new SMTPServer(new MessageHandlerFactory()
+		{
+			public MessageHandler create(MessageContext ctx)
+			{
+				context = ctx;
+				return new MessageHandler()
+				{
+					public void from(String from) throws RejectException {}
+					public void recipient(String recipient) throws RejectException {}
+					public void data(InputStream data) throws IOException
+					{
+						ByteArrayOutputStream out = new ByteArrayOutputStream();
+						byte[] buf = new byte[1024];
+						int count;
+						while ((count = data.read(buf)) != -1)
+							out.write(buf, 0, count);
+						message = TextUtils.getStringAscii(out.toByteArray());
+					}
+					public void done() {}
+				};
+			}
+		});
+		this.server.setHostName("localhost");
+		this.server.setUnixDomainSocketPath(this.path);
+		this.server.start();
+	}
+
+	/** */
+	@Override
+	protected void tearDown() throws Exception
+	{
+		this.server.stop();
+		super.tearDown();
+	}
+
+	/** */
+	public void testSubmission() throws Exception
+	{
+		SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+		try
+		{
+			channel.connect(UnixDomainSocketAddress.of(this.path));
+			OutputStream out = Channels.newOutputStream(channel);
+			BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel)));
+
+			assertTrue(in.readLine().startsWith("220"));
+			this.send(out, "EHLO app.example.com");
+			String line;
+			while ((line = in.readLine()).startsWith("250-"))
+				assertFalse(line.contains("STARTTLS"));
+			this.send(out, "MAIL FROM: <john@example.com>");
+			assertTrue(in.readLine().startsWith("250"));
+			this.send(out, "RCPT TO: <jane@example.com>");
+			assertTrue(in.readLine().startsWith("250"));
+			this.send(out, "DATA");
+			assertTrue(in.readLine().startsWith("354"));
+			this.send(out, "Subject: test\r\n\r\nbody\r\n.");
+			assertTrue(in.readLine().startsWith("250"));
+			this.send(out, "QUIT");
+			assertTrue(in.readLine().startsWith("221"));
+		}
+		finally
+		{
+			channel.close();
+		}
+
+		assertTrue(this.message.startsWith("Received: from app.example.com\r\n"));
+		assertTrue(this.message.endsWith("Subject: test\r\n\r\nbody\r\n"));
+		assertTrue(((Session) this.context).isUnixDomainSocket());
+
+		PeerCredentials credentials = this.context.getPeerCredentials();
+		if (credentials != null)
+			assertEquals(System.getProperty("user.name"), credentials.getUserName());
+	}
+
+	/** */
+	public void testSocketFileDeletedOnStop() throws Exception
+	{
+		assertTrue(Files.exists(this.path));
+		this.server.stop();
+		assertFalse(Files.exists(this.path));
+	}
+
+	/** */
+	public void testStaleSocketReplaced() throws Exception
+	{
+		// closing a bound channel leaves the socket file behind, like a crash
+		Path stale = this.path.resolveSibling("stale-" + this.path.getFileName());
+		ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		channel.bind(UnixDomainSocketAddress.of(stale));
+		channel.close();
+		assertTrue(Files.exists(stale));
+
+		SMTPServer other = new SMTPServer(this.server.getMessageHandlerFactory());
+		other.setUnixDomainSocketPath(stale);
+		other.start();
+		other.stop();
+		assertFalse(Files.exists(stale));
+	}
+
+	/** */
+	public void testRegularFileNotDeleted() throws Exception
+	{
+		Path file = this.path.resolveSibling("file-" + this.path.getFileName());
+		Files.write(file, TextUtils.getAsciiBytes("data"));
+		try
+		{
+			SMTPServer other = new SMTPServer(this.server.getMessageHandlerFactory());
+			other.setUnixDomainSocketPath(file);
+			try
+			{
+				other.start();
+				fail();
+			}
+			catch (RuntimeException e)
+			{
+				assertTrue(e.getCause() instanceof FileAlreadyExistsException);
+			}
+			assertEquals("data", TextUtils.getStringAscii(Files.readAllBytes(file)));
+		}
+		finally
+		{
+			Files.delete(file);
+		}
+	}
+
+	/** */
+	private void send(OutputStream out, String line) throws IOException
+	{
+		out.write(TextUtils.getAsciiBytes(line + "\r\n"));
+		out.flush();
+	}
+}
@@ -0,0 +1,142 @@
+package org.subethamail.smtp.util;
+
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.subethamail.smtp.io.ChunkPool;
+import org.subethamail.smtp.io.DeferredFileOutputStream;
+import org.subethamail.smtp.io.DeflateSpoolCodec;
+import org.subethamail.smtp.io.MemoryBudget;
+import org.subethamail.smtp.io.SpoolCodec;
+import org.subethamail.smtp.io.SpoolManager;
+
+/**
+ * A command-line benchmark of spool compression. It spools typical message
+ * mixes to disk and reads them back, with and without a codec, and reports
+ * the CPU time spent against the bytes which reach the spool volume. Run it
+ * with the spool directory as argument, ideally on the volume used in
+ * production.
+ */
+public class SpoolCodecBenchmark
+{
+	/** The size of each generated message */
+	private static final int MESSAGE_SIZE = 1024 * 1024;
+
+	/** Number of messages spooled per measurement */
+	private static final int MESSAGES = 64;
+
+	private static final String[] WORDS = {
+		"the", "message", "server", "delivery", "please", "find", "attached", "report",
+		"quarterly", "meeting", "regards", "customer", "order", "invoice", "account",
+		"update", "schedule", "marketing", "campaign", "unsubscribe", "offer", "today"
+	};
+
+	/** */
+	public static void main(String[] args) throws Exception
+	{
+		Path directory = args.length > 0 ? Path.of(args[0]) : Files.createTempDirectory("spoolbench");
+		SpoolManager manager = new SpoolManager(directory);
+
+		Random random = new Random(42);
+		byte[] text = text(random, false);
+		byte[] html = text(random, true);
+		byte[] attachment = attachment(random);
+		byte[][][] mixes = {
+			{ text },
+			{ html },
+			{ attachment },
+			// roughly the share of bytes of a marketing burst: mostly html
+			{ html, html, html, text, attachment }
+		};
+		String[] mixNames = { "text", "html", "base64 attachment", "mixed" };
+
+		SpoolCodec[] codecs = { null, new DeflateSpoolCodec(Deflater.BEST_SPEED), new DeflateSpoolCodec(6) };
+		String[] codecNames = { "none", "deflate 1", "deflate 6" };
+
+		System.out.println(String.format("%-18s %-10s %10s %10s %12s %8s",
+				"mix", "codec", "cpu ms", "wall ms", "disk MB", "ratio"));
+		for (int m = 0; m < mixes.length; m++)
+		{
+			for (int c = 0; c < codecs.length; c++)
+			{
+				manager.setCodec(codecs[c]);
+				run(manager, mixes[m]);	// warm up
+				long[] result = run(manager, mixes[m]);
+				long raw = (long) MESSAGES * MESSAGE_SIZE;
+				System.out.println(String.format("%-18s %-10s %10d %10d %12.1f %8.2f",
+						mixNames[m], codecNames[c], result[0] / 1000000, result[1] / 1000000,
+						result[2] / (1024.0 * 1024.0), (double) raw / result[2]));
+			}
+		}
+
+		manager.close();
+	}
+
+	/**
+	 * Spools and reads back the messages of the mix in turn.
+	 *
+	 * @return CPU nanoseconds, wall nanoseconds, and bytes on disk
+	 */
+	private static long[] run(SpoolManager manager, byte[][] mix) throws Exception
+	{
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		MemoryBudget budget = new MemoryBudget(Long.MAX_VALUE);
+		byte[] buffer = new byte[8192];
+		long diskBytes = 0;
+
+		long cpu = threads.getCurrentThreadCpuTime();
+		long wall = System.nanoTime();
+		for (int i = 0; i < MESSAGES; i++)
+		{
+			byte[] message = mix[i % mix.length];
+			DeferredFileOutputStream out = new DeferredFileOutputStream(0, ChunkPool.getDefault(), budget, manager);
+			for (int off = 0; off < message.length; off += buffer.length)
+				out.write(message, off, Math.min(buffer.length, message.length - off));
+
+			InputStream in = out.getInputStream();
+			while (in.read(buffer) != -1)
+				;
+			in.close();
+
+			diskBytes += manager.getBytes();
+			out.close();
+		}
+
+		return new long[] { threads.getCurrentThreadCpuTime() - cpu, System.nanoTime() - wall, diskBytes };
+	}
+
+	/** Generates a text or html body from a small vocabulary */
+	private static byte[] text(Random random, boolean html)
+	{
+		StringBuilder body = new StringBuilder("Subject: benchmark\r\nContent-Type: text/"
+				+ (html ? "html" : "plain") + "\r\n\r\n");
+		while (body.length() < MESSAGE_SIZE)
+		{
+			if (html)
+				body.append("<tr><td class=\"item\" style=\"padding:4px;color:#333333\">");
+			for (int w = 0; w < 10; w++)
+				body.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+			if (html)
+				body.append("</td></tr>");
+			body.append("\r\n");
+		}
+		return TextUtils.getAsciiBytes(body.substring(0, MESSAGE_SIZE));
+	}
+
+	/** Generates a message which is mostly a base64 encoded binary attachment */
+	private static byte[] attachment(Random random)
+	{
+		byte[] binary = new byte[MESSAGE_SIZE * 3 / 4];
+		random.nextBytes(binary);
+		String encoded = Base64.getMimeEncoder().encodeToString(binary);
+		String message = "Subject: benchmark\r\nContent-Type: application/octet-stream\r\n"
+			+ "Content-Transfer-Encoding: base64\r\n\r\n" + encoded;
+		return TextUtils.getAsciiBytes(message.substring(0, MESSAGE_SIZE));
+	}
+}